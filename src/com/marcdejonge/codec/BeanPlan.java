@@ -0,0 +1,313 @@
+package com.marcdejonge.codec;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.Buffer;
+import java.time.ZoneId;
+import java.time.temporal.TemporalAccessor;
+import java.time.temporal.TemporalAmount;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+import java.util.UUID;
+import java.util.stream.BaseStream;
+
+/**
+ * <p>
+ * A {@link BeanPlan} holds the properties of a JavaBean class, as they are copied into a {@link MixedMap} by
+ * {@link MixedMap#MixedMap(Object)}. The properties are found only once per class and cached, each with a
+ * {@link MethodHandle} to read it. The properties are:
+ * </p>
+ * <ul>
+ * <li>The components of a record, in the order in which they are declared.</li>
+ * <li>The public getter methods, named <code>getName</code> or <code>isName</code> when they return a boolean.</li>
+ * <li>The public instance fields, when there is no getter of the same name.</li>
+ * </ul>
+ * <p>
+ * The values of the properties are copied through a {@link Walk}, which converts the beans, collections and maps in
+ * them as well, and fails on cycles or graphs that are nested too deep.
+ * </p>
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+final class BeanPlan {
+	/**
+	 * The number of nested beans, collections and maps that a {@link Walk} goes into before it gives up.
+	 */
+	static final int MAX_DEPTH = 100;
+
+	private static final MethodType GENERIC = MethodType.methodType(Object.class, Object.class);
+
+	private static final ClassValue<BeanPlan> PLANS = new ClassValue<BeanPlan>() {
+		@Override
+		protected BeanPlan computeValue(Class<?> type) {
+			return new BeanPlan(type);
+		}
+	};
+
+	// Class.getRecordComponents and RecordComponent.getAccessor, which are only available since Java 16
+	private static final Method RECORD_COMPONENTS;
+	private static final Method COMPONENT_NAME;
+	private static final Method COMPONENT_ACCESSOR;
+
+	static {
+		Method components = null, name = null, accessor = null;
+		try {
+			components = Class.class.getMethod("getRecordComponents");
+			Class<?> component = components.getReturnType().getComponentType();
+			name = component.getMethod("getName");
+			accessor = component.getMethod("getAccessor");
+		} catch (NoSuchMethodException ex) {
+			// Records are not supported by this runtime
+		}
+		RECORD_COMPONENTS = components;
+		COMPONENT_NAME = name;
+		COMPONENT_ACCESSOR = accessor;
+	}
+
+	/**
+	 * @return The plan of the class, which is only determined on the first call.
+	 */
+	static BeanPlan of(Class<?> type) {
+		return PLANS.get(type);
+	}
+
+	private final Class<?> type;
+	private final String[] names;
+	// The accessors as (Object)Object handles
+	private final MethodHandle[] accessors;
+	// If the value of a property is a primitive or string, which is always stored as it is
+	private final boolean[] plain;
+
+	private BeanPlan(Class<?> type) {
+		this.type = type;
+		Map<String, Object> members = new LinkedHashMap<>();
+		Object[] components = recordComponents(type);
+		if (components != null) {
+			for (Object component : components) {
+				try {
+					members.put((String) COMPONENT_NAME.invoke(component), COMPONENT_ACCESSOR.invoke(component));
+				} catch (ReflectiveOperationException ex) {
+					// The component can not be read
+				}
+			}
+		} else {
+			for (Method method : type.getMethods()) {
+				String name = method.getName();
+				if (method.getReturnType() == Void.TYPE
+				    || method.getParameterCount() != 0
+				    || Modifier.isStatic(method.getModifiers())
+				    || name.equals("getClass")) {
+					continue;
+				} else if (name.length() >= 4 && name.startsWith("get") && Character.isUpperCase(name.charAt(3))) {
+					members.put(Character.toLowerCase(name.charAt(3)) + name.substring(4), method);
+				} else if (name.length() >= 3 && name.startsWith("is") && method.getReturnType() == Boolean.TYPE) {
+					members.put(name, method);
+				}
+			}
+			for (Field field : type.getFields()) {
+				if (!Modifier.isStatic(field.getModifiers())) {
+					members.putIfAbsent(field.getName(), field);
+				}
+			}
+		}
+
+		List<String> names = new ArrayList<>(members.size());
+		List<MethodHandle> accessors = new ArrayList<>(members.size());
+		List<Class<?>> types = new ArrayList<>(members.size());
+		MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+		for (Map.Entry<String, Object> member : members.entrySet()) {
+			try {
+				if (member.getValue() instanceof Method) {
+					Method method = (Method) member.getValue();
+					accessors.add(lookup.unreflect(method).asType(GENERIC));
+					types.add(method.getReturnType());
+				} else {
+					Field field = (Field) member.getValue();
+					accessors.add(lookup.unreflectGetter(field).asType(GENERIC));
+					types.add(field.getType());
+				}
+				names.add(member.getKey());
+			} catch (IllegalAccessException | SecurityException ex) {
+				// Properties that can not be accessed are skipped, e.g. the getters of a class that is not public
+			}
+		}
+
+		this.names = names.toArray(new String[names.size()]);
+		this.accessors = accessors.toArray(new MethodHandle[accessors.size()]);
+		plain = new boolean[types.size()];
+		for (int ix = 0; ix < plain.length; ix++) {
+			plain[ix] = types.get(ix).isPrimitive() || types.get(ix) == String.class;
+		}
+	}
+
+	private static Object[] recordComponents(Class<?> type) {
+		if (RECORD_COMPONENTS == null) {
+			return null;
+		}
+		try {
+			return (Object[]) RECORD_COMPONENTS.invoke(type);
+		} catch (ReflectiveOperationException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return If the class does not have any properties that can be read, so it is not a JavaBean.
+	 */
+	boolean isEmpty() {
+		return names.length == 0;
+	}
+
+	/**
+	 * @return If the value is stored as it is, since it is no bean or can be written directly by the encoders.
+	 */
+	static boolean isValue(Object value) {
+		return value == null
+		       || value instanceof Number
+		       || value instanceof CharSequence
+		       || value instanceof Boolean
+		       || value instanceof Character
+		       || value instanceof Enum
+		       || value instanceof MixedMap
+		       || value instanceof MixedList
+		       || value instanceof UUID
+		       || value instanceof OptionalInt
+		       || value instanceof OptionalLong
+		       || value instanceof OptionalDouble
+		       || value instanceof TemporalAccessor
+		       || value instanceof TemporalAmount
+		       || value instanceof ZoneId
+		       || value instanceof Buffer
+		       || value instanceof BaseStream
+		       || value instanceof Iterator
+		       || (value instanceof Iterable && !(value instanceof Collection))
+		       || value.getClass().isArray() && value.getClass().getComponentType().isPrimitive();
+	}
+
+	/**
+	 * A {@link Walk} copies a graph of beans into {@link MixedMap}s and {@link MixedList}s, keeping track of the path
+	 * from the first bean to detect cycles and limit the depth.
+	 */
+	static final class Walk {
+		// The beans, collections and maps that are being copied
+		private Object[] path = new Object[8];
+		private int depth;
+
+		// The plan of the last bean, since collections usually contain beans of the same type
+		private BeanPlan last;
+
+		/**
+		 * @return The plan of the class of the bean.
+		 */
+		BeanPlan plan(Object bean) {
+			BeanPlan plan = last;
+			if (plan == null || plan.type != bean.getClass()) {
+				last = plan = of(bean.getClass());
+			}
+			return plan;
+		}
+
+		private void enter(Object value) throws UnexpectedTypeException {
+			for (int ix = 0; ix < depth; ix++) {
+				if (path[ix] == value) {
+					throw new UnexpectedTypeException("The " + value.getClass().getSimpleName()
+					                                  + " contains itself, so it can not be copied into a MixedMap");
+				}
+			}
+			if (depth == MAX_DEPTH) {
+				throw new UnexpectedTypeException("The beans are nested more than " + MAX_DEPTH + " levels deep");
+			}
+			if (depth == path.length) {
+				path = Arrays.copyOf(path, Math.min(depth * 2, MAX_DEPTH));
+			}
+			path[depth++] = value;
+		}
+
+		private void leave() {
+			path[--depth] = null;
+		}
+
+		/**
+		 * Copies the properties of the bean into the target.
+		 */
+		void copy(Object bean, BeanPlan plan, MixedMap target) throws UnexpectedTypeException {
+			enter(bean);
+			try {
+				for (int ix = 0; ix < plan.names.length; ix++) {
+					Object value;
+					try {
+						value = plan.accessors[ix].invokeExact(bean);
+					} catch (Error ex) {
+						throw ex;
+					} catch (Throwable ex) {
+						// Properties that can not be read are left out
+						continue;
+					}
+					target.put(plan.names[ix], plan.plain[ix] ? value : convert(value));
+				}
+			} finally {
+				leave();
+			}
+		}
+
+		/**
+		 * @return The value, with the beans in it copied into {@link MixedMap}s and the collections and maps in it
+		 *         copied into {@link MixedList}s and {@link MixedMap}s.
+		 */
+		Object convert(Object value) throws UnexpectedTypeException {
+			if (isValue(value)) {
+				return value;
+			} else if (value instanceof Optional) {
+				return convert(((Optional<?>) value).orElse(null));
+			} else if (!(value instanceof Map || value instanceof Collection || value.getClass().isArray())) {
+				BeanPlan plan = plan(value);
+				if (plan.isEmpty()) {
+					// Not a bean, the encoders write its string representation
+					return value;
+				}
+				MixedMap map = new MixedMap();
+				copy(value, plan, map);
+				return map;
+			}
+
+			enter(value);
+			try {
+				if (value instanceof Map) {
+					MixedMap map = new MixedMap();
+					for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+						map.put(String.valueOf(entry.getKey()), convert(entry.getValue()));
+					}
+					return map;
+				}
+
+				MixedList list = new MixedList();
+				if (value instanceof Collection) {
+					for (Object element : (Collection<?>) value) {
+						list.add(convert(element));
+					}
+				} else {
+					for (int ix = 0, length = Array.getLength(value); ix < length; ix++) {
+						list.add(convert(Array.get(value, ix)));
+					}
+				}
+				return list;
+			} finally {
+				leave();
+			}
+		}
+	}
+}
@@ -0,0 +1,438 @@
+package com.marcdejonge.codec;
+
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+/**
+ * <p>
+ * A {@link MixedMap} that stores its values in an array, in the order in which they have been inserted. The keys are
+ * kept in a {@link Shape}, with an index to find the position of a key. Small maps are searched with a linear scan,
+ * larger maps use an open-addressing index, so lookups remain constant time.
+ * </p>
+ * <p>
+ * Compared to the {@link java.util.LinkedHashMap} storage this saves the entry object, with its hash, links and
+ * header, for each key/value pair. Maps that are created by the same {@link MapShapes} and get the same keys in the
+ * same order share their shape, so they only store their values. Removing an entry moves all the entries after it,
+ * like it does in an {@link java.util.ArrayList}, which keeps the iteration order without any links.
+ * </p>
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+final class CompactMap extends MixedMap {
+	private static final long serialVersionUID = 1L;
+
+	private static final Object[] NO_VALUES = new Object[0];
+
+	// The map is always serialized as a MixedMap, see writeReplace
+	private transient Shape shape;
+	private transient Object[] values = NO_VALUES;
+	private transient int modifications;
+	// Set when the map has been poisoned by a MixedArena in debug mode
+	transient boolean released;
+
+	/**
+	 * Creates a new empty map with a private shape.
+	 */
+	CompactMap() {
+		this(Shape.newPrivate());
+	}
+
+	/**
+	 * Creates a new empty map with the given shape, which is either empty or shared.
+	 */
+	CompactMap(Shape shape) {
+		this.shape = shape;
+	}
+
+	/**
+	 * Empties the map to be handed out again by a {@link MixedArena}. The array of values is kept, unless it is larger
+	 * than the given capacity.
+	 *
+	 * @return The number of slots in the array that is kept
+	 */
+	int recycle(int maxCapacity) {
+		// The maps and lists that outlive the arena should no longer tell this map about their modifications
+		for (int ix = 0; ix < shape.size(); ix++) {
+			Versions.release(this, values[ix]);
+		}
+		if (values.length > maxCapacity) {
+			values = NO_VALUES;
+		} else {
+			Arrays.fill(values, 0, shape.size(), null);
+		}
+		shape = shape.isShared() ? shape.root() : Shape.newPrivate();
+		modifications++;
+		// The version keeps increasing, so nothing that is cached for the old content matches the new content
+		parents = null;
+		modified();
+		return values.length;
+	}
+
+	/**
+	 * Starts a recycled map with the given shape, which is empty and shared.
+	 */
+	void reuse(Shape shape) {
+		this.shape = shape;
+	}
+
+	private void checkReleased() {
+		if (released) {
+			throw new IllegalStateException("The map has been released by its arena");
+		}
+	}
+
+	@Override
+	public int size() {
+		checkReleased();
+		return shape.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		checkReleased();
+		return shape.size() == 0;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		checkReleased();
+		return shape.indexOf(key) >= 0;
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		checkReleased();
+		for (int ix = 0; ix < shape.size(); ix++) {
+			if (Objects.equals(value, values[ix])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public Object get(Object key) {
+		checkReleased();
+		int pos = shape.indexOf(key);
+		return pos < 0 ? null : values[pos];
+	}
+
+	@Override
+	public Object getOrDefault(Object key, Object dflt) {
+		checkReleased();
+		int pos = shape.indexOf(key);
+		return pos < 0 ? dflt : values[pos];
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		checkReleased();
+		int pos = shape.indexOf(key);
+		if (pos >= 0) {
+			Object oldValue = values[pos];
+			values[pos] = value;
+			replaced(oldValue, value);
+			return oldValue;
+		}
+
+		int size = shape.size();
+		Shape next = shape.isShared() ? shape.transition(key) : null;
+		if (next != null) {
+			shape = next;
+		} else {
+			if (shape.isShared()) {
+				shape = shape.copy(size + 1);
+			}
+			shape.add(key);
+		}
+
+		if (size == values.length) {
+			// Maps with a shared shape most likely get the same keys as the maps before them
+			int capacity = next != null ? next.expectedSize() : size < 4 ? 4 : size + (size >> 1);
+			values = Arrays.copyOf(values, capacity);
+		}
+		values[size] = value;
+		modifications++;
+		replaced(null, value);
+		return null;
+	}
+
+	@Override
+	public Object remove(Object key) {
+		checkReleased();
+		int pos = shape.indexOf(key);
+		return pos < 0 ? null : removeAt(pos);
+	}
+
+	private Object removeAt(int pos) {
+		if (shape.isShared()) {
+			shape = shape.copy(shape.size());
+		}
+
+		Object oldValue = values[pos];
+		int size = shape.size();
+		System.arraycopy(values, pos + 1, values, pos, size - pos - 1);
+		values[size - 1] = null;
+		shape.remove(pos);
+		modifications++;
+		removed(oldValue);
+		return oldValue;
+	}
+
+	@Override
+	public void clear() {
+		checkReleased();
+		if (shape.size() > 0) {
+			for (int ix = 0; ix < shape.size(); ix++) {
+				Versions.release(this, values[ix]);
+			}
+			shape = Shape.newPrivate();
+			values = NO_VALUES;
+			modifications++;
+			modified();
+		}
+	}
+
+	@Override
+	public void forEach(BiConsumer<? super String, ? super Object> action) {
+		checkReleased();
+		Objects.requireNonNull(action);
+		int expected = modifications;
+		for (int ix = 0; ix < shape.size(); ix++) {
+			action.accept(shape.key(ix), values[ix]);
+			if (modifications != expected) {
+				throw new ConcurrentModificationException();
+			}
+		}
+	}
+
+	@Override
+	public void replaceAll(BiFunction<? super String, ? super Object, ? extends Object> function) {
+		checkReleased();
+		Objects.requireNonNull(function);
+		int expected = modifications;
+		for (int ix = 0; ix < shape.size(); ix++) {
+			Object oldValue = values[ix];
+			Object value = function.apply(shape.key(ix), oldValue);
+			if (modifications != expected) {
+				throw new ConcurrentModificationException();
+			}
+			values[ix] = value;
+			replaced(oldValue, value);
+		}
+	}
+
+	/**
+	 * Walks through the positions of the entries, supporting removal of the last returned entry.
+	 */
+	private abstract class PositionIterator<T> implements Iterator<T> {
+		private int next, last = -1;
+		private int expected = modifications;
+
+		@Override
+		public boolean hasNext() {
+			return next < shape.size();
+		}
+
+		abstract T get(int pos);
+
+		@Override
+		public T next() {
+			checkReleased();
+			if (modifications != expected) {
+				throw new ConcurrentModificationException();
+			} else if (next >= shape.size()) {
+				throw new NoSuchElementException();
+			}
+			last = next++;
+			return get(last);
+		}
+
+		@Override
+		public void remove() {
+			if (last < 0) {
+				throw new IllegalStateException();
+			} else if (modifications != expected) {
+				throw new ConcurrentModificationException();
+			}
+			removeAt(last);
+			next = last;
+			last = -1;
+			expected = modifications;
+		}
+	}
+
+	/**
+	 * An entry that writes through to the map, as long as its key is still in it.
+	 */
+	private final class Entry extends SimpleEntry<String, Object> {
+		private static final long serialVersionUID = 1L;
+
+		Entry(int pos) {
+			super(shape.key(pos), values[pos]);
+		}
+
+		@Override
+		public Object setValue(Object value) {
+			Object oldValue = super.setValue(value);
+			int pos = shape.indexOf(getKey());
+			if (pos >= 0) {
+				oldValue = values[pos];
+				values[pos] = value;
+				replaced(oldValue, value);
+			}
+			return oldValue;
+		}
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				return new PositionIterator<Map.Entry<String, Object>>() {
+					@Override
+					Map.Entry<String, Object> get(int pos) {
+						return new Entry(pos);
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return shape.size();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				if (o instanceof Map.Entry) {
+					Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+					int pos = shape.indexOf(entry.getKey());
+					return pos >= 0 && Objects.equals(values[pos], entry.getValue());
+				} else {
+					return false;
+				}
+			}
+
+			@Override
+			public boolean remove(Object o) {
+				if (o instanceof Map.Entry) {
+					Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+					return CompactMap.this.remove(entry.getKey(), entry.getValue());
+				} else {
+					return false;
+				}
+			}
+
+			@Override
+			public void clear() {
+				CompactMap.this.clear();
+			}
+		};
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return new AbstractSet<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				return new PositionIterator<String>() {
+					@Override
+					String get(int pos) {
+						return shape.key(pos);
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return shape.size();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return containsKey(o);
+			}
+
+			@Override
+			public boolean remove(Object o) {
+				int pos = shape.indexOf(o);
+				if (pos >= 0) {
+					removeAt(pos);
+					return true;
+				} else {
+					return false;
+				}
+			}
+
+			@Override
+			public void clear() {
+				CompactMap.this.clear();
+			}
+		};
+	}
+
+	@Override
+	public Collection<Object> values() {
+		return new AbstractCollection<Object>() {
+			@Override
+			public Iterator<Object> iterator() {
+				return new PositionIterator<Object>() {
+					@Override
+					Object get(int pos) {
+						return values[pos];
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return shape.size();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return containsValue(o);
+			}
+
+			@Override
+			public void clear() {
+				CompactMap.this.clear();
+			}
+		};
+	}
+
+	/**
+	 * The {@link java.util.HashMap#clone()} would copy the entries into the storage of the
+	 * {@link java.util.LinkedHashMap}, so the values are copied into a new map instead. A shared shape is used by the
+	 * clone as well.
+	 */
+	@Override
+	public CompactMap clone() {
+		checkReleased();
+		CompactMap clone = new CompactMap(shape.isShared() ? shape : shape.copy(shape.size()));
+		clone.values = Arrays.copyOf(values, shape.size());
+		for (Object value : clone.values) {
+			Versions.adopt(clone, value);
+		}
+		return clone;
+	}
+
+	/**
+	 * The arrays are not known to the serialization of the {@link java.util.HashMap}, so the map is serialized in the
+	 * form of a {@link SerializedTree}, which is read back as a normal {@link MixedMap}.
+	 */
+	private Object writeReplace() {
+		return new SerializedTree(this);
+	}
+}
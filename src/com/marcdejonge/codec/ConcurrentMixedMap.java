@@ -0,0 +1,676 @@
+package com.marcdejonge.codec;
+
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * <p>
+ * A {@link ConcurrentMixedMap} is a {@link MixedMap} that can be read and modified by any number of threads at the
+ * same time, without any external locking. The entries are stored in a {@link ConcurrentHashMap}, so reads never block
+ * and updates of different keys rarely contend. All the single-key operations, including
+ * {@link #compute(String, BiFunction)} and {@link #merge(String, Object, BiFunction)}, are atomic.
+ * {@link #computePath(List, BiFunction)} and {@link #mergePath(List, Object, BiFunction)} do the same for a value that
+ * is nested in other maps, creating the intermediate {@link ConcurrentMixedMap}s when needed.
+ * </p>
+ * <p>
+ * Like a normal {@link MixedMap}, the entries are kept in the order in which they have been inserted. The views and
+ * {@link #forEach(BiConsumer)} walk through the entries in that order and are weakly consistent: they never throw a
+ * {@link java.util.ConcurrentModificationException} and reflect some of the modifications made during the iteration.
+ * This means that the {@link com.marcdejonge.codec.json.JSONEncoder} can encode the map while it is being modified,
+ * without holding any lock. Keys can not be <code>null</code>, values can.
+ * </p>
+ * <p>
+ * The nested {@link MixedMap}s and {@link MixedList}s are not made thread-safe by storing them in this map. Use
+ * {@link ConcurrentMixedMap}s or frozen values for anything that is modified or read by several threads.
+ * </p>
+ * <p>
+ * The {@link #version()} of this map changes when any of its entries or anything in its nested maps and lists is
+ * modified. Since this map is modified by many threads, it only tells the {@link ConcurrentMixedMap}s in which it is
+ * stored about its modifications: the version of a normal {@link MixedMap} or {@link MixedList} that holds a
+ * {@link ConcurrentMixedMap} does not change when the concurrent map does, as those are not thread-safe. The caches of
+ * the encoder and the digest take this into account.
+ * </p>
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+public final class ConcurrentMixedMap extends MixedMap {
+	private static final long serialVersionUID = 1L;
+
+	// The map is always serialized as a MixedMap, see writeReplace
+	private final transient ConcurrentHashMap<String, Node> nodes = new ConcurrentHashMap<>();
+	// The same nodes, by the sequence number that gives the order in which they have been inserted
+	private final transient ConcurrentSkipListMap<Long, Node> order = new ConcurrentSkipListMap<>();
+	private final transient AtomicLong sequence = new AtomicLong();
+	// Counted in cells instead of a single field, so frequently updated maps do not contend on their version
+	private final transient LongAdder modifications = new LongAdder();
+
+	/**
+	 * Creates a new empty {@link ConcurrentMixedMap}.
+	 */
+	public ConcurrentMixedMap() {
+		// Created up front, so it is safely published to all the threads that store a nested container in this map
+		self = new WeakReference<>(this);
+	}
+
+	/**
+	 * Creates a new {@link ConcurrentMixedMap}, with all the key/value-pairs from the source copied into this.
+	 *
+	 * @param source
+	 *            The source map from which to copy
+	 */
+	public ConcurrentMixedMap(Map<?, ?> source) {
+		this();
+		for (Map.Entry<?, ?> entry : source.entrySet()) {
+			put(entry.getKey().toString(), entry.getValue());
+		}
+	}
+
+	/**
+	 * An entry of the map. The value is only modified while the bin of its key is locked by the
+	 * {@link ConcurrentHashMap}, it is volatile so it can be read without that lock.
+	 */
+	private final class Node implements Map.Entry<String, Object> {
+		final String key;
+		final long seq;
+		volatile Object value;
+
+		Node(String key, Object value, long seq) {
+			this.key = key;
+			this.value = value;
+			this.seq = seq;
+		}
+
+		@Override
+		public String getKey() {
+			return key;
+		}
+
+		@Override
+		public Object getValue() {
+			return value;
+		}
+
+		/**
+		 * Writes through to the map, as long as this entry has not been removed from it.
+		 */
+		@Override
+		public Object setValue(Object value) {
+			Change change = new Change();
+			nodes.computeIfPresent(key, (k, node) -> node == this ? change.set(node, value) : node);
+			change.apply();
+			return change.changed ? change.oldValue : this.value;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj instanceof Map.Entry) {
+				Map.Entry<?, ?> other = (Map.Entry<?, ?>) obj;
+				return key.equals(other.getKey()) && Objects.equals(value, other.getValue());
+			} else {
+				return false;
+			}
+		}
+
+		@Override
+		public int hashCode() {
+			return key.hashCode() ^ Objects.hashCode(value);
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + value;
+		}
+	}
+
+	/**
+	 * Records the change that is made to a single node while its key is locked, so the modification tracking can be
+	 * done after the lock has been released.
+	 */
+	private final class Change {
+		Object oldValue, newValue;
+		boolean changed, removed;
+
+		Node insert(String key, Object value) {
+			Node node = new Node(key, value, sequence.incrementAndGet());
+			order.put(node.seq, node);
+			newValue = value;
+			changed = true;
+			return node;
+		}
+
+		Node set(Node node, Object value) {
+			oldValue = node.value;
+			node.value = value;
+			newValue = value;
+			changed = true;
+			return node;
+		}
+
+		Node remove(Node node) {
+			oldValue = node.value;
+			order.remove(node.seq);
+			changed = removed = true;
+			return null;
+		}
+
+		Node keep(Node node) {
+			newValue = node == null ? null : node.value;
+			return node;
+		}
+
+		void apply() {
+			if (removed) {
+				removed(oldValue);
+			} else if (changed) {
+				replaced(oldValue, newValue);
+			}
+		}
+	}
+
+	private static String asKey(Object key) {
+		return key instanceof String ? (String) key : null;
+	}
+
+	@Override
+	public int size() {
+		return nodes.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return nodes.isEmpty();
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		String string = asKey(key);
+		return string != null && nodes.containsKey(string);
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		for (Node node : order.values()) {
+			if (Objects.equals(value, node.value)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public Object get(Object key) {
+		String string = asKey(key);
+		Node node = string == null ? null : nodes.get(string);
+		return node == null ? null : node.value;
+	}
+
+	@Override
+	public Object getOrDefault(Object key, Object dflt) {
+		String string = asKey(key);
+		Node node = string == null ? null : nodes.get(string);
+		return node == null ? dflt : node.value;
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		Change change = new Change();
+		nodes.compute(key, (k, node) -> node == null ? change.insert(k, value) : change.set(node, value));
+		change.apply();
+		return change.oldValue;
+	}
+
+	@Override
+	public Object remove(Object key) {
+		String string = asKey(key);
+		if (string == null) {
+			return null;
+		}
+
+		Change change = new Change();
+		nodes.computeIfPresent(string, (k, node) -> change.remove(node));
+		change.apply();
+		return change.oldValue;
+	}
+
+	@Override
+	public boolean remove(Object key, Object value) {
+		String string = asKey(key);
+		if (string == null) {
+			return false;
+		}
+
+		Change change = new Change();
+		nodes.computeIfPresent(string,
+		                       (k, node) -> Objects.equals(node.value, value) ? change.remove(node) : node);
+		change.apply();
+		return change.removed;
+	}
+
+	/**
+	 * Removes the node, but only when it is still the node of its key.
+	 */
+	private void remove(Node removed) {
+		Change change = new Change();
+		nodes.computeIfPresent(removed.key, (k, node) -> node == removed ? change.remove(node) : node);
+		change.apply();
+	}
+
+	/**
+	 * Removes all the entries, one by one. Entries that are added concurrently may remain.
+	 */
+	@Override
+	public void clear() {
+		for (Node node : order.values()) {
+			remove(node);
+		}
+	}
+
+	@Override
+	public Object putIfAbsent(String key, Object value) {
+		Change change = new Change();
+		nodes.compute(key, (k, node) -> {
+			if (node == null) {
+				return change.insert(k, value);
+			} else if (node.value == null) {
+				return change.set(node, value);
+			} else {
+				return change.keep(node);
+			}
+		});
+		change.apply();
+		return change.changed ? change.oldValue : change.newValue;
+	}
+
+	/**
+	 * Adds the key only when this map does not contain it yet, not even with a <code>null</code> value.
+	 *
+	 * @return If the key has been added
+	 */
+	boolean putNew(String key, Object value) {
+		Change change = new Change();
+		nodes.compute(key, (k, node) -> node == null ? change.insert(k, value) : change.keep(node));
+		change.apply();
+		return change.changed;
+	}
+
+	@Override
+	public boolean replace(String key, Object oldValue, Object newValue) {
+		Change change = new Change();
+		nodes.computeIfPresent(key,
+		                       (k, node) -> Objects.equals(node.value, oldValue) ? change.set(node, newValue) : node);
+		change.apply();
+		return change.changed;
+	}
+
+	@Override
+	public Object replace(String key, Object value) {
+		Change change = new Change();
+		nodes.computeIfPresent(key, (k, node) -> change.set(node, value));
+		change.apply();
+		return change.oldValue;
+	}
+
+	/**
+	 * Replaces the values one by one, each atomically.
+	 */
+	@Override
+	public void replaceAll(BiFunction<? super String, ? super Object, ? extends Object> function) {
+		Objects.requireNonNull(function);
+		for (Node node : order.values()) {
+			Change change = new Change();
+			nodes.computeIfPresent(node.key, (k, n) -> n == node ? change.set(n, function.apply(k, n.value)) : n);
+			change.apply();
+		}
+	}
+
+	@Override
+	public Object computeIfAbsent(String key, Function<? super String, ? extends Object> function) {
+		Objects.requireNonNull(function);
+		Change change = new Change();
+		nodes.compute(key, (k, node) -> {
+			if (node != null && node.value != null) {
+				return change.keep(node);
+			}
+
+			Object value = function.apply(k);
+			if (value == null) {
+				return change.keep(node);
+			} else if (node == null) {
+				return change.insert(k, value);
+			} else {
+				return change.set(node, value);
+			}
+		});
+		change.apply();
+		return change.newValue;
+	}
+
+	@Override
+	public Object computeIfPresent(String key,
+	                               BiFunction<? super String, ? super Object, ? extends Object> function) {
+		Objects.requireNonNull(function);
+		Change change = new Change();
+		nodes.computeIfPresent(key, (k, node) -> {
+			if (node.value == null) {
+				return change.keep(node);
+			}
+
+			Object value = function.apply(k, node.value);
+			return value == null ? change.remove(node) : change.set(node, value);
+		});
+		change.apply();
+		return change.removed ? null : change.newValue;
+	}
+
+	@Override
+	public Object compute(String key, BiFunction<? super String, ? super Object, ? extends Object> function) {
+		Objects.requireNonNull(function);
+		Change change = new Change();
+		nodes.compute(key, (k, node) -> {
+			Object value = function.apply(k, node == null ? null : node.value);
+			if (value == null) {
+				return node == null ? null : change.remove(node);
+			} else {
+				return node == null ? change.insert(k, value) : change.set(node, value);
+			}
+		});
+		change.apply();
+		return change.removed ? null : change.newValue;
+	}
+
+	@Override
+	public Object merge(String key,
+	                    Object value,
+	                    BiFunction<? super Object, ? super Object, ? extends Object> function) {
+		Objects.requireNonNull(value);
+		Objects.requireNonNull(function);
+		Change change = new Change();
+		nodes.compute(key, (k, node) -> {
+			Object oldValue = node == null ? null : node.value;
+			Object newValue = oldValue == null ? value : function.apply(oldValue, value);
+			if (newValue == null) {
+				return node == null ? null : change.remove(node);
+			} else {
+				return node == null ? change.insert(k, newValue) : change.set(node, newValue);
+			}
+		});
+		change.apply();
+		return change.removed ? null : change.newValue;
+	}
+
+	/**
+	 * Atomically computes a nested value, like {@link #compute(String, BiFunction)} does for a direct value. The maps
+	 * on the path that do not exist yet are created as {@link ConcurrentMixedMap}s.
+	 *
+	 * @param path
+	 *            The keys of the nested maps, ending with the key of the value
+	 * @param function
+	 *            The function that computes the new value from the key and the current value, or <code>null</code> to
+	 *            remove it
+	 * @return The new value
+	 * @throws UnexpectedTypeException
+	 *             When one of the values on the path is not a {@link ConcurrentMixedMap}
+	 */
+	public Object computePath(List<String> path,
+	                          BiFunction<? super String, ? super Object, ? extends Object> function)
+	        throws UnexpectedTypeException {
+		return parentOf(path).compute(path.get(path.size() - 1), function);
+	}
+
+	/**
+	 * Atomically merges a nested value, like {@link #merge(String, Object, BiFunction)} does for a direct value. The
+	 * maps on the path that do not exist yet are created as {@link ConcurrentMixedMap}s. For example, this counts the
+	 * requests per host and path:
+	 *
+	 * <pre>
+	 * counters.mergePath(Arrays.asList(host, path), 1, (a, b) -&gt; (Integer) a + (Integer) b);
+	 * </pre>
+	 *
+	 * @param path
+	 *            The keys of the nested maps, ending with the key of the value
+	 * @param value
+	 *            The value that is stored when there is no value yet
+	 * @param function
+	 *            The function that combines the current value with the given value
+	 * @return The new value
+	 * @throws UnexpectedTypeException
+	 *             When one of the values on the path is not a {@link ConcurrentMixedMap}
+	 */
+	public Object mergePath(List<String> path,
+	                        Object value,
+	                        BiFunction<? super Object, ? super Object, ? extends Object> function)
+	        throws UnexpectedTypeException {
+		return parentOf(path).merge(path.get(path.size() - 1), value, function);
+	}
+
+	private ConcurrentMixedMap parentOf(List<String> path) throws UnexpectedTypeException {
+		if (path.isEmpty()) {
+			throw new IllegalArgumentException("The path should contain at least one key");
+		}
+
+		ConcurrentMixedMap map = this;
+		for (String key : path.subList(0, path.size() - 1)) {
+			Object child = map.computeIfAbsent(key, k -> new ConcurrentMixedMap());
+			if (!(child instanceof ConcurrentMixedMap)) {
+				throw new UnexpectedTypeException("a ConcurrentMixedMap at \"" + key + "\"", child);
+			}
+			map = (ConcurrentMixedMap) child;
+		}
+		return map;
+	}
+
+	@Override
+	public void forEach(BiConsumer<? super String, ? super Object> action) {
+		Objects.requireNonNull(action);
+		for (Node node : order.values()) {
+			action.accept(node.key, node.value);
+		}
+	}
+
+	/**
+	 * Walks through the nodes in the order in which they have been inserted, supporting removal of the last returned
+	 * node.
+	 */
+	private abstract class NodeIterator<T> implements Iterator<T> {
+		private final Iterator<Node> it = order.values().iterator();
+		private Node last;
+
+		@Override
+		public boolean hasNext() {
+			return it.hasNext();
+		}
+
+		abstract T get(Node node);
+
+		@Override
+		public T next() {
+			last = it.next();
+			return get(last);
+		}
+
+		@Override
+		public void remove() {
+			if (last == null) {
+				throw new IllegalStateException();
+			}
+			ConcurrentMixedMap.this.remove(last);
+			last = null;
+		}
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				return new NodeIterator<Map.Entry<String, Object>>() {
+					@Override
+					Map.Entry<String, Object> get(Node node) {
+						return node;
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return nodes.size();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				if (o instanceof Map.Entry) {
+					Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+					String key = asKey(entry.getKey());
+					Node node = key == null ? null : nodes.get(key);
+					return node != null && Objects.equals(node.value, entry.getValue());
+				} else {
+					return false;
+				}
+			}
+
+			@Override
+			public boolean remove(Object o) {
+				if (o instanceof Map.Entry) {
+					Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+					return ConcurrentMixedMap.this.remove(entry.getKey(), entry.getValue());
+				} else {
+					return false;
+				}
+			}
+
+			@Override
+			public void clear() {
+				ConcurrentMixedMap.this.clear();
+			}
+		};
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return new AbstractSet<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				return new NodeIterator<String>() {
+					@Override
+					String get(Node node) {
+						return node.key;
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return nodes.size();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return containsKey(o);
+			}
+
+			@Override
+			public boolean remove(Object o) {
+				Change change = new Change();
+				String key = asKey(o);
+				if (key != null) {
+					nodes.computeIfPresent(key, (k, node) -> change.remove(node));
+					change.apply();
+				}
+				return change.removed;
+			}
+
+			@Override
+			public void clear() {
+				ConcurrentMixedMap.this.clear();
+			}
+		};
+	}
+
+	@Override
+	public Collection<Object> values() {
+		return new AbstractCollection<Object>() {
+			@Override
+			public Iterator<Object> iterator() {
+				return new NodeIterator<Object>() {
+					@Override
+					Object get(Node node) {
+						return node.value;
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return nodes.size();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return containsValue(o);
+			}
+
+			@Override
+			public void clear() {
+				ConcurrentMixedMap.this.clear();
+			}
+		};
+	}
+
+	/**
+	 * @return A version stamp of this map. The version only changes after the modification is visible, so an encoded
+	 *         form that is cached by version is never newer than the version it is stored under.
+	 */
+	@Override
+	public int version() {
+		return (int) modifications.sum();
+	}
+
+	@Override
+	void changed() {
+		modifications.increment();
+	}
+
+	/**
+	 * @return A new {@link ConcurrentMixedMap} with the entries of this map, which is as consistent as an iteration.
+	 */
+	@Override
+	public ConcurrentMixedMap clone() {
+		return new ConcurrentMixedMap(this);
+	}
+
+	/**
+	 * The map is serialized as a normal {@link MixedMap}, which is made concurrent again when it is read.
+	 */
+	private static final class SerializedForm implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final MixedMap map;
+
+		SerializedForm(MixedMap map) {
+			this.map = map;
+		}
+
+		private Object readResolve() {
+			return new ConcurrentMixedMap(map);
+		}
+	}
+
+	private Object writeReplace() {
+		return new SerializedForm(new MixedMap(this));
+	}
+}
@@ -0,0 +1,131 @@
+package com.marcdejonge.codec;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * A {@link Converter} translates a {@link MixedMap} or {@link MixedList} into an instance of a class, through a public
+ * constructor or static parsing method of that class that accepts it as its only argument. The converters are looked up
+ * only once per class and source type and then cached, including the classes that can not be converted to, so that
+ * converting many values does not scan the members of the class for each value.
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+final class Converter {
+	private static final MethodType GENERIC = MethodType.methodType(Object.class, Object.class);
+
+	private static final ClassValue<Converter> FROM_MAP = new ClassValue<Converter>() {
+		@Override
+		protected Converter computeValue(Class<?> type) {
+			return find(type, MixedMap.class);
+		}
+	};
+
+	private static final ClassValue<Converter> FROM_LIST = new ClassValue<Converter>() {
+		@Override
+		protected Converter computeValue(Class<?> type) {
+			return find(type, MixedList.class);
+		}
+	};
+
+	/**
+	 * @return The converter from a {@link MixedMap} into the given type.
+	 */
+	static Converter fromMap(Class<?> type) {
+		return FROM_MAP.get(type);
+	}
+
+	/**
+	 * @return The converter from a {@link MixedList} into the given type.
+	 */
+	static Converter fromList(Class<?> type) {
+		return FROM_LIST.get(type);
+	}
+
+	private final Class<?> type;
+	private final Class<?> source;
+	// The constructor or static method as an (Object)Object handle, or null when there is none
+	private final MethodHandle handle;
+	// The reason why the constructor or method could not be used, if any
+	private final Throwable failure;
+
+	private Converter(Class<?> type, Class<?> source, MethodHandle handle, Throwable failure) {
+		this.type = type;
+		this.source = source;
+		this.handle = handle;
+		this.failure = failure;
+	}
+
+	private static Converter find(Class<?> type, Class<?> source) {
+		MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+		try {
+			// First try to find a public constructor that accepts the source as its only argument
+			for (Constructor<?> constructor : type.getDeclaredConstructors()) {
+				if (Modifier.isPublic(constructor.getModifiers())
+				    && constructor.getParameterCount() == 1
+				    && constructor.getParameterTypes()[0].isAssignableFrom(source)) {
+					return new Converter(type, source, lookup.unreflectConstructor(constructor).asType(GENERIC), null);
+				}
+			}
+
+			// If no such constructor has been found, try finding a public static parsing method that accepts the source
+			// as its only argument
+			for (Method method : type.getDeclaredMethods()) {
+				if (Modifier.isStatic(method.getModifiers())
+				    && Modifier.isPublic(method.getModifiers())
+				    && method.getParameterCount() == 1
+				    && method.getParameterTypes()[0].isAssignableFrom(source)
+				    && method.getReturnType() == type) {
+					return new Converter(type, source, lookup.unreflect(method).asType(GENERIC), null);
+				}
+			}
+		} catch (SecurityException | IllegalAccessException ex) {
+			return new Converter(type, source, null, ex);
+		}
+
+		return new Converter(type, source, null, null);
+	}
+
+	/**
+	 * @return If the type has a constructor or static method that accepts the source.
+	 */
+	boolean isAvailable() {
+		return handle != null;
+	}
+
+	/**
+	 * @param value
+	 *            The {@link MixedMap} or {@link MixedList} that is to be translated
+	 * @return A new instance of the type
+	 * @throws UnexpectedTypeException
+	 *             When the type can not be created from the source, or when the parsing in the constructor or method
+	 *             itself has failed.
+	 */
+	@SuppressWarnings("unchecked")
+	<T> T convert(Object value) throws UnexpectedTypeException {
+		if (handle == null) {
+			throw new UnexpectedTypeException("Class "
+			                                  + type.getName()
+			                                  + " does not have a public constructor or static method"
+			                                  + " that accepts this "
+			                                  + source.getSimpleName(),
+			                                  failure);
+		}
+
+		try {
+			return (T) (Object) handle.invokeExact(value);
+		} catch (UnexpectedTypeException | Error ex) {
+			throw ex;
+		} catch (Throwable ex) {
+			throw new UnexpectedTypeException("Failed to parse this "
+			                                  + source.getSimpleName()
+			                                  + " as a "
+			                                  + type.getSimpleName(),
+			                                  ex);
+		}
+	}
+}
@@ -0,0 +1,334 @@
+package com.marcdejonge.codec;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * <p>
+ * A {@link FrozenList} is an immutable {@link MixedList}. All the methods that would modify it throw an
+ * {@link UnsupportedOperationException}. Instead, {@link #append(Object)} and {@link #with(int, Object)} return a new
+ * list, which shares most of its structure with the original, so they take O(log n) time and memory. Removing or
+ * inserting elements anywhere but at the end, using {@link #without(int)}, copies the list.
+ * </p>
+ * <p>
+ * The elements are stored in a persistent vector. All the {@link MixedMap} and {@link MixedList} elements are frozen
+ * as well, so a {@link FrozenList} is deeply immutable (as long as the other elements are). It can be shared between
+ * any number of threads without copying it or using any locks.
+ * </p>
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+public final class FrozenList extends MixedList {
+	private static final long serialVersionUID = 1L;
+
+	private static final FrozenList EMPTY = new FrozenList(PersistentVector.EMPTY);
+
+	// The list is always serialized as a MixedList, see writeReplace
+	private final transient PersistentVector vector;
+
+	private FrozenList(PersistentVector vector) {
+		this.vector = vector;
+	}
+
+	/**
+	 * @return The empty {@link FrozenList}.
+	 */
+	public static FrozenList empty() {
+		return EMPTY;
+	}
+
+	/**
+	 * Creates a {@link FrozenList} with the same elements as the source list, freezing the nested maps and lists.
+	 */
+	static FrozenList of(Collection<?> source) {
+		if (source instanceof FrozenList) {
+			return (FrozenList) source;
+		}
+
+		Object[] values = source.toArray();
+		for (int ix = 0; ix < values.length; ix++) {
+			values[ix] = FrozenMap.freeze(values[ix]);
+		}
+		return values.length == 0 ? EMPTY : new FrozenList(PersistentVector.of(values, values.length));
+	}
+
+	/**
+	 * @return This list, since it is already frozen.
+	 */
+	@Override
+	public FrozenList freeze() {
+		return this;
+	}
+
+	/**
+	 * @param value
+	 *            The value, which is frozen when it is a {@link MixedMap} or {@link MixedList}
+	 * @return A list with the value added at the end.
+	 */
+	public FrozenList append(Object value) {
+		return new FrozenList(vector.append(FrozenMap.freeze(value)));
+	}
+
+	/**
+	 * @param index
+	 *            The index of the element that should be replaced
+	 * @param value
+	 *            The value, which is frozen when it is a {@link MixedMap} or {@link MixedList}
+	 * @return A list with the element at the index replaced by the value.
+	 * @throws IndexOutOfBoundsException
+	 *             When the index is not within this list.
+	 */
+	public FrozenList with(int index, Object value) {
+		checkIndex(index);
+		value = FrozenMap.freeze(value);
+		return vector.get(index) == value ? this : new FrozenList(vector.set(index, value));
+	}
+
+	/**
+	 * @param index
+	 *            The index of the element that should be removed
+	 * @return A list without the element at the index. This copies all the elements.
+	 * @throws IndexOutOfBoundsException
+	 *             When the index is not within this list.
+	 */
+	public FrozenList without(int index) {
+		checkIndex(index);
+		Object[] values = toArray();
+		System.arraycopy(values, index + 1, values, index, values.length - index - 1);
+		return values.length == 1 ? EMPTY : new FrozenList(PersistentVector.of(values, values.length - 1));
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= vector.size()) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + vector.size());
+		}
+	}
+
+	@Override
+	public int size() {
+		return vector.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return vector.size() == 0;
+	}
+
+	@Override
+	public Object get(int index) {
+		checkIndex(index);
+		return vector.get(index);
+	}
+
+	@Override
+	public int indexOf(Object value) {
+		for (int ix = 0; ix < vector.size(); ix++) {
+			if (Objects.equals(value, vector.get(ix))) {
+				return ix;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int lastIndexOf(Object value) {
+		for (int ix = vector.size() - 1; ix >= 0; ix--) {
+			if (Objects.equals(value, vector.get(ix))) {
+				return ix;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public boolean contains(Object value) {
+		return indexOf(value) >= 0;
+	}
+
+	@Override
+	public Object[] toArray() {
+		Object[] result = new Object[vector.size()];
+		vector.copyTo(result, result.length);
+		return result;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> T[] toArray(T[] array) {
+		int size = vector.size();
+		if (array.length < size) {
+			array = Arrays.copyOf(array, size);
+		}
+		for (int ix = 0; ix < size; ix++) {
+			array[ix] = (T) vector.get(ix);
+		}
+		if (array.length > size) {
+			array[size] = null;
+		}
+		return array;
+	}
+
+	/**
+	 * @return A read-only view of this list, of which the iterators are used.
+	 */
+	private List<Object> view() {
+		return new AbstractList<Object>() {
+			@Override
+			public Object get(int index) {
+				return FrozenList.this.get(index);
+			}
+
+			@Override
+			public int size() {
+				return vector.size();
+			}
+		};
+	}
+
+	@Override
+	public Iterator<Object> iterator() {
+		return view().iterator();
+	}
+
+	@Override
+	public ListIterator<Object> listIterator() {
+		return view().listIterator();
+	}
+
+	@Override
+	public ListIterator<Object> listIterator(int index) {
+		return view().listIterator(index);
+	}
+
+	@Override
+	public Spliterator<Object> spliterator() {
+		return Spliterators.spliterator(toArray(), Spliterator.ORDERED | Spliterator.IMMUTABLE);
+	}
+
+	@Override
+	public void forEach(Consumer<? super Object> action) {
+		for (int ix = 0; ix < vector.size(); ix++) {
+			action.accept(vector.get(ix));
+		}
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this) {
+			return true;
+		} else if (!(obj instanceof List) || ((List<?>) obj).size() != vector.size()) {
+			return false;
+		}
+		Iterator<?> it = ((List<?>) obj).iterator();
+		for (int ix = 0; ix < vector.size(); ix++) {
+			if (!Objects.equals(vector.get(ix), it.next())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		int hashCode = 1;
+		for (int ix = 0; ix < vector.size(); ix++) {
+			hashCode = 31 * hashCode + Objects.hashCode(vector.get(ix));
+		}
+		return hashCode;
+	}
+
+	@Override
+	public boolean add(Object value) {
+		throw new UnsupportedOperationException("A frozen list can not be modified, use append(value) instead");
+	}
+
+	@Override
+	public void add(int index, Object value) {
+		throw new UnsupportedOperationException("A frozen list can not be modified");
+	}
+
+	@Override
+	public boolean addAll(int index, Collection<? extends Object> collection) {
+		throw new UnsupportedOperationException("A frozen list can not be modified");
+	}
+
+	@Override
+	public Object set(int index, Object value) {
+		throw new UnsupportedOperationException("A frozen list can not be modified, use with(index, value) instead");
+	}
+
+	@Override
+	public Object remove(int index) {
+		throw new UnsupportedOperationException("A frozen list can not be modified, use without(index) instead");
+	}
+
+	@Override
+	protected void removeRange(int fromIndex, int toIndex) {
+		throw new UnsupportedOperationException("A frozen list can not be modified");
+	}
+
+	@Override
+	public boolean removeIf(Predicate<? super Object> filter) {
+		throw new UnsupportedOperationException("A frozen list can not be modified");
+	}
+
+	@Override
+	public void sort(Comparator<? super Object> comparator) {
+		throw new UnsupportedOperationException("A frozen list can not be modified");
+	}
+
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException("A frozen list can not be modified");
+	}
+
+	@Override
+	public void ensureCapacity(int minCapacity) {
+		// The storage of the ArrayList is not used
+	}
+
+	@Override
+	public void trimToSize() {
+		// The storage of the ArrayList is not used
+	}
+
+	/**
+	 * @return This list, since it can not be modified anyway.
+	 */
+	@Override
+	public FrozenList clone() {
+		return this;
+	}
+
+	/**
+	 * The list is serialized as a normal {@link MixedList}, which is frozen again when it is read.
+	 */
+	private static final class SerializedForm implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final MixedList list;
+
+		SerializedForm(MixedList list) {
+			this.list = list;
+		}
+
+		private Object readResolve() {
+			return list.freeze();
+		}
+	}
+
+	private Object writeReplace() {
+		return new SerializedForm(new MixedList(this));
+	}
+}
@@ -0,0 +1,360 @@
+package com.marcdejonge.codec;
+
+import java.io.Serializable;
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * <p>
+ * A {@link FrozenMap} is an immutable {@link MixedMap}. All the methods that would modify it throw an
+ * {@link UnsupportedOperationException}. Instead, {@link #with(String, Object)} and {@link #without(String)} return a
+ * new map, which shares most of its structure with the original, so they take O(log n) time and memory.
+ * </p>
+ * <p>
+ * The entries are stored in a hash array mapped trie to find them, and in a persistent vector to keep the order in
+ * which they have been inserted, just like a normal {@link MixedMap}. All the {@link MixedMap} and {@link MixedList}
+ * values are frozen as well, so a {@link FrozenMap} is deeply immutable (as long as the other values are). It can be
+ * shared between any number of threads without copying it or using any locks.
+ * </p>
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+public final class FrozenMap extends MixedMap {
+	private static final long serialVersionUID = 1L;
+
+	private static final FrozenMap EMPTY = new FrozenMap(Hamt.EMPTY, PersistentVector.EMPTY, 0);
+
+	// The map is always serialized as a MixedMap, see writeReplace
+	private final transient Hamt.Node root;
+	// The entries in the order in which they have been inserted, with null for removed entries
+	private final transient PersistentVector order;
+	private final transient int size;
+
+	private FrozenMap(Hamt.Node root, PersistentVector order, int size) {
+		this.root = root;
+		this.order = order;
+		this.size = size;
+	}
+
+	/**
+	 * @return The empty {@link FrozenMap}.
+	 */
+	public static FrozenMap empty() {
+		return EMPTY;
+	}
+
+	/**
+	 * Creates a {@link FrozenMap} with the same entries as the source map, freezing the nested maps and lists.
+	 */
+	static FrozenMap of(Map<String, ?> source) {
+		if (source instanceof FrozenMap) {
+			return (FrozenMap) source;
+		} else if (source.isEmpty()) {
+			return EMPTY;
+		}
+
+		Hamt.Entry[] entries = new Hamt.Entry[source.size()];
+		int count = 0;
+		for (Map.Entry<String, ?> entry : source.entrySet()) {
+			if (count == entries.length) {
+				// A concurrent map can grow while it is being frozen
+				entries = Arrays.copyOf(entries, count * 2);
+			}
+			entries[count] = new Hamt.Entry(entry.getKey(), freeze(entry.getValue()), count);
+			count++;
+		}
+		return new FrozenMap(Hamt.build(entries, count), PersistentVector.of(entries, count), count);
+	}
+
+	static Object freeze(Object value) {
+		if (value instanceof MixedMap) {
+			return ((MixedMap) value).freeze();
+		} else if (value instanceof MixedList) {
+			return ((MixedList) value).freeze();
+		} else {
+			return value;
+		}
+	}
+
+	/**
+	 * @return This map, since it is already frozen.
+	 */
+	@Override
+	public FrozenMap freeze() {
+		return this;
+	}
+
+	/**
+	 * @param key
+	 *            The key of the entry
+	 * @param value
+	 *            The value, which is frozen when it is a {@link MixedMap} or {@link MixedList}
+	 * @return A map with the key set to the value. When the key is new, it is added at the end.
+	 */
+	public FrozenMap with(String key, Object value) {
+		value = freeze(value);
+		int hash = Hamt.hash(key);
+		Hamt.Entry old = Hamt.get(root, key, hash);
+		if (old != null) {
+			if (old.value == value) {
+				return this;
+			}
+			Hamt.Entry entry = new Hamt.Entry(key, value, hash, old.seq);
+			return new FrozenMap(Hamt.put(root, 0, entry), order.set(old.seq, entry), size);
+		}
+
+		Hamt.Entry entry = new Hamt.Entry(key, value, hash, order.size());
+		return new FrozenMap(Hamt.put(root, 0, entry), order.append(entry), size + 1);
+	}
+
+	/**
+	 * @param key
+	 *            The key of the entry that should be removed
+	 * @return A map without the key.
+	 */
+	public FrozenMap without(String key) {
+		int hash = Hamt.hash(key);
+		Hamt.Entry old = Hamt.get(root, key, hash);
+		if (old == null) {
+			return this;
+		} else if (size == 1) {
+			return EMPTY;
+		}
+
+		PersistentVector newOrder = order.set(old.seq, null);
+		if (newOrder.size() > 32 && newOrder.size() > 2 * (size - 1)) {
+			// Most of the order consists of removed entries, so rebuild it completely
+			Object[] entries = new Object[newOrder.size()];
+			newOrder.copyTo(entries, entries.length);
+			Map<String, Object> remaining = new MixedMap();
+			for (Object entry : entries) {
+				if (entry != null) {
+					remaining.put(((Hamt.Entry) entry).key, ((Hamt.Entry) entry).value);
+				}
+			}
+			return of(remaining);
+		}
+		return new FrozenMap(Hamt.remove(root, 0, key, hash), newOrder, size - 1);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public Object get(Object key) {
+		Hamt.Entry entry = Hamt.get(root, key, Hamt.hash(key));
+		return entry == null ? null : entry.value;
+	}
+
+	@Override
+	public Object getOrDefault(Object key, Object dflt) {
+		Hamt.Entry entry = Hamt.get(root, key, Hamt.hash(key));
+		return entry == null ? dflt : entry.value;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return Hamt.get(root, key, Hamt.hash(key)) != null;
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		for (Iterator<Hamt.Entry> it = new EntryIterator(); it.hasNext();) {
+			if (Objects.equals(value, it.next().value)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		throw new UnsupportedOperationException("A frozen map can not be modified, use with(key, value) instead");
+	}
+
+	@Override
+	public Object remove(Object key) {
+		throw new UnsupportedOperationException("A frozen map can not be modified, use without(key) instead");
+	}
+
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException("A frozen map can not be modified");
+	}
+
+	@Override
+	public void forEach(BiConsumer<? super String, ? super Object> action) {
+		for (Iterator<Hamt.Entry> it = new EntryIterator(); it.hasNext();) {
+			Hamt.Entry entry = it.next();
+			action.accept(entry.key, entry.value);
+		}
+	}
+
+	/**
+	 * Walks through the entries in the order in which they have been inserted, skipping the removed ones.
+	 */
+	private class EntryIterator implements Iterator<Hamt.Entry> {
+		private int next;
+		private Object[] array;
+
+		@Override
+		public boolean hasNext() {
+			while (next < order.size()) {
+				if ((next & 31) == 0 || array == null) {
+					array = order.arrayFor(next);
+				}
+				if (array[next & 31] != null) {
+					return true;
+				}
+				next++;
+			}
+			return false;
+		}
+
+		@Override
+		public Hamt.Entry next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return (Hamt.Entry) array[next++ & 31];
+		}
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				Iterator<Hamt.Entry> it = new EntryIterator();
+				return new Iterator<Map.Entry<String, Object>>() {
+					@Override
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+
+					@Override
+					public Map.Entry<String, Object> next() {
+						return it.next();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				if (o instanceof Map.Entry) {
+					Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+					Hamt.Entry found = Hamt.get(root, entry.getKey(), Hamt.hash(entry.getKey()));
+					return found != null && Objects.equals(found.value, entry.getValue());
+				} else {
+					return false;
+				}
+			}
+		};
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return new AbstractSet<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				Iterator<Hamt.Entry> it = new EntryIterator();
+				return new Iterator<String>() {
+					@Override
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+
+					@Override
+					public String next() {
+						return it.next().key;
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return containsKey(o);
+			}
+		};
+	}
+
+	@Override
+	public Collection<Object> values() {
+		return new AbstractCollection<Object>() {
+			@Override
+			public Iterator<Object> iterator() {
+				Iterator<Hamt.Entry> it = new EntryIterator();
+				return new Iterator<Object>() {
+					@Override
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+
+					@Override
+					public Object next() {
+						return it.next().value;
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/**
+	 * @return This map, since it can not be modified anyway.
+	 */
+	@Override
+	public FrozenMap clone() {
+		return this;
+	}
+
+	/**
+	 * The map is serialized as a normal {@link MixedMap}, which is frozen again when it is read.
+	 */
+	private static final class SerializedForm implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final MixedMap map;
+
+		SerializedForm(MixedMap map) {
+			this.map = map;
+		}
+
+		private Object readResolve() {
+			return map.freeze();
+		}
+	}
+
+	private Object writeReplace() {
+		return new SerializedForm(new MixedMap(this));
+	}
+}
@@ -0,0 +1,297 @@
+package com.marcdejonge.codec;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * <p>
+ * The nodes of an immutable hash array mapped trie, that maps keys to {@link Entry}s. Each node uses 5 bits of the
+ * hash of a key to select one of at most 32 slots, of which only the used ones are stored, as indicated by a bitmap.
+ * A slot contains an {@link Entry}, a child {@link Node}, or an array of entries of which the keys have the same hash.
+ * </p>
+ * <p>
+ * Adding or removing a key copies only the nodes on the path to it, so the result shares everything else with the
+ * original. Nodes are never modified after they have been created.
+ * </p>
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+final class Hamt {
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+
+	/**
+	 * An immutable mapping of a key to a value, with the position at which it has been inserted.
+	 */
+	static final class Entry implements Map.Entry<String, Object> {
+		final String key;
+		final Object value;
+		final int hash;
+		final int seq;
+
+		Entry(String key, Object value, int seq) {
+			this(key, value, hash(key), seq);
+		}
+
+		Entry(String key, Object value, int hash, int seq) {
+			this.key = key;
+			this.value = value;
+			this.hash = hash;
+			this.seq = seq;
+		}
+
+		@Override
+		public String getKey() {
+			return key;
+		}
+
+		@Override
+		public Object getValue() {
+			return value;
+		}
+
+		@Override
+		public Object setValue(Object value) {
+			throw new UnsupportedOperationException("A frozen map can not be modified");
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj instanceof Map.Entry) {
+				Map.Entry<?, ?> other = (Map.Entry<?, ?>) obj;
+				return Objects.equals(key, other.getKey()) && Objects.equals(value, other.getValue());
+			} else {
+				return false;
+			}
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(key) ^ Objects.hashCode(value);
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + value;
+		}
+	}
+
+	static final class Node {
+		final int bitmap;
+		final Object[] slots;
+
+		Node(int bitmap, Object[] slots) {
+			this.bitmap = bitmap;
+			this.slots = slots;
+		}
+	}
+
+	static final Node EMPTY = new Node(0, new Object[0]);
+
+	static int hash(Object key) {
+		int hash = Objects.hashCode(key);
+		return hash ^ (hash >>> 16);
+	}
+
+	private static int bit(int hash, int shift) {
+		return 1 << ((hash >>> shift) & MASK);
+	}
+
+	/**
+	 * @return The entry of the key, or <code>null</code> when it is not in the trie.
+	 */
+	static Entry get(Node node, Object key, int hash) {
+		for (int shift = 0;; shift += BITS) {
+			int bit = bit(hash, shift);
+			if ((node.bitmap & bit) == 0) {
+				return null;
+			}
+
+			Object slot = node.slots[Integer.bitCount(node.bitmap & (bit - 1))];
+			if (slot instanceof Node) {
+				node = (Node) slot;
+			} else if (slot instanceof Entry) {
+				Entry entry = (Entry) slot;
+				return entry.hash == hash && Objects.equals(entry.key, key) ? entry : null;
+			} else {
+				Entry[] collisions = (Entry[]) slot;
+				if (collisions[0].hash == hash) {
+					for (Entry entry : collisions) {
+						if (Objects.equals(entry.key, key)) {
+							return entry;
+						}
+					}
+				}
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * @return A trie that maps the key of the entry to the entry, replacing any previous entry of that key.
+	 */
+	static Node put(Node node, int shift, Entry entry) {
+		int bit = bit(entry.hash, shift);
+		int ix = Integer.bitCount(node.bitmap & (bit - 1));
+		if ((node.bitmap & bit) == 0) {
+			Object[] slots = new Object[node.slots.length + 1];
+			System.arraycopy(node.slots, 0, slots, 0, ix);
+			slots[ix] = entry;
+			System.arraycopy(node.slots, ix, slots, ix + 1, node.slots.length - ix);
+			return new Node(node.bitmap | bit, slots);
+		}
+
+		Object slot = node.slots[ix];
+		Object replacement;
+		if (slot instanceof Node) {
+			replacement = put((Node) slot, shift + BITS, entry);
+		} else if (slot instanceof Entry) {
+			Entry old = (Entry) slot;
+			if (old.hash != entry.hash) {
+				replacement = merge(old, entry, shift + BITS);
+			} else if (Objects.equals(old.key, entry.key)) {
+				replacement = entry;
+			} else {
+				replacement = new Entry[] { old, entry };
+			}
+		} else {
+			Entry[] collisions = (Entry[]) slot;
+			if (collisions[0].hash != entry.hash) {
+				// Push the colliding entries one level down, where they will be separated from the new entry
+				Node below = new Node(bit(collisions[0].hash, shift + BITS), new Object[] { collisions });
+				replacement = put(below, shift + BITS, entry);
+			} else {
+				int found = 0;
+				while (found < collisions.length && !Objects.equals(collisions[found].key, entry.key)) {
+					found++;
+				}
+				Entry[] copy = Arrays.copyOf(collisions, Math.max(found + 1, collisions.length));
+				copy[found] = entry;
+				replacement = copy;
+			}
+		}
+
+		Object[] slots = node.slots.clone();
+		slots[ix] = replacement;
+		return new Node(node.bitmap, slots);
+	}
+
+	private static Node merge(Entry first, Entry second, int shift) {
+		int firstBit = bit(first.hash, shift);
+		int secondBit = bit(second.hash, shift);
+		if (firstBit == secondBit) {
+			return new Node(firstBit, new Object[] { merge(first, second, shift + BITS) });
+		} else if (Integer.compareUnsigned(firstBit, secondBit) < 0) {
+			return new Node(firstBit | secondBit, new Object[] { first, second });
+		} else {
+			return new Node(firstBit | secondBit, new Object[] { second, first });
+		}
+	}
+
+	/**
+	 * @return A trie without the key, or the same node when the key is not in it.
+	 */
+	static Node remove(Node node, int shift, Object key, int hash) {
+		int bit = bit(hash, shift);
+		if ((node.bitmap & bit) == 0) {
+			return node;
+		}
+
+		int ix = Integer.bitCount(node.bitmap & (bit - 1));
+		Object slot = node.slots[ix];
+		Object replacement;
+		if (slot instanceof Node) {
+			Node child = remove((Node) slot, shift + BITS, key, hash);
+			if (child == slot) {
+				return node;
+			} else if (child.slots.length == 0) {
+				replacement = null;
+			} else if (child.slots.length == 1 && !(child.slots[0] instanceof Node)) {
+				// A single entry can be found just as well at this level
+				replacement = child.slots[0];
+			} else {
+				replacement = child;
+			}
+		} else if (slot instanceof Entry) {
+			Entry entry = (Entry) slot;
+			if (entry.hash != hash || !Objects.equals(entry.key, key)) {
+				return node;
+			}
+			replacement = null;
+		} else {
+			Entry[] collisions = (Entry[]) slot;
+			int found = 0;
+			while (found < collisions.length
+			       && (collisions[found].hash != hash || !Objects.equals(collisions[found].key, key))) {
+				found++;
+			}
+			if (found == collisions.length) {
+				return node;
+			} else if (collisions.length == 2) {
+				replacement = collisions[1 - found];
+			} else {
+				Entry[] copy = new Entry[collisions.length - 1];
+				System.arraycopy(collisions, 0, copy, 0, found);
+				System.arraycopy(collisions, found + 1, copy, found, copy.length - found);
+				replacement = copy;
+			}
+		}
+
+		if (replacement != null) {
+			Object[] slots = node.slots.clone();
+			slots[ix] = replacement;
+			return new Node(node.bitmap, slots);
+		}
+
+		Object[] slots = new Object[node.slots.length - 1];
+		System.arraycopy(node.slots, 0, slots, 0, ix);
+		System.arraycopy(node.slots, ix + 1, slots, ix, slots.length - ix);
+		return new Node(node.bitmap & ~bit, slots);
+	}
+
+	/**
+	 * Builds a trie of entries with distinct keys directly, without creating any intermediate nodes.
+	 */
+	static Node build(Entry[] entries, int length) {
+		if (length == 0) {
+			return EMPTY;
+		}
+
+		// With the bits of the hashes reversed, the entries of each slot at each level end up next to each other
+		Entry[] sorted = Arrays.copyOf(entries, length);
+		Arrays.sort(sorted, Comparator.comparingLong(entry -> Integer.reverse(entry.hash) & 0xFFFFFFFFL));
+		return build(sorted, 0, length, 0);
+	}
+
+	private static Node build(Entry[] sorted, int from, int to, int shift) {
+		int bitmap = 0;
+		for (int ix = from; ix < to; ix++) {
+			bitmap |= bit(sorted[ix].hash, shift);
+		}
+
+		Object[] slots = new Object[Integer.bitCount(bitmap)];
+		for (int start = from, end; start < to; start = end) {
+			int bit = bit(sorted[start].hash, shift);
+			end = start + 1;
+			while (end < to && bit(sorted[end].hash, shift) == bit) {
+				end++;
+			}
+
+			Object slot;
+			if (end - start == 1) {
+				slot = sorted[start];
+			} else if (sorted[start].hash == sorted[end - 1].hash) {
+				slot = Arrays.copyOfRange(sorted, start, end);
+			} else {
+				slot = build(sorted, start, end, shift + BITS);
+			}
+			slots[Integer.bitCount(bitmap & (bit - 1))] = slot;
+		}
+		return new Node(bitmap, slots);
+	}
+
+	private Hamt() {
+	}
+}
@@ -0,0 +1,35 @@
+package com.marcdejonge.codec;
+
+/**
+ * <p>
+ * A {@link MapShapes} creates compact {@link MixedMap}s that share their keys. All the maps that are created by the
+ * same {@link MapShapes} and get the same keys in the same order, such as the records of a large JSON array, use a
+ * single shared array of keys and index to find them. Each map then only stores an array of its values. A map that is
+ * modified in any other way than adding keys gets its own private copy of the keys.
+ * </p>
+ * <p>
+ * The shared keys are kept as long as this object or any of its maps are in use. Their number is limited, so objects
+ * that use many different keys, like dictionaries, simply get their own keys. A single {@link MapShapes} is typically
+ * used for all the objects of one document, as the {@link com.marcdejonge.codec.json.JSONDecoder} does. It can be
+ * used from multiple threads.
+ * </p>
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+public final class MapShapes {
+	private final Shape root = Shape.newTree();
+
+	/**
+	 * @return A new empty {@link MixedMap} that shares its keys with the other maps of this {@link MapShapes}.
+	 */
+	public MixedMap newMap() {
+		return new CompactMap(root);
+	}
+
+	/**
+	 * @return The empty shape at the root of the shared shapes, with which the maps start.
+	 */
+	Shape root() {
+		return root;
+	}
+}
@@ -0,0 +1,269 @@
+package com.marcdejonge.codec;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * A {@link MixedArena} hands out {@link MixedMap}s and {@link MixedList}s that are recycled when it is closed, instead
+ * of leaving them to the garbage collector. It is meant for documents that only live as long as a single request: the
+ * {@link com.marcdejonge.codec.json.JSONDecoder} takes its maps and lists from the arena (see
+ * {@link com.marcdejonge.codec.json.JSONDecoder#setArena(MixedArena)}), and when the request is done, closing the
+ * arena empties all of them and keeps them, together with their arrays, for the next request on the same thread.
+ * </p>
+ * <p>
+ * Each thread has a single arena, which is opened with {@link #open()}, typically in a try-with-resources block. The
+ * arena and its maps and lists must only be used by that thread. None of the maps and lists can be used after the
+ * arena is closed, since they are handed out again; anything that is needed after the request has to be copied first,
+ * e.g. with {@link MixedMap#freeze()}. To find such uses, the arenas can be put in debug mode with
+ * {@link #setDebug(boolean)} or the system property <code>com.marcdejonge.codec.arena.debug</code>. The maps and lists
+ * are then never reused, but poisoned when the arena is closed: their methods throw an {@link IllegalStateException}.
+ * </p>
+ * <p>
+ * The memory that an arena keeps is limited to 65536 slots, counting each element that the arrays of its maps and lists
+ * can hold and 8 slots for each map and list itself. A slot takes 4 to 8 bytes, so the maps and lists that a thread
+ * keeps take at most about half a megabyte, for as long as the thread lives. Arrays of more than 256 elements are not
+ * kept at all, so a single large document does not hold on to its memory, and an arena that has not been opened for a
+ * minute drops everything it kept when it is opened again.
+ * </p>
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+public final class MixedArena implements AutoCloseable {
+	/**
+	 * The number of slots that the maps and lists that are kept for reuse may take, see {@link #slots(int)}.
+	 */
+	private static final int MAX_RETAINED = 1 << 16;
+
+	/**
+	 * The largest array that a recycled map or list keeps.
+	 */
+	private static final int MAX_CAPACITY = 256;
+
+	/**
+	 * The number of slots that is counted for a map or list itself, besides its arrays.
+	 */
+	private static final int OVERHEAD = 8;
+
+	/**
+	 * The time after which an arena that has not been opened drops the maps and lists that it keeps.
+	 */
+	private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+	private static final ThreadLocal<MixedArena> ARENAS = new ThreadLocal<MixedArena>() {
+		@Override
+		protected MixedArena initialValue() {
+			return new MixedArena();
+		}
+	};
+
+	private static volatile boolean debug = Boolean.getBoolean("com.marcdejonge.codec.arena.debug");
+
+	/**
+	 * Opens the arena of the current thread, which hands out maps and lists until it is closed.
+	 *
+	 * @return The arena of the current thread
+	 * @throws IllegalStateException
+	 *             When the arena of the current thread is already open
+	 */
+	public static MixedArena open() {
+		MixedArena arena = ARENAS.get();
+		if (arena.open) {
+			throw new IllegalStateException("The arena of this thread is already open");
+		}
+		arena.open = true;
+		if (System.nanoTime() - arena.closed > IDLE_NANOS) {
+			arena.drop();
+		}
+		return arena;
+	}
+
+	/**
+	 * @param debug
+	 *            If the maps and lists should be poisoned instead of reused when their arena is closed, so any use
+	 *            after that fails
+	 */
+	public static void setDebug(boolean debug) {
+		MixedArena.debug = debug;
+	}
+
+	/**
+	 * @return If the maps and lists are poisoned instead of reused when their arena is closed.
+	 */
+	public static boolean isDebug() {
+		return debug;
+	}
+
+	// The maps of the arena itself share their keys as well
+	private final MapShapes shapes = new MapShapes();
+	private boolean open;
+	// The time at which the arena was last closed
+	private long closed = System.nanoTime();
+
+	// The maps and lists that can be handed out again, with the number of slots that each of them takes
+	private CompactMap[] maps = new CompactMap[16];
+	private int[] mapSlots = new int[16];
+	private int mapCount;
+	private NumericList[] lists = new NumericList[16];
+	private int[] listSlots = new int[16];
+	private int listCount;
+	// The total number of slots of the maps and lists that are kept
+	private int retained;
+
+	// The maps and lists that have been handed out since the arena was opened
+	private CompactMap[] usedMaps = new CompactMap[16];
+	private int usedMapCount;
+	private NumericList[] usedLists = new NumericList[16];
+	private int usedListCount;
+
+	private MixedArena() {
+	}
+
+	/**
+	 * @return If the arena is open, so it can hand out maps and lists.
+	 */
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * @return An empty {@link MixedMap} that is recycled when this arena is closed, sharing its keys with the other
+	 *         maps of this arena.
+	 * @throws IllegalStateException
+	 *             When this arena is not open
+	 */
+	public MixedMap newMap() {
+		return newMap(shapes);
+	}
+
+	/**
+	 * @param shapes
+	 *            The {@link MapShapes} with which the map shares its keys
+	 * @return An empty {@link MixedMap} that is recycled when this arena is closed.
+	 * @throws IllegalStateException
+	 *             When this arena is not open
+	 */
+	public MixedMap newMap(MapShapes shapes) {
+		checkOpen();
+		CompactMap map;
+		if (mapCount > 0) {
+			map = maps[--mapCount];
+			maps[mapCount] = null;
+			retained -= mapSlots[mapCount];
+			map.reuse(shapes.root());
+		} else {
+			map = new CompactMap(shapes.root());
+		}
+		if (usedMapCount == usedMaps.length) {
+			usedMaps = Arrays.copyOf(usedMaps, usedMapCount * 2);
+		}
+		usedMaps[usedMapCount++] = map;
+		return map;
+	}
+
+	/**
+	 * @return An empty {@link MixedList} with compact numeric storage (see {@link MixedList#compact()}) that is
+	 *         recycled when this arena is closed.
+	 * @throws IllegalStateException
+	 *             When this arena is not open
+	 */
+	public MixedList newList() {
+		checkOpen();
+		NumericList list;
+		if (listCount > 0) {
+			list = lists[--listCount];
+			lists[listCount] = null;
+			retained -= listSlots[listCount];
+		} else {
+			list = new NumericList();
+		}
+		if (usedListCount == usedLists.length) {
+			usedLists = Arrays.copyOf(usedLists, usedListCount * 2);
+		}
+		usedLists[usedListCount++] = list;
+		return list;
+	}
+
+	private void checkOpen() {
+		if (!open) {
+			throw new IllegalStateException("The arena is not open");
+		}
+	}
+
+	/**
+	 * Closes the arena, emptying all the maps and lists that it has handed out since it was opened. In debug mode
+	 * they are poisoned, otherwise they are kept to be handed out again, as long as they fit in the limit.
+	 */
+	@Override
+	public void close() {
+		if (!open) {
+			return;
+		}
+		open = false;
+		closed = System.nanoTime();
+
+		boolean poison = debug;
+		for (int ix = 0; ix < usedMapCount; ix++) {
+			CompactMap map = usedMaps[ix];
+			usedMaps[ix] = null;
+			int slots = slots(map.recycle(MAX_CAPACITY));
+			if (poison) {
+				map.released = true;
+			} else if (retained + slots <= MAX_RETAINED) {
+				if (mapCount == maps.length) {
+					maps = Arrays.copyOf(maps, mapCount * 2);
+					mapSlots = Arrays.copyOf(mapSlots, mapCount * 2);
+				}
+				maps[mapCount] = map;
+				mapSlots[mapCount++] = slots;
+				retained += slots;
+			}
+		}
+		for (int ix = 0; ix < usedListCount; ix++) {
+			NumericList list = usedLists[ix];
+			usedLists[ix] = null;
+			int slots = slots(list.recycle(MAX_CAPACITY));
+			if (poison) {
+				list.released = true;
+			} else if (retained + slots <= MAX_RETAINED) {
+				if (listCount == lists.length) {
+					lists = Arrays.copyOf(lists, listCount * 2);
+					listSlots = Arrays.copyOf(listSlots, listCount * 2);
+				}
+				lists[listCount] = list;
+				listSlots[listCount++] = slots;
+				retained += slots;
+			}
+		}
+
+		// A very large request should not keep its arrays of used maps and lists
+		if (usedMapCount > MAX_RETAINED / OVERHEAD) {
+			usedMaps = new CompactMap[16];
+		}
+		if (usedListCount > MAX_RETAINED / OVERHEAD) {
+			usedLists = new NumericList[16];
+		}
+		usedMapCount = 0;
+		usedListCount = 0;
+	}
+
+	/**
+	 * @return The number of slots that a map or list takes, of which the arrays hold the given number of elements.
+	 */
+	private static int slots(int elements) {
+		return OVERHEAD + elements;
+	}
+
+	/**
+	 * Drops all the maps and lists that are kept, leaving them to the garbage collector.
+	 */
+	private void drop() {
+		maps = new CompactMap[16];
+		mapSlots = new int[16];
+		mapCount = 0;
+		lists = new NumericList[16];
+		listSlots = new int[16];
+		listCount = 0;
+		retained = 0;
+	}
+}
@@ -1,21 +1,38 @@
 package com.marcdejonge.codec;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Reader;
 import java.io.StringReader;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
+import java.lang.ref.WeakReference;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.OptionalDouble;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+import java.util.RandomAccess;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 import java.util.stream.BaseStream;
+import java.util.stream.Collector;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import com.marcdejonge.codec.json.JSONDecoder;
 import com.marcdejonge.codec.json.JSONEncoder;
@@ -40,6 +57,14 @@ import com.marcdejonge.codec.json.JSONEncoder;
 public class MixedList extends ArrayList<Object> {
 	private static final long serialVersionUID = 6277744694982281980L;
 
+	// The modification tracking, see Versions
+	private transient int version;
+	transient volatile Object parents;
+	// The weak reference to this container that its children hold
+	transient WeakReference<Object> self;
+	// Whether a modification that is being propagated has reached this container
+	transient boolean propagating;
+
 	/**
 	 * @param object
 	 *            The iterable object on which this {@link MixedList} should be based.
@@ -66,6 +91,26 @@ public class MixedList extends ArrayList<Object> {
 		}
 	}
 
+	/**
+	 * Creates a new {@link MixedList} with all the JavaBean objects copied into {@link MixedMap}s, in the same way as
+	 * {@link MixedMap#MixedMap(Object)} does. The properties of the beans are only looked up once for all the beans of
+	 * the same class. Elements that are not beans, such as strings and numbers, are copied as they are.
+	 *
+	 * @param beans
+	 *            The beans that are to be copied
+	 * @return A new {@link MixedList} with the copies of the beans
+	 * @throws UnexpectedTypeException
+	 *             When one of the beans contains itself or they are nested more than 100 levels deep.
+	 */
+	public static final MixedList fromBeans(Iterable<?> beans) throws UnexpectedTypeException {
+		BeanPlan.Walk walk = new BeanPlan.Walk();
+		MixedList result = new MixedList();
+		for (Object bean : beans) {
+			result.add(walk.convert(bean));
+		}
+		return result;
+	}
+
 	/**
 	 * @param string
 	 *            The JSON input
@@ -88,6 +133,18 @@ public class MixedList extends ArrayList<Object> {
 		return new JSONDecoder(reader).parseArray();
 	}
 
+	/**
+	 * Creates a new empty {@link MixedList} that stores its elements as primitives, as long as they are all
+	 * {@link Integer}s, all {@link Long}s or all {@link Double}s. This takes only a fraction of the memory of the
+	 * boxed values. As soon as any other value is stored, the list switches to the normal storage; it behaves the
+	 * same as a normal {@link MixedList} in all other ways. The {@link JSONDecoder} uses these lists for all arrays.
+	 *
+	 * @return A new empty {@link MixedList} with compact numeric storage
+	 */
+	public static MixedList compact() {
+		return new NumericList();
+	}
+
 	/**
 	 * Creates a new empty {@link MixedList}.
 	 */
@@ -102,6 +159,9 @@ public class MixedList extends ArrayList<Object> {
 	 */
 	public MixedList(Collection<?> collection) {
 		super(collection);
+		for (Object value : this) {
+			Versions.adopt(this, value);
+		}
 	}
 
 	/**
@@ -123,9 +183,34 @@ public class MixedList extends ArrayList<Object> {
 	 *            The {@link BaseStream} from which all elements will be read
 	 */
 	public MixedList(BaseStream<?, ?> stream) {
-		for (Iterator<?> it = stream.iterator(); it.hasNext();) {
-			add(it.next());
+		// Collected into an array first, which a parallel stream does on all its threads
+		Object[] values;
+		if (stream instanceof Stream) {
+			values = ((Stream<?>) stream).toArray();
+		} else if (stream instanceof IntStream) {
+			values = ((IntStream) stream).boxed().toArray();
+		} else if (stream instanceof LongStream) {
+			values = ((LongStream) stream).boxed().toArray();
+		} else if (stream instanceof DoubleStream) {
+			values = ((DoubleStream) stream).boxed().toArray();
+		} else {
+			for (Iterator<?> it = stream.iterator(); it.hasNext();) {
+				add(it.next());
+			}
+			return;
 		}
+		addAll(Arrays.asList(values));
+	}
+
+	/**
+	 * @return A {@link Collector} that collects the elements of a stream into a new {@link MixedList}, in the order of
+	 *         the stream. Parallel streams collect into a list per thread, which are then concatenated.
+	 */
+	public static <T> Collector<T, ?, MixedList> collector() {
+		return Collector.of(MixedList::new, MixedList::add, (left, right) -> {
+			left.addAll(right);
+			return left;
+		}, Collector.Characteristics.IDENTITY_FINISH);
 	}
 
 	/**
@@ -202,7 +287,8 @@ public class MixedList extends ArrayList<Object> {
 
 	/**
 	 * This method tries to translate this {@link MixedList} into a given type by finding a constructor or static
-	 * parsing method that accepts this {@link MixedList} as its argument.
+	 * parsing method that accepts this {@link MixedList} as its argument. The constructor or method is only looked up
+	 * once per class.
 	 *
 	 * @param clazz
 	 *            The type of object that you want this list to be translated into
@@ -210,50 +296,8 @@ public class MixedList extends ArrayList<Object> {
 	 * @throws UnexpectedTypeException
 	 *             When no suitable method has been found to parse or when the parsing in the method itself has failed.
 	 */
-	@SuppressWarnings("unchecked")
 	public <T> T as(Class<T> clazz) throws UnexpectedTypeException {
-		try {
-			// First try to find a public constructor that accepts this MixedList as its only argument
-			for (Constructor<?> constructor : clazz.getDeclaredConstructors()) {
-				if (Modifier.isPublic(constructor.getModifiers())
-				    && constructor.getParameterCount() == 1
-				    && constructor.getParameterTypes()[0].isAssignableFrom(MixedList.class)) {
-					return (T) constructor.newInstance(this);
-				}
-			}
-
-			// If no such constructor has been found, try finding a public static parsing method that accepts this
-			// MixedList as its only argument
-			for (Method method : clazz.getDeclaredMethods()) {
-				if (Modifier.isStatic(method.getModifiers())
-				    && Modifier.isPublic(method.getModifiers())
-				    && method.getParameterCount() == 1
-				    && method.getParameters()[0].getType().isAssignableFrom(MixedList.class)
-				    && method.getReturnType() == clazz) {
-					return (T) method.invoke(null, this);
-				}
-			}
-		} catch (InstantiationException ex) {
-			Throwable cause = ex.getCause();
-			if (cause instanceof UnexpectedTypeException) {
-				throw (UnexpectedTypeException) cause;
-			}
-
-			throw new UnexpectedTypeException("Failed to parse this MixedList as a " + clazz.getSimpleName(), ex);
-		} catch (SecurityException
-		         | IllegalAccessException
-		         | IllegalArgumentException
-		         | InvocationTargetException e) {
-			throw new UnexpectedTypeException("Class "
-			                                  + clazz.getName()
-			                                  + " does not have a public constructor or static method that accepts this MixedList",
-			                                  e);
-		}
-
-		// No viable method has been found, so throw an exception
-		throw new UnexpectedTypeException("Class "
-		                                  + clazz.getName()
-		                                  + " does not have a public constructor or static method that accepts this MixedList");
+		return Converter.fromList(clazz).convert(this);
 	}
 
 	/**
@@ -265,7 +309,7 @@ public class MixedList extends ArrayList<Object> {
 		if (index < 0 || index >= size()) {
 			return null;
 		} else {
-			return super.get(index);
+			return get(index);
 		}
 	}
 
@@ -377,7 +421,12 @@ public class MixedList extends ArrayList<Object> {
 	 *             when the object at the given index is not a {@link Number} or the index is out-of-bounds.
 	 */
 	public int getInt(int ix) throws UnexpectedTypeException {
-		return getNumber(ix).intValue();
+		Object value = getOrNull(ix);
+		int result = Numbers.toInt(value, 0);
+		if (result == 0 && !Numbers.isNumber(value)) {
+			throw new UnexpectedTypeException("a number", value);
+		}
+		return result;
 	}
 
 	/**
@@ -389,7 +438,7 @@ public class MixedList extends ArrayList<Object> {
 	 *         default value when the object at the given index is not a {@link Number} or the index is out-of-bounds.
 	 */
 	public int getInt(int ix, int dlft) {
-		return getNumber(ix, dlft).intValue();
+		return Numbers.toInt(getOrNull(ix), dlft);
 	}
 
 	/**
@@ -400,7 +449,12 @@ public class MixedList extends ArrayList<Object> {
 	 *             when the object at the given index is not a {@link Number} or the index is out-of-bounds.
 	 */
 	public long getLong(int ix) throws UnexpectedTypeException {
-		return getNumber(ix).longValue();
+		Object value = getOrNull(ix);
+		long result = Numbers.toLong(value, 0);
+		if (result == 0 && !Numbers.isNumber(value)) {
+			throw new UnexpectedTypeException("a number", value);
+		}
+		return result;
 	}
 
 	/**
@@ -412,7 +466,7 @@ public class MixedList extends ArrayList<Object> {
 	 *         value when the object at the given index is not a {@link Number} or the index is out-of-bounds.
 	 */
 	public long getLong(int ix, long dflt) {
-		return getNumber(ix, dflt).longValue();
+		return Numbers.toLong(getOrNull(ix), dflt);
 	}
 
 	/**
@@ -423,7 +477,12 @@ public class MixedList extends ArrayList<Object> {
 	 *             when the object at the given index is not a {@link Number} or the index is out-of-bounds.
 	 */
 	public double getFloat(int ix) throws UnexpectedTypeException {
-		return getNumber(ix).floatValue();
+		Object value = getOrNull(ix);
+		float result = Numbers.toFloat(value, Float.NaN);
+		if (Float.isNaN(result) && !Numbers.isNumber(value)) {
+			throw new UnexpectedTypeException("a number", value);
+		}
+		return result;
 	}
 
 	/**
@@ -435,7 +494,7 @@ public class MixedList extends ArrayList<Object> {
 	 *         value when the object at the given index is not a {@link Number} or the index is out-of-bounds.
 	 */
 	public double getFloat(int ix, double dflt) {
-		return getNumber(ix, dflt).floatValue();
+		return Numbers.toFloat(getOrNull(ix), (float) dflt);
 	}
 
 	/**
@@ -446,7 +505,12 @@ public class MixedList extends ArrayList<Object> {
 	 *             when the object at the given index is not a {@link Number} or the index is out-of-bounds.
 	 */
 	public double getDouble(int ix) throws UnexpectedTypeException {
-		return getNumber(ix).doubleValue();
+		Object value = getOrNull(ix);
+		double result = Numbers.toDouble(value, Double.NaN);
+		if (Double.isNaN(result) && !Numbers.isNumber(value)) {
+			throw new UnexpectedTypeException("a number", value);
+		}
+		return result;
 	}
 
 	/**
@@ -458,7 +522,44 @@ public class MixedList extends ArrayList<Object> {
 	 *         value when the object at the given index is not a {@link Number} or the index is out-of-bounds.
 	 */
 	public double getDouble(int ix, double dflt) {
-		return getNumber(ix, dflt).doubleValue();
+		return Numbers.toDouble(getOrNull(ix), dflt);
+	}
+
+	/**
+	 * @param ix
+	 *            The index at which to look
+	 * @return the integer at the given index, possibly parsing the string when needed, or an empty {@link OptionalInt}
+	 *         when the object at the given index is not a {@link Number} or numeric string or the index is
+	 *         out-of-bounds.
+	 */
+	public OptionalInt getOptionalInt(int ix) {
+		int result = getInt(ix, 0);
+		return result != 0 || Numbers.isNumber(getOrNull(ix)) ? OptionalInt.of(result) : OptionalInt.empty();
+	}
+
+	/**
+	 * @param ix
+	 *            The index at which to look
+	 * @return the long at the given index, possibly parsing the string when needed, or an empty {@link OptionalLong}
+	 *         when the object at the given index is not a {@link Number} or numeric string or the index is
+	 *         out-of-bounds.
+	 */
+	public OptionalLong getOptionalLong(int ix) {
+		long result = getLong(ix, 0);
+		return result != 0 || Numbers.isNumber(getOrNull(ix)) ? OptionalLong.of(result) : OptionalLong.empty();
+	}
+
+	/**
+	 * @param ix
+	 *            The index at which to look
+	 * @return the double at the given index, possibly parsing the string when needed, or an empty
+	 *         {@link OptionalDouble} when the object at the given index is not a {@link Number} or numeric string or
+	 *         the index is out-of-bounds.
+	 */
+	public OptionalDouble getOptionalDouble(int ix) {
+		double result = getDouble(ix, Double.NaN);
+		return !Double.isNaN(result) || Numbers.isNumber(getOrNull(ix)) ? OptionalDouble.of(result)
+		                                                                 : OptionalDouble.empty();
 	}
 
 	/**
@@ -666,8 +767,12 @@ public class MixedList extends ArrayList<Object> {
 		} else if (clazz.isAssignableFrom(value.getClass())) {
 			return (T) value;
 		} else if (value instanceof MixedMap) {
+			Converter converter = Converter.fromMap(clazz);
+			if (!converter.isAvailable()) {
+				return dflt;
+			}
 			try {
-				return ((MixedMap) value).as(clazz);
+				return converter.convert(value);
 			} catch (UnexpectedTypeException e) {
 				return dflt;
 			}
@@ -677,28 +782,63 @@ public class MixedList extends ArrayList<Object> {
 	}
 
 	/**
-	 * A {@link ListIterator} is an interal implementation to walk through this list for type values. The implementation
-	 * of this iterator should implement the {@link #getValue(int)} method to create the real translation.
+	 * Translates all the elements of this list into type T, in the same way as {@link #getAs(int, Class)} does for a
+	 * single element. The constructor or static method that accepts the {@link MixedMap} elements is only looked up
+	 * once for the whole list.
+	 *
+	 * @param clazz
+	 *            The class of the type that you are looking for
+	 * @param <T>
+	 *            The type of objects that are expected in this list
+	 * @return A new list with the objects of type T, in the same order as this list
+	 * @throws UnexpectedTypeException
+	 *             when any of the elements is missing or can not be translated into type T.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> List<T> mapAs(Class<T> clazz) throws UnexpectedTypeException {
+		Converter converter = null;
+		List<T> result = new ArrayList<>(size());
+		for (Object value : this) {
+			if (value != null && clazz.isAssignableFrom(value.getClass())) {
+				result.add((T) value);
+			} else if (value instanceof MixedMap) {
+				if (converter == null) {
+					converter = Converter.fromMap(clazz);
+				}
+				result.add(converter.convert(value));
+			} else {
+				throw new UnexpectedTypeException("an object of type " + clazz.getSimpleName(), value);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * A {@link ListIterator} is an interal implementation to walk through this list for type values. The selector
+	 * translates the element at an index, or returns <code>null</code> to skip it.
 	 *
 	 * @author Marc de Jonge (marcdejonge@gmail.com)
 	 *
 	 * @param <T>
 	 *            The type of objects that we should return.
 	 */
-	private abstract class ListIterator<T> implements Iterator<T> {
+	private final class ListIterator<T> implements Iterator<T> {
+		private final IntFunction<T> selector;
 		private int nextIx = 0;
 		private T nextResult = null;
 
+		ListIterator(IntFunction<T> selector) {
+			this.selector = selector;
+		}
+
 		@Override
 		public boolean hasNext() {
 			while (nextIx < size() && nextResult == null) {
-				nextResult = getValue(nextIx++);
+				nextResult = selector.apply(nextIx++);
 			}
 			return nextResult != null;
 		}
 
-		protected abstract T getValue(int ix);
-
 		@Override
 		public T next() {
 			try {
@@ -713,17 +853,101 @@ public class MixedList extends ArrayList<Object> {
 		}
 	}
 
+	/**
+	 * A {@link Spliterator} over a range of the indices of this list, of the elements that the selector does not
+	 * translate into <code>null</code>. It splits the range in halves, so the streams over this list can be processed
+	 * in parallel.
+	 *
+	 * @param <T>
+	 *            The type of objects that we should return.
+	 */
+	private final class RangeSpliterator<T> implements Spliterator<T> {
+		private final IntFunction<T> selector;
+		private int index;
+		private final int fence;
+
+		RangeSpliterator(IntFunction<T> selector, int index, int fence) {
+			this.selector = selector;
+			this.index = index;
+			this.fence = fence;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super T> action) {
+			while (index < fence) {
+				T value = selector.apply(index++);
+				if (value != null) {
+					action.accept(value);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public void forEachRemaining(Consumer<? super T> action) {
+			for (int ix = index; ix < fence; ix++) {
+				T value = selector.apply(ix);
+				if (value != null) {
+					action.accept(value);
+				}
+			}
+			index = fence;
+		}
+
+		@Override
+		public Spliterator<T> trySplit() {
+			int middle = (index + fence) >>> 1;
+			if (middle <= index) {
+				return null;
+			}
+			Spliterator<T> prefix = new RangeSpliterator<>(selector, index, middle);
+			index = middle;
+			return prefix;
+		}
+
+		@Override
+		public long estimateSize() {
+			return fence - index;
+		}
+
+		@Override
+		public int characteristics() {
+			return ORDERED | NONNULL;
+		}
+	}
+
+	/**
+	 * The elements of this list that are selected, which can be iterated over or streamed.
+	 */
+	private final class Selection<T> implements Iterable<T> {
+		private final IntFunction<T> selector;
+
+		Selection(IntFunction<T> selector) {
+			this.selector = selector;
+		}
+
+		@Override
+		public Iterator<T> iterator() {
+			return new ListIterator<>(selector);
+		}
+
+		@Override
+		public Spliterator<T> spliterator() {
+			return new RangeSpliterator<>(selector, 0, size());
+		}
+
+		Stream<T> stream() {
+			return StreamSupport.stream(spliterator(), false);
+		}
+	}
+
 	/**
 	 * @return An {@link Iterable} object that can be used to iterate over this {@link MixedList} getting only
 	 *         {@link MixedMap} types.
 	 */
 	public Iterable<MixedMap> objects() {
-		return () -> new ListIterator<MixedMap>() {
-			@Override
-			protected MixedMap getValue(int ix) {
-				return getMap(ix, null);
-			}
-		};
+		return new Selection<>(ix -> getMap(ix, null));
 	}
 
 	/**
@@ -731,12 +955,7 @@ public class MixedList extends ArrayList<Object> {
 	 *         {@link Number} types.
 	 */
 	public Iterable<Number> numbers() {
-		return () -> new ListIterator<Number>() {
-			@Override
-			protected Number getValue(int ix) {
-				return getNumber(ix, null);
-			}
-		};
+		return new Selection<>(ix -> getNumber(ix, null));
 	}
 
 	/**
@@ -744,12 +963,311 @@ public class MixedList extends ArrayList<Object> {
 	 *         {@link String} types.
 	 */
 	public Iterable<String> strings() {
-		return () -> new ListIterator<String>() {
-			@Override
-			protected String getValue(int ix) {
-				return getString(ix, null);
+		return new Selection<>(ix -> getString(ix, null));
+	}
+
+	/**
+	 * @return A {@link Stream} of all the {@link MixedMap}s in this list. Other elements are skipped. The stream splits
+	 *         the list by index, so it can be processed in parallel.
+	 */
+	public Stream<MixedMap> objectStream() {
+		return new Selection<>(ix -> getMap(ix, null)).stream();
+	}
+
+	/**
+	 * @return An {@link IntStream} of all the {@link Number}s in this list, truncated like {@link #getInt(int)}. Other
+	 *         elements are skipped. For a list that stores its numbers as primitives (see {@link #compact()}), no
+	 *         boxing is needed. The stream splits the list by index, so it can be processed in parallel.
+	 */
+	public IntStream intStream() {
+		return new Selection<>(ix -> getNumber(ix, null)).stream().mapToInt(Number::intValue);
+	}
+
+	/**
+	 * @return A {@link LongStream} of all the {@link Number}s in this list, truncated like {@link #getLong(int)}.
+	 *         Other elements are skipped. For a list that stores its numbers as primitives (see {@link #compact()}),
+	 *         no boxing is needed. The stream splits the list by index, so it can be processed in parallel.
+	 */
+	public LongStream longStream() {
+		return new Selection<>(ix -> getNumber(ix, null)).stream().mapToLong(Number::longValue);
+	}
+
+	/**
+	 * @return A {@link DoubleStream} of all the {@link Number}s in this list. Other elements are skipped. For a list
+	 *         that stores its numbers as primitives (see {@link #compact()}), no boxing is needed. The stream splits
+	 *         the list by index, so it can be processed in parallel.
+	 */
+	public DoubleStream doubleStream() {
+		return new Selection<>(ix -> getNumber(ix, null)).stream().mapToDouble(Number::doubleValue);
+	}
+
+	/**
+	 * @return The primitive type (<code>int.class</code>, <code>long.class</code> or <code>double.class</code>) in
+	 *         which all the elements of this list are stored, or <code>null</code> when they are stored as objects.
+	 * @see #compact()
+	 */
+	public Class<?> primitiveType() {
+		return null;
+	}
+
+	/**
+	 * @return A version stamp of this list. It changes whenever this list, or any {@link MixedMap} or
+	 *         {@link MixedList} that is (indirectly) stored in it, is modified. Together with the identity of the list,
+	 *         this can be used to cache anything that is derived from its content, such as its encoded form.
+	 */
+	public int version() {
+		return version;
+	}
+
+	/**
+	 * Creates an immutable copy of this list, in which all the nested {@link MixedMap}s and {@link MixedList}s are
+	 * frozen as well. Subtrees that are already frozen are shared as they are, so freezing a {@link FrozenList} is
+	 * free.
+	 *
+	 * @return A {@link FrozenList} with the same elements
+	 */
+	public FrozenList freeze() {
+		return FrozenList.of(this);
+	}
+
+	void modified() {
+		changed();
+		if (parents != null) {
+			Versions.propagate(this);
+		}
+	}
+
+	// Changes the version only, for a modification that is propagated from a descendant
+	void changed() {
+		version++;
+	}
+
+	@Override
+	public boolean add(Object value) {
+		super.add(value);
+		Versions.adopt(this, value);
+		modified();
+		return true;
+	}
+
+	@Override
+	public void add(int index, Object value) {
+		super.add(index, value);
+		Versions.adopt(this, value);
+		modified();
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends Object> collection) {
+		return addAll(size(), collection);
+	}
+
+	@Override
+	public boolean addAll(int index, Collection<? extends Object> collection) {
+		int size = size();
+		super.addAll(index, collection);
+		int added = size() - size;
+		for (int ix = index; ix < index + added; ix++) {
+			Versions.adopt(this, get(ix));
+		}
+		modified();
+		return added > 0;
+	}
+
+	@Override
+	public Object set(int index, Object value) {
+		Object oldValue = super.set(index, value);
+		if (oldValue != value) {
+			Versions.release(this, oldValue);
+			Versions.adopt(this, value);
+		}
+		modified();
+		return oldValue;
+	}
+
+	@Override
+	public Object remove(int index) {
+		Object oldValue = super.remove(index);
+		Versions.release(this, oldValue);
+		modified();
+		return oldValue;
+	}
+
+	@Override
+	public boolean remove(Object value) {
+		int index = indexOf(value);
+		if (index < 0) {
+			return false;
+		} else {
+			remove(index);
+			return true;
+		}
+	}
+
+	@Override
+	protected void removeRange(int fromIndex, int toIndex) {
+		for (int ix = fromIndex; ix < toIndex; ix++) {
+			Versions.release(this, get(ix));
+		}
+		super.removeRange(fromIndex, toIndex);
+		modified();
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> collection) {
+		Objects.requireNonNull(collection);
+		return removeIf(collection::contains);
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> collection) {
+		Objects.requireNonNull(collection);
+		return removeIf(value -> !collection.contains(value));
+	}
+
+	@Override
+	public boolean removeIf(Predicate<? super Object> filter) {
+		List<Object> removed = new ArrayList<>();
+		boolean changed = super.removeIf(value -> {
+			if (filter.test(value)) {
+				removed.add(value);
+				return true;
+			} else {
+				return false;
+			}
+		});
+
+		for (Object value : removed) {
+			Versions.release(this, value);
+		}
+		if (changed) {
+			modified();
+		}
+		return changed;
+	}
+
+	@Override
+	public void replaceAll(UnaryOperator<Object> operator) {
+		for (int ix = 0; ix < size(); ix++) {
+			set(ix, operator.apply(get(ix)));
+		}
+	}
+
+	@Override
+	public void sort(Comparator<? super Object> comparator) {
+		super.sort(comparator);
+		modified();
+	}
+
+	@Override
+	public void clear() {
+		if (!isEmpty()) {
+			for (Object value : this) {
+				Versions.release(this, value);
+			}
+			super.clear();
+			modified();
+		}
+	}
+
+	/**
+	 * The sub list of the {@link ArrayList} modifies its elements directly, so this view is used to keep track of the
+	 * modifications.
+	 */
+	@Override
+	public List<Object> subList(int fromIndex, int toIndex) {
+		if (fromIndex < 0 || toIndex > size() || fromIndex > toIndex) {
+			throw new IndexOutOfBoundsException("fromIndex: " + fromIndex + ", toIndex: " + toIndex);
+		}
+		return new SubList(fromIndex, toIndex - fromIndex);
+	}
+
+	private class SubList extends AbstractList<Object> implements RandomAccess {
+		private final int offset;
+		private int size;
+
+		SubList(int offset, int size) {
+			this.offset = offset;
+			this.size = size;
+		}
+
+		@Override
+		public Object get(int index) {
+			checkIndex(index, size);
+			return MixedList.this.get(offset + index);
+		}
+
+		@Override
+		public Object set(int index, Object value) {
+			checkIndex(index, size);
+			return MixedList.this.set(offset + index, value);
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public void add(int index, Object value) {
+			checkIndex(index, size + 1);
+			MixedList.this.add(offset + index, value);
+			size++;
+			modCount++;
+		}
+
+		@Override
+		public Object remove(int index) {
+			checkIndex(index, size);
+			Object value = MixedList.this.remove(offset + index);
+			size--;
+			modCount++;
+			return value;
+		}
+
+		@Override
+		protected void removeRange(int fromIndex, int toIndex) {
+			MixedList.this.removeRange(offset + fromIndex, offset + toIndex);
+			size -= toIndex - fromIndex;
+			modCount++;
+		}
+
+		private void checkIndex(int index, int limit) {
+			if (index < 0 || index >= limit) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
 			}
-		};
+		}
+	}
+
+	@Override
+	public MixedList clone() {
+		MixedList clone = (MixedList) super.clone();
+		clone.version = 0;
+		clone.parents = null;
+		clone.self = null;
+		clone.propagating = false;
+		for (Object value : clone) {
+			Versions.adopt(clone, value);
+		}
+		return clone;
+	}
+
+	/**
+	 * The list is serialized in the compact form of a {@link SerializedTree}, which is read back as a
+	 * {@link MixedList}.
+	 */
+	private Object writeReplace() {
+		return new SerializedTree(this);
+	}
+
+	/**
+	 * Reads a list that has been serialized as an {@link java.util.ArrayList}, before the {@link SerializedTree}.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		for (Object value : this) {
+			Versions.adopt(this, value);
+		}
 	}
 
 	/**
@@ -1,18 +1,28 @@
 package com.marcdejonge.codec;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Reader;
 import java.io.StringReader;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
+import java.lang.ref.WeakReference;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
 import java.util.Base64;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Objects;
+import java.util.OptionalDouble;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.stream.BaseStream;
+import java.util.stream.Collector;
 
 import com.marcdejonge.codec.json.JSONDecoder;
 
@@ -36,6 +46,14 @@ import com.marcdejonge.codec.json.JSONDecoder;
 public class MixedMap extends LinkedHashMap<String, Object> {
 	private static final long serialVersionUID = -1879873557979864838L;
 
+	// The modification tracking, see Versions
+	private transient int version;
+	transient volatile Object parents;
+	// The weak reference to this container that its children hold
+	transient WeakReference<Object> self;
+	// Whether a modification that is being propagated has reached this container
+	transient boolean propagating;
+
 	/**
 	 * @param object
 	 *            The map on which this {@link MixedMap} should be based.
@@ -79,6 +97,80 @@ public class MixedMap extends LinkedHashMap<String, Object> {
 		return new JSONDecoder(reader).parseObject();
 	}
 
+	/**
+	 * Creates a new empty {@link MixedMap} that stores its entries in plain arrays of keys and values, instead of the
+	 * entries of the {@link LinkedHashMap}. Small maps are searched linearly and larger maps use an open-addressing
+	 * index, so this takes much less memory per entry while lookups stay fast. Removing an entry takes linear time. It
+	 * behaves the same as a normal {@link MixedMap} in all other ways. To also share the keys between maps, create
+	 * them using {@link MapShapes#newMap()}, like the {@link JSONDecoder} does.
+	 *
+	 * @return A new empty {@link MixedMap} with compact storage
+	 */
+	public static MixedMap compact() {
+		return new CompactMap();
+	}
+
+	/**
+	 * @param keyMapper
+	 *            The function that gives the key of an element
+	 * @param valueMapper
+	 *            The function that gives the value of an element
+	 * @param <T>
+	 *            The type of the elements
+	 * @return A {@link Collector} that collects the elements of a stream into a new {@link MixedMap}, in the order of
+	 *         the stream. Parallel streams collect into a map per thread, which are then merged. When two elements
+	 *         have the same key, the collection fails with an {@link IllegalStateException}.
+	 */
+	public static <T> Collector<T, ?, MixedMap> collector(Function<? super T, String> keyMapper,
+	                                                      Function<? super T, ?> valueMapper) {
+		return Collector.of(MixedMap::new,
+		                    (map, element) -> putNew(map, keyMapper.apply(element), valueMapper.apply(element)),
+		                    (left, right) -> {
+			                    right.forEach((key, value) -> putNew(left, key, value));
+			                    return left;
+		                    },
+		                    Collector.Characteristics.IDENTITY_FINISH);
+	}
+
+	/**
+	 * @param keyMapper
+	 *            The function that gives the key of an element
+	 * @param valueMapper
+	 *            The function that gives the value of an element
+	 * @param <T>
+	 *            The type of the elements
+	 * @return A concurrent {@link Collector} that collects the elements of a stream into a single new
+	 *         {@link ConcurrentMixedMap}. Parallel streams add the elements to it from all their threads at the same
+	 *         time, so the entries are not in the order of the stream. When two elements have the same key, the
+	 *         collection fails with an {@link IllegalStateException}.
+	 */
+	public static <T> Collector<T, ?, ConcurrentMixedMap> concurrentCollector(Function<? super T, String> keyMapper,
+	                                                                          Function<? super T, ?> valueMapper) {
+		return Collector.of(ConcurrentMixedMap::new,
+		                    (map, element) -> putNew(map, keyMapper.apply(element), valueMapper.apply(element)),
+		                    (left, right) -> {
+			                    right.forEach((key, value) -> putNew(left, key, value));
+			                    return left;
+		                    },
+		                    Collector.Characteristics.CONCURRENT,
+		                    Collector.Characteristics.UNORDERED,
+		                    Collector.Characteristics.IDENTITY_FINISH);
+	}
+
+	private static void putNew(MixedMap map, String key, Object value) {
+		boolean added;
+		if (map instanceof ConcurrentMixedMap) {
+			added = ((ConcurrentMixedMap) map).putNew(key, value);
+		} else {
+			int size = map.size();
+			map.put(key, value);
+			added = map.size() > size;
+		}
+		if (!added) {
+			throw new IllegalStateException("Duplicate key " + key);
+		}
+	}
+
 	/**
 	 * Creates a new empty MixedMap.
 	 */
@@ -111,61 +203,29 @@ public class MixedMap extends LinkedHashMap<String, Object> {
 	}
 
 	/**
-	 * Creates a new {@link MixedMap} from the given JavaBean object. This method will search for all the getter methods
-	 * and
-	 * store the results into this new map.
+	 * Creates a new {@link MixedMap} from the given JavaBean object. This stores the values of all the public getter
+	 * methods into this new map, or of the components when the object is a record, and of the public fields that have
+	 * no getter. The beans, collections and maps in these values are copied as well, into new {@link MixedMap}s and
+	 * {@link MixedList}s. The properties of a class are only looked up once.
 	 *
 	 * @param source
 	 *            The source object from which to copy
 	 * @throws UnexpectedTypeException
-	 *             When the source object is null, or no valid getters could be found.
+	 *             When the source object is null, no valid getters could be found, or the beans contain themselves or
+	 *             are nested more than 100 levels deep.
 	 */
 	public MixedMap(Object source) throws UnexpectedTypeException {
 		if (source == null) {
 			throw new UnexpectedTypeException("a JavaBean object", "null");
 		}
 
-		Class<? extends Object> clazz = source.getClass();
-
-		for (Method method : clazz.getMethods()) {
-			if (method.getReturnType() != Void.TYPE
-			    && method.getParameterTypes().length == 0
-			    && Modifier.isPublic(method.getModifiers())) {
-				String name = method.getName();
-				if (name.equals("getClass")) {
-					continue;
-				} else if (name.length() >= 4 && name.startsWith("get") && Character.isUpperCase(name.charAt(3))) {
-					name = Character.toLowerCase(name.charAt(3)) + name.substring(4);
-					try {
-						Object value = method.invoke(source);
-						if (value instanceof Number || value instanceof String) {
-							put(name, value);
-						} else if (value instanceof Collection) {
-							put(name, MixedList.from(value));
-						} else {
-							put(name, MixedMap.from(value));
-						}
-					} catch (IllegalAccessException
-					         | IllegalArgumentException
-					         | InvocationTargetException e) {
-						// Ignored
-					}
-				} else if (name.length() >= 3 && name.startsWith("is") && method.getReturnType() == Boolean.TYPE) {
-					try {
-						Object value = method.invoke(source);
-						put(name, value);
-					} catch (IllegalAccessException
-					         | IllegalArgumentException
-					         | InvocationTargetException e) {
-						// Ignored
-					}
-				}
-			}
-		}
-
-		if (isEmpty()) {
-			throw new UnexpectedTypeException("a JavaBean object", clazz.getName());
+		BeanPlan.Walk walk = new BeanPlan.Walk();
+		// Strings, numbers and the like have getters, but are no beans
+		BeanPlan plan = BeanPlan.isValue(source) ? null : walk.plan(source);
+		if (plan == null || plan.isEmpty()) {
+			throw new UnexpectedTypeException("a JavaBean object", source.getClass().getName());
 		}
+		walk.copy(source, plan, this);
 	}
 
 	/**
@@ -185,7 +245,8 @@ public class MixedMap extends LinkedHashMap<String, Object> {
 
 	/**
 	 * This method tries to translate this {@link MixedMap} into a given type by finding a constructor or static
-	 * parsing method that accepts this {@link MixedMap} as its argument.
+	 * parsing method that accepts this {@link MixedMap} as its argument. The constructor or method is only looked up
+	 * once per class.
 	 *
 	 * @param clazz
 	 *            The type of object that you want this list to be translated into
@@ -193,50 +254,8 @@ public class MixedMap extends LinkedHashMap<String, Object> {
 	 * @throws UnexpectedTypeException
 	 *             When no suitable method has been found to parse or when the parsing in the method itself has failed.
 	 */
-	@SuppressWarnings("unchecked")
 	public <T> T as(Class<T> clazz) throws UnexpectedTypeException {
-		try {
-			// First try to find a public constructor that accepts this MixedMap as its only argument
-			for (Constructor<?> constructor : clazz.getDeclaredConstructors()) {
-				if (Modifier.isPublic(constructor.getModifiers())
-				    && constructor.getParameterCount() == 1
-				    && constructor.getParameterTypes()[0].isAssignableFrom(MixedMap.class)) {
-					return (T) constructor.newInstance(this);
-				}
-			}
-
-			// If no such constructor has been found, try finding a public static parsing method that accepts this
-			// MixedMap as its only argument
-			for (Method method : clazz.getDeclaredMethods()) {
-				if (Modifier.isStatic(method.getModifiers())
-				    && Modifier.isPublic(method.getModifiers())
-				    && method.getParameterCount() == 1
-				    && method.getParameters()[0].getType().isAssignableFrom(MixedMap.class)
-				    && method.getReturnType() == clazz) {
-					return (T) method.invoke(null, this);
-				}
-			}
-		} catch (InstantiationException ex) {
-			Throwable cause = ex.getCause();
-			if (cause instanceof UnexpectedTypeException) {
-				throw (UnexpectedTypeException) cause;
-			}
-
-			throw new UnexpectedTypeException("Failed to parse this MixedMap as a " + clazz.getSimpleName(), ex);
-		} catch (SecurityException
-		         | IllegalAccessException
-		         | IllegalArgumentException
-		         | InvocationTargetException e) {
-			throw new UnexpectedTypeException("Class "
-			                                  + clazz.getName()
-			                                  + " does not have a public constructor or static method that accepts this MixedMap",
-			                                  e);
-		}
-
-		// No viable method has been found, so throw an exception
-		throw new UnexpectedTypeException("Class "
-		                                  + clazz.getName()
-		                                  + " does not have a public constructor or static method that accepts this MixedMap");
+		return Converter.fromMap(clazz).convert(this);
 	}
 
 	/**
@@ -326,35 +345,91 @@ public class MixedMap extends LinkedHashMap<String, Object> {
 	}
 
 	public int getInt(String key) throws UnexpectedTypeException {
-		return getNumber(key).intValue();
+		Object value = get(key);
+		int result = Numbers.toInt(value, 0);
+		if (result == 0 && !Numbers.isNumber(value)) {
+			throw new UnexpectedTypeException("a number", value);
+		}
+		return result;
 	}
 
 	public int getInt(String key, int dlft) {
-		return getNumber(key, dlft).intValue();
+		return Numbers.toInt(get(key), dlft);
 	}
 
 	public long getLong(String key) throws UnexpectedTypeException {
-		return getNumber(key).longValue();
+		Object value = get(key);
+		long result = Numbers.toLong(value, 0);
+		if (result == 0 && !Numbers.isNumber(value)) {
+			throw new UnexpectedTypeException("a number", value);
+		}
+		return result;
 	}
 
 	public long getLong(String key, long dflt) {
-		return getNumber(key, dflt).longValue();
+		return Numbers.toLong(get(key), dflt);
 	}
 
 	public double getFloat(String key) throws UnexpectedTypeException {
-		return getNumber(key).floatValue();
+		Object value = get(key);
+		float result = Numbers.toFloat(value, Float.NaN);
+		if (Float.isNaN(result) && !Numbers.isNumber(value)) {
+			throw new UnexpectedTypeException("a number", value);
+		}
+		return result;
 	}
 
 	public double getFloat(String key, double dflt) {
-		return getNumber(key, dflt).floatValue();
+		return Numbers.toFloat(get(key), (float) dflt);
 	}
 
 	public double getDouble(String key) throws UnexpectedTypeException {
-		return getNumber(key).doubleValue();
+		Object value = get(key);
+		double result = Numbers.toDouble(value, Double.NaN);
+		if (Double.isNaN(result) && !Numbers.isNumber(value)) {
+			throw new UnexpectedTypeException("a number", value);
+		}
+		return result;
 	}
 
 	public double getDouble(String key, double dflt) {
-		return getNumber(key, dflt).doubleValue();
+		return Numbers.toDouble(get(key), dflt);
+	}
+
+	/**
+	 * @param key
+	 *            The key at which to search for a value
+	 * @return the integer stored at the given key, possibly parsing the string when needed, or an empty
+	 *         {@link OptionalInt} when the object at the given key is not a {@link Number} or numeric string.
+	 */
+	public OptionalInt getOptionalInt(String key) {
+		Object value = get(key);
+		int result = Numbers.toInt(value, 0);
+		return result != 0 || Numbers.isNumber(value) ? OptionalInt.of(result) : OptionalInt.empty();
+	}
+
+	/**
+	 * @param key
+	 *            The key at which to search for a value
+	 * @return the long stored at the given key, possibly parsing the string when needed, or an empty
+	 *         {@link OptionalLong} when the object at the given key is not a {@link Number} or numeric string.
+	 */
+	public OptionalLong getOptionalLong(String key) {
+		Object value = get(key);
+		long result = Numbers.toLong(value, 0);
+		return result != 0 || Numbers.isNumber(value) ? OptionalLong.of(result) : OptionalLong.empty();
+	}
+
+	/**
+	 * @param key
+	 *            The key at which to search for a value
+	 * @return the double stored at the given key, possibly parsing the string when needed, or an empty
+	 *         {@link OptionalDouble} when the object at the given key is not a {@link Number} or numeric string.
+	 */
+	public OptionalDouble getOptionalDouble(String key) {
+		Object value = get(key);
+		double result = Numbers.toDouble(value, Double.NaN);
+		return !Double.isNaN(result) || Numbers.isNumber(value) ? OptionalDouble.of(result) : OptionalDouble.empty();
 	}
 
 	public BigInteger getBigInteger(String key) throws UnexpectedTypeException {
@@ -485,8 +560,12 @@ public class MixedMap extends LinkedHashMap<String, Object> {
 		} else if (clazz.isAssignableFrom(value.getClass())) {
 			return (T) value;
 		} else if (value instanceof MixedMap) {
+			Converter converter = Converter.fromMap(clazz);
+			if (!converter.isAvailable()) {
+				return dflt;
+			}
 			try {
-				return ((MixedMap) value).as(clazz);
+				return converter.convert(value);
 			} catch (UnexpectedTypeException e) {
 				return dflt;
 			}
@@ -495,6 +574,540 @@ public class MixedMap extends LinkedHashMap<String, Object> {
 		}
 	}
 
+	/**
+	 * @param path
+	 *            The path to the value, e.g. <code>a.b[3].c</code>, see {@link MixedPath}
+	 * @return The value at the end of the path, or <code>null</code> when it is missing.
+	 * @throws IllegalArgumentException
+	 *             When the path is not valid
+	 */
+	public Object getPath(String path) {
+		return MixedPath.compile(path).get(this);
+	}
+
+	/**
+	 * @param path
+	 *            The path to the value, e.g. <code>a.b[3].c</code>, see {@link MixedPath}
+	 * @param dflt
+	 *            The default value when nothing can be found
+	 * @return The value at the end of the path as a string, or the default value when it is missing.
+	 */
+	public String getPathString(String path, String dflt) {
+		return MixedPath.compile(path).getString(this, dflt);
+	}
+
+	/**
+	 * @param path
+	 *            The path to the value, e.g. <code>a.b[3].c</code>, see {@link MixedPath}
+	 * @param dflt
+	 *            The default value when nothing can be found
+	 * @return The number at the end of the path, or the default value when it is missing or not a number.
+	 */
+	public int getPathInt(String path, int dflt) {
+		return MixedPath.compile(path).getInt(this, dflt);
+	}
+
+	/**
+	 * @param path
+	 *            The path to the value, e.g. <code>a.b[3].c</code>, see {@link MixedPath}
+	 * @param dflt
+	 *            The default value when nothing can be found
+	 * @return The number at the end of the path, or the default value when it is missing or not a number.
+	 */
+	public long getPathLong(String path, long dflt) {
+		return MixedPath.compile(path).getLong(this, dflt);
+	}
+
+	/**
+	 * @param path
+	 *            The path to the value, e.g. <code>a.b[3].c</code>, see {@link MixedPath}
+	 * @param dflt
+	 *            The default value when nothing can be found
+	 * @return The number at the end of the path, or the default value when it is missing or not a number.
+	 */
+	public double getPathDouble(String path, double dflt) {
+		return MixedPath.compile(path).getDouble(this, dflt);
+	}
+
+	/**
+	 * @param path
+	 *            The path to the value, e.g. <code>a.b[3].c</code>, see {@link MixedPath}
+	 * @param dflt
+	 *            The default value when nothing can be found
+	 * @return The boolean at the end of the path, or the default value when it is missing or not a boolean.
+	 */
+	public boolean getPathBoolean(String path, boolean dflt) {
+		return MixedPath.compile(path).getBoolean(this, dflt);
+	}
+
+	/**
+	 * @param path
+	 *            The path to the value, e.g. <code>a.b[3].c</code>, see {@link MixedPath}
+	 * @param dflt
+	 *            The default value when nothing can be found
+	 * @return The map at the end of the path, or the default value when it is missing or not a map.
+	 */
+	public MixedMap getPathMap(String path, MixedMap dflt) {
+		return MixedPath.compile(path).getMap(this, dflt);
+	}
+
+	/**
+	 * @param path
+	 *            The path to the value, e.g. <code>a.b[3].c</code>, see {@link MixedPath}
+	 * @param dflt
+	 *            The default value when nothing can be found
+	 * @return The list at the end of the path, or the default value when it is missing or not a collection.
+	 */
+	public MixedList getPathList(String path, MixedList dflt) {
+		return MixedPath.compile(path).getList(this, dflt);
+	}
+
+	/**
+	 * @return A version stamp of this map. It changes whenever this map, or any {@link MixedMap} or {@link MixedList}
+	 *         that is (indirectly) stored in it, is modified. Together with the identity of the map, this can be used
+	 *         to cache anything that is derived from its content, such as its encoded form.
+	 */
+	public int version() {
+		return version;
+	}
+
+	/**
+	 * Creates an immutable copy of this map, in which all the nested {@link MixedMap}s and {@link MixedList}s are
+	 * frozen as well. Subtrees that are already frozen are shared as they are, so freezing a {@link FrozenMap} is
+	 * free.
+	 *
+	 * @return A {@link FrozenMap} with the same entries, in the same order
+	 */
+	public FrozenMap freeze() {
+		return FrozenMap.of(this);
+	}
+
+	void modified() {
+		changed();
+		if (parents != null) {
+			Versions.propagate(this);
+		}
+	}
+
+	// Changes the version only, for a modification that is propagated from a descendant
+	void changed() {
+		version++;
+	}
+
+	void replaced(Object oldValue, Object newValue) {
+		if (oldValue != newValue) {
+			Versions.release(this, oldValue);
+			Versions.adopt(this, newValue);
+		}
+		modified();
+	}
+
+	void removed(Object oldValue) {
+		Versions.release(this, oldValue);
+		modified();
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		Object oldValue = super.put(key, value);
+		replaced(oldValue, value);
+		return oldValue;
+	}
+
+	@Override
+	public void putAll(Map<? extends String, ? extends Object> map) {
+		for (Map.Entry<? extends String, ? extends Object> entry : map.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	@Override
+	public Object remove(Object key) {
+		int size = size();
+		Object oldValue = super.remove(key);
+		if (size() != size) {
+			removed(oldValue);
+		}
+		return oldValue;
+	}
+
+	@Override
+	public boolean remove(Object key, Object value) {
+		if (containsKey(key) && Objects.equals(get(key), value)) {
+			remove(key);
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	@Override
+	public void clear() {
+		if (!isEmpty()) {
+			for (Object value : super.values()) {
+				Versions.release(this, value);
+			}
+			super.clear();
+			modified();
+		}
+	}
+
+	@Override
+	public Object putIfAbsent(String key, Object value) {
+		Object oldValue = get(key);
+		if (oldValue == null) {
+			put(key, value);
+		}
+		return oldValue;
+	}
+
+	@Override
+	public boolean replace(String key, Object oldValue, Object newValue) {
+		if (containsKey(key) && Objects.equals(get(key), oldValue)) {
+			put(key, newValue);
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	@Override
+	public Object replace(String key, Object value) {
+		if (containsKey(key)) {
+			return put(key, value);
+		} else {
+			return null;
+		}
+	}
+
+	@Override
+	public void replaceAll(BiFunction<? super String, ? super Object, ? extends Object> function) {
+		for (Map.Entry<String, Object> entry : entrySet()) {
+			entry.setValue(function.apply(entry.getKey(), entry.getValue()));
+		}
+	}
+
+	@Override
+	public Object computeIfAbsent(String key, Function<? super String, ? extends Object> function) {
+		Object value = get(key);
+		if (value == null) {
+			value = function.apply(key);
+			if (value != null) {
+				put(key, value);
+			}
+		}
+		return value;
+	}
+
+	@Override
+	public Object computeIfPresent(String key,
+	                               BiFunction<? super String, ? super Object, ? extends Object> function) {
+		Object oldValue = get(key);
+		if (oldValue == null) {
+			return null;
+		}
+
+		Object value = function.apply(key, oldValue);
+		if (value == null) {
+			remove(key);
+		} else {
+			put(key, value);
+		}
+		return value;
+	}
+
+	@Override
+	public Object compute(String key, BiFunction<? super String, ? super Object, ? extends Object> function) {
+		Object oldValue = get(key);
+		Object value = function.apply(key, oldValue);
+		if (value != null) {
+			put(key, value);
+		} else if (oldValue != null || containsKey(key)) {
+			remove(key);
+		}
+		return value;
+	}
+
+	@Override
+	public Object merge(String key,
+	                    Object value,
+	                    BiFunction<? super Object, ? super Object, ? extends Object> function) {
+		Objects.requireNonNull(value);
+		Object oldValue = get(key);
+		Object newValue = oldValue == null ? value : function.apply(oldValue, value);
+		if (newValue == null) {
+			remove(key);
+		} else {
+			put(key, newValue);
+		}
+		return newValue;
+	}
+
+	/**
+	 * Iterates over the entries to read them, without the wrappers that the entries of {@link #entrySet()} need to keep
+	 * track of {@link Map.Entry#setValue(Object)}. The encoders use this to walk through large documents without
+	 * creating an object for each entry.
+	 *
+	 * @return An iterator over the entries in their order. It returns the same entry each time, which holds the key and
+	 *         value of the current entry, so it must be copied to keep it. The entry can not be changed.
+	 */
+	public Iterator<? extends Map.Entry<String, Object>> readEntries() {
+		if (getClass() != MixedMap.class) {
+			// Subclasses store their entries in another way
+			return entrySet().iterator();
+		}
+		return new ReadEntries(super.entrySet().iterator());
+	}
+
+	/**
+	 * The iterator of {@link #readEntries()}, which is also the entry that it returns.
+	 */
+	private static final class ReadEntries implements Iterator<Map.Entry<String, Object>>, Map.Entry<String, Object> {
+		private final Iterator<Map.Entry<String, Object>> it;
+		private String key;
+		private Object value;
+
+		ReadEntries(Iterator<Map.Entry<String, Object>> it) {
+			this.it = it;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return it.hasNext();
+		}
+
+		@Override
+		public Map.Entry<String, Object> next() {
+			Map.Entry<String, Object> entry = it.next();
+			key = entry.getKey();
+			value = entry.getValue();
+			return this;
+		}
+
+		@Override
+		public String getKey() {
+			return key;
+		}
+
+		@Override
+		public Object getValue() {
+			return value;
+		}
+
+		@Override
+		public Object setValue(Object value) {
+			throw new UnsupportedOperationException("The entries that are read can not be changed");
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry)) {
+				return false;
+			}
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+			return Objects.equals(key, entry.getKey()) && Objects.equals(value, entry.getValue());
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(key) ^ Objects.hashCode(value);
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + value;
+		}
+	}
+
+	/*
+	 * The views of the LinkedHashMap modify the map directly, so they are wrapped to keep track of the modifications.
+	 */
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				Iterator<Map.Entry<String, Object>> it = MixedMap.super.entrySet().iterator();
+				return new Iterator<Map.Entry<String, Object>>() {
+					private Map.Entry<String, Object> last;
+
+					@Override
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+
+					@Override
+					public Map.Entry<String, Object> next() {
+						Map.Entry<String, Object> entry = it.next();
+						last = entry;
+						return new SimpleEntry<String, Object>(entry) {
+							private static final long serialVersionUID = 1L;
+
+							@Override
+							public Object setValue(Object value) {
+								Object oldValue = entry.setValue(value);
+								super.setValue(value);
+								replaced(oldValue, value);
+								return oldValue;
+							}
+						};
+					}
+
+					@Override
+					public void remove() {
+						it.remove();
+						removed(last.getValue());
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return MixedMap.this.size();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return MixedMap.super.entrySet().contains(o);
+			}
+
+			@Override
+			public boolean remove(Object o) {
+				if (o instanceof Map.Entry) {
+					Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+					return MixedMap.this.remove(entry.getKey(), entry.getValue());
+				} else {
+					return false;
+				}
+			}
+
+			@Override
+			public void clear() {
+				MixedMap.this.clear();
+			}
+		};
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return new AbstractSet<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				Iterator<Map.Entry<String, Object>> it = entrySet().iterator();
+				return new Iterator<String>() {
+					@Override
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+
+					@Override
+					public String next() {
+						return it.next().getKey();
+					}
+
+					@Override
+					public void remove() {
+						it.remove();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return MixedMap.this.size();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return containsKey(o);
+			}
+
+			@Override
+			public boolean remove(Object o) {
+				int size = size();
+				MixedMap.this.remove(o);
+				return size() != size;
+			}
+
+			@Override
+			public void clear() {
+				MixedMap.this.clear();
+			}
+		};
+	}
+
+	@Override
+	public Collection<Object> values() {
+		return new AbstractCollection<Object>() {
+			@Override
+			public Iterator<Object> iterator() {
+				Iterator<Map.Entry<String, Object>> it = entrySet().iterator();
+				return new Iterator<Object>() {
+					@Override
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+
+					@Override
+					public Object next() {
+						return it.next().getValue();
+					}
+
+					@Override
+					public void remove() {
+						it.remove();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return MixedMap.this.size();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return containsValue(o);
+			}
+
+			@Override
+			public void clear() {
+				MixedMap.this.clear();
+			}
+		};
+	}
+
+	@Override
+	public MixedMap clone() {
+		MixedMap clone = (MixedMap) super.clone();
+		clone.version = 0;
+		clone.parents = null;
+		clone.self = null;
+		clone.propagating = false;
+		for (Object value : super.values()) {
+			Versions.adopt(clone, value);
+		}
+		return clone;
+	}
+
+	/**
+	 * The map is serialized in the compact form of a {@link SerializedTree}, which is read back as a {@link MixedMap}.
+	 */
+	private Object writeReplace() {
+		return new SerializedTree(this);
+	}
+
+	/**
+	 * Reads a map that has been serialized as a {@link java.util.LinkedHashMap}, before the {@link SerializedTree}.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		for (Object value : super.values()) {
+			Versions.adopt(this, value);
+		}
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
@@ -0,0 +1,497 @@
+package com.marcdejonge.codec;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * A {@link MixedPath} is a compiled path to a value that is nested in maps and lists, such as <code>a.b[3].c</code>.
+ * The path consists of steps: a key of a map, separated by a dot, or an index of a list, between brackets. Keys that
+ * contain dots or brackets can be quoted, as in <code>a["b.c"]</code>, with backslashes escaping quotes and
+ * backslashes. The empty path refers to the root itself.
+ * </p>
+ * <p>
+ * Getting the value walks directly through the maps and lists, without converting them into {@link MixedMap}s or
+ * {@link MixedList}s, so any {@link Map} and {@link List} can be used. When a step can not be found, the value is
+ * missing and the default is returned. The paths are compiled only once and cached, see {@link #compile(String)}.
+ * Many paths can be read in a single walk through a {@link Group}.
+ * </p>
+ *
+ * <pre>
+ * String name = MixedPath.compile("users[0].name").getString(document, "unknown");
+ * </pre>
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+public final class MixedPath {
+	/**
+	 * The number of paths that are cached, after which new paths are compiled each time.
+	 */
+	private static final int MAX_CACHED = 4096;
+
+	private static final ConcurrentHashMap<String, MixedPath> CACHE = new ConcurrentHashMap<>();
+
+	/**
+	 * @param path
+	 *            The path, e.g. <code>a.b[3].c</code>
+	 * @return The compiled path, which is only parsed on the first call for the same path.
+	 * @throws IllegalArgumentException
+	 *             When the path is not valid
+	 */
+	public static MixedPath compile(String path) {
+		MixedPath compiled = CACHE.get(path);
+		if (compiled == null) {
+			compiled = new MixedPath(path);
+			if (CACHE.size() < MAX_CACHED) {
+				CACHE.putIfAbsent(path, compiled);
+			}
+		}
+		return compiled;
+	}
+
+	/**
+	 * @param paths
+	 *            The paths that are to be read together
+	 * @return A {@link Group} that reads all the paths in a single walk.
+	 * @throws IllegalArgumentException
+	 *             When any of the paths is not valid
+	 */
+	public static Group group(String... paths) {
+		return new Group(paths);
+	}
+
+	private final String path;
+	// The key of each step, or null for the steps that take an element of a list
+	private final String[] keys;
+	// The index of each step that takes an element of a list
+	private final int[] indices;
+
+	private MixedPath(String path) {
+		this.path = path;
+		int steps = 0;
+		String[] keys = new String[4];
+		int[] indices = new int[4];
+
+		int ix = 0, length = path.length();
+		while (ix < length) {
+			if (steps == keys.length) {
+				keys = Arrays.copyOf(keys, steps * 2);
+				indices = Arrays.copyOf(indices, steps * 2);
+			}
+
+			char c = path.charAt(ix);
+			if (c == '[' && ix + 1 < length && path.charAt(ix + 1) == '"') {
+				StringBuilder key = new StringBuilder();
+				for (ix += 2; ix < length && path.charAt(ix) != '"'; ix++) {
+					if (path.charAt(ix) == '\\' && ix + 1 < length) {
+						ix++;
+					}
+					key.append(path.charAt(ix));
+				}
+				if (ix + 1 >= length || path.charAt(ix + 1) != ']') {
+					throw invalid("an unterminated quoted key");
+				}
+				keys[steps++] = key.toString();
+				ix = afterBracket(ix + 2);
+			} else if (c == '[') {
+				int end = path.indexOf(']', ix);
+				if (end < 0) {
+					throw invalid("an unterminated index");
+				}
+				try {
+					indices[steps++] = Integer.parseUnsignedInt(path.substring(ix + 1, end));
+				} catch (NumberFormatException ex) {
+					throw invalid("an invalid index " + path.substring(ix, end + 1));
+				}
+				ix = afterBracket(end + 1);
+			} else {
+				if (c == '.') {
+					if (steps == 0) {
+						throw invalid("a dot at the start");
+					}
+					ix++;
+				}
+				int start = ix;
+				while (ix < length && path.charAt(ix) != '.' && path.charAt(ix) != '[' && path.charAt(ix) != ']') {
+					ix++;
+				}
+				if (ix == start) {
+					throw invalid("an empty key");
+				}
+				keys[steps++] = path.substring(start, ix);
+			}
+		}
+
+		// The keys of shared shapes are interned, so interned keys are found by identity
+		for (int step = 0; step < steps; step++) {
+			keys[step] = keys[step] == null ? null : keys[step].intern();
+		}
+		this.keys = Arrays.copyOf(keys, steps);
+		this.indices = Arrays.copyOf(indices, steps);
+	}
+
+	/**
+	 * @return The position after a closing bracket, where the path should either end or continue with a dot or another
+	 *         bracket.
+	 */
+	private int afterBracket(int ix) {
+		if (ix < path.length() && path.charAt(ix) != '.' && path.charAt(ix) != '[') {
+			throw invalid("a key without a dot after " + path.substring(0, ix));
+		}
+		return ix;
+	}
+
+	private IllegalArgumentException invalid(String problem) {
+		return new IllegalArgumentException("The path [" + path + "] contains " + problem);
+	}
+
+	/**
+	 * @return The value that a single step from the value leads to, or <code>null</code> when it can not be found.
+	 */
+	private static Object step(Object value, String key, int index) {
+		// The classes of this package are checked first, which is faster than checking the interfaces
+		if (key != null) {
+			if (value instanceof MixedMap) {
+				return ((MixedMap) value).get(key);
+			}
+			return value instanceof Map ? ((Map<?, ?>) value).get(key) : null;
+		} else if (value instanceof MixedList) {
+			return ((MixedList) value).getOrNull(index);
+		} else if (value instanceof List) {
+			List<?> list = (List<?>) value;
+			return index < list.size() ? list.get(index) : null;
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * @return The map or list in which the last step of the path is taken, or <code>null</code> when it is missing.
+	 */
+	private Object parent(Object root) {
+		Object value = root;
+		for (int ix = 0, last = keys.length - 1; ix < last && value != null; ix++) {
+			value = step(value, keys[ix], indices[ix]);
+		}
+		return value;
+	}
+
+	/**
+	 * @return The value that the last step of the path leads to from its parent.
+	 */
+	private Object last(Object parent) {
+		int last = keys.length - 1;
+		return last < 0 || parent == null ? parent : step(parent, keys[last], indices[last]);
+	}
+
+	/**
+	 * @return If the last step of the path takes an element of a list.
+	 */
+	private boolean endsWithIndex() {
+		return keys.length > 0 && keys[keys.length - 1] == null;
+	}
+
+	/**
+	 * @param root
+	 *            The map or list from which the path starts
+	 * @return The value at the end of the path, or <code>null</code> when it is missing.
+	 */
+	public Object get(Object root) {
+		return last(parent(root));
+	}
+
+	/**
+	 * @param root
+	 *            The map or list from which the path starts
+	 * @param dflt
+	 *            The default value when nothing can be found
+	 * @return The {@link Object#toString()} of the value at the end of the path, or the default when it is missing.
+	 */
+	public String getString(Object root, String dflt) {
+		Object value = get(root);
+		return value == null ? dflt : value.toString();
+	}
+
+	/**
+	 * @param root
+	 *            The map or list from which the path starts
+	 * @param dflt
+	 *            The default value when nothing can be found
+	 * @return The number at the end of the path like {@link MixedMap#getInt(String, int)}, or the default when it is
+	 *         missing or not a number.
+	 */
+	public int getInt(Object root, int dflt) {
+		Object parent = parent(root);
+		if (parent instanceof MixedList && endsWithIndex()) {
+			// Read directly from the list, which does not box the elements of a list of numbers
+			return ((MixedList) parent).getInt(indices[keys.length - 1], dflt);
+		}
+		return Numbers.toInt(last(parent), dflt);
+	}
+
+	/**
+	 * @param root
+	 *            The map or list from which the path starts
+	 * @param dflt
+	 *            The default value when nothing can be found
+	 * @return The number at the end of the path like {@link MixedMap#getLong(String, long)}, or the default when it
+	 *         is missing or not a number.
+	 */
+	public long getLong(Object root, long dflt) {
+		Object parent = parent(root);
+		if (parent instanceof MixedList && endsWithIndex()) {
+			// Read directly from the list, which does not box the elements of a list of numbers
+			return ((MixedList) parent).getLong(indices[keys.length - 1], dflt);
+		}
+		return Numbers.toLong(last(parent), dflt);
+	}
+
+	/**
+	 * @param root
+	 *            The map or list from which the path starts
+	 * @param dflt
+	 *            The default value when nothing can be found
+	 * @return The number at the end of the path like {@link MixedMap#getDouble(String, double)}, or the default when
+	 *         it is missing or not a number.
+	 */
+	public double getDouble(Object root, double dflt) {
+		Object parent = parent(root);
+		if (parent instanceof MixedList && endsWithIndex()) {
+			// Read directly from the list, which does not box the elements of a list of numbers
+			return ((MixedList) parent).getDouble(indices[keys.length - 1], dflt);
+		}
+		return Numbers.toDouble(last(parent), dflt);
+	}
+
+	/**
+	 * @param root
+	 *            The map or list from which the path starts
+	 * @param dflt
+	 *            The default value when nothing can be found
+	 * @return The boolean at the end of the path like {@link MixedMap#getBoolean(String, boolean)}, or the default
+	 *         when it is missing or not a boolean or number.
+	 */
+	public boolean getBoolean(Object root, boolean dflt) {
+		Object value = get(root);
+		if (value instanceof Boolean) {
+			return ((Boolean) value).booleanValue();
+		} else if (value instanceof Number) {
+			return ((Number) value).intValue() != 0;
+		} else {
+			return dflt;
+		}
+	}
+
+	/**
+	 * @param root
+	 *            The map or list from which the path starts
+	 * @param dflt
+	 *            The default value when nothing can be found
+	 * @return The {@link MixedMap} at the end of the path, copied from any other {@link Map}, or the default when it is
+	 *         missing or not a map.
+	 */
+	public MixedMap getMap(Object root, MixedMap dflt) {
+		Object value = get(root);
+		if (value instanceof MixedMap) {
+			return (MixedMap) value;
+		} else if (value instanceof Map) {
+			return new MixedMap((Map<?, ?>) value);
+		} else {
+			return dflt;
+		}
+	}
+
+	/**
+	 * @param root
+	 *            The map or list from which the path starts
+	 * @param dflt
+	 *            The default value when nothing can be found
+	 * @return The {@link MixedList} at the end of the path, copied from any other {@link Collection}, or the default
+	 *         when it is missing or not a collection.
+	 */
+	public MixedList getList(Object root, MixedList dflt) {
+		Object value = get(root);
+		if (value instanceof MixedList) {
+			return (MixedList) value;
+		} else if (value instanceof Collection) {
+			return new MixedList((Collection<?>) value);
+		} else {
+			return dflt;
+		}
+	}
+
+	@Override
+	public int hashCode() {
+		return path.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof MixedPath && ((MixedPath) obj).path.equals(path);
+	}
+
+	/**
+	 * @return The path as it has been compiled.
+	 */
+	@Override
+	public String toString() {
+		return path;
+	}
+
+	/**
+	 * A {@link Group} reads many paths in a single walk through the maps and lists. The steps that the paths have in
+	 * common are only taken once, so reading <code>a.b.c</code> and <code>a.b.d</code> only looks up <code>a</code> and
+	 * <code>b</code> once. The tree of the steps is flattened into arrays, so the walk is a single loop that keeps the
+	 * values of the steps in one array per call, and skips all the steps below a value that is missing.
+	 *
+	 * @author Marc de Jonge (marcdejonge@gmail.com)
+	 */
+	public static final class Group {
+		/**
+		 * A step in the tree of the paths of the group.
+		 */
+		private static final class Node {
+			private static final Node[] NO_CHILDREN = new Node[0];
+			private static final int[] NO_SLOTS = new int[0];
+
+			final String key;
+			final int index;
+			Node[] children = NO_CHILDREN;
+			// The positions of the results of the paths that end at this step
+			int[] slots = NO_SLOTS;
+
+			Node(String key, int index) {
+				this.key = key;
+				this.index = index;
+			}
+
+			Node child(String key, int index) {
+				for (Node child : children) {
+					if (child.index == index && (key == null ? child.key == null : key.equals(child.key))) {
+						return child;
+					}
+				}
+				Node child = new Node(key, index);
+				children = Arrays.copyOf(children, children.length + 1);
+				children[children.length - 1] = child;
+				return child;
+			}
+		}
+
+		private final MixedPath[] paths;
+		// The steps of the tree of the paths in depth-first order, each taken from the value of its parent step, where
+		// step 0 is the root
+		private final int[] parents;
+		private final String[] keys;
+		private final int[] indices;
+		// The first step after the steps that are reached through each step
+		private final int[] skips;
+		// The step at which each path ends
+		private final int[] ends;
+
+		private Group(String[] paths) {
+			this.paths = new MixedPath[paths.length];
+			Node root = new Node(null, -1);
+			for (int slot = 0; slot < paths.length; slot++) {
+				MixedPath path = compile(paths[slot]);
+				this.paths[slot] = path;
+				Node node = root;
+				for (int ix = 0; ix < path.keys.length; ix++) {
+					node = node.child(path.keys[ix], path.keys[ix] == null ? path.indices[ix] : -1);
+				}
+				node.slots = Arrays.copyOf(node.slots, node.slots.length + 1);
+				node.slots[node.slots.length - 1] = slot;
+			}
+
+			int count = count(root);
+			parents = new int[count];
+			keys = new String[count];
+			indices = new int[count];
+			skips = new int[count];
+			ends = new int[paths.length];
+			flatten(root, -1, 0);
+		}
+
+		private static int count(Node node) {
+			int count = 1;
+			for (Node child : node.children) {
+				count += count(child);
+			}
+			return count;
+		}
+
+		/**
+		 * @return The first step after the flattened node and its children.
+		 */
+		private int flatten(Node node, int parent, int step) {
+			parents[step] = parent;
+			keys[step] = node.key;
+			indices[step] = node.index;
+			for (int slot : node.slots) {
+				ends[slot] = step;
+			}
+			int next = step + 1;
+			for (Node child : node.children) {
+				next = flatten(child, step, next);
+			}
+			skips[step] = next;
+			return next;
+		}
+
+		/**
+		 * @return The number of paths in this group.
+		 */
+		public int size() {
+			return paths.length;
+		}
+
+		/**
+		 * @param index
+		 *            The index of the path in this group
+		 * @return The path at the index.
+		 */
+		public MixedPath get(int index) {
+			return paths[index];
+		}
+
+		/**
+		 * @param root
+		 *            The map or list from which the paths start
+		 * @return The values at the end of the paths, in the order of the paths, with <code>null</code> for the
+		 *         values that are missing.
+		 */
+		public Object[] extract(Object root) {
+			Object[] results = new Object[paths.length];
+			extract(root, results);
+			return results;
+		}
+
+		/**
+		 * Reads the values at the end of the paths into an existing array, which can be reused for many roots.
+		 *
+		 * @param root
+		 *            The map or list from which the paths start
+		 * @param results
+		 *            The array that receives the values, in the order of the paths, with <code>null</code> for the
+		 *            values that are missing
+		 */
+		public void extract(Object root, Object[] results) {
+			Object[] values = new Object[parents.length];
+			values[0] = root;
+			for (int step = 1; step < parents.length;) {
+				Object value = step(values[parents[step]], keys[step], indices[step]);
+				if (value == null) {
+					step = skips[step];
+				} else {
+					values[step++] = value;
+				}
+			}
+			for (int slot = 0; slot < ends.length; slot++) {
+				results[slot] = values[ends[slot]];
+			}
+		}
+	}
+}
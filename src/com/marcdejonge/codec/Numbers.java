@@ -0,0 +1,214 @@
+package com.marcdejonge.codec;
+
+import java.math.BigDecimal;
+
+/**
+ * <p>
+ * The conversions behind the primitive getters of the {@link MixedMap} and {@link MixedList}. The values are read
+ * from {@link Number}s without boxing, and strings are parsed directly, without creating any objects for integers of
+ * up to 18 digits and decimals of up to 15 significant digits. Only other strings, such as very long numbers, are
+ * parsed through a {@link BigDecimal}, which accepts the same syntax.
+ * </p>
+ * <p>
+ * The conversions return a given default when the value is not a number, instead of throwing an exception. Since the
+ * default can also be a valid result, {@link #isNumber(Object)} tells them apart, which is only needed when the result
+ * is equal to the default.
+ * </p>
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+final class Numbers {
+	// The powers of ten that can be represented exactly as a double
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+	                                                1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	// Any integer with this number of digits fits in a long
+	private static final int MAX_LONG_DIGITS = 18;
+	// Any integer with this number of digits can be represented exactly as a double
+	private static final int MAX_DOUBLE_DIGITS = 15;
+
+	private Numbers() {
+	}
+
+	/**
+	 * @return If the value is a {@link Number}, or a string that can be parsed as a {@link BigDecimal}.
+	 */
+	static boolean isNumber(Object value) {
+		return value instanceof Number || value instanceof CharSequence && isNumber((CharSequence) value);
+	}
+
+	/**
+	 * @return If the string has the syntax of a {@link BigDecimal}: an optional sign, digits with an optional decimal
+	 *         point and an optional exponent.
+	 */
+	private static boolean isNumber(CharSequence string) {
+		int length = string.length(), ix = 0;
+		if (ix < length && (string.charAt(ix) == '-' || string.charAt(ix) == '+')) {
+			ix++;
+		}
+		int digits = 0;
+		boolean point = false;
+		for (; ix < length; ix++) {
+			char c = string.charAt(ix);
+			if (c >= '0' && c <= '9') {
+				digits++;
+			} else if (c == '.' && !point) {
+				point = true;
+			} else {
+				break;
+			}
+		}
+		if (digits == 0) {
+			return false;
+		}
+
+		if (ix < length && (string.charAt(ix) == 'e' || string.charAt(ix) == 'E')) {
+			ix++;
+			if (ix < length && (string.charAt(ix) == '-' || string.charAt(ix) == '+')) {
+				ix++;
+			}
+			int start = ix;
+			while (ix < length && string.charAt(ix) >= '0' && string.charAt(ix) <= '9') {
+				ix++;
+			}
+			// The exponent of a BigDecimal is an int
+			if (ix == start || ix - start > 9) {
+				return false;
+			}
+		}
+		return ix == length;
+	}
+
+	static int toInt(Object value, int dflt) {
+		if (value instanceof Number) {
+			return ((Number) value).intValue();
+		} else if (value instanceof CharSequence) {
+			// The lower bits, like BigDecimal.intValue()
+			return (int) parseLong((CharSequence) value, dflt);
+		} else {
+			return dflt;
+		}
+	}
+
+	static long toLong(Object value, long dflt) {
+		if (value instanceof Number) {
+			return ((Number) value).longValue();
+		} else if (value instanceof CharSequence) {
+			return parseLong((CharSequence) value, dflt);
+		} else {
+			return dflt;
+		}
+	}
+
+	static float toFloat(Object value, float dflt) {
+		if (value instanceof Number) {
+			return ((Number) value).floatValue();
+		} else if (value instanceof CharSequence) {
+			return (float) parseDouble((CharSequence) value, dflt);
+		} else {
+			return dflt;
+		}
+	}
+
+	static double toDouble(Object value, double dflt) {
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		} else if (value instanceof CharSequence) {
+			return parseDouble((CharSequence) value, dflt);
+		} else {
+			return dflt;
+		}
+	}
+
+	/**
+	 * @return The integer value of the string, with any fractional part discarded, or the default value when it is
+	 *         not a number.
+	 */
+	static long parseLong(CharSequence string, long dflt) {
+		int length = string.length(), ix = 0;
+		boolean negative = false;
+		if (length > 0 && (string.charAt(0) == '-' || string.charAt(0) == '+')) {
+			negative = string.charAt(0) == '-';
+			ix++;
+		}
+
+		if (ix < length && length - ix <= MAX_LONG_DIGITS) {
+			long result = 0;
+			for (; ix < length; ix++) {
+				char c = string.charAt(ix);
+				if (c < '0' || c > '9') {
+					break;
+				}
+				result = result * 10 + (c - '0');
+			}
+			if (ix == length) {
+				return negative ? -result : result;
+			}
+		}
+
+		// Decimals, exponents and large numbers
+		return isNumber(string) ? new BigDecimal(string.toString()).longValue() : dflt;
+	}
+
+	/**
+	 * @return The closest double to the value of the string, or the default value when it is not a number.
+	 */
+	static double parseDouble(CharSequence string, double dflt) {
+		int length = string.length(), ix = 0;
+		boolean negative = false;
+		if (length > 0 && (string.charAt(0) == '-' || string.charAt(0) == '+')) {
+			negative = string.charAt(0) == '-';
+			ix++;
+		}
+
+		long mantissa = 0;
+		int digits = 0, exponent = 0;
+		boolean point = false, seen = false;
+		for (; ix < length; ix++) {
+			char c = string.charAt(ix);
+			if (c >= '0' && c <= '9') {
+				seen = true;
+				if (mantissa != 0 || c != '0') {
+					digits++;
+					mantissa = mantissa * 10 + (c - '0');
+				}
+				if (point) {
+					exponent--;
+				}
+			} else if (c == '.' && !point) {
+				point = true;
+			} else {
+				break;
+			}
+		}
+		if (ix < length && (string.charAt(ix) == 'e' || string.charAt(ix) == 'E') && ix + 1 < length) {
+			int start = ++ix, value = 0;
+			boolean negativeExponent = string.charAt(ix) == '-';
+			if (negativeExponent || string.charAt(ix) == '+') {
+				start = ++ix;
+			}
+			for (; ix < length && ix - start < 3; ix++) {
+				char c = string.charAt(ix);
+				if (c < '0' || c > '9') {
+					break;
+				}
+				value = value * 10 + (c - '0');
+			}
+			exponent += negativeExponent ? -value : value;
+			seen &= ix > start;
+		}
+
+		// Both the digits and the power of ten are exact, so a single multiplication or division rounds correctly
+		if (seen && ix == length && digits <= MAX_DOUBLE_DIGITS) {
+			if (mantissa == 0) {
+				// A BigDecimal does not have a negative zero
+				return 0;
+			} else if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+				return negative ? -mantissa * POWERS_OF_TEN[exponent] : mantissa * POWERS_OF_TEN[exponent];
+			} else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+				return negative ? -mantissa / POWERS_OF_TEN[-exponent] : mantissa / POWERS_OF_TEN[-exponent];
+			}
+		}
+		return isNumber(string) ? new BigDecimal(string.toString()).doubleValue() : dflt;
+	}
+}
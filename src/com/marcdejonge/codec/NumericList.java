@@ -0,0 +1,710 @@
+package com.marcdejonge.codec;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+/**
+ * <p>
+ * A {@link MixedList} that stores its elements in a primitive array, as long as all of them are of exactly the same
+ * type: {@link Integer}, {@link Long} or {@link Double}. This takes about a fifth of the memory of the boxed values,
+ * and the primitive getters and streams do not need any boxing. The type is decided by the first element that is
+ * added.
+ * </p>
+ * <p>
+ * As soon as a value of another type is stored (including <code>null</code>), the list is promoted to the normal
+ * storage of the {@link MixedList} and behaves exactly like it from then on. Since the elements keep their exact
+ * types, the list is always equal to a {@link MixedList} with the same elements.
+ * </p>
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+class NumericList extends MixedList {
+	private static final long serialVersionUID = 1L;
+
+	private static final byte UNDECIDED = 0, INT = 1, LONG = 2, DOUBLE = 3, GENERIC = 4;
+
+	private byte type = UNDECIDED;
+	private int[] ints;
+	private long[] longs;
+	private double[] doubles;
+	// The number of elements in the primitive array, always 0 when promoted
+	private int count;
+	// The size of the normal storage when the list was last recycled, which is about the capacity that it keeps
+	private transient int genericSlots;
+
+	private transient AbstractList<Object> view;
+	// Set when the list has been poisoned by a MixedArena in debug mode
+	transient boolean released;
+
+	/**
+	 * Stores the value in the primitive array at the given index, growing the array when needed.
+	 *
+	 * @return false when the value does not match the type of this list
+	 */
+	private boolean store(int index, Object value, boolean insert) {
+		if (type == UNDECIDED) {
+			if (value instanceof Integer) {
+				type = INT;
+				// A recycled list keeps its array
+				if (ints == null) {
+					ints = new int[10];
+				}
+			} else if (value instanceof Long) {
+				type = LONG;
+				if (longs == null) {
+					longs = new long[10];
+				}
+			} else if (value instanceof Double) {
+				type = DOUBLE;
+				if (doubles == null) {
+					doubles = new double[10];
+				}
+			} else {
+				return false;
+			}
+		}
+
+		switch (type) {
+		case INT:
+			if (!(value instanceof Integer)) {
+				return false;
+			}
+			if (insert) {
+				ints = makeRoom(ints, index, ints.length);
+			}
+			ints[index] = (Integer) value;
+			break;
+		case LONG:
+			if (!(value instanceof Long)) {
+				return false;
+			}
+			if (insert) {
+				longs = makeRoom(longs, index, longs.length);
+			}
+			longs[index] = (Long) value;
+			break;
+		case DOUBLE:
+			if (!(value instanceof Double)) {
+				return false;
+			}
+			if (insert) {
+				doubles = makeRoom(doubles, index, doubles.length);
+			}
+			doubles[index] = (Double) value;
+			break;
+		default:
+			return false;
+		}
+
+		if (insert) {
+			count++;
+		}
+		return true;
+	}
+
+	/**
+	 * Makes room in the array for a single element at the index, moving the elements after it.
+	 */
+	private <T> T makeRoom(T array, int index, int capacity) {
+		if (count == capacity) {
+			array = copyOf(array, Math.max(10, capacity + (capacity >> 1)));
+		}
+		System.arraycopy(array, index, array, index + 1, count - index);
+		return array;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T copyOf(T array, int length) {
+		if (array instanceof int[]) {
+			return (T) Arrays.copyOf((int[]) array, length);
+		} else if (array instanceof long[]) {
+			return (T) Arrays.copyOf((long[]) array, length);
+		} else {
+			return (T) Arrays.copyOf((double[]) array, length);
+		}
+	}
+
+	private Object primitiveArray() {
+		return type == INT ? ints : type == LONG ? longs : doubles;
+	}
+
+	private boolean isPrimitive() {
+		return type == INT || type == LONG || type == DOUBLE;
+	}
+
+	private Object boxed(int index) {
+		switch (type) {
+		case INT:
+			return ints[index];
+		case LONG:
+			return longs[index];
+		default:
+			return doubles[index];
+		}
+	}
+
+	/**
+	 * Moves all the elements into the normal storage of the {@link MixedList}.
+	 */
+	private void promote() {
+		Object[] elements = toArray();
+		type = GENERIC;
+		ints = null;
+		longs = null;
+		doubles = null;
+		count = 0;
+		super.addAll(0, Arrays.asList(elements));
+	}
+
+	/**
+	 * Empties the list to be handed out again by a {@link MixedArena}. The primitive arrays are kept, unless they are
+	 * larger than the given capacity, so the list can store its elements in any of them again.
+	 *
+	 * @return The number of slots in the arrays that are kept
+	 */
+	int recycle(int maxCapacity) {
+		if (type == GENERIC) {
+			boolean large = super.size() > maxCapacity;
+			genericSlots = large ? 0 : Math.max(genericSlots, super.size());
+			// Releases the elements, like any other clear
+			super.clear();
+			if (large) {
+				super.trimToSize();
+			}
+		}
+		type = UNDECIDED;
+		count = 0;
+		ints = ints != null && ints.length <= maxCapacity ? ints : null;
+		longs = longs != null && longs.length <= maxCapacity ? longs : null;
+		doubles = doubles != null && doubles.length <= maxCapacity ? doubles : null;
+		modCount++;
+		// The version keeps increasing, so nothing that is cached for the old content matches the new content
+		parents = null;
+		modified();
+		return genericSlots
+		       + (ints == null ? 0 : ints.length)
+		       + (longs == null ? 0 : longs.length)
+		       + (doubles == null ? 0 : doubles.length);
+	}
+
+	private void checkReleased() {
+		if (released) {
+			throw new IllegalStateException("The list has been released by its arena");
+		}
+	}
+
+	private void checkIndex(int index, int limit) {
+		if (index < 0 || index >= limit) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+		}
+	}
+
+	@Override
+	public Class<?> primitiveType() {
+		switch (type) {
+		case INT:
+			return int.class;
+		case LONG:
+			return long.class;
+		case DOUBLE:
+			return double.class;
+		default:
+			return null;
+		}
+	}
+
+	@Override
+	public int size() {
+		checkReleased();
+		return type == GENERIC ? super.size() : count;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	@Override
+	public Object get(int index) {
+		checkReleased();
+		if (type == GENERIC) {
+			return super.get(index);
+		}
+		checkIndex(index, count);
+		return boxed(index);
+	}
+
+	@Override
+	public Object set(int index, Object value) {
+		checkReleased();
+		if (type != GENERIC) {
+			checkIndex(index, count);
+			Object oldValue = boxed(index);
+			if (store(index, value, false)) {
+				modified();
+				return oldValue;
+			}
+			promote();
+		}
+		return super.set(index, value);
+	}
+
+	@Override
+	public boolean add(Object value) {
+		add(size(), value);
+		return true;
+	}
+
+	@Override
+	public void add(int index, Object value) {
+		checkReleased();
+		if (type != GENERIC) {
+			checkIndex(index, count + 1);
+			if (store(index, value, true)) {
+				modCount++;
+				modified();
+				return;
+			}
+			promote();
+		}
+		super.add(index, value);
+	}
+
+	@Override
+	public boolean addAll(int index, Collection<? extends Object> collection) {
+		if (type != GENERIC) {
+			checkIndex(index, count + 1);
+			Object[] values = collection.toArray();
+			for (int ix = 0; ix < values.length; ix++) {
+				if (type == GENERIC) {
+					super.addAll(index + ix, Arrays.asList(values).subList(ix, values.length));
+					return true;
+				}
+				add(index + ix, values[ix]);
+			}
+			return values.length > 0;
+		}
+		return super.addAll(index, collection);
+	}
+
+	@Override
+	public Object remove(int index) {
+		checkReleased();
+		if (type == GENERIC) {
+			return super.remove(index);
+		}
+		checkIndex(index, count);
+		Object oldValue = boxed(index);
+		removeRange(index, index + 1);
+		return oldValue;
+	}
+
+	@Override
+	protected void removeRange(int fromIndex, int toIndex) {
+		if (type == GENERIC) {
+			super.removeRange(fromIndex, toIndex);
+		} else if (fromIndex < toIndex) {
+			Object array = primitiveArray();
+			System.arraycopy(array, toIndex, array, fromIndex, count - toIndex);
+			count -= toIndex - fromIndex;
+			modCount++;
+			modified();
+		}
+	}
+
+	@Override
+	public boolean removeIf(Predicate<? super Object> filter) {
+		if (type == GENERIC) {
+			return super.removeIf(filter);
+		}
+
+		Objects.requireNonNull(filter);
+		Object array = primitiveArray();
+		int kept = 0;
+		for (int ix = 0; ix < count; ix++) {
+			if (!filter.test(boxed(ix))) {
+				System.arraycopy(array, ix, array, kept++, 1);
+			}
+		}
+		if (kept == count) {
+			return false;
+		}
+		count = kept;
+		modCount++;
+		modified();
+		return true;
+	}
+
+	@Override
+	public void sort(Comparator<? super Object> comparator) {
+		if (type == GENERIC) {
+			super.sort(comparator);
+			return;
+		}
+
+		if (comparator == null) {
+			// The natural order of the primitives is the same as that of their boxed types
+			if (type == INT) {
+				Arrays.sort(ints, 0, count);
+			} else if (type == LONG) {
+				Arrays.sort(longs, 0, count);
+			} else if (type == DOUBLE) {
+				Arrays.sort(doubles, 0, count);
+			}
+		} else {
+			Object[] values = toArray();
+			Arrays.sort(values, comparator);
+			for (int ix = 0; ix < values.length; ix++) {
+				store(ix, values[ix], false);
+			}
+		}
+		modCount++;
+		modified();
+	}
+
+	@Override
+	public void clear() {
+		if (type == GENERIC) {
+			super.clear();
+		} else if (count > 0) {
+			count = 0;
+			modCount++;
+			modified();
+		}
+	}
+
+	@Override
+	public int indexOf(Object value) {
+		if (type == GENERIC) {
+			return super.indexOf(value);
+		}
+		for (int ix = 0; ix < count; ix++) {
+			if (boxed(ix).equals(value)) {
+				return ix;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int lastIndexOf(Object value) {
+		if (type == GENERIC) {
+			return super.lastIndexOf(value);
+		}
+		for (int ix = count - 1; ix >= 0; ix--) {
+			if (boxed(ix).equals(value)) {
+				return ix;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public boolean contains(Object value) {
+		return indexOf(value) >= 0;
+	}
+
+	@Override
+	public Object[] toArray() {
+		if (type == GENERIC) {
+			return super.toArray();
+		}
+		Object[] result = new Object[count];
+		for (int ix = 0; ix < count; ix++) {
+			result[ix] = boxed(ix);
+		}
+		return result;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> T[] toArray(T[] array) {
+		if (type == GENERIC) {
+			return super.toArray(array);
+		}
+		if (array.length < count) {
+			array = Arrays.copyOf(array, count);
+		}
+		for (int ix = 0; ix < count; ix++) {
+			array[ix] = (T) boxed(ix);
+		}
+		if (array.length > count) {
+			array[count] = null;
+		}
+		return array;
+	}
+
+	/**
+	 * @return A view of the primitive storage, of which the iterators are used.
+	 */
+	private List<Object> view() {
+		if (view == null) {
+			view = new AbstractList<Object>() {
+				@Override
+				public Object get(int index) {
+					return NumericList.this.get(index);
+				}
+
+				@Override
+				public Object set(int index, Object value) {
+					return NumericList.this.set(index, value);
+				}
+
+				@Override
+				public void add(int index, Object value) {
+					NumericList.this.add(index, value);
+				}
+
+				@Override
+				public Object remove(int index) {
+					return NumericList.this.remove(index);
+				}
+
+				@Override
+				public int size() {
+					return NumericList.this.size();
+				}
+			};
+		}
+		return view;
+	}
+
+	@Override
+	public Iterator<Object> iterator() {
+		checkReleased();
+		return type == GENERIC ? super.iterator() : view().iterator();
+	}
+
+	@Override
+	public ListIterator<Object> listIterator() {
+		return listIterator(0);
+	}
+
+	@Override
+	public ListIterator<Object> listIterator(int index) {
+		checkReleased();
+		return type == GENERIC ? super.listIterator(index) : view().listIterator(index);
+	}
+
+	@Override
+	public Spliterator<Object> spliterator() {
+		checkReleased();
+		if (type == GENERIC) {
+			return super.spliterator();
+		}
+		return Spliterators.spliterator(toArray(), Spliterator.ORDERED);
+	}
+
+	@Override
+	public void forEach(Consumer<? super Object> action) {
+		checkReleased();
+		if (type == GENERIC) {
+			super.forEach(action);
+		} else {
+			for (int ix = 0; ix < count; ix++) {
+				action.accept(boxed(ix));
+			}
+		}
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (type == GENERIC) {
+			return super.equals(obj);
+		} else if (obj == this) {
+			return true;
+		} else if (!(obj instanceof List) || ((List<?>) obj).size() != count) {
+			return false;
+		}
+
+		if (obj instanceof NumericList && ((NumericList) obj).type == type) {
+			NumericList other = (NumericList) obj;
+			for (int ix = 0; ix < count; ix++) {
+				if (type == INT ? ints[ix] != other.ints[ix]
+				                : type == LONG ? longs[ix] != other.longs[ix]
+				                               : Double.compare(doubles[ix], other.doubles[ix]) != 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		Iterator<?> it = ((List<?>) obj).iterator();
+		for (int ix = 0; ix < count; ix++) {
+			if (!boxed(ix).equals(it.next())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		if (type == GENERIC) {
+			return super.hashCode();
+		}
+		int hashCode = 1;
+		for (int ix = 0; ix < count; ix++) {
+			int hash = type == INT ? Integer.hashCode(ints[ix])
+			                       : type == LONG ? Long.hashCode(longs[ix]) : Double.hashCode(doubles[ix]);
+			hashCode = 31 * hashCode + hash;
+		}
+		return hashCode;
+	}
+
+	@Override
+	public void trimToSize() {
+		if (type == GENERIC) {
+			super.trimToSize();
+		} else if (isPrimitive()) {
+			Object array = primitiveArray();
+			Object trimmed = copyOf(array, count);
+			if (type == INT) {
+				ints = (int[]) trimmed;
+			} else if (type == LONG) {
+				longs = (long[]) trimmed;
+			} else {
+				doubles = (double[]) trimmed;
+			}
+		}
+	}
+
+	@Override
+	public NumericList clone() {
+		checkReleased();
+		NumericList clone = (NumericList) super.clone();
+		clone.view = null;
+		// The arrays that a recycled list keeps are not shared either
+		clone.ints = ints == null ? null : ints.clone();
+		clone.longs = longs == null ? null : longs.clone();
+		clone.doubles = doubles == null ? null : doubles.clone();
+		return clone;
+	}
+
+	/**
+	 * The primitive storage is not known to the serialization of the {@link java.util.ArrayList}, so the list is
+	 * serialized in the form of a {@link SerializedTree}, which is read back as a normal {@link MixedList}.
+	 */
+	private Object writeReplace() {
+		return new SerializedTree(this);
+	}
+
+	@Override
+	public int getInt(int ix) throws UnexpectedTypeException {
+		if (ix >= 0 && ix < count) {
+			return type == INT ? ints[ix] : type == LONG ? (int) longs[ix] : (int) doubles[ix];
+		}
+		return super.getInt(ix);
+	}
+
+	@Override
+	public int getInt(int ix, int dflt) {
+		if (ix >= 0 && ix < count) {
+			return type == INT ? ints[ix] : type == LONG ? (int) longs[ix] : (int) doubles[ix];
+		}
+		return super.getInt(ix, dflt);
+	}
+
+	@Override
+	public long getLong(int ix) throws UnexpectedTypeException {
+		if (ix >= 0 && ix < count) {
+			return type == INT ? ints[ix] : type == LONG ? longs[ix] : (long) doubles[ix];
+		}
+		return super.getLong(ix);
+	}
+
+	@Override
+	public long getLong(int ix, long dflt) {
+		if (ix >= 0 && ix < count) {
+			return type == INT ? ints[ix] : type == LONG ? longs[ix] : (long) doubles[ix];
+		}
+		return super.getLong(ix, dflt);
+	}
+
+	@Override
+	public double getFloat(int ix) throws UnexpectedTypeException {
+		if (ix >= 0 && ix < count) {
+			return type == INT ? (float) ints[ix] : type == LONG ? (float) longs[ix] : (float) doubles[ix];
+		}
+		return super.getFloat(ix);
+	}
+
+	@Override
+	public double getFloat(int ix, double dflt) {
+		if (ix >= 0 && ix < count) {
+			return type == INT ? (float) ints[ix] : type == LONG ? (float) longs[ix] : (float) doubles[ix];
+		}
+		return super.getFloat(ix, dflt);
+	}
+
+	@Override
+	public double getDouble(int ix) throws UnexpectedTypeException {
+		if (ix >= 0 && ix < count) {
+			return type == INT ? ints[ix] : type == LONG ? longs[ix] : doubles[ix];
+		}
+		return super.getDouble(ix);
+	}
+
+	@Override
+	public double getDouble(int ix, double dflt) {
+		if (ix >= 0 && ix < count) {
+			return type == INT ? ints[ix] : type == LONG ? longs[ix] : doubles[ix];
+		}
+		return super.getDouble(ix, dflt);
+	}
+
+	@Override
+	public IntStream intStream() {
+		switch (type) {
+		case INT:
+			return Arrays.stream(ints, 0, count);
+		case LONG:
+			return Arrays.stream(longs, 0, count).mapToInt(value -> (int) value);
+		case DOUBLE:
+			return Arrays.stream(doubles, 0, count).mapToInt(value -> (int) value);
+		default:
+			return super.intStream();
+		}
+	}
+
+	@Override
+	public LongStream longStream() {
+		switch (type) {
+		case INT:
+			return Arrays.stream(ints, 0, count).asLongStream();
+		case LONG:
+			return Arrays.stream(longs, 0, count);
+		case DOUBLE:
+			return Arrays.stream(doubles, 0, count).mapToLong(value -> (long) value);
+		default:
+			return super.longStream();
+		}
+	}
+
+	@Override
+	public DoubleStream doubleStream() {
+		switch (type) {
+		case INT:
+			return Arrays.stream(ints, 0, count).asDoubleStream();
+		case LONG:
+			return Arrays.stream(longs, 0, count).asDoubleStream();
+		case DOUBLE:
+			return Arrays.stream(doubles, 0, count);
+		default:
+			return super.doubleStream();
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package com.marcdejonge.codec;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * An immutable vector of objects, stored in a tree of arrays of 32 elements with the last partial array (the tail)
+ * kept separately. Reading or replacing an element only touches one array per level, and appending mostly only copies
+ * the tail. A modified vector shares all the arrays that did not change with the original, so every update takes
+ * O(log<sub>32</sub> n) time and memory.
+ * </p>
+ * <p>
+ * All the fields are final and the arrays are never modified after they have been published, so a vector can be
+ * shared between threads without any synchronization.
+ * </p>
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+final class PersistentVector {
+	private static final int BITS = 5;
+	private static final int WIDTH = 1 << BITS;
+	private static final int MASK = WIDTH - 1;
+
+	static final PersistentVector EMPTY = new PersistentVector(0, BITS, new Object[WIDTH], new Object[0]);
+
+	private final int count;
+	// The number of bits by which an index is shifted to find its child in the root
+	private final int shift;
+	private final Object[] root;
+	private final Object[] tail;
+
+	private PersistentVector(int count, int shift, Object[] root, Object[] tail) {
+		this.count = count;
+		this.shift = shift;
+		this.root = root;
+		this.tail = tail;
+	}
+
+	/**
+	 * Creates a vector of the first <code>length</code> values, building all the arrays directly.
+	 */
+	static PersistentVector of(Object[] values, int length) {
+		if (length == 0) {
+			return EMPTY;
+		}
+
+		int tailOffset = ((length - 1) >>> BITS) << BITS;
+		int leaves = tailOffset >>> BITS;
+		int shift = BITS;
+		while (leaves > 1 << shift) {
+			shift += BITS;
+		}
+		return new PersistentVector(length,
+		                            shift,
+		                            build(values, shift, 0, leaves),
+		                            Arrays.copyOfRange(values, tailOffset, length));
+	}
+
+	private static Object[] build(Object[] values, int level, int firstLeaf, int leaves) {
+		Object[] node = new Object[WIDTH];
+		int span = 1 << (level - BITS);
+		for (int ix = 0; ix < WIDTH && firstLeaf + ix * span < leaves; ix++) {
+			int leaf = firstLeaf + ix * span;
+			if (level == BITS) {
+				node[ix] = Arrays.copyOfRange(values, leaf << BITS, (leaf + 1) << BITS);
+			} else {
+				node[ix] = build(values, level - BITS, leaf, leaves);
+			}
+		}
+		return node;
+	}
+
+	int size() {
+		return count;
+	}
+
+	private int tailOffset() {
+		return count < WIDTH ? 0 : ((count - 1) >>> BITS) << BITS;
+	}
+
+	/**
+	 * @return The array that contains the element at the index.
+	 */
+	Object[] arrayFor(int index) {
+		if (index >= tailOffset()) {
+			return tail;
+		}
+		Object[] node = root;
+		for (int level = shift; level > 0; level -= BITS) {
+			node = (Object[]) node[(index >>> level) & MASK];
+		}
+		return node;
+	}
+
+	/**
+	 * @return The element at the index, which should be within the bounds of this vector.
+	 */
+	Object get(int index) {
+		return arrayFor(index)[index & MASK];
+	}
+
+	/**
+	 * @return A vector in which the element at the index has been replaced.
+	 */
+	PersistentVector set(int index, Object value) {
+		if (index >= tailOffset()) {
+			Object[] newTail = tail.clone();
+			newTail[index & MASK] = value;
+			return new PersistentVector(count, shift, root, newTail);
+		}
+		return new PersistentVector(count, shift, set(shift, root, index, value), tail);
+	}
+
+	private static Object[] set(int level, Object[] node, int index, Object value) {
+		Object[] copy = node.clone();
+		if (level == 0) {
+			copy[index & MASK] = value;
+		} else {
+			int child = (index >>> level) & MASK;
+			copy[child] = set(level - BITS, (Object[]) node[child], index, value);
+		}
+		return copy;
+	}
+
+	/**
+	 * @return A vector with the value added at the end.
+	 */
+	PersistentVector append(Object value) {
+		if (count - tailOffset() < WIDTH) {
+			Object[] newTail = Arrays.copyOf(tail, tail.length + 1);
+			newTail[tail.length] = value;
+			return new PersistentVector(count + 1, shift, root, newTail);
+		}
+
+		// The tail is full, so it moves into the tree
+		Object[] newRoot;
+		int newShift = shift;
+		if ((count >>> BITS) > (1 << shift)) {
+			newRoot = new Object[WIDTH];
+			newRoot[0] = root;
+			newRoot[1] = newPath(shift, tail);
+			newShift += BITS;
+		} else {
+			newRoot = pushTail(shift, root, tail);
+		}
+		return new PersistentVector(count + 1, newShift, newRoot, new Object[] { value });
+	}
+
+	private Object[] pushTail(int level, Object[] parent, Object[] tailNode) {
+		int child = ((count - 1) >>> level) & MASK;
+		Object[] copy = parent.clone();
+		if (level == BITS) {
+			copy[child] = tailNode;
+		} else {
+			Object[] node = (Object[]) parent[child];
+			copy[child] = node != null ? pushTail(level - BITS, node, tailNode) : newPath(level - BITS, tailNode);
+		}
+		return copy;
+	}
+
+	private static Object[] newPath(int level, Object[] node) {
+		if (level == 0) {
+			return node;
+		}
+		Object[] path = new Object[WIDTH];
+		path[0] = newPath(level - BITS, node);
+		return path;
+	}
+
+	/**
+	 * Copies the first <code>length</code> elements into the array.
+	 */
+	void copyTo(Object[] target, int length) {
+		for (int ix = 0; ix < length; ix += WIDTH) {
+			System.arraycopy(arrayFor(ix), 0, target, ix, Math.min(WIDTH, length - ix));
+		}
+	}
+}
@@ -0,0 +1,399 @@
+package com.marcdejonge.codec;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * The serialized form of a {@link MixedMap} or {@link MixedList}, together with all the maps and lists in it. Instead
+ * of the generic form of the {@link java.util.LinkedHashMap} and {@link java.util.ArrayList}, with a class descriptor
+ * and boxed value for each element, the tree is written in a compact binary format:
+ * </p>
+ * <ul>
+ * <li>Each value starts with a tag byte. Integers and longs are written as variable length integers, so small numbers
+ * take a single byte.</li>
+ * <li>The keys and short strings are put in a table the first time they are written, and written as their index in the
+ * table after that, so the keys that all the maps share are only written once.</li>
+ * <li>A map or list that is written a second time is written as a reference to the first time, which keeps shared
+ * subtrees shared and makes cycles possible.</li>
+ * <li>Any other value is written through the normal serialization of the stream.</li>
+ * </ul>
+ * <p>
+ * The tree is written and read without recursion, so deep trees do not overflow the stack.
+ * </p>
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+final class SerializedTree implements Externalizable {
+	private static final long serialVersionUID = 1L;
+
+	// The version of the format, written first
+	private static final int FORMAT = 1;
+
+	private static final int NULL = 0;
+	private static final int TRUE = 1;
+	private static final int FALSE = 2;
+	private static final int INT = 3;
+	private static final int LONG = 4;
+	private static final int DOUBLE = 5;
+	private static final int STRING = 6;
+	private static final int MAP = 7;
+	private static final int LIST = 8;
+	private static final int REFERENCE = 9;
+	private static final int OBJECT = 10;
+
+	// Longer strings are not put in the table, since they are rarely repeated
+	private static final int MAX_TABLE_LENGTH = 64;
+
+	private Object root;
+
+	/**
+	 * Creates an empty form for reading, as required by {@link Externalizable}.
+	 */
+	public SerializedTree() {
+	}
+
+	SerializedTree(Object root) {
+		this.root = root;
+	}
+
+	private Object readResolve() {
+		return root;
+	}
+
+	/**
+	 * @return If the map or list is written in the compact form. Other classes are written through their own
+	 *         serialization, so they are read as the same class.
+	 */
+	private static boolean isCompact(Object value) {
+		Class<?> type = value.getClass();
+		return type == MixedMap.class
+		       || type == CompactMap.class
+		       || type == MixedList.class
+		       || type == NumericList.class;
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		new Writer(out).write(root);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		root = new Reader(in).read();
+	}
+
+	private static final class Writer {
+		private final ObjectOutput out;
+		private final byte[] buffer = new byte[4096];
+		private int pos;
+
+		private final Map<String, Integer> strings = new HashMap<>();
+		private final Map<Object, Integer> containers = new IdentityHashMap<>();
+
+		// The iterators of the maps and lists that are being written
+		private Iterator<?>[] iterators = new Iterator<?>[16];
+		private boolean[] maps = new boolean[16];
+		private int depth;
+
+		Writer(ObjectOutput out) {
+			this.out = out;
+		}
+
+		void write(Object root) throws IOException {
+			writeByte(FORMAT);
+			writeValue(root);
+			while (depth > 0) {
+				Iterator<?> it = iterators[depth - 1];
+				if (!it.hasNext()) {
+					iterators[--depth] = null;
+				} else if (maps[depth - 1]) {
+					Map.Entry<?, ?> entry = (Map.Entry<?, ?>) it.next();
+					writeString(String.valueOf(entry.getKey()));
+					writeValue(entry.getValue());
+				} else {
+					writeValue(it.next());
+				}
+			}
+			flush();
+		}
+
+		/**
+		 * Writes a single value, or the start of a map or list, of which the elements are written by the loop.
+		 */
+		private void writeValue(Object value) throws IOException {
+			if (value == null) {
+				writeByte(NULL);
+			} else if (value instanceof String) {
+				writeByte(STRING);
+				writeString((String) value);
+			} else if (value instanceof Integer) {
+				writeByte(INT);
+				writeVarint(zigzag((Integer) value));
+			} else if (value instanceof Long) {
+				writeByte(LONG);
+				writeVarint(zigzag((Long) value));
+			} else if (value instanceof Double) {
+				writeByte(DOUBLE);
+				long bits = Double.doubleToRawLongBits((Double) value);
+				for (int shift = 56; shift >= 0; shift -= 8) {
+					writeByte((int) (bits >>> shift));
+				}
+			} else if (value instanceof Boolean) {
+				writeByte((Boolean) value ? TRUE : FALSE);
+			} else if (isCompact(value)) {
+				Integer reference = containers.putIfAbsent(value, containers.size());
+				if (reference != null) {
+					writeByte(REFERENCE);
+					writeVarint(reference);
+				} else if (value instanceof Map) {
+					Map<?, ?> map = (Map<?, ?>) value;
+					writeByte(MAP);
+					writeVarint(map.size());
+					push(map instanceof MixedMap ? ((MixedMap) map).readEntries() : map.entrySet().iterator(), true);
+				} else {
+					List<?> list = (List<?>) value;
+					writeByte(LIST);
+					writeVarint(list.size());
+					push(list.iterator(), false);
+				}
+			} else {
+				writeByte(OBJECT);
+				flush();
+				out.writeObject(value);
+			}
+		}
+
+		private void push(Iterator<?> it, boolean map) {
+			if (depth == iterators.length) {
+				iterators = Arrays.copyOf(iterators, depth * 2);
+				maps = Arrays.copyOf(maps, depth * 2);
+			}
+			iterators[depth] = it;
+			maps[depth++] = map;
+		}
+
+		/**
+		 * Writes the index of the string in the table plus one, or 0 followed by the length and characters of a new
+		 * string.
+		 */
+		private void writeString(String string) throws IOException {
+			Integer index = strings.get(string);
+			if (index != null) {
+				writeVarint(index + 1L);
+				return;
+			}
+
+			writeVarint(0);
+			int length = string.length();
+			writeVarint(length);
+			for (int ix = 0; ix < length; ix++) {
+				char c = string.charAt(ix);
+				if (c < 0x80 && pos < buffer.length) {
+					buffer[pos++] = (byte) c;
+				} else {
+					writeVarint(c);
+				}
+			}
+			if (length <= MAX_TABLE_LENGTH) {
+				strings.put(string, strings.size());
+			}
+		}
+
+		private static long zigzag(long value) {
+			return (value << 1) ^ (value >> 63);
+		}
+
+		private void writeVarint(long value) throws IOException {
+			if (pos + 10 > buffer.length) {
+				flush();
+			}
+			while ((value & ~0x7FL) != 0) {
+				buffer[pos++] = (byte) (value | 0x80);
+				value >>>= 7;
+			}
+			buffer[pos++] = (byte) value;
+		}
+
+		private void writeByte(int value) throws IOException {
+			if (pos == buffer.length) {
+				flush();
+			}
+			buffer[pos++] = (byte) value;
+		}
+
+		private void flush() throws IOException {
+			out.write(buffer, 0, pos);
+			pos = 0;
+		}
+	}
+
+	private static final class Reader {
+		private final ObjectInput in;
+
+		private String[] strings = new String[64];
+		private int stringCount;
+		private Object[] containers = new Object[64];
+		private int containerCount;
+
+		// The maps and lists that are being read, with the number of elements that are left and the key at which they
+		// are put into their parent when they are complete
+		private Object[] open = new Object[16];
+		private int[] remaining = new int[16];
+		private String[] keys = new String[16];
+		private int depth;
+
+		Reader(ObjectInput in) {
+			this.in = in;
+		}
+
+		Object read() throws IOException, ClassNotFoundException {
+			int format = in.readUnsignedByte();
+			if (format != FORMAT) {
+				throw new InvalidObjectException("Unknown format " + format);
+			}
+
+			Object root = readValue(null);
+			while (depth > 0) {
+				int top = depth - 1;
+				if (remaining[top] == 0) {
+					Object complete = open[top];
+					open[--depth] = null;
+					if (depth > 0) {
+						add(open[depth - 1], keys[top], complete);
+					}
+					continue;
+				}
+
+				remaining[top]--;
+				String key = open[top] instanceof MixedMap ? readString() : null;
+				Object value = readValue(key);
+				// A new map or list is added when it is complete
+				if (depth == top + 1) {
+					add(open[top], key, value);
+				}
+			}
+			return root;
+		}
+
+		private static void add(Object container, String key, Object value) {
+			if (container instanceof MixedMap) {
+				((MixedMap) container).put(key, value);
+			} else {
+				((MixedList) container).add(value);
+			}
+		}
+
+		/**
+		 * Reads a single value, or the start of a new map or list, which is opened to read its elements.
+		 */
+		private Object readValue(String key) throws IOException, ClassNotFoundException {
+			int tag = in.readUnsignedByte();
+			switch (tag) {
+			case NULL:
+				return null;
+			case TRUE:
+				return Boolean.TRUE;
+			case FALSE:
+				return Boolean.FALSE;
+			case INT:
+				return (int) unzigzag(readVarint());
+			case LONG:
+				return unzigzag(readVarint());
+			case DOUBLE:
+				return in.readDouble();
+			case STRING:
+				return readString();
+			case MAP:
+				return open(new MixedMap(), key);
+			case LIST:
+				return open(new MixedList(), key);
+			case REFERENCE: {
+				long index = readVarint();
+				if (index >= containerCount) {
+					throw new InvalidObjectException("Invalid reference " + index);
+				}
+				return containers[(int) index];
+			}
+			case OBJECT:
+				return in.readObject();
+			default:
+				throw new InvalidObjectException("Unknown tag " + tag);
+			}
+		}
+
+		private Object open(Object container, String key) throws IOException {
+			long size = readVarint();
+			if (size > Integer.MAX_VALUE) {
+				throw new InvalidObjectException("Invalid size " + size);
+			}
+			if (containerCount == containers.length) {
+				containers = Arrays.copyOf(containers, containerCount * 2);
+			}
+			containers[containerCount++] = container;
+
+			if (depth == open.length) {
+				open = Arrays.copyOf(open, depth * 2);
+				remaining = Arrays.copyOf(remaining, depth * 2);
+				keys = Arrays.copyOf(keys, depth * 2);
+			}
+			open[depth] = container;
+			remaining[depth] = (int) size;
+			keys[depth++] = key;
+			return container;
+		}
+
+		private String readString() throws IOException {
+			long index = readVarint();
+			if (index > 0) {
+				if (index > stringCount) {
+					throw new InvalidObjectException("Invalid string reference " + index);
+				}
+				return strings[(int) index - 1];
+			}
+
+			long length = readVarint();
+			if (length > Integer.MAX_VALUE) {
+				throw new InvalidObjectException("Invalid string length " + length);
+			}
+			// The length is not trusted to allocate the whole string at once
+			StringBuilder sb = new StringBuilder((int) Math.min(length, 256));
+			for (long ix = 0; ix < length; ix++) {
+				sb.append((char) readVarint());
+			}
+			String string = sb.toString();
+			if (length <= MAX_TABLE_LENGTH) {
+				if (stringCount == strings.length) {
+					strings = Arrays.copyOf(strings, stringCount * 2);
+				}
+				strings[stringCount++] = string;
+			}
+			return string;
+		}
+
+		private static long unzigzag(long value) {
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		private long readVarint() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = in.readUnsignedByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new InvalidObjectException("Invalid variable length integer");
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package com.marcdejonge.codec;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * <p>
+ * The keys of a {@link CompactMap}, in order, together with an index to find the position of a key. A shape is either
+ * shared or private.
+ * </p>
+ * <p>
+ * Shared shapes are immutable and form a tree of transitions: adding a key to a map with a shared shape moves it to
+ * the child shape for that key, which is created only once. This way all the maps that get the same keys in the same
+ * order, such as the records of a large JSON array, use the same key array and index and only store their own values.
+ * Each tree belongs to a {@link MapShapes}, so it only lives as long as the decoder that uses it and the maps that
+ * still use its shapes. The size of a tree is limited, maps that do not fit in it get a private shape.
+ * </p>
+ * <p>
+ * A private shape belongs to a single map and is modified in place. A map switches to a private copy of its shape on
+ * any modification other than adding a key.
+ * </p>
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+final class Shape {
+	/**
+	 * The number of keys up to which a linear scan is used instead of the index.
+	 */
+	static final int SCAN_LIMIT = 8;
+
+	/**
+	 * Shared shapes with more keys are not created, the maps get a private shape instead.
+	 */
+	private static final int MAX_SHARED_SIZE = 64;
+
+	/**
+	 * The maximum number of different keys that can follow a shared shape. Objects that are used as a dictionary have
+	 * different keys every time, which should not all end up in the tree.
+	 */
+	private static final int MAX_TRANSITIONS = 8;
+
+	/**
+	 * The maximum number of shapes in a single tree.
+	 */
+	private static final int MAX_SHAPES = 4096;
+
+	private static final String[] NO_KEYS = new String[0];
+	private static final Shape[] NO_TRANSITIONS = new Shape[0];
+
+	// The root of the tree of this shape, which is also used as its lock, or null for private shapes
+	private final Shape root;
+	private String[] keys;
+	private int size;
+	// The positions of the keys plus one, by the hash of the key, or null for small shapes
+	private int[] index;
+
+	// The shapes that follow this one, only for shared shapes
+	private volatile Shape[] transitions = NO_TRANSITIONS;
+	private final Shape parent;
+	// The largest number of keys of any shape that follows this one, as a hint for the capacity of maps
+	private volatile int expectedSize;
+	// The number of shapes in the tree, only used on the root
+	private int shapeCount;
+
+	private Shape(boolean shared, Shape root, Shape parent, String[] keys, int size) {
+		this.root = shared && root == null ? this : root;
+		this.parent = parent;
+		this.keys = keys;
+		this.size = size;
+		expectedSize = size;
+		if (size > SCAN_LIMIT) {
+			reindex();
+		}
+	}
+
+	/**
+	 * @return The empty root shape of a new tree of shared shapes.
+	 */
+	static Shape newTree() {
+		return new Shape(true, null, null, NO_KEYS, 0);
+	}
+
+	/**
+	 * @return A new empty private shape.
+	 */
+	static Shape newPrivate() {
+		return new Shape(false, null, null, NO_KEYS, 0);
+	}
+
+	boolean isShared() {
+		return root != null;
+	}
+
+	/**
+	 * @return The empty shape at the root of the tree of this shared shape.
+	 */
+	Shape root() {
+		return root;
+	}
+
+	int size() {
+		return size;
+	}
+
+	String key(int pos) {
+		return keys[pos];
+	}
+
+	/**
+	 * @return The capacity that a map should have for its values when it gets this shape.
+	 */
+	int expectedSize() {
+		return expectedSize;
+	}
+
+	private static int hash(Object key) {
+		int hash = key == null ? 0 : key.hashCode();
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * @return The position of the key, or -1 when it is not in this shape.
+	 */
+	int indexOf(Object key) {
+		String[] keys = this.keys;
+		int[] index = this.index;
+		if (index == null) {
+			// The hash of a string is cached, so comparing it first avoids comparing the characters of other keys
+			int hash = key == null ? 0 : key.hashCode();
+			for (int ix = 0; ix < size; ix++) {
+				String other = keys[ix];
+				if (other == key || (other != null && other.hashCode() == hash && other.equals(key))) {
+					return ix;
+				}
+			}
+			return -1;
+		}
+
+		int mask = index.length - 1;
+		for (int slot = hash(key) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+			int pos = index[slot] - 1;
+			if (keys[pos] == key || Objects.equals(key, keys[pos])) {
+				return pos;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Rebuilds the index for the current keys, or drops it when the shape is small enough to be scanned.
+	 */
+	private void reindex() {
+		if (size <= SCAN_LIMIT) {
+			index = null;
+			return;
+		}
+
+		// Keep the load factor of the index below three quarters
+		int length = Integer.highestOneBit(keys.length * 4 / 3) << 1;
+		if (index == null || index.length != length) {
+			index = new int[length];
+		} else {
+			Arrays.fill(index, 0);
+		}
+		for (int pos = 0; pos < size; pos++) {
+			addToIndex(pos);
+		}
+	}
+
+	private void addToIndex(int pos) {
+		int mask = index.length - 1;
+		int slot = hash(keys[pos]) & mask;
+		while (index[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		index[slot] = pos + 1;
+	}
+
+	/**
+	 * Finds or creates the shared shape that has the key added at the end of this shared shape.
+	 *
+	 * @return The next shape, or <code>null</code> when it does not fit in the tree.
+	 */
+	Shape transition(String key) {
+		for (Shape next : transitions) {
+			if (Objects.equals(key, next.keys[size])) {
+				return next;
+			}
+		}
+
+		synchronized (root) {
+			Shape[] current = transitions;
+			for (Shape next : current) {
+				if (Objects.equals(key, next.keys[size])) {
+					return next;
+				}
+			}
+			if (size >= MAX_SHARED_SIZE || current.length >= MAX_TRANSITIONS || root.shapeCount >= MAX_SHAPES) {
+				return null;
+			}
+
+			// The keys that are looked up are usually constants, which are then found by their identity instead of
+			// being compared to the keys that have been created by the decoder
+			String[] nextKeys = Arrays.copyOf(keys, size + 1);
+			nextKeys[size] = key == null ? null : key.intern();
+			Shape next = new Shape(true, root, this, nextKeys, size + 1);
+			Shape[] extended = Arrays.copyOf(current, current.length + 1);
+			extended[current.length] = next;
+			transitions = extended;
+			root.shapeCount++;
+
+			for (Shape shape = this; shape != null && shape.expectedSize < next.size; shape = shape.parent) {
+				shape.expectedSize = next.size;
+			}
+			return next;
+		}
+	}
+
+	/**
+	 * @return A private copy of this shape, with room for at least the given number of keys.
+	 */
+	Shape copy(int capacity) {
+		return new Shape(false, null, null, Arrays.copyOf(keys, Math.max(capacity, size)), size);
+	}
+
+	/**
+	 * Adds a key at the end of this private shape.
+	 */
+	void add(String key) {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size < 4 ? 4 : size + (size >> 1));
+			if (index != null) {
+				reindex();
+			}
+		}
+		keys[size++] = key;
+		if (index != null) {
+			addToIndex(size - 1);
+		} else if (size > SCAN_LIMIT) {
+			reindex();
+		}
+	}
+
+	/**
+	 * Removes the key at the position from this private shape, moving the keys after it.
+	 */
+	void remove(int pos) {
+		System.arraycopy(keys, pos + 1, keys, pos, size - pos - 1);
+		keys[--size] = null;
+		if (index != null) {
+			reindex();
+		}
+	}
+}
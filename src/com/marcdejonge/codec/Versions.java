@@ -0,0 +1,320 @@
+package com.marcdejonge.codec;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+/**
+ * Helper methods for the modification tracking of {@link MixedMap} and {@link MixedList}. Each container keeps a
+ * version that is incremented on every modification, and a reference to the containers it is stored in (its parents).
+ * A modification is propagated to all the ancestors, such that the version of a container changes whenever anything in
+ * its subtree changes. The ancestors are visited with a worklist instead of recursion, so a deep tree does not overflow
+ * the stack, and each container is visited once, which stops at cycles.
+ *
+ * The parents are only weakly referenced, so a long-lived container that is stored in many short-lived ones does not
+ * keep them alive. Each container has a single weak reference to itself, which it gives to all its children. The
+ * parents are stored as either <code>null</code>, a single reference or a {@link Parents} set, to keep the overhead
+ * small for the common case of a single parent. References of which the parent has been collected are dropped when
+ * the set is full or when a modification is propagated.
+ *
+ * A container that is only read can be stored in many other containers on different threads at the same time, so the
+ * parents of a container are only changed while it is locked. A single parent is read without the lock, as the
+ * reference never changes, but a {@link Parents} set is only read while the container is locked. No other lock is
+ * taken while holding it.
+ *
+ * A {@link ConcurrentMixedMap} is modified by many threads, so it only keeps the parents that are concurrent maps as
+ * well: propagating to any other container would modify it from all those threads. A container that holds a
+ * concurrent map can thus change without changing its version.
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+final class Versions {
+	private static final ThreadLocal<Walk> WALKS = ThreadLocal.withInitial(Walk::new);
+
+	/**
+	 * Registers the parent with the child, when the child is a tracked container. Frozen containers never change, so
+	 * they are not tracked. That also keeps them free of any modification when they are shared between threads.
+	 */
+	static void adopt(Object parent, Object child) {
+		if (!isTracked(parent, child)) {
+			return;
+		}
+		WeakReference<Object> reference = reference(parent);
+		synchronized (child) {
+			if (child instanceof MixedMap) {
+				MixedMap map = (MixedMap) child;
+				map.parents = addParent(map.parents, reference);
+			} else {
+				MixedList list = (MixedList) child;
+				list.parents = addParent(list.parents, reference);
+			}
+		}
+	}
+
+	/**
+	 * Removes the parent from the child, when the child is a tracked container that is no longer stored in the parent.
+	 */
+	static void release(Object parent, Object child) {
+		if (!isTracked(parent, child)) {
+			return;
+		}
+		synchronized (child) {
+			if (child instanceof MixedMap) {
+				MixedMap map = (MixedMap) child;
+				map.parents = removeParent(map.parents, parent);
+			} else {
+				MixedList list = (MixedList) child;
+				list.parents = removeParent(list.parents, parent);
+			}
+		}
+	}
+
+	private static boolean isTracked(Object parent, Object child) {
+		return (child instanceof MixedMap || child instanceof MixedList)
+		       && !(child instanceof FrozenMap || child instanceof FrozenList)
+		       && (!(child instanceof ConcurrentMixedMap) || parent instanceof ConcurrentMixedMap);
+	}
+
+	/**
+	 * Tells all the ancestors of the container, of which the version has just been changed, that something in their
+	 * subtree has been modified.
+	 */
+	static void propagate(Object container) {
+		Walk walk = WALKS.get();
+		// Changing a version never modifies anything else, so this only happens when a walk failed halfway
+		if (walk.size > 0) {
+			walk = new Walk();
+		}
+		walk.run(container);
+	}
+
+	/**
+	 * @return The weak reference of the container to itself, which is created the first time it is needed.
+	 */
+	private static WeakReference<Object> reference(Object container) {
+		if (container instanceof MixedMap) {
+			MixedMap map = (MixedMap) container;
+			if (map.self == null) {
+				map.self = new WeakReference<>(map);
+			}
+			return map.self;
+		} else {
+			MixedList list = (MixedList) container;
+			if (list.self == null) {
+				list.self = new WeakReference<>(list);
+			}
+			return list.self;
+		}
+	}
+
+	private static Object addParent(Object parents, WeakReference<Object> parent) {
+		if (parents == null) {
+			return parent;
+		} else if (parents instanceof Parents) {
+			((Parents) parents).add(parent);
+			return parents;
+		}
+
+		WeakReference<?> single = (WeakReference<?>) parents;
+		return single.get() == null ? parent : new Parents(single, parent);
+	}
+
+	private static Object removeParent(Object parents, Object parent) {
+		if (parents instanceof Parents) {
+			((Parents) parents).remove(parent);
+			return parents;
+		} else if (parents != null) {
+			Object single = ((WeakReference<?>) parents).get();
+			return single == parent || single == null ? null : parents;
+		}
+		return null;
+	}
+
+	/**
+	 * The containers that a single modification has reached. They are visited in order, each telling its parents about
+	 * the modification, which are added when they have not been reached before. Each thread reuses its own walk.
+	 */
+	private static final class Walk {
+		private Object[] containers = new Object[16];
+		private int size;
+
+		void run(Object origin) {
+			containers[size++] = origin;
+			mark(origin);
+			try {
+				for (int ix = 0; ix < size; ix++) {
+					tellParents(containers[ix]);
+				}
+			} finally {
+				for (int ix = 0; ix < size; ix++) {
+					unmark(containers[ix]);
+					containers[ix] = null;
+				}
+				// Do not keep the array of a very deep tree
+				if (size > 1024) {
+					containers = new Object[16];
+				}
+				size = 0;
+			}
+		}
+
+		private void tellParents(Object container) {
+			if (container instanceof MixedMap) {
+				MixedMap map = (MixedMap) container;
+				Object parents = map.parents;
+				if (parents instanceof Parents) {
+					synchronized (map) {
+						((Parents) parents).reachAll(this);
+					}
+				} else if (parents != null && !reachSingle(parents)) {
+					synchronized (map) {
+						if (map.parents == parents) {
+							map.parents = null;
+						}
+					}
+				}
+			} else {
+				MixedList list = (MixedList) container;
+				Object parents = list.parents;
+				if (parents instanceof Parents) {
+					synchronized (list) {
+						((Parents) parents).reachAll(this);
+					}
+				} else if (parents != null && !reachSingle(parents)) {
+					synchronized (list) {
+						if (list.parents == parents) {
+							list.parents = null;
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * @return If the single parent is still alive
+		 */
+		private boolean reachSingle(Object parents) {
+			Object parent = ((WeakReference<?>) parents).get();
+			if (parent == null) {
+				return false;
+			}
+			reach(parent);
+			return true;
+		}
+
+		void reach(Object parent) {
+			if (!mark(parent)) {
+				return;
+			}
+			if (parent instanceof MixedMap) {
+				((MixedMap) parent).changed();
+			} else {
+				((MixedList) parent).changed();
+			}
+			if (size == containers.length) {
+				containers = Arrays.copyOf(containers, size * 2);
+			}
+			containers[size++] = parent;
+		}
+
+		/**
+		 * @return If the container had not been reached before. A concurrent map can be reached by the walks of several
+		 *         threads at the same time, so it is looked up in this walk instead.
+		 */
+		private boolean mark(Object container) {
+			if (container instanceof ConcurrentMixedMap) {
+				for (int ix = 0; ix < size; ix++) {
+					if (containers[ix] == container) {
+						return false;
+					}
+				}
+				return true;
+			} else if (container instanceof MixedMap) {
+				MixedMap map = (MixedMap) container;
+				boolean reached = map.propagating;
+				map.propagating = true;
+				return !reached;
+			} else {
+				MixedList list = (MixedList) container;
+				boolean reached = list.propagating;
+				list.propagating = true;
+				return !reached;
+			}
+		}
+
+		private static void unmark(Object container) {
+			if (container instanceof ConcurrentMixedMap) {
+				return;
+			} else if (container instanceof MixedMap) {
+				((MixedMap) container).propagating = false;
+			} else {
+				((MixedList) container).propagating = false;
+			}
+		}
+	}
+
+	/**
+	 * The references to the parents of a container that is stored in more than one other container. A parent that
+	 * stores the same container twice is in the set twice.
+	 */
+	private static final class Parents {
+		private WeakReference<?>[] references = new WeakReference<?>[4];
+		private int size;
+
+		Parents(WeakReference<?> first, WeakReference<?> second) {
+			references[0] = first;
+			references[1] = second;
+			size = 2;
+		}
+
+		void add(WeakReference<?> parent) {
+			if (size == references.length) {
+				expunge();
+				// Grow when most of the parents are still alive, so the parents are not scanned on every addition
+				if (size > references.length / 2) {
+					references = Arrays.copyOf(references, references.length * 2);
+				}
+			}
+			references[size++] = parent;
+		}
+
+		void remove(Object parent) {
+			for (int ix = 0; ix < size; ix++) {
+				if (references[ix].get() == parent) {
+					removeAt(ix);
+					return;
+				}
+			}
+		}
+
+		void reachAll(Walk walk) {
+			for (int ix = 0; ix < size;) {
+				Object parent = references[ix].get();
+				if (parent == null) {
+					removeAt(ix);
+				} else {
+					walk.reach(parent);
+					ix++;
+				}
+			}
+		}
+
+		private void expunge() {
+			for (int ix = 0; ix < size;) {
+				if (references[ix].get() == null) {
+					removeAt(ix);
+				} else {
+					ix++;
+				}
+			}
+		}
+
+		// The order of the parents does not matter, so the last one takes the place of the removed one
+		private void removeAt(int ix) {
+			references[ix] = references[--size];
+			references[size] = null;
+		}
+	}
+
+	private Versions() {
+	}
+}
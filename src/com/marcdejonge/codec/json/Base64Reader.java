@@ -0,0 +1,171 @@
+package com.marcdejonge.codec.json;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads a binary value ({@code byte[]}, {@link ByteBuffer}, {@link InputStream} or {@link ReadableByteChannel}) and
+ * produces its base64 encoding in chunks of a fixed size, such that the encoding of a large value never has to be in
+ * memory completely. A {@link ByteBuffer} is read through a duplicate, so its position is not changed. Streams and
+ * channels are read until their end, but are not closed. A non-blocking channel that has no bytes available ends the
+ * current chunk. When nothing has been read yet, the channel is polled again after yielding the thread a few times,
+ * and then with a growing pause of at most a millisecond. That keeps the thread busy until the bytes arrive, so a
+ * blocking channel is preferred.
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+final class Base64Reader {
+	// The reads of a non-blocking channel that has nothing available, which are retried after yielding, and the pauses
+	// between the reads after that
+	private static final int YIELDS = 8;
+	private static final long MIN_PAUSE = TimeUnit.MICROSECONDS.toNanos(1);
+	private static final long MAX_PAUSE = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/**
+	 * @return true when the value is binary and should be written as a base64 string.
+	 */
+	static boolean isBinary(Object value) {
+		return value instanceof byte[]
+		       || value instanceof ByteBuffer
+		       || value instanceof InputStream
+		       || value instanceof ReadableByteChannel;
+	}
+
+	private final ByteBuffer buffer;
+	private final InputStream stream;
+	private final ReadableByteChannel channel;
+
+	private final byte[] bytes;
+	private final char[] chars;
+	// Encodes into the chars buffer, keeping the bytes of an incomplete group until the next chunk
+	private final OutputStream encoder;
+	private ByteBuffer channelView;
+	private int count;
+	// The number of bytes that the encoder holds on to, which are not encoded yet
+	private int incomplete;
+	private boolean finished;
+
+	/**
+	 * @param value
+	 *            The binary value, for which {@link #isBinary(Object)} is true
+	 * @param chunkSize
+	 *            The maximum number of characters that are produced at once, at least 4
+	 */
+	Base64Reader(Object value, int chunkSize) {
+		int maxBytes = chunkSize / 4 * 3;
+		if (value instanceof byte[]) {
+			buffer = ByteBuffer.wrap((byte[]) value);
+			maxBytes = Math.min(maxBytes, buffer.remaining());
+		} else if (value instanceof ByteBuffer) {
+			buffer = ((ByteBuffer) value).duplicate();
+			maxBytes = Math.min(maxBytes, buffer.remaining());
+		} else {
+			buffer = null;
+		}
+		stream = value instanceof InputStream ? (InputStream) value : null;
+		channel = value instanceof ReadableByteChannel ? (ReadableByteChannel) value : null;
+
+		// Round up to a complete group, such that a chunk of bytes never produces more characters than the buffer holds
+		maxBytes = Math.max(3, (maxBytes + 2) / 3 * 3);
+		bytes = new byte[maxBytes];
+		chars = new char[maxBytes / 3 * 4];
+		encoder = Base64.getEncoder().wrap(new OutputStream() {
+			@Override
+			public void write(int b) {
+				chars[count++] = (char) b;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				for (int ix = 0; ix < len; ix++) {
+					chars[count++] = (char) b[off + ix];
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return The buffer that contains the characters that have been produced by the last call to {@link #read()}.
+	 */
+	char[] chars() {
+		return chars;
+	}
+
+	/**
+	 * Produces the next chunk of characters into the {@link #chars()} buffer. Only the last chunk contains padding.
+	 *
+	 * @return The number of characters that have been produced, which can be 0 when fewer bytes than a complete group
+	 *         were available, or -1 when the value has been completely encoded
+	 * @throws IOException
+	 *             When reading from the stream or channel failed, or an {@link InterruptedIOException} when the thread
+	 *             is interrupted while waiting for a non-blocking channel
+	 */
+	int read() throws IOException {
+		if (finished) {
+			return -1;
+		}
+
+		// Leave room for the bytes that the encoder kept from the previous chunk
+		int capacity = bytes.length - incomplete;
+		int length = 0;
+		int empty = 0;
+		long pause = MIN_PAUSE;
+		while (length < capacity) {
+			int read = read(length, capacity - length);
+			if (read < 0) {
+				finished = true;
+				break;
+			} else if (read > 0) {
+				length += read;
+			} else if (length > 0) {
+				// A non-blocking channel has nothing available right now, so write what has been read so far
+				break;
+			} else if (Thread.currentThread().isInterrupted()) {
+				throw new InterruptedIOException("Interrupted while waiting for the channel");
+			} else if (empty++ < YIELDS) {
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(pause);
+				pause = Math.min(pause * 2, MAX_PAUSE);
+			}
+		}
+
+		count = 0;
+		encoder.write(bytes, 0, length);
+		incomplete = (incomplete + length) % 3;
+		if (finished) {
+			// Writes the incomplete group with its padding
+			encoder.close();
+			if (count == 0) {
+				return -1;
+			}
+		}
+		return count;
+	}
+
+	private int read(int offset, int length) throws IOException {
+		if (buffer != null) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			length = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, length);
+			return length;
+		} else if (stream != null) {
+			return stream.read(bytes, offset, length);
+		} else {
+			if (channelView == null) {
+				channelView = ByteBuffer.wrap(bytes);
+			}
+			channelView.limit(offset + length).position(offset);
+			return channel.read(channelView);
+		}
+	}
+}
@@ -0,0 +1,279 @@
+package com.marcdejonge.codec.json;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.marcdejonge.codec.MixedList;
+import com.marcdejonge.codec.MixedMap;
+
+/**
+ * <p>
+ * A {@link JSONCache} keeps the encoded form of {@link MixedMap} and {@link MixedList} subtrees, such that a
+ * {@link JSONEncoder} can copy it directly into its output while the subtree has not been modified. The subtrees are
+ * identified by their identity and validated using their version (see {@link MixedMap#version()}), so any
+ * modification anywhere in a subtree makes its cached form invalid. In the same way the cache remembers the encoded
+ * lengths of subtrees for {@link JSONEncoder#encodedLength(Object, java.util.EnumSet, JSONCache)}.
+ * </p>
+ * <p>
+ * To avoid filling the cache with documents that are only encoded once, a subtree is only stored when it is seen for
+ * the second time without modifications. The total size of the cached text is bounded; the least recently used
+ * entries are evicted first. The subtrees themselves are only weakly referenced. A single cache can be shared by
+ * many encoders on different threads.
+ * </p>
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+public class JSONCache {
+	/**
+	 * Returned by {@link #lookup(Object, int, int)} to indicate that the encoded form should be stored.
+	 */
+	static final String CAPTURE = new String("capture");
+
+	/**
+	 * The text of an entry of a subtree that can not be cached, since it contains values that can change without
+	 * changing its version.
+	 */
+	private static final String UNSTABLE = new String("unstable");
+
+	/**
+	 * Subtrees that encode into fewer characters are not worth the overhead of caching.
+	 */
+	private static final int MIN_CACHED_LENGTH = 64;
+
+	/**
+	 * The number of characters that is accounted for each entry, apart from the cached text.
+	 */
+	private static final int ENTRY_OVERHEAD = 32;
+
+	/**
+	 * A weak reference that is equal to other keys that refer to the same object.
+	 */
+	static final class Key extends WeakReference<Object> {
+		private final int hash;
+
+		Key(Object referent, ReferenceQueue<Object> queue) {
+			super(referent, queue);
+			hash = System.identityHashCode(referent);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			} else if (obj instanceof Key) {
+				Object referent = get();
+				return referent != null && referent == ((Key) obj).get();
+			} else {
+				return false;
+			}
+		}
+	}
+
+	private static final class Entry {
+		final int version;
+		final int context;
+		final String text;
+
+		Entry(int version, int context, String text) {
+			this.version = version;
+			this.context = context;
+			this.text = text;
+		}
+
+		long weight() {
+			return ENTRY_OVERHEAD + (text == null || text == UNSTABLE ? 0 : text.length());
+		}
+	}
+
+	private final long maxSize;
+	private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+	private long size, hits, misses, evictions;
+
+	// The encoded lengths of subtrees, as version, context, characters and bytes
+	private final LinkedHashMap<Key, long[]> lengths = new LinkedHashMap<>(64, 0.75f, true);
+
+	/**
+	 * @param maxSize
+	 *            The maximum number of characters that are kept in this cache
+	 */
+	public JSONCache(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Looks up the encoded form of a subtree.
+	 *
+	 * @param container
+	 *            The {@link MixedMap} or {@link MixedList} that is about to be encoded
+	 * @param version
+	 *            The current version of the container
+	 * @param context
+	 *            A description of the options and indentation that are used to encode, the cached text is only valid
+	 *            within the same context
+	 * @return The cached text, {@link #CAPTURE} when the encoded form should be passed to
+	 *         {@link #store(Object, int, int, CharSequence)}, or <code>null</code> on a miss otherwise.
+	 */
+	synchronized String lookup(Object container, int version, int context) {
+		expunge();
+
+		Key key = new Key(container, null);
+		Entry entry = entries.get(key);
+		if (entry != null && entry.version == version && entry.context == context) {
+			if (entry.text == UNSTABLE) {
+				misses++;
+				return null;
+			} else if (entry.text != null) {
+				hits++;
+				return entry.text;
+			} else {
+				misses++;
+				return CAPTURE;
+			}
+		}
+
+		// Remember that we have seen this version, so it will be captured the next time
+		misses++;
+		put(new Key(container, queue), new Entry(version, context, null));
+		return null;
+	}
+
+	/**
+	 * Stores the encoded form of a subtree, as requested by {@link #lookup(Object, int, int)}.
+	 */
+	synchronized void store(Object container, int version, int context, CharSequence text) {
+		if (text.length() >= MIN_CACHED_LENGTH && text.length() <= maxSize / 4) {
+			put(new Key(container, queue), new Entry(version, context, text.toString()));
+		}
+	}
+
+	/**
+	 * Remembers that this version of a subtree can not be cached, so it is not captured again.
+	 */
+	synchronized void reject(Object container, int version, int context) {
+		put(new Key(container, queue), new Entry(version, context, UNSTABLE));
+	}
+
+	private void put(Key key, Entry entry) {
+		Entry old = entries.put(key, entry);
+		if (old != null) {
+			size -= old.weight();
+		}
+		size += entry.weight();
+
+		for (Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator(); size > maxSize && it.hasNext();) {
+			size -= it.next().getValue().weight();
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Looks up the encoded length of a subtree, as calculated by {@link JSONEncoder#encodedLength(Object)}.
+	 *
+	 * @return The number of characters and UTF-8 bytes, or <code>null</code> when the length of this version is not
+	 *         known.
+	 */
+	synchronized long[] lookupLength(Object container, int version, int context) {
+		expunge();
+
+		long[] length = lengths.get(new Key(container, null));
+		if (length != null && length[0] == version && length[1] == context) {
+			hits++;
+			return new long[] { length[2], length[3] };
+		}
+		misses++;
+		return null;
+	}
+
+	/**
+	 * Stores the encoded length of a subtree. Lengths are small, so they are always stored. They are accounted for in
+	 * the size of this cache the same as an empty entry, and can take up at most a quarter of it.
+	 */
+	synchronized void storeLength(Object container, int version, int context, long chars, long bytes) {
+		if (lengths.put(new Key(container, queue), new long[] { version, context, chars, bytes }) == null) {
+			size += ENTRY_OVERHEAD;
+		}
+
+		Iterator<Key> it = lengths.keySet().iterator();
+		while (lengths.size() * (long) ENTRY_OVERHEAD > maxSize / 4 && it.hasNext()) {
+			it.next();
+			it.remove();
+			size -= ENTRY_OVERHEAD;
+			evictions++;
+		}
+	}
+
+	/**
+	 * Removes the entries of which the subtree has been garbage collected.
+	 */
+	private void expunge() {
+		for (Object key; (key = queue.poll()) != null;) {
+			Entry entry = entries.remove(key);
+			if (entry != null) {
+				size -= entry.weight();
+			}
+			if (lengths.remove(key) != null) {
+				size -= ENTRY_OVERHEAD;
+			}
+		}
+	}
+
+	/**
+	 * Removes all the cached entries.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		lengths.clear();
+		size = 0;
+	}
+
+	/**
+	 * @return The number of times that a cached encoding could be used.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return The number of times that a subtree had to be encoded, because no valid cached encoding was available.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return The number of entries that have been evicted to keep the cache within its maximum size.
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return The number of characters that are currently accounted for in this cache.
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return The number of subtrees that are currently tracked by this cache.
+	 */
+	public synchronized int getEntryCount() {
+		return entries.size() + lengths.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "JSONCache [entries=" + getEntryCount() + ", size=" + size + ", hits=" + hits + ", misses=" + misses
+		       + ", evictions=" + evictions + "]";
+	}
+}
@@ -0,0 +1,376 @@
+package com.marcdejonge.codec.json;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+import java.util.stream.BaseStream;
+
+import com.marcdejonge.codec.json.JSONEncoder.Options;
+
+/**
+ * <p>
+ * A {@link JSONChunkEncoder} encodes a document as UTF-8 JSON into a sequence of {@link ByteBuffer} chunks. Where the
+ * {@link JSONEncoder} pushes the complete document into its output in one go, this encoder only does work when the
+ * next chunk is requested and stops as soon as that chunk is full. It then resumes at the exact same point in the
+ * document, even in the middle of a long string, when the next chunk is requested.
+ * </p>
+ * <p>
+ * This makes it suitable as the body of a reactive HTTP response: each requested item of a subscription is one call
+ * to {@link #next()}, so a slow client never causes more than one chunk to be buffered. Chunks are taken from a
+ * {@link BufferPool} and should be given back using {@link #release(ByteBuffer)} once they have been written.
+ * </p>
+ * <p>
+ * The input can be anything the {@link JSONEncoder} can write. An {@link Iterator} or {@link BaseStream} of
+ * documents is consumed lazily, one element at a time, and written as a JSON array. Binary values, like an
+ * {@link java.io.InputStream}, are read piece by piece as the chunks are requested.
+ * </p>
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+public class JSONChunkEncoder {
+	/**
+	 * A bounded pool of equally sized {@link ByteBuffer}s, that can be shared between encoders on different threads.
+	 */
+	public static class BufferPool {
+		private final int bufferSize;
+		private final int maxPooled;
+		private final ArrayDeque<ByteBuffer> buffers;
+
+		/**
+		 * @param bufferSize
+		 *            The size in bytes of each buffer
+		 * @param maxPooled
+		 *            The maximum number of released buffers that are kept for reuse
+		 */
+		public BufferPool(int bufferSize, int maxPooled) {
+			if (bufferSize < 16) {
+				throw new IllegalArgumentException("The buffers should be at least 16 bytes");
+			}
+			this.bufferSize = bufferSize;
+			this.maxPooled = maxPooled;
+			buffers = new ArrayDeque<>(maxPooled);
+		}
+
+		/**
+		 * @return A cleared buffer, either reused from the pool or newly allocated.
+		 */
+		public synchronized ByteBuffer acquire() {
+			ByteBuffer buffer = buffers.poll();
+			if (buffer == null) {
+				buffer = ByteBuffer.allocate(bufferSize);
+			}
+			buffer.clear();
+			return buffer;
+		}
+
+		/**
+		 * Gives a buffer back to the pool. The buffer should no longer be used after this call.
+		 *
+		 * @param buffer
+		 *            The buffer that is no longer used
+		 */
+		public synchronized void release(ByteBuffer buffer) {
+			if (buffer.capacity() == bufferSize && buffers.size() < maxPooled) {
+				buffers.push(buffer);
+			}
+		}
+	}
+
+	private static final BufferPool DEFAULT_POOL = new BufferPool(8192, 256);
+
+	/**
+	 * The maximum number of characters of a single string that are escaped at once.
+	 */
+	private static final int STRING_PIECE = 1024;
+
+	/**
+	 * A container of which the elements still have to be written.
+	 */
+	private abstract class Frame {
+		final int indent;
+		int count;
+
+		Frame(int indent) {
+			this.indent = indent;
+		}
+
+		abstract void step() throws IOException;
+	}
+
+	private class ArrayFrame extends Frame {
+		private final Iterator<?> it;
+
+		ArrayFrame(Iterator<?> it, int indent) {
+			super(indent);
+			this.it = it;
+		}
+
+		@Override
+		void step() throws IOException {
+			if (it.hasNext()) {
+				encoder.nextElement(count++, indent, false);
+				begin(it.next(), indent);
+			} else {
+				stack.pop();
+				encoder.endArray();
+			}
+		}
+	}
+
+	private class PrimitiveArrayFrame extends Frame {
+		private final Object array;
+		private final int length;
+
+		PrimitiveArrayFrame(Object array, int indent) {
+			super(indent);
+			this.array = array;
+			length = JSONEncoder.primitiveLength(array);
+		}
+
+		@Override
+		void step() throws IOException {
+			if (count < length) {
+				encoder.nextElement(count, indent, false);
+				encoder.writePrimitive(array, count++);
+			} else {
+				stack.pop();
+				encoder.endArray();
+			}
+		}
+	}
+
+	private class ObjectFrame extends Frame {
+		private final Iterator<? extends Entry<?, ?>> it;
+
+		ObjectFrame(Iterator<? extends Entry<?, ?>> it, int indent) {
+			super(indent);
+			this.it = it;
+		}
+
+		@Override
+		void step() throws IOException {
+			if (it.hasNext()) {
+				Entry<?, ?> entry = it.next();
+				begin(entry.getValue(), encoder.writeKey(count++, String.valueOf(entry.getKey()), indent));
+			} else {
+				stack.pop();
+				encoder.endObject();
+			}
+		}
+	}
+
+	private final BufferPool pool;
+	private final JSONEncoder encoder;
+	private final ArrayDeque<Frame> stack = new ArrayDeque<>();
+	private final CharsetEncoder charsetEncoder;
+
+	// The text that has been produced, but not yet encoded as bytes
+	private final StringBuilder pending = new StringBuilder();
+	private int pendingPos;
+	private final CharBuffer chars = CharBuffer.allocate(STRING_PIECE * 2);
+
+	// The long string that is currently being written
+	private CharSequence string;
+	private int stringPos;
+
+	// The binary value that is currently being written as base64
+	private Base64Reader binary;
+
+	private Object root;
+	private boolean started, finished, complete;
+
+	/**
+	 * Creates a new {@link JSONChunkEncoder} with the default options and a shared pool of 8 KB buffers.
+	 *
+	 * @param input
+	 *            The document that should be encoded
+	 */
+	public JSONChunkEncoder(Object input) {
+		this(input, EnumSet.noneOf(Options.class), DEFAULT_POOL);
+	}
+
+	/**
+	 * @param input
+	 *            The document that should be encoded
+	 * @param options
+	 *            The encoding options, the same as for the {@link JSONEncoder}
+	 * @param pool
+	 *            The pool from which the chunks are taken
+	 */
+	public JSONChunkEncoder(Object input, EnumSet<Options> options, BufferPool pool) {
+		this.pool = pool;
+		root = input;
+
+		EnumSet<Options> sequential = options.clone();
+		sequential.remove(Options.PARALLEL);
+		encoder = new JSONEncoder(pending, sequential);
+
+		charsetEncoder = StandardCharsets.UTF_8.newEncoder()
+		                                       .onMalformedInput(CodingErrorAction.REPLACE)
+		                                       .onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	/**
+	 * @return true when there is more output, that can be retrieved using {@link #next()}.
+	 */
+	public boolean hasNext() {
+		if (!complete && started && string == null && binary == null && stack.isEmpty() && isDrained()) {
+			// The last chunk ended exactly at the end of the document
+			complete = true;
+			root = null;
+		}
+		return !complete;
+	}
+
+	private boolean isDrained() {
+		return pendingPos == pending.length() && chars.position() == 0;
+	}
+
+	/**
+	 * Encodes the next part of the document. Only the work that is needed to fill this chunk is done.
+	 *
+	 * @return A buffer, ready for reading, that contains the next part of the encoded document. It is never empty.
+	 * @throws IOException
+	 *             When reading a lazy value from the document failed.
+	 * @throws NoSuchElementException
+	 *             When the complete document has already been returned.
+	 */
+	public ByteBuffer next() throws IOException {
+		if (!hasNext()) {
+			throw new NoSuchElementException("The document has been completely encoded");
+		}
+
+		ByteBuffer buffer = pool.acquire();
+		while (buffer.hasRemaining()) {
+			fill(buffer.remaining());
+
+			boolean endOfInput = finished && pendingPos == pending.length();
+			chars.flip();
+			CoderResult result = charsetEncoder.encode(chars, buffer, endOfInput);
+			chars.compact();
+
+			if (result.isOverflow()) {
+				break;
+			} else if (endOfInput && chars.position() == 0) {
+				if (!charsetEncoder.flush(buffer).isOverflow()) {
+					complete = true;
+					root = null;
+				}
+				break;
+			}
+		}
+
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Gives a chunk that has been returned by {@link #next()} back to the pool, once it has been written.
+	 *
+	 * @param buffer
+	 *            The chunk that is no longer used
+	 */
+	public void release(ByteBuffer buffer) {
+		pool.release(buffer);
+	}
+
+	/**
+	 * Moves pending text into the character buffer, producing more text when needed. Every character takes at least
+	 * one byte, so only as many characters as there are bytes wanted are produced. A high surrogate can only be
+	 * encoded together with the low surrogate after it, so the buffer never ends with one while more text follows.
+	 */
+	private void fill(int wanted) throws IOException {
+		while ((chars.position() < wanted || endsWithHighSurrogate()) && chars.hasRemaining()) {
+			if (pendingPos < pending.length()) {
+				int length = Math.min(Math.min(chars.remaining(), Math.max(1, wanted - chars.position())),
+				                      pending.length() - pendingPos);
+				int offset = chars.arrayOffset() + chars.position();
+				pending.getChars(pendingPos, pendingPos + length, chars.array(), offset);
+				chars.position(chars.position() + length);
+				pendingPos += length;
+			} else if (finished) {
+				return;
+			} else {
+				pending.setLength(0);
+				pendingPos = 0;
+				produce();
+			}
+		}
+	}
+
+	private boolean endsWithHighSurrogate() {
+		return chars.position() > 0 && Character.isHighSurrogate(chars.get(chars.position() - 1));
+	}
+
+	/**
+	 * Produces the next piece of the document into the pending text.
+	 */
+	private void produce() throws IOException {
+		if (string != null) {
+			int end = Math.min(string.length(), stringPos + STRING_PIECE);
+			encoder.writeEscaped(string, stringPos, end);
+			stringPos = end;
+			if (stringPos == string.length()) {
+				pending.append('"');
+				string = null;
+			}
+		} else if (binary != null) {
+			int count = binary.read();
+			if (count < 0) {
+				pending.append('"');
+				binary = null;
+			} else {
+				pending.append(binary.chars(), 0, count);
+			}
+		} else if (!started) {
+			started = true;
+			begin(root, 0);
+		} else if (stack.isEmpty()) {
+			finished = true;
+		} else {
+			stack.peek().step();
+		}
+	}
+
+	/**
+	 * Starts writing a value. Containers and long strings are only opened here, their content is written in the next
+	 * steps. All other values are written completely.
+	 */
+	private void begin(Object value, int indent) throws IOException {
+		while (value instanceof Supplier) {
+			value = ((Supplier<?>) value).get();
+		}
+
+		if (value instanceof Map) {
+			stack.push(new ObjectFrame(encoder.entries((Map<?, ?>) value), encoder.startObject(indent)));
+		} else if (value instanceof Iterable) {
+			stack.push(new ArrayFrame(((Iterable<?>) value).iterator(), encoder.startArray(indent)));
+		} else if (value instanceof Iterator) {
+			stack.push(new ArrayFrame((Iterator<?>) value, encoder.startArray(indent)));
+		} else if (value instanceof BaseStream) {
+			stack.push(new ArrayFrame(((BaseStream<?, ?>) value).iterator(), encoder.startArray(indent)));
+		} else if (JSONEncoder.isPrimitiveArray(value)) {
+			stack.push(new PrimitiveArrayFrame(value, encoder.startArray(indent)));
+		} else if (value instanceof CharSequence && ((CharSequence) value).length() > STRING_PIECE) {
+			pending.append('"');
+			string = (CharSequence) value;
+			stringPos = 0;
+		} else if (Base64Reader.isBinary(value)) {
+			pending.append('"');
+			binary = new Base64Reader(value, STRING_PIECE);
+		} else {
+			encoder.write(value, indent);
+		}
+	}
+}
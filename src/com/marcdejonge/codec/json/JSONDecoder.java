@@ -7,8 +7,14 @@ import java.io.Reader;
 import java.io.StringReader;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import com.marcdejonge.codec.ParseException;
+import com.marcdejonge.codec.MapShapes;
+import com.marcdejonge.codec.MixedArena;
 import com.marcdejonge.codec.MixedList;
 import com.marcdejonge.codec.MixedMap;
 
@@ -25,15 +31,90 @@ public class JSONDecoder {
 		return new JSONDecoder(reader).parseValue();
 	}
 
-	private final Reader reader;
+	/**
+	 * Parses a document, streaming the string values that are longer than the threshold to the sinks that are opened
+	 * by the handler, instead of keeping them in memory.
+	 *
+	 * @param reader
+	 *            The reader from which the document is read
+	 * @param threshold
+	 *            The length in characters above which a string value is offered to the handler
+	 * @param handler
+	 *            The handler that opens the sinks for the large strings
+	 * @return The parsed document
+	 * @throws ParseException
+	 *             When the document could not be parsed, or when writing a string to its sink failed
+	 */
+	public static Object parse(Reader reader, int threshold, JSONStringHandler handler) throws ParseException {
+		return new JSONDecoder(reader, threshold, handler).parseValue();
+	}
+
+	/**
+	 * The number of characters of a streamed string that are written to the sink at once.
+	 */
+	private static final int SINK_CHUNK_SIZE = 8192;
+
+	/**
+	 * The capacity of the buffer up to which it is kept by {@link #reset(Reader)}.
+	 */
+	private static final int MAX_KEPT_BUFFER = 65536;
+
+	/**
+	 * The number of keys in the cache, which must be a power of two, and the length of the longest key in it.
+	 */
+	private static final int KEY_CACHE_SIZE = 256;
+	private static final int MAX_CACHED_KEY_LENGTH = 32;
+
+	/**
+	 * Decimals with up to this number of digits are calculated from their digits, since both the digits and the
+	 * power of ten are exact doubles, so a single division rounds correctly.
+	 */
+	private static final int MAX_EXACT_DIGITS = 15;
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+	                                                1e13, 1e14, 1e15 };
+
+	private static final char[] TRUE = "true".toCharArray();
+	private static final char[] FALSE = "false".toCharArray();
+	private static final char[] NULL = "null".toCharArray();
+
+	private Reader reader;
 	private int lineNumber, charNumber;
 	private char c;
 	private boolean endOfFile;
 
 	private final StringBuilder buffer = new StringBuilder(512);
+	// The objects of a document often have the same keys, which are then shared
+	private final MapShapes shapes = new MapShapes();
+	// The keys that have been parsed before, by their hash, so repeated keys are not created again
+	private String[] keyCache;
+	// The arena from which the maps and lists are taken, or null to create new ones
+	private MixedArena arena;
+
+	private final int threshold;
+	private final JSONStringHandler handler;
+	// The location in the document of the value that is about to be parsed, only tracked when there is a handler
+	private Object parent, key;
+	private char[] sinkChunk;
+
+	// The keys of the objects that are being parsed into a tape, by depth, to find duplicates
+	private List<Set<String>> tapeKeys;
 
 	public JSONDecoder(Reader reader) throws ParseException {
+		this(reader, Integer.MAX_VALUE, null);
+	}
+
+	/**
+	 * @param reader
+	 *            The reader from which the document is read
+	 * @param threshold
+	 *            The length in characters above which a string value is offered to the handler
+	 * @param handler
+	 *            The handler that opens the sinks for large strings, or <code>null</code> to keep all strings in memory
+	 */
+	public JSONDecoder(Reader reader, int threshold, JSONStringHandler handler) throws ParseException {
 		this.reader = reader;
+		this.threshold = threshold;
+		this.handler = handler;
 
 		lineNumber = 1;
 		charNumber = 0;
@@ -41,12 +122,52 @@ public class JSONDecoder {
 		endOfFile = false;
 	}
 
+	/**
+	 * Prepares this decoder to parse a new document from the reader, as if it was just created with it. The buffers,
+	 * the shared keys of the maps and the cache of keys are kept, so a single decoder can be reused for many small
+	 * documents, such as one decoder for all the requests of a thread. The documents that have been parsed before are
+	 * not affected.
+	 *
+	 * @param reader
+	 *            The reader from which the next document is read
+	 */
+	public void reset(Reader reader) {
+		this.reader = reader;
+		lineNumber = 1;
+		charNumber = 0;
+		c = 0;
+		endOfFile = false;
+		parent = key = null;
+
+		if (buffer.capacity() > MAX_KEPT_BUFFER) {
+			buffer.setLength(0);
+			buffer.trimToSize();
+			buffer.ensureCapacity(512);
+		}
+	}
+
+	/**
+	 * Lets this decoder take its maps and lists from the arena, instead of creating new ones. The documents that it
+	 * parses can then only be used until the arena is closed.
+	 *
+	 * @param arena
+	 *            The open arena of the current thread, or <code>null</code> to create new maps and lists again
+	 */
+	public void setArena(MixedArena arena) {
+		this.arena = arena;
+	}
+
 	public Object parseValue() throws ParseException {
+		// The location is only valid for this value, values after it in a stream are not in the same container
+		Object parent = this.parent;
+		Object key = this.key;
+		this.parent = this.key = null;
+
 		skipWhitespace();
 
 		switch (c) {
 		case '"':
-			return parseString();
+			return handler == null ? parseString() : parseStringValue(parent, key);
 		case '{':
 			return parseObject();
 		case '[':
@@ -78,14 +199,18 @@ public class JSONDecoder {
 		skipWhitespace();
 
 		buffer.setLength(0);
-		if (c == '-') {
+		boolean negative = c == '-';
+		if (negative) {
 			buffer.append('-');
 			next(false);
 		}
 		int integerLength = 0, fractionLength = 0, exponentialLength = 0;
+		// The value of all the digits, which is only used when there are at most 18 of them
+		long digits = 0;
 
 		while (c >= '0' && c <= '9') {
 			buffer.append(c);
+			digits = digits * 10 + (c - '0');
 			integerLength++;
 			next(true);
 		}
@@ -96,6 +221,7 @@ public class JSONDecoder {
 			next(false);
 			while (c >= '0' && c <= '9') {
 				buffer.append(c);
+				digits = digits * 10 + (c - '0');
 				fractionLength++;
 				next(true);
 			}
@@ -128,14 +254,20 @@ public class JSONDecoder {
 		}
 
 		if (fractionLength == 0 && exponentialLength == 0) {
-			// Whole number
-			if (integerLength <= 9) {
-				return Integer.parseInt(buffer.toString());
+			// Whole number, which is only parsed from the buffer when it may not fit in a long
+			if (integerLength == 0) {
+				throw new ParseException("Number started, but no digits found", lineNumber, charNumber);
+			} else if (integerLength <= 9) {
+				return (int) (negative ? -digits : digits);
 			} else if (integerLength <= 18) {
-				return Long.parseLong(buffer.toString());
+				return negative ? -digits : digits;
 			} else {
 				return new BigInteger(buffer.toString());
 			}
+		} else if (exponentialLength == 0 && integerLength + fractionLength <= MAX_EXACT_DIGITS) {
+			// A BigDecimal does not have a negative zero
+			double result = digits / POWERS_OF_TEN[fractionLength];
+			return negative && digits != 0 ? -result : result;
 		} else {
 			// Decimal numbers, try and parse as double
 			BigDecimal result = new BigDecimal(buffer.toString());
@@ -148,6 +280,42 @@ public class JSONDecoder {
 	}
 
 	public String parseString() throws ParseException {
+		parseIntoBuffer();
+		return buffer.toString();
+	}
+
+	/**
+	 * Parses a key of an object, which is taken from the cache when the same key has been parsed before. The keys of
+	 * the objects in a document, and in the documents after a {@link #reset(Reader)}, are mostly the same, so they are
+	 * only created once.
+	 */
+	private String parseKey() throws ParseException {
+		parseIntoBuffer();
+		int length = buffer.length();
+		if (length > MAX_CACHED_KEY_LENGTH) {
+			return buffer.toString();
+		}
+
+		// The same hash as the String itself, which caches it
+		int hash = 0;
+		for (int ix = 0; ix < length; ix++) {
+			hash = 31 * hash + buffer.charAt(ix);
+		}
+		if (keyCache == null) {
+			keyCache = new String[KEY_CACHE_SIZE];
+		}
+		int slot = (hash ^ (hash >>> 16)) & (KEY_CACHE_SIZE - 1);
+		String key = keyCache[slot];
+		if (key == null || key.hashCode() != hash || !key.contentEquals(buffer)) {
+			key = keyCache[slot] = buffer.toString();
+		}
+		return key;
+	}
+
+	/**
+	 * Parses a string into the buffer.
+	 */
+	private void parseIntoBuffer() throws ParseException {
 		skipWhitespace();
 		consume('"', "start of string");
 
@@ -160,32 +328,10 @@ public class JSONDecoder {
 			switch (c) {
 			case '"':
 				next(true);
-				return buffer.toString();
+				return;
 			case '\\':
 				next(false);
-				switch (c) {
-				case 'b':
-					buffer.append('\b');
-					break;
-				case 'f':
-					buffer.append('\f');
-					break;
-				case 'n':
-					buffer.append('\n');
-					break;
-				case 'r':
-					buffer.append('\r');
-					break;
-				case 't':
-					buffer.append('\t');
-					break;
-				case 'u':
-					buffer.append(parseUnicodePoint());
-					break;
-				default:
-					buffer.append(c);
-					break;
-				}
+				appendEscaped();
 				break;
 			default:
 				buffer.append(c);
@@ -196,6 +342,97 @@ public class JSONDecoder {
 		}
 	}
 
+	/**
+	 * Parses a string value, which is streamed to a sink when it becomes longer than the threshold and the handler
+	 * provides a sink for it.
+	 */
+	private Object parseStringValue(Object parent, Object key) throws ParseException {
+		JSONStringSink sink = null;
+		boolean offered = false;
+
+		skipWhitespace();
+		consume('"', "start of string");
+
+		buffer.setLength(0);
+		try {
+			while (true) {
+				if (c < 32 || c == 127) {
+					throw new ParseException("Control character in string found", lineNumber, charNumber);
+				}
+
+				if (c == '"') {
+					next(true);
+					if (sink == null) {
+						return buffer.toString();
+					}
+					flush(sink);
+					return sink.finish();
+				} else if (c == '\\') {
+					next(false);
+					appendEscaped();
+				} else {
+					buffer.append(c);
+				}
+
+				if (!offered && buffer.length() > threshold) {
+					offered = true;
+					sink = handler.open(parent, key);
+				}
+				if (sink != null && buffer.length() >= SINK_CHUNK_SIZE) {
+					flush(sink);
+				}
+
+				next(false);
+			}
+		} catch (IOException ex) {
+			throw new ParseException("I/O Error while streaming a string", lineNumber, charNumber, ex);
+		}
+	}
+
+	/**
+	 * Appends the character of the escape sequence of which the backslash has just been consumed.
+	 */
+	private void appendEscaped() throws ParseException {
+		switch (c) {
+		case 'b':
+			buffer.append('\b');
+			break;
+		case 'f':
+			buffer.append('\f');
+			break;
+		case 'n':
+			buffer.append('\n');
+			break;
+		case 'r':
+			buffer.append('\r');
+			break;
+		case 't':
+			buffer.append('\t');
+			break;
+		case 'u':
+			buffer.append(parseUnicodePoint());
+			break;
+		default:
+			buffer.append(c);
+			break;
+		}
+	}
+
+	/**
+	 * Writes the buffered characters to the sink.
+	 */
+	private void flush(JSONStringSink sink) throws IOException {
+		if (sinkChunk == null) {
+			sinkChunk = new char[SINK_CHUNK_SIZE];
+		}
+		for (int offset = 0; offset < buffer.length(); offset += sinkChunk.length) {
+			int end = Math.min(buffer.length(), offset + sinkChunk.length);
+			buffer.getChars(offset, end, sinkChunk, 0);
+			sink.write(sinkChunk, 0, end - offset);
+		}
+		buffer.setLength(0);
+	}
+
 	private char parseUnicodePoint() throws ParseException {
 		int unicode = 0;
 
@@ -275,7 +512,7 @@ public class JSONDecoder {
 		skipWhitespace();
 		consume('[', "start of array");
 
-		MixedList array = new MixedList();
+		MixedList array = arena == null ? MixedList.compact() : arena.newList();
 		boolean first = true;
 		while (true) {
 			skipWhitespace();
@@ -291,6 +528,10 @@ public class JSONDecoder {
 					skipWhitespace();
 				}
 
+				if (handler != null) {
+					parent = array;
+					key = array.size();
+				}
 				array.add(parseValue());
 			}
 		}
@@ -300,7 +541,7 @@ public class JSONDecoder {
 		skipWhitespace();
 		consume('{', "start of object");
 
-		MixedMap object = new MixedMap();
+		MixedMap object = arena == null ? shapes.newMap() : arena.newMap(shapes);
 		boolean first = true;
 		while (true) {
 			skipWhitespace();
@@ -319,10 +560,14 @@ public class JSONDecoder {
 				int startLine = lineNumber;
 				int startChar = charNumber;
 
-				String name = parseString();
+				String name = parseKey();
 				skipWhitespace();
 				consume(':', "colon");
 				skipWhitespace();
+				if (handler != null) {
+					parent = object;
+					key = name;
+				}
 				Object value = parseValue();
 
 				if (object.put(name, value) != null) {
@@ -332,18 +577,141 @@ public class JSONDecoder {
 		}
 	}
 
+	/**
+	 * Parses the next value into a {@link JSONTape}, instead of into maps and lists. All the strings are stored on the
+	 * tape, the {@link JSONStringHandler} of this decoder is not used.
+	 *
+	 * @return The tape of the value
+	 * @throws ParseException
+	 *             When the value could not be parsed
+	 */
+	public JSONTape parseTape() throws ParseException {
+		JSONTape.Builder tape = new JSONTape.Builder();
+		if (tapeKeys == null) {
+			tapeKeys = new ArrayList<>();
+		}
+		parseTapeValue(tape, 0);
+		return tape.build();
+	}
+
+	private void parseTapeValue(JSONTape.Builder tape, int depth) throws ParseException {
+		skipWhitespace();
+
+		switch (c) {
+		case '"':
+			tape.addString(parseString());
+			break;
+		case '{':
+			parseTapeObject(tape, depth);
+			break;
+		case '[':
+			parseTapeArray(tape, depth);
+			break;
+		case '-':
+		case '0':
+		case '1':
+		case '2':
+		case '3':
+		case '4':
+		case '5':
+		case '6':
+		case '7':
+		case '8':
+		case '9':
+			tape.addNumber(parseNumber());
+			break;
+		case 't':
+			parseTrue();
+			tape.add(JSONTape.TRUE);
+			break;
+		case 'f':
+			parseFalse();
+			tape.add(JSONTape.FALSE);
+			break;
+		case 'n':
+			parseNull();
+			tape.add(JSONTape.NULL);
+			break;
+		default:
+			throw new ParseException("Unexpected character '" + c + "' found", lineNumber, charNumber);
+		}
+	}
+
+	private void parseTapeArray(JSONTape.Builder tape, int depth) throws ParseException {
+		consume('[', "start of array");
+
+		int start = tape.start(JSONTape.ARRAY);
+		int count = 0;
+		while (true) {
+			skipWhitespace();
+
+			if (c == ']') {
+				next(true);
+				tape.end(start, count);
+				return;
+			} else {
+				if (count > 0) {
+					consume(',', "a comma");
+					skipWhitespace();
+				}
+				parseTapeValue(tape, depth + 1);
+				count++;
+			}
+		}
+	}
+
+	private void parseTapeObject(JSONTape.Builder tape, int depth) throws ParseException {
+		consume('{', "start of object");
+
+		while (tapeKeys.size() <= depth) {
+			tapeKeys.add(new HashSet<>());
+		}
+		Set<String> keys = tapeKeys.get(depth);
+		keys.clear();
+
+		int start = tape.start(JSONTape.OBJECT);
+		int count = 0;
+		while (true) {
+			skipWhitespace();
+
+			if (c == '}') {
+				next(true);
+				tape.end(start, count);
+				return;
+			} else {
+				if (count > 0) {
+					consume(',', "a comma");
+					skipWhitespace();
+				}
+
+				int startLine = lineNumber;
+				int startChar = charNumber;
+
+				String name = parseKey();
+				if (!keys.add(name)) {
+					throw new ParseException("Duplicate key \"" + name + "\" in object", startLine, startChar);
+				}
+				skipWhitespace();
+				consume(':', "colon");
+				tape.addKey(name);
+				parseTapeValue(tape, depth + 1);
+				count++;
+			}
+		}
+	}
+
 	public Boolean parseTrue() throws ParseException {
-		expectedNext("true".toCharArray());
+		expectedNext(TRUE);
 		return true;
 	}
 
 	public Boolean parseFalse() throws ParseException {
-		expectedNext("false".toCharArray());
+		expectedNext(FALSE);
 		return false;
 	}
 
 	public Object parseNull() throws ParseException {
-		expectedNext("null".toCharArray());
+		expectedNext(NULL);
 		return null;
 	}
 
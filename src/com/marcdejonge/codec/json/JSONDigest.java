@@ -0,0 +1,325 @@
+package com.marcdejonge.codec.json;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZoneId;
+import java.time.temporal.TemporalAccessor;
+import java.time.temporal.TemporalAmount;
+import java.util.Base64;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+import java.util.UUID;
+import java.util.function.Supplier;
+import java.util.stream.BaseStream;
+
+import com.marcdejonge.codec.ConcurrentMixedMap;
+import com.marcdejonge.codec.MixedList;
+import com.marcdejonge.codec.MixedMap;
+import com.marcdejonge.codec.UnexpectedTypeException;
+import com.marcdejonge.codec.json.JSONEncoder.Options;
+
+/**
+ * <p>
+ * The {@link JSONDigest} calculates hashes of documents based on their canonical JSON form (see
+ * {@link Options#CANONICAL}), so equal documents have equal hashes regardless of the order in which their keys were
+ * inserted. The encoded text is fed directly into the hash while it is being produced, it is never materialized.
+ * </p>
+ * <p>
+ * The {@link #digest(Object, MessageDigest)} and {@link #etag(Object)} methods hash the exact UTF-8 bytes of the
+ * canonical form using a cryptographic {@link MessageDigest}. The {@link #hash64(Object)} method calculates a fast
+ * 64-bit non-cryptographic hash of the structure of the document, for which the hashes of unchanged {@link MixedMap}
+ * and {@link MixedList} subtrees are remembered, so rehashing a large document after a small change only rehashes the
+ * path to that change.
+ * </p>
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+public class JSONDigest {
+	private static final EnumSet<Options> CANONICAL = EnumSet.of(Options.CANONICAL);
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private static final long OBJECT_SEED = 0x6f626a656374L;
+	private static final long ARRAY_SEED = 0x6172726179L;
+
+	/**
+	 * Feeds the canonical JSON form of the document into the digest.
+	 *
+	 * @param document
+	 *            The document that should be hashed
+	 * @param digest
+	 *            The digest that is updated with the UTF-8 bytes of the canonical form
+	 * @return The completed hash
+	 * @throws IOException
+	 *             When reading a lazy value from the document failed
+	 */
+	public static byte[] digest(Object document, MessageDigest digest) throws IOException {
+		DigestOutput output = new DigestOutput(digest);
+		new JSONEncoder(output, CANONICAL).write(document);
+		output.finish();
+		return digest.digest();
+	}
+
+	/**
+	 * @param document
+	 *            The document that should be hashed
+	 * @return A strong HTTP entity tag (including the quotes), based on the SHA-256 hash of the canonical form of the
+	 *         document.
+	 * @throws IOException
+	 *             When reading a lazy value from the document failed
+	 */
+	public static String etag(Object document) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			// Every Java platform is required to support SHA-256
+			throw new AssertionError(ex);
+		}
+		return '"' + Base64.getUrlEncoder().withoutPadding().encodeToString(digest(document, digest)) + '"';
+	}
+
+	private final int maxEntries;
+	private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+	private final LinkedHashMap<JSONCache.Key, long[]> hashes;
+
+	/**
+	 * Creates a new {@link JSONDigest} that remembers the hashes of at most 4096 subtrees.
+	 */
+	public JSONDigest() {
+		this(4096);
+	}
+
+	/**
+	 * @param maxEntries
+	 *            The maximum number of subtrees of which the hash is remembered
+	 */
+	public JSONDigest(int maxEntries) {
+		this.maxEntries = maxEntries;
+		hashes = new LinkedHashMap<JSONCache.Key, long[]>(64, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Entry<JSONCache.Key, long[]> eldest) {
+				return size() > JSONDigest.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Calculates a 64-bit hash of the canonical form of the document. Equal documents always have the same hash, also
+	 * between different runs of the application.
+	 *
+	 * @param document
+	 *            The document that should be hashed
+	 * @return The hash of the document
+	 * @throws IOException
+	 *             When reading a lazy value from the document failed
+	 */
+	public long hash64(Object document) throws IOException {
+		return new Hasher().hash(document);
+	}
+
+	/**
+	 * Forgets all the remembered hashes.
+	 */
+	public synchronized void clear() {
+		hashes.clear();
+	}
+
+	private synchronized long[] lookup(Object container) {
+		for (Object key; (key = queue.poll()) != null;) {
+			hashes.remove(key);
+		}
+		return hashes.get(new JSONCache.Key(container, null));
+	}
+
+	/**
+	 * @return The remembered hash of the {@link MixedMap} or {@link MixedList}, or <code>null</code> when it has not
+	 *         been hashed or has been changed since.
+	 */
+	long[] remembered(Object container, int version) {
+		long[] known = lookup(container);
+		return known != null && known[0] == version ? known : null;
+	}
+
+	private synchronized void store(Object container, int version, long hash) {
+		hashes.put(new JSONCache.Key(container, queue), new long[] { version, hash });
+	}
+
+	/**
+	 * Calculates the hash of a single document. The hash of a container mixes the hashes of its elements, such that the
+	 * hash of a subtree can be reused.
+	 */
+	private class Hasher implements Appendable {
+		private final JSONEncoder encoder = new JSONEncoder(this, CANONICAL);
+		private long text;
+
+		// If the values that have been hashed can not change without changing the version of their container
+		private boolean stable;
+		// The container of which the elements are being hashed
+		private Object enclosing;
+
+		long hash(Object value) throws IOException {
+			while (value instanceof Supplier || value instanceof Optional) {
+				value = value instanceof Optional ? ((Optional<?>) value).orElse(null) : ((Supplier<?>) value).get();
+				stable = false;
+			}
+
+			if (value instanceof MixedMap) {
+				// A concurrent map only changes the version of the concurrent map it is in
+				stable &= !(value instanceof ConcurrentMixedMap) || enclosing instanceof ConcurrentMixedMap;
+				return hashTracked(value, ((MixedMap) value).version());
+			} else if (value instanceof MixedList) {
+				return hashTracked(value, ((MixedList) value).version());
+			} else if (value instanceof Map) {
+				stable = false;
+				return hashObject((Map<?, ?>) value);
+			} else if (value instanceof Iterable) {
+				stable = false;
+				return hashArray(((Iterable<?>) value).iterator());
+			} else if (value instanceof Iterator) {
+				stable = false;
+				return hashArray((Iterator<?>) value);
+			} else if (value instanceof BaseStream) {
+				stable = false;
+				return hashArray(((BaseStream<?, ?>) value).iterator());
+			} else if (value == null
+			           || value instanceof String
+			           || value instanceof Boolean
+			           || value instanceof Number) {
+				stable &= JSONEncoder.isImmutable(value);
+				return hashText(value);
+			} else if (value instanceof CharSequence
+			           || Base64Reader.isBinary(value)
+			           || JSONEncoder.isPrimitiveArray(value)
+			           || value instanceof char[]) {
+				stable = false;
+				return hashText(value);
+			} else if (value instanceof Enum
+			           || value instanceof UUID
+			           || value instanceof TemporalAccessor
+			           || value instanceof TemporalAmount
+			           || value instanceof ZoneId
+			           || value instanceof OptionalInt
+			           || value instanceof OptionalLong
+			           || value instanceof OptionalDouble) {
+				// These are all immutable values
+				return hashText(value);
+			} else {
+				stable = false;
+				try {
+					return hashObject(MixedMap.from(value));
+				} catch (UnexpectedTypeException ex) {
+					// The encoder writes the string representation of these values
+					return hashText(value.toString());
+				}
+			}
+		}
+
+		private long hashTracked(Object container, int version) throws IOException {
+			long[] known = lookup(container);
+			if (known != null && known[0] == version) {
+				return known[1];
+			}
+
+			boolean outerStable = stable;
+			stable = true;
+			Object outerEnclosing = enclosing;
+			enclosing = container;
+			long hash;
+			if (container instanceof MixedMap) {
+				hash = hashObject((MixedMap) container);
+			} else {
+				hash = hashArray(((MixedList) container).iterator());
+			}
+			if (stable) {
+				store(container, version, hash);
+			}
+			stable &= outerStable;
+			enclosing = outerEnclosing;
+			return hash;
+		}
+
+		private long hashObject(Map<?, ?> map) throws IOException {
+			long hash = OBJECT_SEED;
+			for (Iterator<? extends Entry<?, ?>> it = encoder.entries(map); it.hasNext();) {
+				Entry<?, ?> entry = it.next();
+				hash = mix(hash, hashText(String.valueOf(entry.getKey())));
+				hash = mix(hash, hash(entry.getValue()));
+			}
+			return hash;
+		}
+
+		private long hashArray(Iterator<?> it) throws IOException {
+			long hash = ARRAY_SEED;
+			while (it.hasNext()) {
+				hash = mix(hash, hash(it.next()));
+			}
+			return hash;
+		}
+
+		private long hashText(Object value) throws IOException {
+			text = FNV_OFFSET;
+			encoder.write(value, 0);
+			return text;
+		}
+
+		@Override
+		public Appendable append(CharSequence csq) {
+			return append(csq, 0, csq.length());
+		}
+
+		@Override
+		public Appendable append(CharSequence csq, int start, int end) {
+			for (int ix = start; ix < end; ix++) {
+				append(csq.charAt(ix));
+			}
+			return this;
+		}
+
+		@Override
+		public Appendable append(char c) {
+			text = (text ^ c) * FNV_PRIME;
+			return this;
+		}
+	}
+
+	private static long mix(long hash, long value) {
+		hash = (hash ^ value) * FNV_PRIME;
+		return hash ^ (hash >>> 32);
+	}
+
+	/**
+	 * Encodes the characters as UTF-8 into the digest, using a small buffer.
+	 */
+	private static final class DigestOutput extends UTF8Output {
+		private final MessageDigest digest;
+
+		DigestOutput(MessageDigest digest) {
+			super(new byte[1024]);
+			this.digest = digest;
+		}
+
+		@Override
+		void finish() {
+			super.finish();
+			overflow();
+		}
+
+		@Override
+		protected void overflow() {
+			digest.update(buffer, 0, pos);
+			pos = 0;
+		}
+	}
+}
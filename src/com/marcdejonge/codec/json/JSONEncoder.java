@@ -1,16 +1,78 @@
 package com.marcdejonge.codec.json;
 
+import java.io.Flushable;
 import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.Buffer;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.time.ZoneId;
+import java.time.temporal.TemporalAccessor;
+import java.time.temporal.TemporalAmount;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.EnumSet;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+import java.util.PrimitiveIterator;
+import java.util.RandomAccess;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.BaseStream;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 
+import com.marcdejonge.codec.ConcurrentMixedMap;
+import com.marcdejonge.codec.MixedList;
 import com.marcdejonge.codec.MixedMap;
 import com.marcdejonge.codec.UnexpectedTypeException;
 
 public class JSONEncoder {
 	public static enum Options {
-			PRETTY
+			PRETTY,
+			/**
+			 * Large lists are split into chunks that are encoded in parallel on the common {@link ForkJoinPool}. The
+			 * output is exactly the same as the sequential encoding.
+			 */
+			PARALLEL,
+			/**
+			 * Writes the canonical form of the document, such that equal documents are always encoded into exactly the
+			 * same text. The keys of objects are sorted, numbers are written in their shortest normalized form
+			 * (<code>1.50</code>, <code>1.5e0</code> and <code>1.5</code> are all written as <code>1.5</code>, NaN and
+			 * infinity as <code>null</code>) and only the characters that must be escaped are escaped.
+			 */
+			CANONICAL,
+			/**
+			 * Writes a <code>/</code> as is, instead of escaping it as <code>\/</code>. The escaping is only needed
+			 * when the JSON is embedded in an HTML script element.
+			 */
+			UNESCAPED_SLASH,
+			/**
+			 * Escapes all characters outside of the ASCII range, such that the output is pure ASCII.
+			 */
+			ASCII_ONLY
 	}
 
 	public static String toString(Object input) {
@@ -28,36 +90,355 @@ public class JSONEncoder {
 		new JSONEncoder(output).write(input);
 	}
 
-	private final Appendable out;
+	/**
+	 * The exact size of an encoded document, as calculated by {@link JSONEncoder#encodedLength(Object)}.
+	 */
+	public static final class EncodedLength {
+		private final long chars;
+		private final long bytes;
+
+		EncodedLength(long chars, long bytes) {
+			this.chars = chars;
+			this.bytes = bytes;
+		}
+
+		/**
+		 * @return The number of UTF-16 characters of the encoded document.
+		 */
+		public long getChars() {
+			return chars;
+		}
+
+		/**
+		 * @return The number of bytes of the encoded document in UTF-8, as used for the <code>Content-Length</code>.
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		@Override
+		public String toString() {
+			return "EncodedLength [chars=" + chars + ", bytes=" + bytes + "]";
+		}
+	}
+
+	/**
+	 * Calculates the exact size of the document when it would be encoded with the default options, without producing
+	 * the text. Note that lazy values in the document ({@link Iterator}, {@link BaseStream}) are consumed.
+	 */
+	public static EncodedLength encodedLength(Object input) {
+		return encodedLength(input, EnumSet.noneOf(Options.class), null);
+	}
+
+	/**
+	 * Calculates the exact size of the document when it would be encoded with the given options, without producing the
+	 * text. Note that lazy values in the document ({@link Iterator}, {@link BaseStream}) are consumed.
+	 *
+	 * @param input
+	 *            The document that would be encoded
+	 * @param options
+	 *            The options that would be used for encoding
+	 * @param cache
+	 *            The cache in which the lengths of unchanged {@link MixedMap} and {@link MixedList} subtrees are
+	 *            remembered, or <code>null</code> to always measure everything
+	 * @return The number of characters and UTF-8 bytes of the encoded document
+	 */
+	public static EncodedLength encodedLength(Object input, EnumSet<Options> options, JSONCache cache) {
+		EnumSet<Options> sequential = options.clone();
+		sequential.remove(Options.PARALLEL);
+		Counter counter = new Counter();
+		try {
+			new JSONEncoder(counter, sequential, cache).write(input);
+		} catch (IOException e) {
+			// Should never be able to happen
+			throw new AssertionError(e);
+		}
+		return new EncodedLength(counter.chars, counter.bytes);
+	}
+
+	/**
+	 * Encodes the document as UTF-8 into a single array of exactly the right size, without any intermediate buffers.
+	 */
+	public static byte[] toUTF8(Object input) {
+		return toUTF8(input, EnumSet.noneOf(Options.class), null);
+	}
+
+	/**
+	 * Encodes the document as UTF-8 into a single array of exactly the right size, without any intermediate buffers.
+	 * The document is walked twice, first to measure it and then to encode it, so it should not contain lazy values.
+	 *
+	 * @param input
+	 *            The document that should be encoded
+	 * @param options
+	 *            The options for encoding
+	 * @param cache
+	 *            The cache of the lengths and encoded forms of subtrees, or <code>null</code> to not use any caching
+	 * @return The encoded document
+	 */
+	public static byte[] toUTF8(Object input, EnumSet<Options> options, JSONCache cache) {
+		long length = encodedLength(input, options, cache).getBytes();
+		if (length > Integer.MAX_VALUE - 8) {
+			throw new OutOfMemoryError("The encoded document of " + length + " bytes does not fit in an array");
+		}
+
+		UTF8Output output = new UTF8Output(new byte[(int) length]);
+		try {
+			new JSONEncoder(output, options, cache).write(input);
+		} catch (IOException e) {
+			// Should never be able to happen
+			throw new AssertionError(e);
+		}
+		output.finish();
+		if (output.pos != length) {
+			throw new IllegalStateException("The document has been modified while it was being encoded");
+		}
+		return output.buffer;
+	}
+
+	/**
+	 * Counts the characters that are appended, and the number of bytes they take in UTF-8.
+	 */
+	private static final class Counter implements Appendable {
+		long chars;
+		long bytes;
+		private char last;
+
+		@Override
+		public Appendable append(CharSequence csq) {
+			return append(csq, 0, csq.length());
+		}
+
+		@Override
+		public Appendable append(CharSequence csq, int start, int end) {
+			for (int ix = start; ix < end; ix++) {
+				append(csq.charAt(ix));
+			}
+			return this;
+		}
+
+		@Override
+		public Appendable append(char c) {
+			chars++;
+			bytes += UTF8Output.byteLength(c, last);
+			last = c;
+			return this;
+		}
+	}
+
+	/**
+	 * The number of elements of a lazy sequence ({@link Iterator}, {@link BaseStream}) after which the output will be
+	 * flushed, when it is {@link Flushable}.
+	 */
+	private static final int FLUSH_INTERVAL = 1024;
+
+	/**
+	 * The minimum size of a list before it will be encoded in parallel, smaller lists are always encoded sequentially.
+	 */
+	private static final int PARALLEL_THRESHOLD = 4096;
+
+	/**
+	 * The number of list elements that are encoded together by a single parallel task.
+	 */
+	private static final int PARALLEL_CHUNK_SIZE = 1024;
+
+	/**
+	 * The number of characters of a string that are scanned at once.
+	 */
+	private static final int ESCAPE_BUFFER_SIZE = 512;
+
+	/**
+	 * The maximum number of base64 characters of a binary value that are produced at once.
+	 */
+	private static final int BASE64_CHUNK_SIZE = 4096;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * The escape sequences of the ASCII characters, <code>null</code> for the characters that are written as is.
+	 */
+	private static final String[] ESCAPES = escapes(true, true);
+	private static final String[] UNESCAPED_SLASH_ESCAPES = escapes(false, true);
+	private static final String[] CANONICAL_ESCAPES = escapes(false, false);
+
+	private static String[] escapes(boolean slash, boolean delete) {
+		String[] escapes = new String[128];
+		for (char c = 0; c < 32; c++) {
+			escapes[c] = new String(new char[] { '\\', 'u', '0', '0', HEX[c >> 4], HEX[c & 15] });
+		}
+		escapes['\b'] = "\\b";
+		escapes['\f'] = "\\f";
+		escapes['\n'] = "\\n";
+		escapes['\r'] = "\\r";
+		escapes['\t'] = "\\t";
+		escapes['"'] = "\\\"";
+		escapes['\\'] = "\\\\";
+		if (slash) {
+			escapes['/'] = "\\/";
+		}
+		if (delete) {
+			escapes[127] = "\\u007f";
+		}
+		return escapes;
+	}
+
+	/**
+	 * The order of the entries of an object in the canonical form.
+	 */
+	private static final Comparator<Entry<?, ?>> KEY_ORDER = Comparator.comparing(e -> String.valueOf(e.getKey()));
+
+	private Appendable out;
+	private final EnumSet<Options> options;
+	private final JSONCache cache;
+	private final JSONKeyCache keyCache;
 	private boolean pretty;
+	private boolean parallel;
+	private boolean canonical;
+	private boolean asciiOnly;
+	private final String[] escapes;
+
+	// If the values that have been written can not change without changing the version of the container that is
+	// being cached, the same rule as the JSONDigest uses
+	private boolean stable = true;
+	// The container that is being written through the cache
+	private Object enclosing;
+
+	// The buffer through which strings are escaped, allocated on first use
+	private char[] chars;
+	private CharBuffer charView;
+	// The buffer in which numbers and identifiers are formatted
+	private final char[] scratch = new char[40];
 
 	public JSONEncoder(Appendable out) {
 		this(out, EnumSet.noneOf(Options.class));
 	}
 
 	public JSONEncoder(Appendable out, EnumSet<Options> options) {
+		this(out, options, null);
+	}
+
+	/**
+	 * @param out
+	 *            The output to which the JSON will be written
+	 * @param options
+	 *            The options for encoding
+	 * @param cache
+	 *            The cache of encoded {@link MixedMap} and {@link MixedList} subtrees, or <code>null</code> to not use
+	 *            any caching
+	 */
+	public JSONEncoder(Appendable out, EnumSet<Options> options, JSONCache cache) {
+		this(out, options, cache, null);
+	}
+
+	/**
+	 * @param out
+	 *            The output to which the JSON will be written
+	 * @param options
+	 *            The options for encoding
+	 * @param cache
+	 *            The cache of encoded {@link MixedMap} and {@link MixedList} subtrees, or <code>null</code> to not use
+	 *            any caching
+	 * @param keyCache
+	 *            The cache of encoded object keys, or <code>null</code> to escape every key when it is written
+	 */
+	public JSONEncoder(Appendable out, EnumSet<Options> options, JSONCache cache, JSONKeyCache keyCache) {
 		this.out = out;
+		this.options = options.clone();
+		this.cache = cache;
+		this.keyCache = keyCache;
 
 		if (options.contains(Options.PRETTY)) {
 			pretty = true;
 		}
+		if (options.contains(Options.PARALLEL)) {
+			parallel = true;
+		}
+		if (options.contains(Options.CANONICAL)) {
+			canonical = true;
+		}
+		if (options.contains(Options.ASCII_ONLY)) {
+			asciiOnly = true;
+		}
+
+		if (canonical) {
+			escapes = CANONICAL_ESCAPES;
+		} else if (options.contains(Options.UNESCAPED_SLASH)) {
+			escapes = UNESCAPED_SLASH_ESCAPES;
+		} else {
+			escapes = ESCAPES;
+		}
 	}
 
 	public void write(Object input) throws IOException {
 		write(input, 0);
 	}
 
-	private void write(Object input, int indent) throws IOException {
+	void write(Object input, int indent) throws IOException {
+		if (cache != null && (isUntracked(input)
+		                      || !(input instanceof MixedMap || input instanceof MixedList || isImmutable(input)))) {
+			stable = false;
+		}
+
 		if (input == null) {
 			out.append("null");
+		} else if (input instanceof Integer || input instanceof Long || input instanceof Short
+		           || input instanceof Byte) {
+			writeNumber(((Number) input).longValue());
+		} else if (input instanceof Double) {
+			writeNumber(((Double) input).doubleValue());
+		} else if (input instanceof Float) {
+			writeNumber(((Float) input).floatValue());
 		} else if (input instanceof Number) {
-			out.append(input.toString());
+			out.append(canonical ? canonicalNumber((Number) input) : input.toString());
 		} else if (input instanceof Boolean) {
 			out.append(input.toString());
 		} else if (input instanceof CharSequence) {
 			write((CharSequence) input);
+		} else if (Base64Reader.isBinary(input)) {
+			writeBase64(new Base64Reader(input, BASE64_CHUNK_SIZE));
+		} else if (input instanceof TapeMap) {
+			writeTape(((TapeMap) input).tape, ((TapeMap) input).start, indent);
+		} else if (input instanceof TapeList) {
+			writeTape(((TapeList) input).tape, ((TapeList) input).start, indent);
+		} else if (cache != null && (input instanceof MixedMap || input instanceof MixedList)) {
+			if (out instanceof Counter) {
+				writeMeasured(input, indent);
+			} else {
+				writeCached(input, indent);
+			}
+		} else if (input instanceof MixedMap) {
+			write((MixedMap) input, indent);
 		} else if (input instanceof Collection) {
 			write((Collection<?>) input, indent);
+		} else if (input instanceof Iterable && !(input instanceof Map)) {
+			write(((Iterable<?>) input).iterator(), indent, true);
+		} else if (input instanceof Iterator) {
+			write((Iterator<?>) input, indent, true);
+		} else if (input instanceof BaseStream) {
+			write((BaseStream<?, ?>) input, indent, true);
+		} else if (input instanceof Supplier) {
+			write(((Supplier<?>) input).get(), indent);
+		} else if (isPrimitiveArray(input)) {
+			writePrimitiveArray(input, indent);
+		} else if (input instanceof char[]) {
+			write(CharBuffer.wrap((char[]) input));
+		} else if (input instanceof Optional) {
+			write(((Optional<?>) input).orElse(null), indent);
+		} else if (input instanceof OptionalInt) {
+			OptionalInt optional = (OptionalInt) input;
+			write(optional.isPresent() ? (Object) optional.getAsInt() : null, indent);
+		} else if (input instanceof OptionalLong) {
+			OptionalLong optional = (OptionalLong) input;
+			write(optional.isPresent() ? (Object) optional.getAsLong() : null, indent);
+		} else if (input instanceof OptionalDouble) {
+			OptionalDouble optional = (OptionalDouble) input;
+			write(optional.isPresent() ? (Object) optional.getAsDouble() : null, indent);
+		} else if (input instanceof Enum) {
+			write(((Enum<?>) input).name());
+		} else if (input instanceof UUID) {
+			write((UUID) input);
+		} else if (input instanceof TemporalAccessor || input instanceof TemporalAmount || input instanceof ZoneId) {
+			// The string representations of the java.time values are their ISO-8601 forms
+			write(input.toString());
 		} else {
 			try {
 				write(MixedMap.from(input), indent);
@@ -68,82 +449,554 @@ public class JSONEncoder {
 		}
 	}
 
+	/**
+	 * Writes an integer number, without creating a string for it.
+	 */
+	private void writeNumber(long value) throws IOException {
+		if (value == Long.MIN_VALUE) {
+			// Can not be negated
+			out.append("-9223372036854775808");
+			return;
+		}
+
+		int pos = scratch.length;
+		long rest = Math.abs(value);
+		do {
+			scratch[--pos] = (char) ('0' + rest % 10);
+			rest /= 10;
+		} while (rest != 0);
+		if (value < 0) {
+			scratch[--pos] = '-';
+		}
+		appendChars(scratch, pos, scratch.length);
+	}
+
+	/**
+	 * Writes a double in the same form as {@link Double#toString(double)}, or in its canonical form. Whole numbers of
+	 * less than 10 million are written without creating a string.
+	 */
+	private void writeNumber(double value) throws IOException {
+		if (canonical) {
+			out.append(canonicalNumber(value));
+		} else if (value == (long) value && Math.abs(value) < 1e7 && (value != 0 || 1 / value > 0)) {
+			writeNumber((long) value);
+			out.append(".0");
+		} else {
+			out.append(Double.toString(value));
+		}
+	}
+
+	/**
+	 * Writes a float in the same form as {@link Float#toString(float)}, or in its canonical form.
+	 */
+	private void writeNumber(float value) throws IOException {
+		if (canonical) {
+			out.append(canonicalNumber(Float.valueOf(value)));
+		} else if (value == (long) value && Math.abs(value) < 1e7 && (value != 0 || 1 / value > 0)) {
+			writeNumber((long) value);
+			out.append(".0");
+		} else {
+			out.append(Float.toString(value));
+		}
+	}
+
+	private void write(UUID uuid) throws IOException {
+		long high = uuid.getMostSignificantBits();
+		long low = uuid.getLeastSignificantBits();
+		int pos = 0;
+		scratch[pos++] = '"';
+		for (int shift = 60; shift >= 0; shift -= 4) {
+			scratch[pos++] = HEX[(int) (high >>> shift) & 15];
+			if (shift == 32 || shift == 16 || shift == 0) {
+				scratch[pos++] = '-';
+			}
+		}
+		for (int shift = 60; shift >= 0; shift -= 4) {
+			scratch[pos++] = HEX[(int) (low >>> shift) & 15];
+			if (shift == 48) {
+				scratch[pos++] = '-';
+			}
+		}
+		scratch[pos++] = '"';
+		appendChars(scratch, 0, pos);
+	}
+
+	/**
+	 * @return true for the arrays and buffers of primitive numbers or booleans, which are written as JSON arrays.
+	 *         Byte arrays and buffers are binary values and char arrays are strings, so those are not included.
+	 */
+	static boolean isPrimitiveArray(Object value) {
+		return value instanceof int[]
+		       || value instanceof long[]
+		       || value instanceof double[]
+		       || value instanceof float[]
+		       || value instanceof short[]
+		       || value instanceof boolean[]
+		       || value instanceof IntBuffer
+		       || value instanceof LongBuffer
+		       || value instanceof DoubleBuffer
+		       || value instanceof FloatBuffer
+		       || value instanceof ShortBuffer;
+	}
+
+	/**
+	 * @return The number of elements of a primitive array or the remaining elements of a buffer.
+	 */
+	static int primitiveLength(Object array) {
+		if (array instanceof Buffer) {
+			return ((Buffer) array).remaining();
+		} else {
+			return Array.getLength(array);
+		}
+	}
+
+	/**
+	 * Writes a single element of a primitive array or buffer, without boxing it. The index of a buffer is relative to
+	 * its position, which is not changed.
+	 */
+	void writePrimitive(Object array, int index) throws IOException {
+		if (array instanceof int[]) {
+			writeNumber(((int[]) array)[index]);
+		} else if (array instanceof long[]) {
+			writeNumber(((long[]) array)[index]);
+		} else if (array instanceof double[]) {
+			writeNumber(((double[]) array)[index]);
+		} else if (array instanceof float[]) {
+			writeNumber(((float[]) array)[index]);
+		} else if (array instanceof short[]) {
+			writeNumber(((short[]) array)[index]);
+		} else if (array instanceof boolean[]) {
+			out.append(((boolean[]) array)[index] ? "true" : "false");
+		} else if (array instanceof IntBuffer) {
+			IntBuffer buffer = (IntBuffer) array;
+			writeNumber(buffer.get(buffer.position() + index));
+		} else if (array instanceof LongBuffer) {
+			LongBuffer buffer = (LongBuffer) array;
+			writeNumber(buffer.get(buffer.position() + index));
+		} else if (array instanceof DoubleBuffer) {
+			DoubleBuffer buffer = (DoubleBuffer) array;
+			writeNumber(buffer.get(buffer.position() + index));
+		} else if (array instanceof FloatBuffer) {
+			FloatBuffer buffer = (FloatBuffer) array;
+			writeNumber(buffer.get(buffer.position() + index));
+		} else {
+			ShortBuffer buffer = (ShortBuffer) array;
+			writeNumber(buffer.get(buffer.position() + index));
+		}
+	}
+
+	private void writePrimitiveArray(Object array, int indent) throws IOException {
+		int length = primitiveLength(array);
+		indent = startArray(indent);
+		for (int ix = 0; ix < length; ix++) {
+			nextElement(ix, indent, false);
+			writePrimitive(array, ix);
+		}
+		endArray();
+	}
+
 	private int write(CharSequence string) throws IOException {
-		int length = 2;
 		out.append('\"');
-		for (int ix = 0; ix < string.length(); ix++) {
-			char c = string.charAt(ix);
-			switch (c) {
-			case '"':
-				length += 2;
-				out.append("\\\"");
-				break;
-			case '\\':
-				length += 2;
-				out.append("\\\\");
-				break;
-			case '/':
-				length += 2;
-				out.append("\\/");
-				break;
-			case '\b':
-				length += 2;
-				out.append("\\b");
-				break;
-			case '\f':
-				length += 2;
-				out.append("\\f");
-				break;
-			case '\n':
-				length += 2;
-				out.append("\\n");
-				break;
-			case '\r':
-				length += 2;
-				out.append("\\r");
-				break;
-			case '\t':
-				length += 2;
-				out.append("\\t");
-				break;
-			default:
-				if (c < 16) {
-					length += 6;
-					out.append("\\u000" + Integer.toHexString(c));
-				} else if (c < 32 || c == 127) {
-					length += 6;
-					out.append("\\u00" + Integer.toHexString(c));
+		int length = writeEscaped(string, 0, string.length()) + 2;
+		out.append('\"');
+		return length;
+	}
+
+	/**
+	 * Writes the escaped characters of a part of the string, without the surrounding quotes.
+	 *
+	 * @return The number of characters that have been written
+	 */
+	int writeEscaped(CharSequence string, int start, int end) throws IOException {
+		if (chars == null) {
+			chars = new char[ESCAPE_BUFFER_SIZE];
+		}
+
+		char[] chars = this.chars;
+		String[] escapes = this.escapes;
+		boolean asciiOnly = this.asciiOnly;
+
+		int length = end - start;
+		for (int offset = start; offset < end; offset += ESCAPE_BUFFER_SIZE) {
+			int count = Math.min(ESCAPE_BUFFER_SIZE, end - offset);
+			getChars(string, offset, offset + count);
+
+			// Find the characters that need escaping, everything in between is copied as a single run
+			int clean = 0;
+			for (int ix = 0; ix < count; ix++) {
+				char c = chars[ix];
+				if (c < 128 ? escapes[c] == null : !asciiOnly) {
+					continue;
+				}
+
+				appendChars(clean, ix);
+				clean = ix + 1;
+				if (c < 128) {
+					out.append(escapes[c]);
+					length += escapes[c].length() - 1;
 				} else {
-					length += 1;
-					out.append(c);
+					out.append("\\u").append(HEX[c >> 12]).append(HEX[(c >> 8) & 15]);
+					out.append(HEX[(c >> 4) & 15]).append(HEX[c & 15]);
+					length += 5;
 				}
 			}
+			appendChars(clean, count);
 		}
-		out.append('\"');
 		return length;
 	}
 
-	private void write(Collection<?> list, int indent) throws IOException {
-		if (pretty) {
-			out.append("[");
-			indent += 2;
+	/**
+	 * Copies a part of the string into the character buffer.
+	 */
+	private void getChars(CharSequence string, int start, int end) {
+		if (string instanceof String) {
+			((String) string).getChars(start, end, chars, 0);
+		} else if (string instanceof StringBuilder) {
+			((StringBuilder) string).getChars(start, end, chars, 0);
+		} else if (string instanceof StringBuffer) {
+			((StringBuffer) string).getChars(start, end, chars, 0);
+		} else {
+			for (int ix = start; ix < end; ix++) {
+				chars[ix - start] = string.charAt(ix);
+			}
+		}
+	}
+
+	/**
+	 * Appends a run of characters from the character buffer in bulk.
+	 */
+	private void appendChars(int start, int end) throws IOException {
+		if (start == end) {
+			return;
+		} else if (out instanceof StringBuilder || out instanceof Writer || out instanceof StringBuffer) {
+			appendChars(chars, start, end);
+		} else {
+			if (charView == null) {
+				charView = CharBuffer.wrap(chars);
+			}
+			out.append(charView, start, end);
+		}
+	}
+
+	/**
+	 * Appends a part of the character array, in bulk when the output supports it.
+	 */
+	private void appendChars(char[] source, int start, int end) throws IOException {
+		if (out instanceof StringBuilder) {
+			((StringBuilder) out).append(source, start, end - start);
+		} else if (out instanceof Writer) {
+			((Writer) out).write(source, start, end - start);
+		} else if (out instanceof StringBuffer) {
+			((StringBuffer) out).append(source, start, end - start);
 		} else {
-			out.append('[');
+			for (int ix = start; ix < end; ix++) {
+				out.append(source[ix]);
+			}
 		}
+	}
+
+	/**
+	 * Writes a binary value as a base64 string, in chunks such that the complete string is never in memory. The base64
+	 * characters never need escaping; the <code>/</code> is only escaped in strings to avoid <code>&lt;/</code>.
+	 */
+	private void writeBase64(Base64Reader reader) throws IOException {
+		out.append('"');
+		for (int count; (count = reader.read()) >= 0;) {
+			appendChars(reader.chars(), 0, count);
+		}
+		out.append('"');
+	}
 
-		boolean first = true;
-		for (Object object : list) {
-			if (first) {
-				first = false;
-			} else if (pretty) {
-				out.append(",\n");
-				indent(indent);
+	/**
+	 * @return If the value can not be modified, so the version of the container that holds it covers it. Other values,
+	 *         such as a {@link java.util.ArrayList} or an array, can change without the container knowing about it.
+	 */
+	static boolean isImmutable(Object value) {
+		return value == null
+		       || value instanceof String
+		       || value instanceof Boolean
+		       || value instanceof Integer
+		       || value instanceof Long
+		       || value instanceof Double
+		       || value instanceof Float
+		       || value instanceof Short
+		       || value instanceof Byte
+		       || value instanceof BigInteger
+		       || value instanceof BigDecimal
+		       || value instanceof Enum
+		       || value instanceof UUID
+		       || value instanceof TemporalAccessor
+		       || value instanceof TemporalAmount
+		       || value instanceof ZoneId
+		       || value instanceof OptionalInt
+		       || value instanceof OptionalLong
+		       || value instanceof OptionalDouble;
+	}
+
+	/**
+	 * @return If the value is a {@link ConcurrentMixedMap} that does not change the version of the enclosing container
+	 *         when it is modified. It can still be cached itself, but not as part of that container.
+	 */
+	private boolean isUntracked(Object value) {
+		return value instanceof ConcurrentMixedMap && !(enclosing instanceof ConcurrentMixedMap);
+	}
+
+	/**
+	 * Writes a {@link MixedMap} or {@link MixedList}, copying the encoded form from the cache when it has not been
+	 * modified since it was cached. Only subtrees that consist of tracked containers and immutable values are cached.
+	 */
+	private void writeCached(Object container, int indent) throws IOException {
+		int version = version(container);
+		int context = context(indent);
+		boolean outerStable = stable;
+		stable = true;
+		Object outerEnclosing = enclosing;
+		enclosing = container;
+
+		String cached = cache.lookup(container, version, context);
+		if (cached == JSONCache.CAPTURE) {
+			Appendable original = out;
+			StringBuilder captured = new StringBuilder();
+			out = captured;
+			try {
+				writeContainer(container, indent);
+			} finally {
+				out = original;
+			}
+			out.append(captured);
+			if (stable) {
+				cache.store(container, version, context, captured);
 			} else {
-				out.append(',');
+				cache.reject(container, version, context);
+			}
+		} else if (cached != null) {
+			out.append(cached);
+		} else {
+			writeContainer(container, indent);
+			if (!stable) {
+				cache.reject(container, version, context);
 			}
-			write(object, indent);
 		}
+		stable &= outerStable;
+		enclosing = outerEnclosing;
+	}
+
+	/**
+	 * Measures a {@link MixedMap} or {@link MixedList}, using the cached length when it has not been modified since it
+	 * was measured. Like the encoded form, the length is only cached for subtrees that can not change without changing
+	 * their version.
+	 */
+	private void writeMeasured(Object container, int indent) throws IOException {
+		Counter counter = (Counter) out;
+		int version = version(container);
+		int context = context(indent);
+		boolean outerStable = stable;
+		stable = true;
+		Object outerEnclosing = enclosing;
+		enclosing = container;
+
+		long[] length = cache.lookupLength(container, version, context);
+		if (length != null) {
+			counter.chars += length[0];
+			counter.bytes += length[1];
+			// A container always ends with a bracket, so the next character can never complete a surrogate pair
+			counter.last = ' ';
+		} else {
+			long chars = counter.chars;
+			long bytes = counter.bytes;
+			writeContainer(container, indent);
+			if (stable) {
+				cache.storeLength(container, version, context, counter.chars - chars, counter.bytes - bytes);
+			}
+		}
+		stable &= outerStable;
+		enclosing = outerEnclosing;
+	}
 
+	private static int version(Object container) {
+		if (container instanceof MixedMap) {
+			return ((MixedMap) container).version();
+		} else {
+			return ((MixedList) container).version();
+		}
+	}
+
+	/**
+	 * @return A description of the options and indentation, which determine the encoded form of a subtree.
+	 */
+	private int context(int indent) {
+		// The indentation only influences the output when pretty printing, parallel encoding produces the same output
+		int context = (pretty ? indent : 0) << 16;
+		for (Options option : options) {
+			if (option != Options.PARALLEL) {
+				context |= 1 << option.ordinal();
+			}
+		}
+		return context;
+	}
+
+	private void writeContainer(Object container, int indent) throws IOException {
+		if (container instanceof MixedMap) {
+			write((MixedMap) container, indent);
+		} else {
+			write((Collection<?>) container, indent);
+		}
+	}
+
+	private void write(Collection<?> collection, int indent) throws IOException {
+		Class<?> primitiveType = collection instanceof MixedList ? ((MixedList) collection).primitiveType() : null;
+		if (primitiveType == int.class) {
+			write(((MixedList) collection).intStream(), indent, false);
+		} else if (primitiveType == long.class) {
+			write(((MixedList) collection).longStream(), indent, false);
+		} else if (primitiveType == double.class) {
+			write(((MixedList) collection).doubleStream(), indent, false);
+		} else if (parallel
+		    && collection instanceof RandomAccess
+		    && collection instanceof List
+		    && collection.size() >= PARALLEL_THRESHOLD) {
+			writeParallel((List<?>) collection, indent);
+		} else {
+			write(collection.iterator(), indent, false);
+		}
+	}
+
+	/**
+	 * Writes all the elements of the iterator as a JSON array. The elements are consumed one at a time, so the
+	 * complete sequence never has to be in memory.
+	 *
+	 * @param it
+	 *            The elements that should be written
+	 * @param indent
+	 *            The current indentation, only used for pretty printing
+	 * @param lazy
+	 *            If the elements are produced lazily, in which case the output will be flushed periodically
+	 */
+	private void write(Iterator<?> it, int indent, boolean lazy) throws IOException {
+		indent = startArray(indent);
+		for (int count = 0; it.hasNext(); count++) {
+			nextElement(count, indent, lazy);
+			write(it.next(), indent);
+		}
+		endArray();
+	}
+
+	private void write(BaseStream<?, ?> stream, int indent, boolean lazy) throws IOException {
+		// The primitive streams are iterated without boxing each value
+		if (stream instanceof IntStream) {
+			PrimitiveIterator.OfInt it = ((IntStream) stream).iterator();
+			indent = startArray(indent);
+			for (int count = 0; it.hasNext(); count++) {
+				nextElement(count, indent, lazy);
+				writeNumber(it.nextInt());
+			}
+			endArray();
+		} else if (stream instanceof LongStream) {
+			PrimitiveIterator.OfLong it = ((LongStream) stream).iterator();
+			indent = startArray(indent);
+			for (int count = 0; it.hasNext(); count++) {
+				nextElement(count, indent, lazy);
+				writeNumber(it.nextLong());
+			}
+			endArray();
+		} else if (stream instanceof DoubleStream) {
+			PrimitiveIterator.OfDouble it = ((DoubleStream) stream).iterator();
+			indent = startArray(indent);
+			for (int count = 0; it.hasNext(); count++) {
+				nextElement(count, indent, lazy);
+				writeNumber(it.nextDouble());
+			}
+			endArray();
+		} else {
+			write(stream.iterator(), indent, lazy);
+		}
+	}
+
+	/**
+	 * Writes a large list by encoding chunks of it in parallel, each into its own buffer. The buffers are appended to
+	 * the output in order, with only a limited number of chunks in flight at the same time to bound the memory use.
+	 * Nested lists are encoded sequentially within their chunk.
+	 */
+	private void writeParallel(List<?> list, int indent) throws IOException {
+		EnumSet<Options> chunkOptions = options.clone();
+		chunkOptions.remove(Options.PARALLEL);
+		int maxPending = Math.max(2, ForkJoinPool.getCommonPoolParallelism() * 2);
+		ArrayDeque<ForkJoinTask<StringBuilder>> pending = new ArrayDeque<>(maxPending);
+		AtomicBoolean unstable = new AtomicBoolean();
+
+		int itemIndent = startArray(indent);
+		try {
+			for (int start = 0; start < list.size(); start += PARALLEL_CHUNK_SIZE) {
+				int from = start;
+				int to = Math.min(list.size(), start + PARALLEL_CHUNK_SIZE);
+				pending.add(ForkJoinTask.adapt(() -> {
+					StringBuilder chunk = new StringBuilder();
+					JSONEncoder encoder = new JSONEncoder(chunk, chunkOptions, cache, keyCache);
+					encoder.writeElements(list, from, to, itemIndent);
+					if (!encoder.stable) {
+						unstable.set(true);
+					}
+					return chunk;
+				}).fork());
+
+				if (pending.size() >= maxPending) {
+					out.append(join(pending.poll()));
+				}
+			}
+			while (!pending.isEmpty()) {
+				out.append(join(pending.poll()));
+			}
+			stable &= !unstable.get();
+		} finally {
+			for (ForkJoinTask<?> task : pending) {
+				task.cancel(true);
+			}
+		}
+		endArray();
+	}
+
+	private void writeElements(List<?> list, int from, int to, int indent) throws IOException {
+		for (int ix = from; ix < to; ix++) {
+			nextElement(ix, indent, false);
+			write(list.get(ix), indent);
+		}
+	}
+
+	private static StringBuilder join(ForkJoinTask<StringBuilder> task) throws IOException {
+		try {
+			return task.join();
+		} catch (RuntimeException ex) {
+			// The checked exception is wrapped by the task, possibly more than once when rethrown across threads
+			for (Throwable cause = ex.getCause(); cause != null; cause = cause.getCause()) {
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+			}
+			throw ex;
+		}
+	}
+
+	int startArray(int indent) throws IOException {
+		out.append('[');
+		return pretty ? indent + 2 : indent;
+	}
+
+	void nextElement(int count, int indent, boolean lazy) throws IOException {
+		if (count == 0) {
+			return;
+		} else if (pretty) {
+			out.append(",\n");
+			indent(indent);
+		} else {
+			out.append(',');
+		}
+
+		if (lazy && count % FLUSH_INTERVAL == 0 && out instanceof Flushable) {
+			((Flushable) out).flush();
+		}
+	}
+
+	void endArray() throws IOException {
 		if (pretty) {
 			out.append(" ]");
 		} else {
@@ -151,37 +1004,182 @@ public class JSONEncoder {
 		}
 	}
 
+	/**
+	 * Writes a value directly from a {@link JSONTape}, without converting it into maps, lists or other objects. Only
+	 * the canonical form of an object needs its keys sorted, which is done through the map view.
+	 */
+	private void writeTape(JSONTape tape, int index, int indent) throws IOException {
+		switch (tape.type(index)) {
+		case JSONTape.OBJECT:
+			if (canonical) {
+				write((MixedMap) new TapeMap(tape, index), indent);
+			} else {
+				int end = tape.end(index);
+				int itemIndent = startObject(indent);
+				int count = 0;
+				for (int ix = index + 1; ix < end; ix = tape.next(ix + 1)) {
+					writeTape(tape, ix + 1, writeKey(count++, tape, ix, itemIndent));
+				}
+				endObject();
+			}
+			break;
+		case JSONTape.ARRAY:
+			int end = tape.end(index);
+			int itemIndent = startArray(indent);
+			int count = 0;
+			for (int ix = index + 1; ix < end; ix = tape.next(ix)) {
+				nextElement(count++, itemIndent, false);
+				writeTape(tape, ix, itemIndent);
+			}
+			endArray();
+			break;
+		case JSONTape.STRING:
+			if (tape.isPlain(index)) {
+				writePlain(tape, index);
+			} else {
+				write(tape.string(index));
+			}
+			break;
+		case JSONTape.INT:
+		case JSONTape.LONG:
+			writeNumber(tape.longValue(index));
+			break;
+		case JSONTape.DOUBLE:
+			writeNumber(tape.doubleValue(index));
+			break;
+		default:
+			write(tape.value(index), indent);
+			break;
+		}
+	}
+
+	/**
+	 * Writes the separator, the key and the colon of an entry of an object on a tape, copying a plain key as is.
+	 *
+	 * @return The indentation for the value of this entry
+	 */
+	private int writeKey(int count, JSONTape tape, int key, int indent) throws IOException {
+		if (!tape.isPlain(key)) {
+			return writeKey(count, tape.string(key), indent);
+		}
+
+		nextElement(count, indent, false);
+		int keySize = writePlain(tape, key);
+		if (pretty) {
+			out.append(" : ");
+			return indent + keySize + 3;
+		} else {
+			out.append(':');
+			return indent + keySize;
+		}
+	}
+
+	/**
+	 * Writes a plain string from a tape, which never needs escaping, in chunks through the character buffer.
+	 *
+	 * @return The number of characters that have been written
+	 */
+	private int writePlain(JSONTape tape, int index) throws IOException {
+		if (chars == null) {
+			chars = new char[ESCAPE_BUFFER_SIZE];
+		}
+
+		int length = tape.stringLength(index);
+		out.append('"');
+		for (int offset = 0; offset < length; offset += ESCAPE_BUFFER_SIZE) {
+			int count = Math.min(ESCAPE_BUFFER_SIZE, length - offset);
+			tape.plainChars(index, offset, chars, count);
+			appendChars(0, count);
+		}
+		out.append('"');
+		return length + 2;
+	}
+
 	private void write(MixedMap object, int indent) throws IOException {
+		indent = startObject(indent);
+		int count = 0;
+		for (Iterator<? extends Entry<?, ?>> it = entries(object); it.hasNext();) {
+			Entry<?, ?> entry = it.next();
+			write(entry.getValue(), writeKey(count++, String.valueOf(entry.getKey()), indent));
+		}
+		endObject();
+	}
+
+	/**
+	 * @return The entries of the map in the order in which they should be written, which is sorted by key for the
+	 *         canonical form.
+	 */
+	Iterator<? extends Entry<?, ?>> entries(Map<?, ?> map) {
+		Iterator<? extends Entry<?, ?>> it;
+		if (map instanceof MixedMap) {
+			it = ((MixedMap) map).readEntries();
+		} else {
+			it = map.entrySet().iterator();
+		}
+		if (!canonical) {
+			return it;
+		}
+
+		// The entries that are read from a MixedMap are reused, so they are copied
+		List<Entry<?, ?>> sorted = new ArrayList<>(map.size());
+		while (it.hasNext()) {
+			Entry<?, ?> entry = it.next();
+			sorted.add(new SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+		}
+		sorted.sort(KEY_ORDER);
+		return sorted.iterator();
+	}
+
+	int startObject(int indent) throws IOException {
 		if (pretty) {
 			out.append("{ ");
-			indent += 2;
+			return indent + 2;
 		} else {
 			out.append('{');
+			return indent;
 		}
+	}
 
-		boolean first = true;
-		for (Entry<String, Object> entry : object.entrySet()) {
-			if (first) {
-				first = false;
-			} else if (pretty) {
-				out.append(",\n");
-				indent(indent);
-			} else {
-				out.append(',');
-			}
-
-			int keySize = write(entry.getKey());
+	/**
+	 * Writes the separator (when this is not the first entry), the key and the colon of an entry of an object.
+	 *
+	 * @return The indentation for the value of this entry
+	 */
+	int writeKey(int count, String key, int indent) throws IOException {
+		if (count == 0) {
+			// No separator needed
+		} else if (pretty) {
+			out.append(",\n");
+			indent(indent);
+		} else {
+			out.append(',');
+		}
 
+		char[] literal = keyCache == null ? null : keyCache.literal(key);
+		if (literal != null) {
+			// The literal already contains the quotes and the colon
 			if (pretty) {
-				keySize += 3;
+				appendChars(literal, 0, literal.length - 1);
 				out.append(" : ");
+				return indent + literal.length + 2;
 			} else {
-				out.append(':');
+				appendChars(literal, 0, literal.length);
+				return indent + literal.length - 1;
 			}
+		}
 
-			write(entry.getValue(), indent + keySize);
+		int keySize = write(key);
+
+		if (pretty) {
+			keySize += 3;
+			out.append(" : ");
+		} else {
+			out.append(':');
 		}
+		return indent + keySize;
+	}
 
+	void endObject() throws IOException {
 		if (pretty) {
 			out.append(" }");
 		} else {
@@ -189,6 +1187,72 @@ public class JSONEncoder {
 		}
 	}
 
+	/**
+	 * @return The canonical representation of the number: integers without any fraction, other numbers in their
+	 *         shortest form without trailing zeroes, using an exponent for very large or very small numbers (like
+	 *         <code>1.5e+30</code>) and <code>null</code> for NaN and infinity.
+	 */
+	static String canonicalNumber(Number number) {
+		if (number instanceof Integer
+		    || number instanceof Long
+		    || number instanceof Short
+		    || number instanceof Byte
+		    || number instanceof BigInteger
+		    || number instanceof AtomicInteger
+		    || number instanceof AtomicLong) {
+			return number.toString();
+		} else if (number instanceof Float) {
+			float value = number.floatValue();
+			if (Float.isNaN(value) || Float.isInfinite(value)) {
+				return "null";
+			}
+			// The string form of the float is the shortest one, converting it to a double would add noise digits
+			return canonicalNumber(new BigDecimal(Float.toString(value)));
+		} else if (number instanceof BigDecimal) {
+			return canonicalNumber((BigDecimal) number);
+		} else if (number instanceof Double) {
+			return canonicalNumber(number.doubleValue());
+		} else {
+			try {
+				return canonicalNumber(new BigDecimal(number.toString()));
+			} catch (NumberFormatException ex) {
+				return canonicalNumber(number.doubleValue());
+			}
+		}
+	}
+
+	static String canonicalNumber(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return "null";
+		}
+		return canonicalNumber(new BigDecimal(Double.toString(value)));
+	}
+
+	private static String canonicalNumber(BigDecimal value) {
+		if (value.signum() == 0) {
+			return "0";
+		}
+
+		value = value.stripTrailingZeros();
+		// The position of the most significant digit, 0 for the ones
+		int exponent = value.precision() - value.scale() - 1;
+		if (exponent >= -6 && exponent < 21) {
+			return value.toPlainString();
+		}
+
+		String digits = value.unscaledValue().abs().toString();
+		StringBuilder sb = new StringBuilder(digits.length() + 8);
+		if (value.signum() < 0) {
+			sb.append('-');
+		}
+		sb.append(digits.charAt(0));
+		if (digits.length() > 1) {
+			sb.append('.').append(digits, 1, digits.length());
+		}
+		sb.append(exponent > 0 ? "e+" : "e-").append(Math.abs(exponent));
+		return sb.toString();
+	}
+
 	private void indent(int indent) throws IOException {
 		for (int ix = 0; ix < indent; ix++) {
 			out.append(' ');
@@ -0,0 +1,159 @@
+package com.marcdejonge.codec.json;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * A {@link JSONKeyCache} keeps the encoded form of object keys, quoted and followed by the colon, such that a
+ * {@link JSONEncoder} can write a key with a single bulk copy instead of escaping it again each time.
+ * </p>
+ * <p>
+ * Only keys that never need escaping (printable ASCII without quotes, backslashes or slashes, which covers nearly all
+ * keys in practice) are cached, so the literal is the same for all the encoding options and each character takes
+ * exactly one byte. The number of cached keys is bounded: once the cache is full, new keys are no longer added, which
+ * keeps documents with arbitrary keys (like identifiers) from pushing out the common keys. Known keys can be added up
+ * front using {@link #register(String...)}. A single cache can be shared by many encoders on different threads.
+ * </p>
+ * <p>
+ * Since the first keys that are seen stay cached, a cache is never used implicitly: it is given to the encoders
+ * through {@link JSONEncoder#JSONEncoder(Appendable, java.util.EnumSet, JSONCache, JSONKeyCache)}, and is best kept
+ * per kind of document, with its known keys registered.
+ * </p>
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+public class JSONKeyCache {
+	/**
+	 * Longer keys are not cached.
+	 */
+	private static final int MAX_KEY_LENGTH = 64;
+
+	private final int maxEntries;
+	private final ConcurrentHashMap<String, char[]> literals = new ConcurrentHashMap<>();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder bypassed = new LongAdder();
+
+	/**
+	 * @param maxEntries
+	 *            The maximum number of keys that are cached
+	 */
+	public JSONKeyCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Adds the keys to the cache up front, as far as there is room and they do not need escaping.
+	 *
+	 * @param keys
+	 *            The keys that are known to be used often
+	 */
+	public void register(String... keys) {
+		register(Arrays.asList(keys));
+	}
+
+	/**
+	 * Adds the keys to the cache up front, as far as there is room and they do not need escaping.
+	 *
+	 * @param keys
+	 *            The keys that are known to be used often
+	 */
+	public void register(Collection<String> keys) {
+		for (String key : keys) {
+			if (isEscapeFree(key) && literals.size() < maxEntries) {
+				literals.putIfAbsent(key, toLiteral(key));
+			}
+		}
+	}
+
+	/**
+	 * @return The quoted key followed by a colon, or <code>null</code> when the key needs escaping and should be
+	 *         written normally.
+	 */
+	char[] literal(String key) {
+		char[] literal = literals.get(key);
+		if (literal != null) {
+			hits.increment();
+			return literal;
+		} else if (!isEscapeFree(key)) {
+			bypassed.increment();
+			return null;
+		}
+
+		misses.increment();
+		literal = toLiteral(key);
+		if (literals.size() < maxEntries) {
+			char[] existing = literals.putIfAbsent(key, literal);
+			if (existing != null) {
+				literal = existing;
+			}
+		}
+		return literal;
+	}
+
+	private static boolean isEscapeFree(String key) {
+		if (key.length() > MAX_KEY_LENGTH) {
+			return false;
+		}
+		for (int ix = 0; ix < key.length(); ix++) {
+			char c = key.charAt(ix);
+			if (c < 0x20 || c > 0x7e || c == '"' || c == '\\' || c == '/') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static char[] toLiteral(String key) {
+		char[] literal = new char[key.length() + 3];
+		literal[0] = '"';
+		key.getChars(0, key.length(), literal, 1);
+		literal[literal.length - 2] = '"';
+		literal[literal.length - 1] = ':';
+		return literal;
+	}
+
+	/**
+	 * Removes all the cached keys, including the registered ones.
+	 */
+	public void clear() {
+		literals.clear();
+	}
+
+	/**
+	 * @return The number of times that a key has been found in the cache.
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return The number of times that a key that could be cached has not been found in the cache.
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return The number of times that a key was not looked up in the cache, because it needs escaping.
+	 */
+	public long getBypassed() {
+		return bypassed.sum();
+	}
+
+	/**
+	 * @return The number of keys that are currently cached.
+	 */
+	public int getSize() {
+		return literals.size();
+	}
+
+	@Override
+	public String toString() {
+		return "JSONKeyCache [size=" + getSize() + ", hits=" + getHits() + ", misses=" + getMisses() + ", bypassed="
+		       + getBypassed() + "]";
+	}
+}
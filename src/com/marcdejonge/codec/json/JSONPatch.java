@@ -0,0 +1,672 @@
+package com.marcdejonge.codec.json;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import com.marcdejonge.codec.MixedList;
+import com.marcdejonge.codec.MixedMap;
+import com.marcdejonge.codec.UnexpectedTypeException;
+
+/**
+ * <p>
+ * The {@link JSONPatch} calculates the differences between two documents, so only the changes have to be sent to
+ * anyone who already has the old document. The differences can be expressed in two forms:
+ * </p>
+ * <ul>
+ * <li>A JSON Patch (RFC 6902), see {@link #diff(Object, Object)}, which is a list of operations that also describes
+ * the changes within lists.</li>
+ * <li>A JSON Merge Patch (RFC 7386), see {@link #mergeDiff(Object, Object)}, which is a document that looks like the
+ * new document, but only contains the members that have changed. Lists are always replaced as a whole, and members can
+ * not be set to <code>null</code>.</li>
+ * </ul>
+ * <p>
+ * Subtrees that are the same object are skipped without looking into them. When the {@link JSONPatch} is created with
+ * a {@link JSONDigest}, the hashes that it remembers of the {@link MixedMap} and {@link MixedList} subtrees are
+ * compared as well, so unchanged subtrees are skipped even when they have been copied. This does not calculate any new
+ * hashes, so it only helps for documents that have been hashed before, e.g. to create their entity tag. The chance
+ * that two different subtrees have the same 64-bit hash is negligible.
+ * </p>
+ * <p>
+ * Lists are compared by finding their longest common subsequence, for which the work is limited by a budget. When a
+ * list has more changes than the budget allows, its elements are simply compared by index.
+ * </p>
+ * <p>
+ * The patches can be applied in place through {@link #apply(Object, List)} and {@link #merge(Object, Object)}.
+ * </p>
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+public class JSONPatch {
+	/**
+	 * The default budget, as the number of element comparisons that a single list can take.
+	 */
+	public static final int DEFAULT_BUDGET = 1 << 20;
+
+	private final JSONDigest digest;
+	private final int budget;
+
+	/**
+	 * Creates a new {@link JSONPatch} that does not use hashes and has the {@link #DEFAULT_BUDGET}.
+	 */
+	public JSONPatch() {
+		this(null, DEFAULT_BUDGET);
+	}
+
+	/**
+	 * @param digest
+	 *            The {@link JSONDigest} of which the remembered hashes are used to skip unchanged subtrees, or
+	 *            <code>null</code> to only skip the subtrees that are the same object
+	 * @param budget
+	 *            The number of element comparisons that the common subsequence of a single list can take, after which
+	 *            the elements are compared by index
+	 */
+	public JSONPatch(JSONDigest digest, int budget) {
+		this.digest = digest;
+		this.budget = budget;
+	}
+
+	/**
+	 * @param source
+	 *            The old document
+	 * @param target
+	 *            The new document
+	 * @return The operations of a JSON Patch (RFC 6902) that changes the source into the target, which only uses the
+	 *         <code>add</code>, <code>remove</code> and <code>replace</code> operations. The values in the operations
+	 *         are the values of the target itself, they are not copied.
+	 */
+	public MixedList diff(Object source, Object target) {
+		MixedList operations = new MixedList();
+		diff(new StringBuilder(), source, target, operations);
+		return operations;
+	}
+
+	private void diff(StringBuilder path, Object source, Object target, MixedList operations) {
+		if (source == target) {
+			return;
+		} else if (source instanceof Map && target instanceof Map) {
+			if (!sameHash(source, target)) {
+				diffMaps(path, (Map<?, ?>) source, (Map<?, ?>) target, operations);
+			}
+		} else if (source instanceof List && target instanceof List) {
+			if (!sameHash(source, target)) {
+				diffLists(path, (List<?>) source, (List<?>) target, operations);
+			}
+		} else if (!Objects.equals(source, target)) {
+			operations.add(operation("replace", path, target));
+		}
+	}
+
+	private void diffMaps(StringBuilder path, Map<?, ?> source, Map<?, ?> target, MixedList operations) {
+		int length = path.length();
+		for (Map.Entry<?, ?> entry : source.entrySet()) {
+			if (!target.containsKey(entry.getKey())) {
+				appendToken(path, entry.getKey());
+				operations.add(operation("remove", path, null));
+				path.setLength(length);
+			}
+		}
+		for (Map.Entry<?, ?> entry : target.entrySet()) {
+			appendToken(path, entry.getKey());
+			Object old = source.get(entry.getKey());
+			if (old != null || source.containsKey(entry.getKey())) {
+				diff(path, old, entry.getValue(), operations);
+			} else {
+				operations.add(operation("add", path, entry.getValue()));
+			}
+			path.setLength(length);
+		}
+	}
+
+	private void diffLists(StringBuilder path, List<?> source, List<?> target, MixedList operations) {
+		// The common start and end are equal, so only the rest is searched for a common subsequence
+		int start = 0, sourceEnd = source.size(), targetEnd = target.size();
+		while (start < sourceEnd && start < targetEnd && same(source.get(start), target.get(start))) {
+			start++;
+		}
+		while (sourceEnd > start && targetEnd > start && same(source.get(sourceEnd - 1), target.get(targetEnd - 1))) {
+			sourceEnd--;
+			targetEnd--;
+		}
+
+		int[] matches = commonSubsequence(source, target, start, sourceEnd, targetEnd);
+
+		// Walk through the pairs of matching elements, changing the gaps between them. Each pair is compared as well,
+		// since the elements are matched by their hash. The list already is the target up to the current element.
+		int length = path.length();
+		int sourceIx = start, targetIx = start;
+		for (int ix = 0; ix <= matches.length; ix += 2) {
+			int sourceNext = ix < matches.length ? matches[ix] : sourceEnd;
+			int targetNext = ix < matches.length ? matches[ix + 1] : targetEnd;
+
+			// Elements in the gap are changed in place, and only the remaining ones are removed or added
+			int changed = Math.min(sourceNext - sourceIx, targetNext - targetIx);
+			for (int gap = 0; gap < changed; gap++) {
+				path.append('/').append(targetIx + gap);
+				diff(path, source.get(sourceIx + gap), target.get(targetIx + gap), operations);
+				path.setLength(length);
+			}
+			for (int gap = changed; gap < sourceNext - sourceIx; gap++) {
+				path.append('/').append(targetIx + changed);
+				operations.add(operation("remove", path, null));
+				path.setLength(length);
+			}
+			for (int gap = changed; gap < targetNext - targetIx; gap++) {
+				path.append('/').append(targetIx + gap);
+				operations.add(operation("add", path, target.get(targetIx + gap)));
+				path.setLength(length);
+			}
+
+			if (ix < matches.length) {
+				path.append('/').append(targetNext);
+				diff(path, source.get(sourceNext), target.get(targetNext), operations);
+				path.setLength(length);
+				sourceIx = sourceNext + 1;
+				targetIx = targetNext + 1;
+			}
+		}
+	}
+
+	/**
+	 * Finds the longest common subsequence of the middle of the lists, using the algorithm of Myers, which takes time
+	 * in proportion to the length of the lists times the number of differences.
+	 *
+	 * @return The pairs of indices of the elements that match, or none when the budget has run out.
+	 */
+	private int[] commonSubsequence(List<?> source, List<?> target, int start, int sourceEnd, int targetEnd) {
+		int n = sourceEnd - start, m = targetEnd - start;
+		if (n == 0 || m == 0) {
+			return new int[0];
+		}
+		int[] sourceHashes = new int[n], targetHashes = new int[m];
+		for (int ix = 0; ix < n; ix++) {
+			sourceHashes[ix] = hash(source.get(start + ix));
+		}
+		for (int ix = 0; ix < m; ix++) {
+			targetHashes[ix] = hash(target.get(start + ix));
+		}
+		int[] matches = myers(sourceHashes, targetHashes);
+		for (int ix = 0; ix < matches.length; ix++) {
+			matches[ix] += start;
+		}
+		return matches;
+	}
+
+	private int[] myers(int[] source, int[] target) {
+		int n = source.length, m = target.length, max = n + m, offset = max + 1;
+		int[] furthest = new int[2 * max + 3];
+		List<int[]> trace = new ArrayList<>();
+		long cost = 0;
+
+		for (int d = 0; d <= max; d++) {
+			for (int k = -d; k <= d; k += 2) {
+				int x;
+				if (k == -d || (k != d && furthest[offset + k - 1] < furthest[offset + k + 1])) {
+					x = furthest[offset + k + 1];
+				} else {
+					x = furthest[offset + k - 1] + 1;
+				}
+				int y = x - k, snake = x;
+				while (x < n && y < m && source[x] == target[y]) {
+					x++;
+					y++;
+				}
+				cost += 1 + x - snake;
+				furthest[offset + k] = x;
+
+				if (x >= n && y >= m) {
+					trace.add(Arrays.copyOfRange(furthest, offset - d, offset + d + 1));
+					return backtrack(trace, n, m);
+				}
+			}
+			if (cost > budget) {
+				return new int[0];
+			}
+			trace.add(Arrays.copyOfRange(furthest, offset - d, offset + d + 1));
+		}
+		throw new IllegalStateException("The edit graph has no end");
+	}
+
+	/**
+	 * @return The pairs of indices of the matching elements on the shortest path through the edit graph.
+	 */
+	private static int[] backtrack(List<int[]> trace, int n, int m) {
+		int[] matches = new int[2 * Math.min(n, m)];
+		int pos = matches.length;
+		int x = n, y = m;
+		for (int d = trace.size() - 1; d > 0; d--) {
+			// The furthest points of the previous round, for the diagonals -d + 1 to d - 1
+			int[] previous = trace.get(d - 1);
+			int k = x - y, prevK;
+			if (k == -d || (k != d && previous[k - 1 + d - 1] < previous[k + 1 + d - 1])) {
+				prevK = k + 1;
+			} else {
+				prevK = k - 1;
+			}
+			int prevX = previous[prevK + d - 1], prevY = prevX - prevK;
+			// The diagonal after the edit consists of matches
+			int snakeX = prevK == k + 1 ? prevX : prevX + 1;
+			while (x > snakeX) {
+				matches[--pos] = --y;
+				matches[--pos] = --x;
+			}
+			x = prevX;
+			y = prevY;
+		}
+		while (x > 0) {
+			matches[--pos] = --y;
+			matches[--pos] = --x;
+		}
+		return Arrays.copyOfRange(matches, pos, matches.length);
+	}
+
+	/**
+	 * @param source
+	 *            The old document
+	 * @param target
+	 *            The new document
+	 * @return A JSON Merge Patch (RFC 7386) that changes the source into the target. This is the target itself when
+	 *         either of them is not a map, or otherwise a {@link MixedMap} with the changed members, where
+	 *         <code>null</code> means that the member has been removed. Members that are <code>null</code> in the
+	 *         target can not be expressed and are removed as well.
+	 */
+	public Object mergeDiff(Object source, Object target) {
+		if (source instanceof Map && target instanceof Map) {
+			return mergeDiff((Map<?, ?>) source, (Map<?, ?>) target);
+		} else {
+			return target;
+		}
+	}
+
+	private MixedMap mergeDiff(Map<?, ?> source, Map<?, ?> target) {
+		MixedMap patch = new MixedMap();
+		if (source == target || sameHash(source, target)) {
+			return patch;
+		}
+		for (Map.Entry<?, ?> entry : source.entrySet()) {
+			if (entry.getValue() != null && target.get(entry.getKey()) == null) {
+				patch.put(String.valueOf(entry.getKey()), null);
+			}
+		}
+		for (Map.Entry<?, ?> entry : target.entrySet()) {
+			Object old = source.get(entry.getKey()), value = entry.getValue();
+			if (value == null || same(old, value)) {
+				continue;
+			} else if (value instanceof Map) {
+				// A map is merged into the old map, and a new map must not contain any nulls, since they would be read
+				// as removals
+				Map<?, ?> base = old instanceof Map ? (Map<?, ?>) old : new MixedMap();
+				MixedMap changes = mergeDiff(base, (Map<?, ?>) value);
+				if (!changes.isEmpty() || base != old) {
+					patch.put(String.valueOf(entry.getKey()), changes);
+				}
+			} else {
+				patch.put(String.valueOf(entry.getKey()), value);
+			}
+		}
+		return patch;
+	}
+
+	/**
+	 * @return If the values are equal, which for the subtrees with a remembered hash is decided by that hash.
+	 */
+	private boolean same(Object source, Object target) {
+		if (source == target) {
+			return true;
+		}
+		long[] sourceHash = remembered(source), targetHash = remembered(target);
+		if (sourceHash != null && targetHash != null) {
+			return sourceHash[1] == targetHash[1];
+		}
+		return Objects.equals(source, target);
+	}
+
+	private boolean sameHash(Object source, Object target) {
+		long[] sourceHash = remembered(source), targetHash = remembered(target);
+		return sourceHash != null && targetHash != null && sourceHash[1] == targetHash[1];
+	}
+
+	/**
+	 * @return The hash that the elements of lists are matched by, which may be equal for different elements.
+	 */
+	private int hash(Object value) {
+		long[] hash = remembered(value);
+		return hash == null ? Objects.hashCode(value) : (int) (hash[1] ^ hash[1] >>> 32);
+	}
+
+	/**
+	 * @return The version and hash of the subtree, when the digest still remembers it, otherwise <code>null</code>.
+	 */
+	private long[] remembered(Object value) {
+		if (digest == null) {
+			return null;
+		} else if (value instanceof MixedMap) {
+			return digest.remembered(value, ((MixedMap) value).version());
+		} else if (value instanceof MixedList) {
+			return digest.remembered(value, ((MixedList) value).version());
+		} else {
+			return null;
+		}
+	}
+
+	private static MixedMap operation(String op, CharSequence path, Object value) {
+		MixedMap operation = new MixedMap().$("op", op).$("path", path.toString());
+		if (!op.equals("remove")) {
+			operation.put("value", value);
+		}
+		return operation;
+	}
+
+	private static void appendToken(StringBuilder path, Object key) {
+		path.append('/');
+		String token = String.valueOf(key);
+		for (int ix = 0; ix < token.length(); ix++) {
+			char c = token.charAt(ix);
+			if (c == '~') {
+				path.append("~0");
+			} else if (c == '/') {
+				path.append("~1");
+			} else {
+				path.append(c);
+			}
+		}
+	}
+
+	/**
+	 * Applies the operations of a JSON Patch (RFC 6902) to the document, changing its maps and lists in place. The
+	 * values of the operations are added as they are, except that the <code>copy</code> operation copies the maps and
+	 * lists. When an operation fails, the operations before it have already been applied.
+	 *
+	 * @param document
+	 *            The document that is changed
+	 * @param patch
+	 *            The list of operations
+	 * @return The changed document, which is only a different object when the whole document has been replaced.
+	 * @throws UnexpectedTypeException
+	 *             When an operation is not valid, its path can not be found or its <code>test</code> fails.
+	 */
+	public static Object apply(Object document, List<?> patch) throws UnexpectedTypeException {
+		for (Object element : patch) {
+			MixedMap operation = MixedMap.from(element);
+			String op = operation.getString("op");
+			String path = operation.getString("path");
+			switch (op) {
+			case "add":
+				document = add(document, path, value(operation));
+				break;
+			case "remove":
+				remove(document, path);
+				break;
+			case "replace":
+				document = replace(document, path, value(operation));
+				break;
+			case "move": {
+				String from = operation.getString("from");
+				if (path.startsWith(from + "/")) {
+					throw new UnexpectedTypeException("Can not move " + from + " into itself");
+				}
+				Object value = get(document, from);
+				remove(document, from);
+				document = add(document, path, value);
+				break;
+			}
+			case "copy":
+				document = add(document, path, copy(get(document, operation.getString("from"))));
+				break;
+			case "test":
+				if (!jsonEquals(get(document, path), value(operation))) {
+					throw new UnexpectedTypeException("The test of " + path + " failed");
+				}
+				break;
+			default:
+				throw new UnexpectedTypeException("Unknown operation " + op);
+			}
+		}
+		return document;
+	}
+
+	/**
+	 * @return If the values are equal as JSON values, as the <code>test</code> operation requires: numbers are compared
+	 *         by their value, so <code>1</code>, <code>1L</code> and <code>1.0</code> are all equal, and maps and lists
+	 *         are compared by their members.
+	 */
+	private static boolean jsonEquals(Object source, Object target) {
+		if (source instanceof Number && target instanceof Number) {
+			BigDecimal sourceDecimal = toDecimal((Number) source), targetDecimal = toDecimal((Number) target);
+			if (sourceDecimal == null || targetDecimal == null) {
+				// NaN and the infinities are only equal to themselves
+				return Double.compare(((Number) source).doubleValue(), ((Number) target).doubleValue()) == 0;
+			}
+			return sourceDecimal.compareTo(targetDecimal) == 0;
+		} else if (source instanceof Map && target instanceof Map) {
+			Map<?, ?> sourceMap = (Map<?, ?>) source, targetMap = (Map<?, ?>) target;
+			if (sourceMap.size() != targetMap.size()) {
+				return false;
+			}
+			for (Map.Entry<?, ?> entry : sourceMap.entrySet()) {
+				Object value = targetMap.get(entry.getKey());
+				if (!jsonEquals(entry.getValue(), value)
+				    || value == null && !targetMap.containsKey(entry.getKey())) {
+					return false;
+				}
+			}
+			return true;
+		} else if (source instanceof List && target instanceof List) {
+			List<?> sourceList = (List<?>) source, targetList = (List<?>) target;
+			if (sourceList.size() != targetList.size()) {
+				return false;
+			}
+			for (int ix = 0; ix < sourceList.size(); ix++) {
+				if (!jsonEquals(sourceList.get(ix), targetList.get(ix))) {
+					return false;
+				}
+			}
+			return true;
+		} else {
+			return Objects.equals(source, target);
+		}
+	}
+
+	/**
+	 * @return The exact value of the number, or <code>null</code> when it is not finite.
+	 */
+	private static BigDecimal toDecimal(Number number) {
+		if (number instanceof BigDecimal) {
+			return (BigDecimal) number;
+		} else if (number instanceof BigInteger) {
+			return new BigDecimal((BigInteger) number);
+		} else if (number instanceof Double || number instanceof Float) {
+			double value = number.doubleValue();
+			// The shortest text of the value, so 0.1f equals 0.1 as it was written in the document
+			return Double.isNaN(value) || Double.isInfinite(value) ? null : new BigDecimal(number.toString());
+		} else {
+			return BigDecimal.valueOf(number.longValue());
+		}
+	}
+
+	private static Object value(MixedMap operation) throws UnexpectedTypeException {
+		if (!operation.containsKey("value")) {
+			throw new UnexpectedTypeException("The " + operation.get("op") + " operation does not have a value");
+		}
+		return operation.get("value");
+	}
+
+	/**
+	 * @return The value at the path.
+	 */
+	private static Object get(Object document, String path) throws UnexpectedTypeException {
+		Object value = document;
+		for (int start = 0; start < path.length();) {
+			int end = tokenEnd(path, start);
+			value = child(value, path, token(path, start + 1, end));
+			start = end;
+		}
+		return value;
+	}
+
+	/**
+	 * @return The map or list that contains the last token of the path, with the token in its first element.
+	 */
+	private static Object parent(Object document, String path, String[] token) throws UnexpectedTypeException {
+		Object value = document;
+		int start = 0;
+		for (int end; (end = tokenEnd(path, start)) < path.length(); start = end) {
+			value = child(value, path, token(path, start + 1, end));
+		}
+		token[0] = token(path, start + 1, path.length());
+		return value;
+	}
+
+	private static Object child(Object value, String path, String token) throws UnexpectedTypeException {
+		if (value instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>) value;
+			if (map.containsKey(token)) {
+				return map.get(token);
+			}
+		} else if (value instanceof List) {
+			List<?> list = (List<?>) value;
+			int index = index(token, path, list.size() - 1);
+			return list.get(index);
+		}
+		throw new UnexpectedTypeException("The path " + path + " does not exist");
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object add(Object document, String path, Object value) throws UnexpectedTypeException {
+		if (path.isEmpty()) {
+			return value;
+		}
+		String[] token = new String[1];
+		Object parent = parent(document, path, token);
+		if (parent instanceof Map) {
+			((Map<String, Object>) parent).put(token[0], value);
+		} else if (parent instanceof List) {
+			List<Object> list = (List<Object>) parent;
+			list.add(token[0].equals("-") ? list.size() : index(token[0], path, list.size()), value);
+		} else {
+			throw new UnexpectedTypeException("The parent of " + path + " does not exist");
+		}
+		return document;
+	}
+
+	private static void remove(Object document, String path) throws UnexpectedTypeException {
+		if (path.isEmpty()) {
+			throw new UnexpectedTypeException("The whole document can not be removed");
+		}
+		String[] token = new String[1];
+		Object parent = parent(document, path, token);
+		if (parent instanceof Map && ((Map<?, ?>) parent).containsKey(token[0])) {
+			((Map<?, ?>) parent).remove(token[0]);
+		} else if (parent instanceof List) {
+			List<?> list = (List<?>) parent;
+			list.remove(index(token[0], path, list.size() - 1));
+		} else {
+			throw new UnexpectedTypeException("The path " + path + " does not exist");
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object replace(Object document, String path, Object value) throws UnexpectedTypeException {
+		if (path.isEmpty()) {
+			return value;
+		}
+		String[] token = new String[1];
+		Object parent = parent(document, path, token);
+		if (parent instanceof Map && ((Map<?, ?>) parent).containsKey(token[0])) {
+			((Map<String, Object>) parent).put(token[0], value);
+		} else if (parent instanceof List) {
+			List<Object> list = (List<Object>) parent;
+			list.set(index(token[0], path, list.size() - 1), value);
+		} else {
+			throw new UnexpectedTypeException("The path " + path + " does not exist");
+		}
+		return document;
+	}
+
+	private static int tokenEnd(String path, int start) throws UnexpectedTypeException {
+		if (path.charAt(start) != '/') {
+			throw new UnexpectedTypeException("The path " + path + " does not start with a /");
+		}
+		int end = path.indexOf('/', start + 1);
+		return end < 0 ? path.length() : end;
+	}
+
+	private static String token(String path, int start, int end) {
+		String token = path.substring(start, end);
+		return token.indexOf('~') < 0 ? token : token.replace("~1", "/").replace("~0", "~");
+	}
+
+	/**
+	 * @return The index of the token, which must be between 0 and the maximum.
+	 */
+	private static int index(String token, String path, int max) throws UnexpectedTypeException {
+		int index = -1;
+		if (!token.isEmpty() && token.length() < 10 && (token.length() == 1 || token.charAt(0) != '0')) {
+			index = 0;
+			for (int ix = 0; ix < token.length() && index >= 0; ix++) {
+				char c = token.charAt(ix);
+				index = c >= '0' && c <= '9' ? index * 10 + c - '0' : -1;
+			}
+		}
+		if (index < 0 || index > max) {
+			throw new UnexpectedTypeException("The path " + path + " does not contain a valid index");
+		}
+		return index;
+	}
+
+	private static Object copy(Object value) {
+		if (value instanceof Map) {
+			MixedMap copy = new MixedMap();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				copy.put(String.valueOf(entry.getKey()), copy(entry.getValue()));
+			}
+			return copy;
+		} else if (value instanceof List) {
+			MixedList copy = new MixedList();
+			for (Object element : (List<?>) value) {
+				copy.add(copy(element));
+			}
+			return copy;
+		} else {
+			return value;
+		}
+	}
+
+	/**
+	 * Applies a JSON Merge Patch (RFC 7386) to the document, changing its maps in place. The values of the patch are
+	 * added as they are, except for the maps in it, which are merged into new {@link MixedMap}s to leave out their
+	 * <code>null</code> members.
+	 *
+	 * @param document
+	 *            The document that is changed
+	 * @param patch
+	 *            The merge patch
+	 * @return The changed document, which is a different object when either of them is not a map.
+	 */
+	@SuppressWarnings("unchecked")
+	public static Object merge(Object document, Object patch) {
+		if (!(patch instanceof Map)) {
+			return patch;
+		}
+		Map<String, Object> target = document instanceof Map ? (Map<String, Object>) document : new MixedMap();
+		for (Map.Entry<?, ?> entry : ((Map<?, ?>) patch).entrySet()) {
+			String key = String.valueOf(entry.getKey());
+			if (entry.getValue() == null) {
+				target.remove(key);
+			} else if (entry.getValue() instanceof Map) {
+				Object old = target.get(key);
+				Object merged = merge(old, entry.getValue());
+				if (merged != old) {
+					target.put(key, merged);
+				}
+			} else {
+				target.put(key, entry.getValue());
+			}
+		}
+		return target;
+	}
+}
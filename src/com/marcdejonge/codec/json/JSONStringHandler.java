@@ -0,0 +1,28 @@
+package com.marcdejonge.codec.json;
+
+import java.io.IOException;
+
+import com.marcdejonge.codec.MixedList;
+import com.marcdejonge.codec.MixedMap;
+
+/**
+ * A {@link JSONStringHandler} decides what happens with string values that are too large to keep in memory. When the
+ * {@link JSONDecoder} finds a string value that is longer than its threshold, it asks the handler for a
+ * {@link JSONStringSink} to which the rest of the string will be streamed. Keys of objects are never streamed.
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+@FunctionalInterface
+public interface JSONStringHandler {
+	/**
+	 * @param parent
+	 *            The {@link MixedMap} or {@link MixedList} that is being built and that will contain the string, or
+	 *            <code>null</code> when the string is the complete document
+	 * @param key
+	 *            The key (a {@link String}) or index (an {@link Integer}) of the string in its parent
+	 * @return The sink to which the string should be streamed, or <code>null</code> to keep the string in memory
+	 * @throws IOException
+	 *             When the sink could not be opened
+	 */
+	JSONStringSink open(Object parent, Object key) throws IOException;
+}
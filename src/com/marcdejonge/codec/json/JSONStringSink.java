@@ -0,0 +1,187 @@
+package com.marcdejonge.codec.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A {@link JSONStringSink} receives the characters of a large string value while it is being decoded, in chunks, such
+ * that the string is never completely in memory. See {@link JSONStringHandler}.
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+public abstract class JSONStringSink {
+	/**
+	 * @return A sink that writes the string as is to the writer. The writer is flushed, but not closed, at the end.
+	 */
+	public static JSONStringSink of(Writer writer) {
+		return new JSONStringSink() {
+			@Override
+			protected void write(char[] chars, int offset, int length) throws IOException {
+				writer.write(chars, offset, length);
+			}
+
+			@Override
+			protected Object finish() throws IOException {
+				writer.flush();
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * @return A sink that writes the string as UTF-8 to the stream. The stream is flushed, but not closed, at the end.
+	 */
+	public static JSONStringSink of(OutputStream out) {
+		return of(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return A sink that writes the string as UTF-8 to the channel. The channel is not closed at the end.
+	 */
+	public static JSONStringSink of(WritableByteChannel channel) {
+		return of(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1));
+	}
+
+	/**
+	 * @return A sink that decodes the string as base64 and writes the resulting bytes to the stream. The stream is
+	 *         flushed, but not closed, at the end.
+	 */
+	public static JSONStringSink base64(OutputStream out) {
+		return new Base64Sink() {
+			@Override
+			protected void write(byte[] bytes, int length) throws IOException {
+				out.write(bytes, 0, length);
+			}
+
+			@Override
+			protected Object finish() throws IOException {
+				super.finish();
+				out.flush();
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * @return A sink that decodes the string as base64 and writes the resulting bytes to the channel. The channel is
+	 *         not closed at the end.
+	 */
+	public static JSONStringSink base64(WritableByteChannel channel) {
+		return new Base64Sink() {
+			@Override
+			protected void write(byte[] bytes, int length) throws IOException {
+				ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Receives the next part of the string, after escape sequences have been resolved.
+	 *
+	 * @param chars
+	 *            The buffer that contains the characters, which is reused after this call
+	 * @param offset
+	 *            The offset of the first character in the buffer
+	 * @param length
+	 *            The number of characters
+	 * @throws IOException
+	 *             When the characters could not be written
+	 */
+	protected abstract void write(char[] chars, int offset, int length) throws IOException;
+
+	/**
+	 * Called when the complete string has been written.
+	 *
+	 * @return The value that is stored in the decoded document instead of the string, <code>null</code> by default
+	 * @throws IOException
+	 *             When the last characters could not be written
+	 */
+	protected Object finish() throws IOException {
+		return null;
+	}
+
+	/**
+	 * Decodes base64 (with or without padding, ignoring whitespace) into a buffer of bytes that is written when full.
+	 */
+	private abstract static class Base64Sink extends JSONStringSink {
+		private static final byte[] VALUES = new byte[128];
+
+		static {
+			Arrays.fill(VALUES, (byte) -1);
+			String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+			for (int ix = 0; ix < alphabet.length(); ix++) {
+				VALUES[alphabet.charAt(ix)] = (byte) ix;
+			}
+		}
+
+		private final byte[] bytes = new byte[6144];
+		private int length;
+		private int group, groupSize;
+		private boolean padded;
+
+		@Override
+		protected void write(char[] chars, int offset, int count) throws IOException {
+			for (int ix = offset; ix < offset + count; ix++) {
+				char c = chars[ix];
+				if (c == '=') {
+					padded = true;
+					continue;
+				} else if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+					continue;
+				}
+
+				int value = c < 128 ? VALUES[c] : -1;
+				if (value < 0 || padded) {
+					throw new IOException("Invalid base64 character '" + c + "'");
+				}
+
+				group = group << 6 | value;
+				if (++groupSize == 4) {
+					bytes[length++] = (byte) (group >> 16);
+					bytes[length++] = (byte) (group >> 8);
+					bytes[length++] = (byte) group;
+					group = groupSize = 0;
+
+					if (length == bytes.length) {
+						write(bytes, length);
+						length = 0;
+					}
+				}
+			}
+		}
+
+		@Override
+		protected Object finish() throws IOException {
+			if (groupSize == 1) {
+				throw new IOException("Incomplete base64 string");
+			} else if (groupSize > 1) {
+				// The last group has 2 or 3 characters, encoding 1 or 2 bytes
+				group <<= 6 * (4 - groupSize);
+				bytes[length++] = (byte) (group >> 16);
+				if (groupSize == 3) {
+					bytes[length++] = (byte) (group >> 8);
+				}
+			}
+			if (length > 0) {
+				write(bytes, length);
+				length = 0;
+			}
+			return null;
+		}
+
+		/**
+		 * Writes the decoded bytes.
+		 */
+		protected abstract void write(byte[] bytes, int length) throws IOException;
+	}
+}
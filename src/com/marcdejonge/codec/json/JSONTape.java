@@ -0,0 +1,404 @@
+package com.marcdejonge.codec.json;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import com.marcdejonge.codec.MixedList;
+import com.marcdejonge.codec.MixedMap;
+import com.marcdejonge.codec.ParseException;
+
+/**
+ * <p>
+ * A {@link JSONTape} is a parsed JSON document that is stored as a flat sequence of tokens in a single direct
+ * {@link ByteBuffer}, outside of the Java heap. Keeping many documents this way only costs a few heap objects per
+ * document, instead of a complete graph of maps, lists, strings and boxed numbers that the garbage collector has to
+ * trace.
+ * </p>
+ * <p>
+ * The document can be read through the {@link MixedMap} and {@link MixedList} views that {@link #root()} returns. These
+ * views are read-only and navigate the tape in place: values are only converted to Java objects when they are read.
+ * The {@link JSONEncoder} writes the views directly from the tape, without creating any of the values.
+ * </p>
+ * <p>
+ * The tape consists of 64-bit words, of which the highest byte holds the type of the token and the other bytes its
+ * payload. Objects and arrays start with a word that contains the number of elements and the position of the word
+ * that ends it, so a complete subtree is skipped in constant time. Long and double values take a second word with
+ * their raw bits. Strings and keys are stored in UTF-8 after the words, each preceded by its length, and the tokens
+ * refer to them by offset.
+ * </p>
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+public final class JSONTape {
+	/**
+	 * Parses a document into a tape.
+	 *
+	 * @param json
+	 *            The JSON text
+	 * @return The tape of the document
+	 * @throws ParseException
+	 *             When the document could not be parsed
+	 */
+	public static JSONTape parse(String json) throws ParseException {
+		return parse(new StringReader(json));
+	}
+
+	/**
+	 * Parses a document into a tape.
+	 *
+	 * @param reader
+	 *            The reader from which the document is read
+	 * @return The tape of the document
+	 * @throws ParseException
+	 *             When the document could not be parsed
+	 */
+	public static JSONTape parse(Reader reader) throws ParseException {
+		return new JSONDecoder(reader).parseTape();
+	}
+
+	static final char OBJECT = '{';
+	static final char OBJECT_END = '}';
+	static final char ARRAY = '[';
+	static final char ARRAY_END = ']';
+	static final char STRING = '"';
+	static final char INT = 'i';
+	static final char LONG = 'l';
+	static final char DOUBLE = 'd';
+	static final char BIG_INTEGER = 'I';
+	static final char BIG_DECIMAL = 'D';
+	static final char TRUE = 't';
+	static final char FALSE = 'f';
+	static final char NULL = 'n';
+
+	private static final int TYPE_SHIFT = 56;
+	private static final int COUNT_SHIFT = 32;
+	/**
+	 * Containers with more elements store this count, their elements are counted when needed.
+	 */
+	private static final int MAX_COUNT = 0xFFFFFF;
+	/**
+	 * Set on a string that consists of printable ASCII without quotes, backslashes or slashes, which is written as is.
+	 */
+	private static final long PLAIN = 1L << 48;
+	private static final long OFFSET_MASK = PLAIN - 1;
+
+	private final ByteBuffer buffer;
+	// The offset of the strings, after all the words
+	private final int strings;
+
+	private JSONTape(ByteBuffer buffer, int words) {
+		this.buffer = buffer;
+		strings = words << 3;
+	}
+
+	/**
+	 * @return The value of the document: a read-only {@link MixedMap} or {@link MixedList} view of the tape, or a
+	 *         string, number, boolean or <code>null</code>.
+	 */
+	public Object root() {
+		return value(0);
+	}
+
+	/**
+	 * @return The number of bytes the tape takes outside of the heap.
+	 */
+	public int byteSize() {
+		return buffer.capacity();
+	}
+
+	/**
+	 * @return The JSON text of the document, written directly from the tape.
+	 */
+	public String toJSON() {
+		return JSONEncoder.toString(root());
+	}
+
+	/**
+	 * Writes the JSON text of the document, directly from the tape.
+	 *
+	 * @param out
+	 *            The output to which the document is written
+	 * @throws IOException
+	 *             When writing to the output failed
+	 */
+	public void toJSON(Appendable out) throws IOException {
+		JSONEncoder.encode(root(), out);
+	}
+
+	@Override
+	public String toString() {
+		return toJSON();
+	}
+
+	private long word(int index) {
+		return buffer.getLong(index << 3);
+	}
+
+	char type(int index) {
+		return (char) (word(index) >>> TYPE_SHIFT);
+	}
+
+	/**
+	 * @return The index of the token after the value at the index, skipping a complete object or array at once.
+	 */
+	int next(int index) {
+		long word = word(index);
+		switch ((char) (word >>> TYPE_SHIFT)) {
+		case OBJECT:
+		case ARRAY:
+			return (int) word + 1;
+		case LONG:
+		case DOUBLE:
+			return index + 2;
+		default:
+			return index + 1;
+		}
+	}
+
+	/**
+	 * @return The index of the word that ends the object or array that starts at the index.
+	 */
+	int end(int index) {
+		return (int) word(index);
+	}
+
+	/**
+	 * @return The number of elements of the object or array that starts at the index.
+	 */
+	int count(int index) {
+		long word = word(index);
+		int count = (int) (word >>> COUNT_SHIFT) & MAX_COUNT;
+		if (count == MAX_COUNT) {
+			// The value of an object entry comes right after its key
+			int value = type(index) == OBJECT ? 1 : 0;
+			count = 0;
+			for (int ix = index + 1; ix < (int) word; ix = next(ix + value)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return The value at the index, as a view for objects and arrays.
+	 */
+	Object value(int index) {
+		long word = word(index);
+		switch ((char) (word >>> TYPE_SHIFT)) {
+		case OBJECT:
+			return new TapeMap(this, index);
+		case ARRAY:
+			return new TapeList(this, index);
+		case STRING:
+			return string(index);
+		case INT:
+			return (int) word;
+		case LONG:
+			return word(index + 1);
+		case DOUBLE:
+			return Double.longBitsToDouble(word(index + 1));
+		case BIG_INTEGER:
+			return new BigInteger(string(index));
+		case BIG_DECIMAL:
+			return new BigDecimal(string(index));
+		case TRUE:
+			return Boolean.TRUE;
+		case FALSE:
+			return Boolean.FALSE;
+		default:
+			return null;
+		}
+	}
+
+	long longValue(int index) {
+		return type(index) == INT ? (int) word(index) : word(index + 1);
+	}
+
+	double doubleValue(int index) {
+		return Double.longBitsToDouble(word(index + 1));
+	}
+
+	private int stringOffset(int index) {
+		return strings + (int) (word(index) & OFFSET_MASK);
+	}
+
+	/**
+	 * @return If the string at the index is printable ASCII that never needs escaping.
+	 */
+	boolean isPlain(int index) {
+		return (word(index) & PLAIN) != 0;
+	}
+
+	/**
+	 * @return The number of bytes of the string at the index, which is the number of characters for plain strings.
+	 */
+	int stringLength(int index) {
+		return buffer.getInt(stringOffset(index));
+	}
+
+	String string(int index) {
+		int offset = stringOffset(index);
+		byte[] bytes = new byte[buffer.getInt(offset)];
+		ByteBuffer source = buffer.duplicate();
+		source.position(offset + 4);
+		source.get(bytes);
+		return new String(bytes, isPlain(index) ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Copies characters of the plain string at the index into the array.
+	 */
+	void plainChars(int index, int start, char[] target, int count) {
+		int offset = stringOffset(index) + 4 + start;
+		for (int ix = 0; ix < count; ix++) {
+			target[ix] = (char) buffer.get(offset + ix);
+		}
+	}
+
+	/**
+	 * @return If the string at the index is equal to the given string, compared without decoding plain strings.
+	 */
+	boolean stringEquals(int index, Object other) {
+		if (!(other instanceof String)) {
+			return false;
+		} else if (!isPlain(index)) {
+			return string(index).equals(other);
+		}
+
+		String string = (String) other;
+		int offset = stringOffset(index);
+		int length = buffer.getInt(offset);
+		if (length != string.length()) {
+			return false;
+		}
+		for (int ix = 0; ix < length; ix++) {
+			if (buffer.get(offset + 4 + ix) != string.charAt(ix)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Collects the tokens of a document in heap arrays while it is parsed, and copies them into a tape at the end.
+	 */
+	static final class Builder {
+		private long[] words = new long[64];
+		private int count;
+		private byte[] strings = new byte[256];
+		private int length;
+		// The offsets of the keys that have been stored, keys are only stored once per document
+		private final HashMap<String, Long> keys = new HashMap<>();
+
+		private void add(long word) {
+			if (count == words.length) {
+				words = Arrays.copyOf(words, count * 2);
+			}
+			words[count++] = word;
+		}
+
+		private void add(char type, long payload) {
+			add(((long) type << TYPE_SHIFT) | payload);
+		}
+
+		void add(char type) {
+			add(type, 0);
+		}
+
+		/**
+		 * Adds the start of an object or array, which is completed by {@link #end(int, int)}.
+		 *
+		 * @return The index of the start
+		 */
+		int start(char type) {
+			add(type, 0);
+			return count - 1;
+		}
+
+		void end(int start, int elements) {
+			char type = (char) (words[start] >>> TYPE_SHIFT);
+			words[start] |= ((long) Math.min(elements, MAX_COUNT) << COUNT_SHIFT) | count;
+			add(type == OBJECT ? OBJECT_END : ARRAY_END, start);
+		}
+
+		void addKey(String key) {
+			Long payload = keys.get(key);
+			if (payload == null) {
+				payload = store(key);
+				keys.put(key, payload);
+			}
+			add(STRING, payload);
+		}
+
+		void addString(String string) {
+			add(STRING, store(string));
+		}
+
+		void addNumber(Number number) {
+			if (number instanceof Integer) {
+				add(INT, number.intValue() & 0xFFFFFFFFL);
+			} else if (number instanceof Long) {
+				add(LONG);
+				add(number.longValue());
+			} else if (number instanceof Double) {
+				add(DOUBLE);
+				add(Double.doubleToRawLongBits(number.doubleValue()));
+			} else if (number instanceof BigInteger) {
+				add(BIG_INTEGER, store(number.toString()));
+			} else {
+				add(BIG_DECIMAL, store(number.toString()));
+			}
+		}
+
+		/**
+		 * Stores the string in UTF-8 after its length.
+		 *
+		 * @return The payload of the token that refers to the string
+		 */
+		private long store(String string) {
+			byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+			if (length + 4 + bytes.length > strings.length) {
+				strings = Arrays.copyOf(strings, Math.max(strings.length * 2, length + 4 + bytes.length));
+			}
+			long offset = length;
+			for (int shift = 0; shift < 32; shift += 8) {
+				// Written in the same order as the tape, which is little endian
+				strings[length++] = (byte) (bytes.length >>> shift);
+			}
+			System.arraycopy(bytes, 0, strings, length, bytes.length);
+			length += bytes.length;
+			return isPlain(string) ? offset | PLAIN : offset;
+		}
+
+		private static boolean isPlain(String string) {
+			for (int ix = 0; ix < string.length(); ix++) {
+				char c = string.charAt(ix);
+				if (c < 32 || c >= 127 || c == '"' || c == '\\' || c == '/') {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		JSONTape build() {
+			if ((long) count * 8 + length > Integer.MAX_VALUE) {
+				throw new OutOfMemoryError("The tape of " + count + " words does not fit in a buffer");
+			}
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(count * 8 + length).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.asLongBuffer().put(words, 0, count);
+			buffer.position(count * 8);
+			buffer.put(strings, 0, length);
+			buffer.clear();
+			return new JSONTape(buffer, count);
+		}
+	}
+}
@@ -0,0 +1,275 @@
+package com.marcdejonge.codec.json;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import com.marcdejonge.codec.MixedList;
+
+/**
+ * A read-only {@link MixedList} view of an array on a {@link JSONTape}. Iterating walks the tape, skipping over nested
+ * values in constant time. The positions of the elements are only collected on the first access by index. All the
+ * methods that would modify the list throw an {@link UnsupportedOperationException}.
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+final class TapeList extends MixedList {
+	private static final long serialVersionUID = 1L;
+
+	// The view is always serialized as a MixedList, see writeReplace
+	final transient JSONTape tape;
+	// The index of the token that starts the array
+	final transient int start;
+	// The indices of the tokens of the elements, collected on the first access by index
+	private transient int[] positions;
+
+	TapeList(JSONTape tape, int start) {
+		this.tape = tape;
+		this.start = start;
+	}
+
+	@Override
+	public int size() {
+		return tape.count(start);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return tape.end(start) == start + 1;
+	}
+
+	@Override
+	public Object get(int index) {
+		int[] positions = this.positions;
+		if (positions == null) {
+			positions = new int[size()];
+			int end = tape.end(start);
+			int count = 0;
+			for (int ix = start + 1; ix < end; ix = tape.next(ix)) {
+				positions[count++] = ix;
+			}
+			this.positions = positions;
+		}
+		if (index < 0 || index >= positions.length) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + positions.length);
+		}
+		return tape.value(positions[index]);
+	}
+
+	@Override
+	public int indexOf(Object value) {
+		int index = 0;
+		for (Iterator<Object> it = iterator(); it.hasNext(); index++) {
+			if (Objects.equals(value, it.next())) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int lastIndexOf(Object value) {
+		int last = -1, index = 0;
+		for (Iterator<Object> it = iterator(); it.hasNext(); index++) {
+			if (Objects.equals(value, it.next())) {
+				last = index;
+			}
+		}
+		return last;
+	}
+
+	@Override
+	public boolean contains(Object value) {
+		return indexOf(value) >= 0;
+	}
+
+	@Override
+	public Object[] toArray() {
+		Object[] result = new Object[size()];
+		int index = 0;
+		for (Iterator<Object> it = iterator(); it.hasNext();) {
+			result[index++] = it.next();
+		}
+		return result;
+	}
+
+	@Override
+	public <T> T[] toArray(T[] array) {
+		return view().toArray(array);
+	}
+
+	/**
+	 * Walks through the elements on the tape.
+	 */
+	private final class ElementIterator implements Iterator<Object> {
+		private final int end = tape.end(start);
+		private int next = start + 1;
+
+		@Override
+		public boolean hasNext() {
+			return next < end;
+		}
+
+		@Override
+		public Object next() {
+			if (next >= end) {
+				throw new NoSuchElementException();
+			}
+			int element = next;
+			next = tape.next(element);
+			return tape.value(element);
+		}
+	}
+
+	/**
+	 * @return A read-only view of this list, of which the list iterators are used.
+	 */
+	private List<Object> view() {
+		return new AbstractList<Object>() {
+			@Override
+			public Object get(int index) {
+				return TapeList.this.get(index);
+			}
+
+			@Override
+			public int size() {
+				return TapeList.this.size();
+			}
+
+			@Override
+			public Iterator<Object> iterator() {
+				return new ElementIterator();
+			}
+		};
+	}
+
+	@Override
+	public Iterator<Object> iterator() {
+		return new ElementIterator();
+	}
+
+	@Override
+	public ListIterator<Object> listIterator() {
+		return view().listIterator();
+	}
+
+	@Override
+	public ListIterator<Object> listIterator(int index) {
+		return view().listIterator(index);
+	}
+
+	@Override
+	public Spliterator<Object> spliterator() {
+		return Spliterators.spliterator(new ElementIterator(),
+		                                size(),
+		                                Spliterator.ORDERED | Spliterator.IMMUTABLE);
+	}
+
+	@Override
+	public void forEach(Consumer<? super Object> action) {
+		for (Iterator<Object> it = iterator(); it.hasNext();) {
+			action.accept(it.next());
+		}
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this) {
+			return true;
+		} else if (!(obj instanceof List) || ((List<?>) obj).size() != size()) {
+			return false;
+		}
+		Iterator<?> other = ((List<?>) obj).iterator();
+		for (Iterator<Object> it = iterator(); it.hasNext();) {
+			if (!Objects.equals(it.next(), other.next())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		int hashCode = 1;
+		for (Iterator<Object> it = iterator(); it.hasNext();) {
+			hashCode = 31 * hashCode + Objects.hashCode(it.next());
+		}
+		return hashCode;
+	}
+
+	@Override
+	public boolean add(Object value) {
+		throw new UnsupportedOperationException("A list on a JSONTape can not be modified");
+	}
+
+	@Override
+	public void add(int index, Object value) {
+		throw new UnsupportedOperationException("A list on a JSONTape can not be modified");
+	}
+
+	@Override
+	public boolean addAll(int index, Collection<? extends Object> collection) {
+		throw new UnsupportedOperationException("A list on a JSONTape can not be modified");
+	}
+
+	@Override
+	public Object set(int index, Object value) {
+		throw new UnsupportedOperationException("A list on a JSONTape can not be modified");
+	}
+
+	@Override
+	public Object remove(int index) {
+		throw new UnsupportedOperationException("A list on a JSONTape can not be modified");
+	}
+
+	@Override
+	protected void removeRange(int fromIndex, int toIndex) {
+		throw new UnsupportedOperationException("A list on a JSONTape can not be modified");
+	}
+
+	@Override
+	public boolean removeIf(Predicate<? super Object> filter) {
+		throw new UnsupportedOperationException("A list on a JSONTape can not be modified");
+	}
+
+	@Override
+	public void sort(Comparator<? super Object> comparator) {
+		throw new UnsupportedOperationException("A list on a JSONTape can not be modified");
+	}
+
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException("A list on a JSONTape can not be modified");
+	}
+
+	@Override
+	public void ensureCapacity(int minCapacity) {
+		// The storage of the ArrayList is not used
+	}
+
+	@Override
+	public void trimToSize() {
+		// The storage of the ArrayList is not used
+	}
+
+	/**
+	 * @return This list, since it can not be modified anyway.
+	 */
+	@Override
+	public TapeList clone() {
+		return this;
+	}
+
+	private Object writeReplace() {
+		return new MixedList(this);
+	}
+}
@@ -0,0 +1,210 @@
+package com.marcdejonge.codec.json;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+import com.marcdejonge.codec.MixedMap;
+
+/**
+ * A read-only {@link MixedMap} view of an object on a {@link JSONTape}. Looking up a key scans the keys of the object,
+ * skipping each value in constant time, and only the value that is found is converted. All the methods that would
+ * modify the map throw an {@link UnsupportedOperationException}.
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+final class TapeMap extends MixedMap {
+	private static final long serialVersionUID = 1L;
+
+	// The view is always serialized as a MixedMap, see writeReplace
+	final transient JSONTape tape;
+	// The index of the token that starts the object
+	final transient int start;
+
+	TapeMap(JSONTape tape, int start) {
+		this.tape = tape;
+		this.start = start;
+	}
+
+	/**
+	 * @return The index of the token of the value of the key, or -1 when the object does not contain the key.
+	 */
+	private int find(Object key) {
+		int end = tape.end(start);
+		for (int ix = start + 1; ix < end; ix = tape.next(ix + 1)) {
+			if (tape.stringEquals(ix, key)) {
+				return ix + 1;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int size() {
+		return tape.count(start);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return tape.end(start) == start + 1;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return find(key) >= 0;
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		for (Iterator<Object> it = values().iterator(); it.hasNext();) {
+			if (Objects.equals(value, it.next())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public Object get(Object key) {
+		int ix = find(key);
+		return ix < 0 ? null : tape.value(ix);
+	}
+
+	@Override
+	public Object getOrDefault(Object key, Object dflt) {
+		int ix = find(key);
+		return ix < 0 ? dflt : tape.value(ix);
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		throw new UnsupportedOperationException("A map on a JSONTape can not be modified");
+	}
+
+	@Override
+	public Object remove(Object key) {
+		throw new UnsupportedOperationException("A map on a JSONTape can not be modified");
+	}
+
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException("A map on a JSONTape can not be modified");
+	}
+
+	@Override
+	public void forEach(BiConsumer<? super String, ? super Object> action) {
+		int end = tape.end(start);
+		for (int ix = start + 1; ix < end; ix = tape.next(ix + 1)) {
+			action.accept(tape.string(ix), tape.value(ix + 1));
+		}
+	}
+
+	/**
+	 * Walks through the keys of the object.
+	 */
+	private abstract class KeyIterator<T> implements Iterator<T> {
+		private final int end = tape.end(start);
+		private int next = start + 1;
+
+		@Override
+		public boolean hasNext() {
+			return next < end;
+		}
+
+		abstract T get(int key);
+
+		@Override
+		public T next() {
+			if (next >= end) {
+				throw new NoSuchElementException();
+			}
+			int key = next;
+			next = tape.next(key + 1);
+			return get(key);
+		}
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				return new KeyIterator<Map.Entry<String, Object>>() {
+					@Override
+					Map.Entry<String, Object> get(int key) {
+						return new SimpleImmutableEntry<>(tape.string(key), tape.value(key + 1));
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return TapeMap.this.size();
+			}
+		};
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return new AbstractSet<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				return new KeyIterator<String>() {
+					@Override
+					String get(int key) {
+						return tape.string(key);
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return TapeMap.this.size();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return containsKey(o);
+			}
+		};
+	}
+
+	@Override
+	public Collection<Object> values() {
+		return new AbstractCollection<Object>() {
+			@Override
+			public Iterator<Object> iterator() {
+				return new KeyIterator<Object>() {
+					@Override
+					Object get(int key) {
+						return tape.value(key + 1);
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return TapeMap.this.size();
+			}
+		};
+	}
+
+	/**
+	 * @return This map, since it can not be modified anyway.
+	 */
+	@Override
+	public TapeMap clone() {
+		return this;
+	}
+
+	private Object writeReplace() {
+		return new MixedMap(this);
+	}
+}
@@ -0,0 +1,111 @@
+package com.marcdejonge.codec.json;
+
+/**
+ * An {@link Appendable} that encodes the characters as UTF-8 into a byte array. Unpaired surrogates are replaced with
+ * a question mark, the same as {@link String#getBytes(java.nio.charset.Charset)} does. When the array is full,
+ * {@link #overflow()} is called to make room.
+ *
+ * @author Marc de Jonge (marcdejonge@gmail.com)
+ */
+class UTF8Output implements Appendable {
+	/**
+	 * @return The number of UTF-8 bytes that a character takes. A surrogate pair takes 4 bytes, 1 for the high
+	 *         surrogate and 3 for the low surrogate that follows it, while an unpaired surrogate takes 1.
+	 */
+	static int byteLength(char c, char previous) {
+		if (c < 0x80) {
+			return 1;
+		} else if (c < 0x800) {
+			return 2;
+		} else if (Character.isSurrogate(c)) {
+			return Character.isLowSurrogate(c) && Character.isHighSurrogate(previous) ? 3 : 1;
+		} else {
+			return 3;
+		}
+	}
+
+	protected byte[] buffer;
+	protected int pos;
+	private char highSurrogate;
+
+	UTF8Output(byte[] buffer) {
+		this.buffer = buffer;
+	}
+
+	@Override
+	public Appendable append(CharSequence csq) {
+		return append(csq, 0, csq.length());
+	}
+
+	@Override
+	public Appendable append(CharSequence csq, int start, int end) {
+		for (int ix = start; ix < end; ix++) {
+			append(csq.charAt(ix));
+		}
+		return this;
+	}
+
+	@Override
+	public Appendable append(char c) {
+		if (highSurrogate != 0) {
+			char high = highSurrogate;
+			highSurrogate = 0;
+			if (Character.isLowSurrogate(c)) {
+				int codePoint = Character.toCodePoint(high, c);
+				ensure(4);
+				buffer[pos++] = (byte) (0xf0 | (codePoint >> 18));
+				buffer[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				buffer[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				buffer[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+				return this;
+			}
+			ensure(1);
+			buffer[pos++] = '?';
+		}
+
+		if (c < 0x80) {
+			ensure(1);
+			buffer[pos++] = (byte) c;
+		} else if (c < 0x800) {
+			ensure(2);
+			buffer[pos++] = (byte) (0xc0 | (c >> 6));
+			buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+		} else if (Character.isHighSurrogate(c)) {
+			highSurrogate = c;
+		} else if (Character.isLowSurrogate(c)) {
+			ensure(1);
+			buffer[pos++] = '?';
+		} else {
+			ensure(3);
+			buffer[pos++] = (byte) (0xe0 | (c >> 12));
+			buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+			buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+		}
+		return this;
+	}
+
+	/**
+	 * Writes out a surrogate that is still waiting for its pair, should be called once all the text has been appended.
+	 */
+	void finish() {
+		if (highSurrogate != 0) {
+			highSurrogate = 0;
+			ensure(1);
+			buffer[pos++] = '?';
+		}
+	}
+
+	private void ensure(int needed) {
+		if (pos + needed > buffer.length) {
+			overflow();
+		}
+	}
+
+	/**
+	 * Called when the buffer is full, should make room in the buffer by moving the bytes elsewhere and resetting the
+	 * position.
+	 */
+	protected void overflow() {
+		throw new IllegalStateException("The output is larger than the expected " + buffer.length + " bytes");
+	}
+}
@@ -2,15 +2,27 @@ package com.marcdejonge.test.codec;
 
 import static org.junit.Assert.*;
 
+import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.OptionalDouble;
+import java.util.OptionalInt;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
 
+import com.marcdejonge.codec.ConcurrentMixedMap;
+import com.marcdejonge.codec.FrozenList;
 import com.marcdejonge.codec.MixedList;
+import com.marcdejonge.codec.MixedMap;
+import com.marcdejonge.codec.ParseException;
 import com.marcdejonge.codec.UnexpectedTypeException;
 
 import org.junit.Test;
@@ -38,6 +50,37 @@ public class MixedListTests {
 		}
 	}
 
+	@Test
+	public void testVersion() {
+		MixedList inner = new MixedList().$(1, 2, 3);
+		MixedMap map = new MixedMap().$("inner", inner);
+		MixedList outer = new MixedList().$(map);
+
+		int version = outer.version();
+		inner.set(0, 4);
+		assertNotEquals(version, outer.version());
+
+		version = outer.version();
+		inner.subList(1, 3).clear();
+		assertNotEquals(version, outer.version());
+		assertEquals(new MixedList().$(4), inner);
+
+		version = outer.version();
+		map.entrySet().iterator().next().setValue("replaced");
+		assertNotEquals(version, outer.version());
+
+		// The removed list is no longer part of the tree
+		version = outer.version();
+		inner.add(5);
+		assertEquals(version, outer.version());
+
+		// Cycles should not cause endless propagation
+		outer.add(outer);
+		version = outer.version();
+		map.put("other", true);
+		assertNotEquals(version, outer.version());
+	}
+
 	@Test
 	public void testGetOrNull() {
 		MixedList list = new MixedList().$(1, null, 3);
@@ -127,4 +170,229 @@ public class MixedListTests {
 		assertEquals(9, list.getInt(6, 9));
 		assertEquals(9, list.getInt(7, 9));
 	}
+
+	@Test
+	public void testNumbers() throws UnexpectedTypeException {
+		MixedList list = new MixedList().$("42", "-7", "0", "-0.0", "12.75", "1e3", "+5", "123456789012345678901");
+		list.$(".5", "5.", "0.1", "1.7976931348623157e308", "4.9e-324", "0.30000000000000004", "-1E-3");
+		assertEquals(42, list.getInt(0));
+		assertEquals(-7L, list.getLong(1));
+		assertEquals(0, list.getLong(2));
+		assertEquals(12, list.getInt(4));
+		assertEquals(1000, list.getLong(5));
+		assertEquals(5, list.getInt(6));
+		assertEquals(new BigInteger("123456789012345678901").longValue(), list.getLong(7));
+
+		// The same as when parsed as a BigDecimal
+		for (int ix = 0; ix < list.size(); ix++) {
+			double expected = new BigDecimal(list.getString(ix)).doubleValue();
+			assertEquals(list.getString(ix), expected, list.getDouble(ix), 0);
+			assertEquals(list.getString(ix), (float) expected, list.getFloat(ix), 0);
+			assertEquals(list.getString(ix), expected, list.getOptionalDouble(ix).getAsDouble(), 0);
+		}
+		Random random = new Random(45);
+		for (int ix = 0; ix < 10000; ix++) {
+			String number = (random.nextBoolean() ? "-" : "") + random.nextInt(1000000) + "." + random.nextInt(100000);
+			if (ix % 3 == 0) {
+				number += "e" + (random.nextInt(40) - 20);
+			}
+			double expected = new BigDecimal(number).doubleValue();
+			assertEquals(number, expected, new MixedList().$(number).getDouble(0), 0);
+		}
+
+		// Misses, without exceptions for the variants with a default or an optional
+		MixedList misses = new MixedList().$("", "-", "1e", "1.2.3", "0x10", "NaN", " 1", true).$((Object) null);
+		for (int ix = 0; ix <= misses.size(); ix++) {
+			assertEquals(-1, misses.getInt(ix, -1));
+			assertEquals(-1L, misses.getLong(ix, -1));
+			assertEquals(-1, misses.getDouble(ix, -1), 0);
+			assertFalse(misses.getOptionalInt(ix).isPresent());
+			assertFalse(misses.getOptionalLong(ix).isPresent());
+			assertFalse(misses.getOptionalDouble(ix).isPresent());
+			try {
+				fail("Expected an exception, but got a " + misses.getDouble(ix));
+			} catch (UnexpectedTypeException ex) {
+				// Expected
+			}
+		}
+		assertEquals(0, new MixedList().$(0).getOptionalLong(0).getAsLong());
+		assertTrue(Double.isNaN(new MixedList().$(Double.NaN).getOptionalDouble(0).getAsDouble()));
+
+		MixedMap map = new MixedMap().$("a", "17").$("b", 2.5).$("c", "x");
+		assertEquals(17, map.getInt("a", 0));
+		assertEquals(17L, map.getLong("a"));
+		assertEquals(2.5, map.getDouble("b"), 0);
+		assertEquals(2, map.getOptionalInt("b").getAsInt());
+		assertFalse(map.getOptionalLong("c").isPresent());
+		assertFalse(map.getOptionalDouble("d").isPresent());
+		assertEquals(-1, map.getInt("c", -1));
+	}
+
+	@Test
+	public void testStreams() {
+		MixedList list = new MixedList();
+		for (int ix = 0; ix < 100000; ix++) {
+			list.add(ix % 10 == 0 ? new MixedMap().$("id", ix) : ix % 10 == 1 ? "s" + ix : ix % 10 == 2 ? null : ix);
+		}
+
+		Spliterator<Number> numbers = list.numbers().spliterator();
+		Spliterator<Number> prefix = numbers.trySplit();
+		assertNotNull(prefix);
+		assertEquals(50000, prefix.estimateSize());
+		assertEquals(50000, numbers.estimateSize());
+
+		assertEquals(10000, list.objectStream().parallel().count());
+		assertEquals(list.objectStream().mapToInt(m -> m.getInt("id", 0)).sum(),
+		             list.objectStream().parallel().mapToInt(m -> m.getInt("id", 0)).sum());
+		assertEquals(list.longStream().sum(), list.longStream().parallel().sum());
+		assertEquals(list.doubleStream().sum(), list.doubleStream().parallel().sum(), 0);
+		assertEquals(70000, list.intStream().parallel().count());
+		assertEquals(StreamSupport.stream(list.strings().spliterator(), false).count(),
+		             StreamSupport.stream(list.strings().spliterator(), true).count());
+
+		// Collected in parallel, but in the order of the stream
+		MixedList collected = IntStream.range(0, 100000).parallel().boxed().collect(MixedList.collector());
+		assertEquals(new MixedList(IntStream.range(0, 100000)), collected);
+		assertEquals(collected, new MixedList(IntStream.range(0, 100000).parallel()));
+		assertEquals(collected, new MixedList(IntStream.range(0, 100000).boxed().parallel()));
+
+		MixedMap map = list.objectStream().parallel().collect(MixedMap.collector(m -> "k" + m.get("id"), m -> m));
+		assertEquals(10000, map.size());
+		assertEquals(Arrays.asList("k0", "k10", "k20"), map.keySet().stream().limit(3).collect(Collectors.toList()));
+		ConcurrentMixedMap concurrent = list.objectStream()
+		                                    .parallel()
+		                                    .collect(MixedMap.concurrentCollector(m -> "k" + m.get("id"), m -> null));
+		assertEquals(map.keySet(), concurrent.keySet());
+
+		try {
+			list.objectStream().parallel().collect(MixedMap.collector(m -> "k", m -> m));
+			fail("Expected an IllegalStateException");
+		} catch (IllegalStateException ex) {
+			assertTrue(ex.getMessage().endsWith("Duplicate key k"));
+		}
+		try {
+			list.objectStream().parallel().collect(MixedMap.concurrentCollector(m -> "k", m -> null));
+			fail("Expected an IllegalStateException");
+		} catch (IllegalStateException ex) {
+			assertTrue(ex.getMessage().endsWith("Duplicate key k"));
+		}
+	}
+
+	@Test
+	public void testCompactTypedGetters() throws ParseException, UnexpectedTypeException {
+		MixedList longs = MixedList.compact().$(1L << 40, -2L);
+		MixedList doubles = MixedList.fromJSON("[1.5,-0.25]");
+		for (MixedList list : Arrays.asList(MixedList.compact().$(7, -2), MixedList.fromJSON("[7,-2]"))) {
+			assertEquals(Integer.valueOf(7), list.getOrNull(0));
+			assertNull(list.getOrNull(2));
+			assertEquals(-2, list.getOrDefault(1, 0));
+			assertEquals(7, list.getNumber(0));
+			assertEquals(-2L, list.getLong(1));
+			assertEquals(7.0, list.getFloat(0), 0);
+			assertEquals(OptionalInt.of(-2), list.getOptionalInt(1));
+			assertEquals(BigInteger.valueOf(7), list.getBigInteger(0));
+			assertEquals(0, new BigDecimal(-2).compareTo(list.getBigDecimal(1)));
+			assertEquals("7", list.getString(0));
+			assertEquals(Integer.valueOf(-2), list.getAs(1, Integer.class));
+			assertTrue(list.getBoolean(0));
+			assertNull(list.getMap(0, null));
+		}
+
+		assertEquals(1L << 40, longs.getLong(0));
+		assertEquals(1L << 40, longs.getNumber(0));
+		assertEquals(-2, longs.getInt(1));
+		assertEquals("-2", longs.getString(1));
+
+		assertEquals(double.class, doubles.primitiveType());
+		assertEquals(1.5, doubles.getDouble(0), 0);
+		assertEquals(OptionalDouble.of(-0.25), doubles.getOptionalDouble(1));
+		assertEquals(new BigDecimal("1.5"), doubles.getBigDecimal(0));
+		assertEquals("-0.25", doubles.getString(1));
+		assertEquals(Double.valueOf(1.5), doubles.getAs(0, Number.class));
+	}
+
+	@Test
+	public void testCompact() throws ParseException, UnexpectedTypeException {
+		MixedList ints = MixedList.fromJSON("[3,1,2]");
+		assertEquals(int.class, ints.primitiveType());
+		assertEquals(new MixedList().$(3, 1, 2), ints);
+		assertEquals(ints, new MixedList().$(3, 1, 2));
+		assertEquals(new MixedList().$(3, 1, 2).hashCode(), ints.hashCode());
+		assertEquals(2, ints.getInt(2));
+		assertEquals(3.0, ints.getDouble(0), 0);
+		assertEquals(1, ints.getNumber(1));
+		assertEquals(6, ints.intStream().sum());
+		assertEquals("[3,1,2]", ints.toJSON());
+
+		int version = ints.version();
+		ints.sort(null);
+		assertEquals(new MixedList().$(1, 2, 3), ints);
+		assertNotEquals(version, ints.version());
+
+		MixedList clone = ints.clone();
+		ints.subList(0, 2).clear();
+		assertEquals(new MixedList().$(3), ints);
+		assertEquals(new MixedList().$(1, 2, 3), clone);
+
+		for (Iterator<Object> it = clone.iterator(); it.hasNext();) {
+			if (it.next().equals(2)) {
+				it.remove();
+			}
+		}
+		assertEquals(new MixedList().$(1, 3), clone);
+
+		// Any other value moves the elements into the normal storage
+		clone.add(1, "x");
+		assertNull(clone.primitiveType());
+		assertEquals(new MixedList().$(1, "x", 3), clone);
+		assertEquals(4, clone.intStream().sum());
+
+		MixedList longs = MixedList.fromJSON("[10000000000,-10000000001]");
+		assertEquals(long.class, longs.primitiveType());
+		assertEquals(-1L, longs.longStream().sum());
+		MixedList doubles = MixedList.fromJSON("[1.5,-2.0]");
+		assertEquals(double.class, doubles.primitiveType());
+		assertEquals(-0.5, doubles.doubleStream().sum(), 0);
+		assertEquals("[1.5,-2.0]", doubles.toJSON());
+
+		assertNull(MixedList.fromJSON("[1,2.5]").primitiveType());
+		assertEquals(new MixedList().$(1, 2.5), MixedList.fromJSON("[1,2.5]"));
+	}
+
+	@Test
+	public void testFrozen() throws UnexpectedTypeException {
+		MixedList source = new MixedList().$(1, "two", new MixedMap().$("three", 3));
+		FrozenList frozen = source.freeze();
+		assertEquals(source, frozen);
+		assertEquals(source.hashCode(), frozen.hashCode());
+		assertEquals(3, frozen.getMap(2).getInt("three"));
+		try {
+			frozen.add(4);
+			fail("Expected an UnsupportedOperationException");
+		} catch (UnsupportedOperationException ex) {
+			// Expected
+		}
+		try {
+			frozen.getMap(2).put("four", 4);
+			fail("Expected an UnsupportedOperationException");
+		} catch (UnsupportedOperationException ex) {
+			// Expected
+		}
+
+		// Appending past the tail and the first levels of the tree
+		FrozenList large = FrozenList.empty();
+		for (int ix = 0; ix < 40000; ix++) {
+			large = large.append(ix);
+		}
+		assertEquals(40000, large.size());
+		assertEquals(IntStream.range(0, 40000).boxed().collect(Collectors.toList()), large);
+		FrozenList changed = large.with(1055, "x").with(39999, "y");
+		assertEquals("x", changed.get(1055));
+		assertEquals("y", changed.get(39999));
+		assertEquals(1055, large.get(1055));
+		assertEquals(Arrays.asList(1054, 1056), large.without(1055).subList(1054, 1056));
+		assertEquals(40000, large.stream().count());
+		assertEquals(large, new MixedList(large).freeze());
+		assertEquals(FrozenList.empty(), FrozenList.empty().append(1).without(0));
+	}
 }
@@ -0,0 +1,536 @@
+package com.marcdejonge.test.codec;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.ref.WeakReference;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.marcdejonge.codec.ConcurrentMixedMap;
+import com.marcdejonge.codec.FrozenList;
+import com.marcdejonge.codec.FrozenMap;
+import com.marcdejonge.codec.MixedList;
+import com.marcdejonge.codec.MixedMap;
+import com.marcdejonge.codec.MixedPath;
+import com.marcdejonge.codec.ParseException;
+import com.marcdejonge.codec.UnexpectedTypeException;
+import com.marcdejonge.codec.json.JSONEncoder;
+
+import org.junit.Test;
+
+public class MixedMapTests {
+	@Test
+	public void testCompact() throws ParseException, IOException, ClassNotFoundException {
+		MixedMap expected = new MixedMap();
+		MixedMap compact = MixedMap.compact();
+		for (int ix = 0; ix < 20; ix++) {
+			expected.put("key" + ix, ix);
+			compact.put("key" + ix, ix);
+			assertEquals(expected, compact);
+			assertEquals(compact, expected);
+		}
+		assertEquals(expected.hashCode(), compact.hashCode());
+		assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(compact.keySet()));
+		assertEquals(19, compact.get("key19"));
+		assertNull(compact.get("key20"));
+		assertEquals(expected, MixedMap.fromJSON(JSONEncoder.toString(expected)));
+
+		// Removing keeps the order of the remaining entries, with and without the index
+		int version = compact.version();
+		assertEquals(5, compact.remove("key5"));
+		assertNotEquals(version, compact.version());
+		for (Iterator<String> it = compact.keySet().iterator(); it.hasNext();) {
+			if (!it.next().endsWith("1")) {
+				it.remove();
+			}
+		}
+		assertEquals(Arrays.asList("key1", "key11"), new ArrayList<>(compact.keySet()));
+		assertEquals(11, compact.get("key11"));
+		assertNull(compact.get("key12"));
+
+		MixedMap clone = compact.clone();
+		for (Map.Entry<String, Object> entry : compact.entrySet()) {
+			entry.setValue("x");
+		}
+		assertEquals(new MixedMap().$("key1", "x").$("key11", "x"), compact);
+		assertEquals(new MixedMap().$("key1", 1).$("key11", 11), clone);
+
+		compact.put("key1", "y");
+		compact.put("key2", 2);
+		assertEquals(Arrays.asList("y", "x", 2), new ArrayList<>(compact.values()));
+
+		// Serialized as a normal MixedMap
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(compact);
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			assertEquals(compact, in.readObject());
+		}
+
+		compact.clear();
+		assertTrue(compact.isEmpty());
+		assertEquals("{}", JSONEncoder.toString(compact));
+	}
+
+	@Test
+	public void testSharedShapes() throws ParseException {
+		StringBuilder json = new StringBuilder("[");
+		for (int ix = 0; ix < 100; ix++) {
+			json.append(ix == 0 ? "{" : ",{");
+			json.append("\"id\":").append(ix).append(",\"name\":\"n").append(ix).append('"');
+			for (int field = 0; field < 10; field++) {
+				json.append(",\"f").append(field).append("\":").append(field);
+			}
+			json.append('}');
+		}
+		MixedList records = MixedList.fromJSON(json.append(']').toString());
+
+		MixedMap first = records.getMap(0, null);
+		MixedMap second = records.getMap(1, null);
+		assertEquals(12, first.size());
+		assertEquals("n1", second.get("name"));
+		assertEquals(9, second.get("f9"));
+
+		// Modifying one of the maps should not affect the others
+		first.remove("name");
+		second.put("extra", true);
+		MixedMap third = records.getMap(2, null);
+		third.put("extra", false);
+		assertNull(first.get("name"));
+		assertEquals("n2", third.get("name"));
+		assertEquals(Arrays.asList("id", "f0", "f1"), new ArrayList<>(first.keySet()).subList(0, 3));
+		assertEquals(13, second.size());
+		assertEquals(false, third.get("extra"));
+		assertFalse(records.getMap(3, null).containsKey("extra"));
+		assertEquals(12, records.getMap(99, null).size());
+
+		MixedMap clone = third.clone();
+		clone.remove("extra");
+		assertEquals(records.getMap(4, null).keySet(), clone.keySet());
+		assertEquals(false, third.get("extra"));
+
+		// Objects with different keys each time still work when they no longer fit in the shared shapes
+		MixedMap dictionary = new MixedMap();
+		for (int ix = 0; ix < 100; ix++) {
+			dictionary.put("key" + ix, new MixedMap().$("key" + ix, ix));
+		}
+		MixedMap decoded = MixedMap.fromJSON(JSONEncoder.toString(dictionary));
+		assertEquals(dictionary, decoded);
+		assertEquals(new ArrayList<>(dictionary.keySet()), new ArrayList<>(decoded.keySet()));
+	}
+
+	@Test
+	public void testFrozen() throws IOException, ClassNotFoundException {
+		MixedMap source = new MixedMap().$("a", 1).$("b", new MixedList().$(1, 2)).$("c", new MixedMap().$("d", true));
+		FrozenMap frozen = source.freeze();
+		assertEquals(source, frozen);
+		assertEquals(source.hashCode(), frozen.hashCode());
+		assertEquals(Arrays.asList("a", "b", "c"), new ArrayList<>(frozen.keySet()));
+		assertTrue(frozen.get("b") instanceof FrozenList);
+		assertTrue(frozen.get("c") instanceof FrozenMap);
+		assertSame(frozen, frozen.freeze());
+
+		// Modifying the source does not change the frozen copy, which itself can not be modified
+		source.getList("b", null).add(3);
+		assertEquals(2, frozen.getList("b", null).size());
+		try {
+			frozen.put("a", 2);
+			fail("Expected an UnsupportedOperationException");
+		} catch (UnsupportedOperationException ex) {
+			// Expected
+		}
+		try {
+			frozen.getMap("c", null).entrySet().iterator().next().setValue(false);
+			fail("Expected an UnsupportedOperationException");
+		} catch (UnsupportedOperationException ex) {
+			// Expected
+		}
+
+		FrozenMap changed = frozen.with("a", 2).with("e", "new").without("b");
+		assertEquals(new MixedMap().$("a", 2).$("c", new MixedMap().$("d", true)).$("e", "new"), changed);
+		assertEquals(Arrays.asList("a", "c", "e"), new ArrayList<>(changed.keySet()));
+		assertSame(frozen.get("c"), changed.get("c"));
+		assertEquals(1, frozen.get("a"));
+		assertSame(frozen, frozen.without("x"));
+
+		// Many keys, including keys with the same hash code
+		FrozenMap large = FrozenMap.empty();
+		MixedMap expected = new MixedMap();
+		for (int ix = 0; ix < 2000; ix++) {
+			large = large.with("key" + ix, ix);
+			expected.put("key" + ix, ix);
+		}
+		large = large.with("Aa", "Aa").with("BB", "BB").with("AaAa", 1).with("BBBB", 2).with("AaBB", 3);
+		expected.$("Aa", "Aa").$("BB", "BB").$("AaAa", 1).$("BBBB", 2).$("AaBB", 3);
+		assertEquals(expected, large);
+		assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(large.keySet()));
+		assertEquals(expected, expected.freeze());
+		for (int ix = 0; ix < 2000; ix += 2) {
+			large = large.without("key" + ix);
+			expected.remove("key" + ix);
+		}
+		large = large.without("BB").without("AaAa");
+		expected.remove("BB");
+		expected.remove("AaAa");
+		assertEquals(expected, large);
+		assertEquals(new ArrayList<>(expected.values()), new ArrayList<>(large.values()));
+		assertEquals("Aa", large.get("Aa"));
+		assertNull(large.get("BB"));
+
+		// Read back as a frozen map
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(changed);
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			Object read = in.readObject();
+			assertTrue(read instanceof FrozenMap);
+			assertEquals(changed, read);
+		}
+
+		// A mutable copy can be modified again and is tracked as usual
+		MixedMap copy = new MixedMap(changed);
+		int version = copy.version();
+		copy.put("a", 3);
+		assertNotEquals(version, copy.version());
+		assertEquals("{\"a\":2,\"c\":{\"d\":true},\"e\":\"new\"}", JSONEncoder.toString(changed));
+	}
+
+	@Test
+	public void testConcurrent() throws Exception {
+		ConcurrentMixedMap map = new ConcurrentMixedMap();
+		map.$("b", 1).$("a", "x").$("c", null);
+		assertEquals(new MixedMap().$("b", 1).$("a", "x").$("c", null), map);
+		assertEquals(Arrays.asList("b", "a", "c"), new ArrayList<>(map.keySet()));
+		assertEquals(1, map.getInt("b"));
+		assertEquals("x", map.getString("a"));
+		assertTrue(map.containsKey("c"));
+		assertNull(map.get(1));
+
+		// Replacing keeps the position, removing and adding again moves it to the end
+		int version = map.version();
+		map.put("b", 2);
+		map.remove("a");
+		map.put("a", "y");
+		assertNotEquals(version, map.version());
+		assertEquals("{\"b\":2,\"c\":null,\"a\":\"y\"}", JSONEncoder.toString(map));
+		assertEquals(3, map.merge("b", 1, (a, b) -> (Integer) a + (Integer) b));
+		assertNull(map.compute("c", (key, value) -> null));
+		assertFalse(map.containsKey("c"));
+		assertEquals("y", map.putIfAbsent("a", "z"));
+		for (Iterator<Map.Entry<String, Object>> it = map.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Object> entry = it.next();
+			if (entry.getKey().equals("a")) {
+				it.remove();
+			} else {
+				entry.setValue(4);
+			}
+		}
+		assertEquals(new MixedMap().$("b", 4), map);
+
+		// Nested values are updated atomically, creating the maps in between
+		List<String> path = Arrays.asList("counters", "requests");
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int thread = 0; thread < 4; thread++) {
+				int offset = thread;
+				futures.add(executor.submit(() -> {
+					for (int ix = 0; ix < 1000; ix++) {
+						map.mergePath(path, 1, (a, b) -> (Integer) a + (Integer) b);
+						map.put("key" + (offset + 4 * ix), ix);
+						map.remove("key" + (offset + 4 * ix - 8));
+						JSONEncoder.toString(map);
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		assertEquals(4000, map.getMap("counters").getInt("requests"));
+		assertTrue(map.getMap("counters") instanceof ConcurrentMixedMap);
+		assertEquals(2 + 8, map.size());
+		assertEquals(6, map.computePath(path, (key, value) -> 6));
+		try {
+			map.computePath(Arrays.asList("b", "c"), (key, value) -> 1);
+			fail("Expected an UnexpectedTypeException");
+		} catch (UnexpectedTypeException ex) {
+			// Expected
+		}
+
+		// Read back as a concurrent map
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(map);
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			Object read = in.readObject();
+			assertTrue(read instanceof ConcurrentMixedMap);
+			assertEquals(map, read);
+		}
+
+		// Modifications of nested maps change the version of the parent
+		version = map.version();
+		map.getMap("counters").put("errors", 1);
+		assertNotEquals(version, map.version());
+		assertEquals(map, map.freeze());
+
+		// But not the version of a normal map, which is not thread-safe
+		MixedMap holder = new MixedMap().$("counters", map.getMap("counters"));
+		version = holder.version();
+		map.getMap("counters").put("errors", 2);
+		assertEquals(version, holder.version());
+
+		// The same map can be stored and removed by several threads at the same time
+		MixedMap shared = new MixedMap().$("a", 1);
+		executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int thread = 0; thread < 4; thread++) {
+				int offset = thread;
+				futures.add(executor.submit(() -> {
+					for (int ix = 0; ix < 1000; ix++) {
+						map.put("shared" + (offset + 4 * (ix % 8)), shared);
+						map.remove("shared" + (offset + 4 * ((ix + 4) % 8)));
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		map.keySet().removeIf(key -> key.startsWith("shared"));
+		version = map.version();
+		shared.put("a", 2);
+		assertEquals(version, map.version());
+
+		map.clear();
+		assertTrue(map.isEmpty());
+	}
+
+	@Test
+	public void testVersions() throws Exception {
+		MixedMap catalog = new MixedMap().$("products", new MixedList().$("a", "b"));
+		MixedMap kept = new MixedMap().$("catalog", catalog);
+		List<WeakReference<MixedMap>> responses = new ArrayList<>();
+		for (int ix = 0; ix < 10000; ix++) {
+			responses.add(new WeakReference<>(new MixedMap().$("id", ix).$("catalog", catalog)));
+		}
+
+		// The catalog does not keep the responses in which it has been stored alive
+		for (int attempt = 0; attempt < 20 && responses.get(0).get() != null; attempt++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull(responses.get(0).get());
+
+		int version = kept.version();
+		catalog.getList("products", null).add("c");
+		assertNotEquals(version, kept.version());
+
+		// A parent that is no longer holding the child is not modified
+		version = kept.version();
+		MixedMap other = new MixedMap().$("catalog", catalog);
+		other.remove("catalog");
+		int otherVersion = other.version();
+		catalog.put("name", "changed");
+		assertNotEquals(version, kept.version());
+		assertEquals(otherVersion, other.version());
+
+		// Normal maps on different threads can hold the same child, it is only modified on a single thread
+		MixedMap shared = new MixedMap().$("a", 1);
+		List<MixedMap> holders = new ArrayList<>();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<List<MixedMap>>> futures = new ArrayList<>();
+			for (int thread = 0; thread < 8; thread++) {
+				futures.add(executor.submit(() -> {
+					List<MixedMap> alive = new ArrayList<>();
+					for (int ix = 0; ix < 10000; ix++) {
+						MixedMap holder = new MixedMap().$("c", shared);
+						if (ix % 100 == 0) {
+							alive.add(holder);
+						}
+					}
+					return alive;
+				}));
+			}
+			for (Future<List<MixedMap>> future : futures) {
+				holders.addAll(future.get());
+			}
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		int[] versions = new int[holders.size()];
+		for (int ix = 0; ix < versions.length; ix++) {
+			versions[ix] = holders.get(ix).version();
+		}
+		shared.put("a", 2);
+		for (int ix = 0; ix < versions.length; ix++) {
+			assertNotEquals(versions[ix], holders.get(ix).version());
+		}
+
+		// A modification deep down in a tree reaches the top without recursion
+		MixedList top = new MixedList();
+		MixedList current = top;
+		for (int ix = 0; ix < 100000; ix++) {
+			current = new MixedList().$(current);
+		}
+		version = current.version();
+		top.add("changed");
+		assertNotEquals(version, current.version());
+
+		// Reading the entries does not wrap them, but they are the same and can not be changed
+		Iterator<? extends Map.Entry<String, Object>> it = kept.readEntries();
+		Map.Entry<String, Object> entry = it.next();
+		assertEquals(kept.entrySet().iterator().next(), entry);
+		try {
+			entry.setValue(new MixedMap());
+			fail("Expected an UnsupportedOperationException");
+		} catch (UnsupportedOperationException ex) {
+			// Expected
+		}
+		assertSame(catalog, kept.get("catalog"));
+		assertFalse(it.hasNext());
+	}
+
+	@Test
+	public void testSerialization() throws Exception {
+		MixedMap shared = new MixedMap().$("shared", true);
+		MixedMap document = MixedMap.fromJSON("{\"ints\":[1,-2,300000],\"longs\":[12345678901,-1],"
+		                                      + "\"doubles\":[0.5,-1e300],"
+		                                      + "\"items\":[{\"id\":1,\"name\":\"a\"},{\"id\":2,\"name\":\"b\"}]}");
+		document.$("text", "送 😀 \ud800").$("long", repeat('x', 100));
+		document.$("nan", Double.NaN).$("empty", new MixedList());
+		document.$("big", new BigDecimal("1.50")).$("short", (short) 3).$("null", null).$("flag", false);
+		document.$("first", shared).$("second", new MixedList().$(shared));
+		document.$("concurrent", new ConcurrentMixedMap().$("a", 1)).$("frozen", new MixedMap().$("b", 2).freeze());
+
+		MixedMap read = (MixedMap) roundTrip(document);
+		assertEquals(MixedMap.class, read.getClass());
+		assertEquals(document, read);
+		assertEquals(new ArrayList<>(document.keySet()), new ArrayList<>(read.keySet()));
+		assertEquals(12345678901L, read.getList("longs").get(0));
+		assertSame(read.get("first"), read.getList("second").get(0));
+		assertTrue(read.get("concurrent") instanceof ConcurrentMixedMap);
+		assertTrue(read.get("frozen") instanceof FrozenMap);
+
+		// Reading adopts the nested maps, so changes are tracked by their parents
+		int version = read.version();
+		read.getMap("first").put("changed", 1);
+		assertNotEquals(version, read.version());
+
+		// A tree that is too deep to write recursively, built from the bottom up, as every level that is added at the
+		// bottom changes the versions of all the levels above it
+		MixedList current = new MixedList().$("bottom");
+		for (int ix = 0; ix < 100000; ix++) {
+			current = new MixedList().$(current);
+		}
+		current = (MixedList) roundTrip(current);
+		for (int ix = 0; ix < 100000; ix++) {
+			current = current.getList(0);
+		}
+		assertEquals(new MixedList().$("bottom"), current);
+
+		// The keys are only written once, the maps take about 10 bytes each
+		MixedList items = new MixedList();
+		for (int ix = 0; ix < 1000; ix++) {
+			items.add(new MixedMap().$("identifier", ix).$("description", "item"));
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(items);
+		}
+		assertTrue(bytes.size() < 1000 * 12);
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	private static Object roundTrip(Object value) throws IOException, ClassNotFoundException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(value);
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			return in.readObject();
+		}
+	}
+
+	@Test
+	public void testPath() throws ParseException {
+		MixedMap map = MixedMap.fromJSON("{\"a\":{\"b\":[0,1,2,{\"c\":\"x\",\"n\":\"12\"}]},\"d.e\":true,"
+		                                 + "\"list\":[[1,2],[3]],\"java\":null}");
+		map.put("java", Collections.singletonMap("key", Arrays.asList(4.5)));
+		assertEquals("x", map.getPath("a.b[3].c"));
+		assertEquals("x", map.getPathString("a.b[3].c", null));
+		assertEquals(12, map.getPathInt("a.b[3].n", 0));
+		assertEquals(2L, map.getPathLong("a.b[2]", 0));
+		assertEquals(4.5, map.getPathDouble("java.key[0]", 0), 0);
+		assertTrue(map.getPathBoolean("[\"d.e\"]", false));
+		assertEquals(3, map.getPathInt("list[1][0]", 0));
+		assertEquals(new MixedList().$(1, 2), map.getPathList("list[0]", null));
+		assertEquals(new MixedMap().$("c", "x").$("n", "12"), map.getPathMap("a.b[3]", null));
+		assertSame(map, map.getPath(""));
+
+		// Missing values and the wrong types give the default
+		assertNull(map.getPath("a.b[4].c"));
+		assertNull(map.getPath("a.c.d"));
+		assertNull(map.getPath("a[0]"));
+		assertNull(map.getPath("a.b.c"));
+		assertEquals(-1, map.getPathInt("a.b[3].c", -1));
+		assertEquals("none", map.getPathString("d.e", "none"));
+		assertNull(map.getPathMap("a.b", null));
+
+		// The paths are compiled once
+		assertSame(MixedPath.compile("a.b[3].c"), MixedPath.compile("a.b[3].c"));
+		assertEquals("a[\"x\\\"y\"]", MixedPath.compile("a[\"x\\\"y\"]").toString());
+		assertEquals(1, MixedPath.compile("[\"x\\\"y\"]").get(new MixedMap().$("x\"y", 1)));
+		for (String invalid : Arrays.asList(".a", "a..b", "a[", "a[x]", "a[-1]", "a[\"b\"", "a]", "a.b[2]c",
+		                                    "a[\"b\"]c")) {
+			try {
+				MixedPath.compile(invalid);
+				fail("Expected an IllegalArgumentException for " + invalid);
+			} catch (IllegalArgumentException ex) {
+				// Expected
+			}
+		}
+
+		// Many paths in a single walk
+		MixedPath.Group group = MixedPath.group("a.b[3].c", "a.b[3].n", "a.b[9]", "list[1][0]", "a.b[3].c");
+		assertEquals(5, group.size());
+		assertEquals(MixedPath.compile("a.b[9]"), group.get(2));
+		assertArrayEquals(new Object[] { "x", "12", null, 3, "x" }, group.extract(map));
+		Object[] results = new Object[] { 1, 2, 3, 4, 5, 6 };
+		group.extract(new MixedMap().$("list", new MixedList().$(null, new MixedList().$(7))), results);
+		assertArrayEquals(new Object[] { null, null, null, 7, null, 6 }, results);
+	}
+}
@@ -2,11 +2,19 @@ package com.marcdejonge.test.codec;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
+import java.util.UUID;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.marcdejonge.codec.MixedList;
 import com.marcdejonge.codec.MixedMap;
 import com.marcdejonge.codec.UnexpectedTypeException;
 
@@ -72,6 +80,47 @@ public class ObjectTest {
 		}
 	}
 
+	public static class B {
+		private final List<Object> values;
+
+		private B(List<Object> values) {
+			this.values = values;
+		}
+
+		public static B parse(MixedList list) throws UnexpectedTypeException {
+			if (list.isEmpty()) {
+				throw new UnexpectedTypeException("a non-empty list", list);
+			}
+			return new B(list);
+		}
+
+		public static B other(String value) {
+			return null;
+		}
+	}
+
+	public static class Node {
+		public final String name;
+		public final List<Object> children = new ArrayList<>();
+		public Node parent;
+
+		public Node(String name) {
+			this.name = name;
+		}
+
+		public boolean isLeaf() {
+			return children.isEmpty();
+		}
+
+		public A getA() {
+			return new A(name.length(), name);
+		}
+
+		public String getBroken() {
+			throw new IllegalStateException();
+		}
+	}
+
 	@Test
 	public void testA() throws UnexpectedTypeException, IOException {
 		A original = new A(3, "test", BigInteger.valueOf(1234567890L));
@@ -80,4 +129,116 @@ public class ObjectTest {
 
 		Assert.assertEquals(original, result);
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testConversions() throws UnexpectedTypeException {
+		Assert.assertEquals(Arrays.asList(1, 2), new MixedList().$(1, 2).as(B.class).values);
+
+		MixedList list = new MixedList();
+		for (int ix = 0; ix < 100; ix++) {
+			list.add(MixedMap.from(new A(ix, "v" + ix)));
+		}
+		list.add(new A(100));
+		List<A> result = list.mapAs(A.class);
+		Assert.assertEquals(101, result.size());
+		Assert.assertEquals(new A(42, "v42"), result.get(42));
+		Assert.assertEquals(new A(42, "v42"), list.getAs(42, A.class));
+		Assert.assertEquals(new A(100), result.get(100));
+
+		// The errors of the constructor or method are passed on as they are
+		try {
+			new MixedList().as(B.class);
+			Assert.fail("Expected an UnexpectedTypeException");
+		} catch (UnexpectedTypeException ex) {
+			Assert.assertTrue(ex.getMessage().contains("a non-empty list"));
+		}
+		list.add(new MixedMap().$("x", "nan"));
+		try {
+			list.mapAs(A.class);
+			Assert.fail("Expected an UnexpectedTypeException");
+		} catch (UnexpectedTypeException ex) {
+			Assert.assertTrue(ex.getMessage().contains("a number"));
+		}
+		Assert.assertNull(list.getAs(101, A.class, null));
+
+		// Classes that can not be converted to, asked for more than once
+		for (int ix = 0; ix < 2; ix++) {
+			Assert.assertNull(list.getAs(0, StringBuilder.class, null));
+			try {
+				new MixedMap().as(B.class);
+				Assert.fail("Expected an UnexpectedTypeException");
+			} catch (UnexpectedTypeException ex) {
+				Assert.assertTrue(ex.getMessage().contains("does not have a public constructor"));
+			}
+		}
+	}
+
+	@Test
+	public void testBeans() throws UnexpectedTypeException {
+		Node root = new Node("root");
+		Node child = new Node("child");
+		root.children.add(child);
+		root.children.add(Collections.singletonMap(1, new A(7)));
+		root.children.add(new A[] { new A(8) });
+		root.children.add(null);
+
+		MixedMap m = new MixedMap(root);
+		Assert.assertEquals("root", m.getString("name"));
+		Assert.assertEquals(false, m.get("isLeaf"));
+		Assert.assertEquals(new A(4, "root"), m.getAs("a", A.class));
+		Assert.assertNull(m.get("parent"));
+		Assert.assertFalse(m.containsKey("broken"));
+
+		MixedList children = m.getList("children");
+		Assert.assertEquals(4, children.size());
+		Assert.assertEquals("child", children.getMap(0).getString("name"));
+		Assert.assertEquals(true, children.getMap(0).get("isLeaf"));
+		Assert.assertEquals(new A(7), children.getMap(1).getAs("1", A.class));
+		Assert.assertEquals(Arrays.asList(new A(8)), children.getList(2).mapAs(A.class));
+		Assert.assertNull(children.get(3));
+
+		// Copied in bulk
+		MixedList copies = MixedList.fromBeans(Arrays.asList(new A(1), new A(2), "text", null));
+		Assert.assertEquals(Arrays.asList(MixedMap.from(new A(1)), MixedMap.from(new A(2)), "text", null), copies);
+
+		// No beans, even though strings and other values have getters
+		for (Object value : Arrays.asList("text", 12, true, new int[] { 1 }, new StringBuilder("text"),
+		                                  UUID.randomUUID(), Instant.now(), Duration.ofSeconds(5))) {
+			try {
+				MixedMap.from(value);
+				Assert.fail("Expected an UnexpectedTypeException for " + value);
+			} catch (UnexpectedTypeException ex) {
+				// Expected
+			}
+		}
+
+		// A cycle through the parent
+		child.parent = root;
+		try {
+			new MixedMap(root);
+			Assert.fail("Expected an UnexpectedTypeException");
+		} catch (UnexpectedTypeException ex) {
+			Assert.assertTrue(ex.getMessage().contains("contains itself"));
+		}
+
+		// Too deep, but the same beans can be found on different paths
+		Node deep = new Node("deep");
+		for (int ix = 0; ix < 200; ix++) {
+			Node next = new Node("deep");
+			next.children.add(deep);
+			next.children.add(deep);
+			deep = next;
+		}
+		try {
+			new MixedMap(deep);
+			Assert.fail("Expected an UnexpectedTypeException");
+		} catch (UnexpectedTypeException ex) {
+			Assert.assertTrue(ex.getMessage().contains("levels deep"));
+		}
+		root.children.clear();
+		root.children.add(child);
+		root.children.add(child);
+		child.parent = null;
+		Assert.assertEquals(2, new MixedMap(root).getList("children").size());
+	}
+}
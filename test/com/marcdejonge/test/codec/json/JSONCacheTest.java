@@ -0,0 +1,125 @@
+package com.marcdejonge.test.codec.json;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+import com.marcdejonge.codec.ConcurrentMixedMap;
+import com.marcdejonge.codec.MixedList;
+import com.marcdejonge.codec.MixedMap;
+import com.marcdejonge.codec.json.JSONCache;
+import com.marcdejonge.codec.json.JSONEncoder;
+import com.marcdejonge.codec.json.JSONEncoder.Options;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JSONCacheTest {
+	@Test
+	public void testCachedSubtrees() throws IOException {
+		MixedList items = new MixedList();
+		for (int ix = 0; ix < 20; ix++) {
+			items.add(new MixedMap().$("id", ix).$("name", "item number " + ix));
+		}
+		MixedMap document = new MixedMap().$("items", items).$("title", "cached");
+
+		for (EnumSet<Options> options : Arrays.asList(EnumSet.noneOf(Options.class), EnumSet.of(Options.PRETTY))) {
+			JSONCache cache = new JSONCache(1 << 20);
+			for (int round = 0; round < 3; round++) {
+				Assert.assertEquals(encode(document, options, null), encode(document, options, cache));
+			}
+			Assert.assertTrue(cache.getHits() > 0);
+
+			// Modifying a nested value should invalidate all the containers above it
+			((MixedMap) items.get(3)).put("name", "changed");
+			String expected = encode(document, options, null);
+			Assert.assertTrue(expected.contains("changed"));
+			Assert.assertEquals(expected, encode(document, options, cache));
+
+			items.subList(0, 2).set(1, "replaced");
+			expected = encode(document, options, null);
+			Assert.assertTrue(expected.contains("replaced"));
+			Assert.assertEquals(expected, encode(document, options, cache));
+		}
+	}
+
+	@Test
+	public void testUnstableValues() throws IOException {
+		List<Object> plain = new ArrayList<>(Arrays.asList("a plain list", "that the map", "does not track"));
+		MixedMap stable = new MixedMap().$("text", "a subtree with only tracked containers and immutable values");
+		MixedMap document = new MixedMap().$("plain", plain).$("stable", stable);
+
+		for (EnumSet<Options> options : Arrays.asList(EnumSet.noneOf(Options.class), EnumSet.of(Options.PARALLEL))) {
+			JSONCache cache = new JSONCache(1 << 20);
+			for (int round = 0; round < 3; round++) {
+				Assert.assertEquals(encode(document, options, null), encode(document, options, cache));
+			}
+			Assert.assertTrue(cache.getHits() > 0);
+
+			// The map is not cached, since the list can change without changing its version
+			plain.add("NEW");
+			String expected = encode(document, options, null);
+			Assert.assertTrue(expected.contains("NEW"));
+			Assert.assertEquals(expected, encode(document, options, cache));
+			plain.remove("NEW");
+		}
+
+		// The same goes for arrays and other mutable values deeper in the tree
+		int[] numbers = { 1, 2, 3 };
+		StringBuilder text = new StringBuilder("text that is long enough to be cached by the encoder");
+		MixedList list = new MixedList().$(new MixedMap().$("numbers", numbers).$("text", text));
+		JSONCache cache = new JSONCache(1 << 20);
+		for (int round = 0; round < 3; round++) {
+			encode(list, EnumSet.noneOf(Options.class), cache);
+		}
+		numbers[0] = 42;
+		text.append(" CHANGED");
+		Assert.assertEquals(encode(list, EnumSet.noneOf(Options.class), null),
+		                    encode(list, EnumSet.noneOf(Options.class), cache));
+	}
+
+	@Test
+	public void testConcurrentMaps() throws IOException {
+		ConcurrentMixedMap counters = new ConcurrentMixedMap();
+		counters.put("requests", 1);
+		counters.put("description", "the number of requests since the service has been started");
+		ConcurrentMixedMap stats = new ConcurrentMixedMap();
+		stats.put("counters", counters);
+		MixedMap document = new MixedMap().$("stats", stats).$("text", "a text that is long enough to be cached");
+		EnumSet<Options> options = EnumSet.noneOf(Options.class);
+
+		JSONCache cache = new JSONCache(1 << 20);
+		for (int round = 0; round < 3; round++) {
+			Assert.assertEquals(encode(document, options, null), encode(document, options, cache));
+		}
+		Assert.assertTrue(cache.getHits() > 0);
+
+		// A concurrent map only changes the version of the concurrent maps it is in, not that of the document
+		int version = document.version();
+		counters.put("requests", 2);
+		Assert.assertEquals(version, document.version());
+		Assert.assertEquals(encode(document, options, null), encode(document, options, cache));
+		Assert.assertEquals(encode(stats, options, null), encode(stats, options, cache));
+		Assert.assertTrue(encode(document, options, cache).contains("\"requests\":2"));
+	}
+
+	@Test
+	public void testEviction() throws IOException {
+		JSONCache cache = new JSONCache(1000);
+		for (int ix = 0; ix < 100; ix++) {
+			MixedMap document = new MixedMap().$("text", "a long enough text to be cached by the encoder " + ix);
+			encode(document, EnumSet.noneOf(Options.class), cache);
+			encode(document, EnumSet.noneOf(Options.class), cache);
+			Assert.assertTrue(cache.getSize() <= 1000);
+		}
+		Assert.assertTrue(cache.getEvictions() > 0);
+	}
+
+	private static String encode(Object document, EnumSet<Options> options, JSONCache cache) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		new JSONEncoder(sb, options, cache).write(document);
+		return sb.toString();
+	}
+}
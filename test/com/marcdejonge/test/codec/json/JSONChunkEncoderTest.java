@@ -0,0 +1,129 @@
+package com.marcdejonge.test.codec.json;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Random;
+
+import com.marcdejonge.codec.MixedList;
+import com.marcdejonge.codec.MixedMap;
+import com.marcdejonge.codec.ParseException;
+import com.marcdejonge.codec.json.JSONChunkEncoder;
+import com.marcdejonge.codec.json.JSONChunkEncoder.BufferPool;
+import com.marcdejonge.codec.json.JSONEncoder;
+import com.marcdejonge.codec.json.JSONEncoder.Options;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JSONChunkEncoderTest {
+	@Test
+	public void testSameOutput() throws IOException {
+		StringBuilder longText = new StringBuilder();
+		for (int ix = 0; ix < 1000; ix++) {
+			longText.append("line ").append(ix).append(" \"送 醨 훖\" 😀\n");
+		}
+
+		MixedMap document = new MixedMap().$("text", longText.toString())
+		                                  .$("numbers", new MixedList().$(1, 2.5, -3L))
+		                                  .$("array", new double[] { 1.5, -2, 1e300 })
+		                                  .$("nested", new MixedMap().$("empty", new MixedList()).$("null", null))
+		                                  .$("flag", true);
+
+		for (EnumSet<Options> options : Arrays.asList(EnumSet.noneOf(Options.class),
+		                                              EnumSet.of(Options.PRETTY),
+		                                              EnumSet.of(Options.CANONICAL))) {
+			StringBuilder expected = new StringBuilder();
+			new JSONEncoder(expected, options).write(document);
+
+			JSONChunkEncoder encoder = new JSONChunkEncoder(document, options, new BufferPool(16, 4));
+			Assert.assertArrayEquals(expected.toString().getBytes(StandardCharsets.UTF_8), readAll(encoder));
+		}
+	}
+
+	@Test
+	public void testChunkBoundaries() throws IOException {
+		// Characters of two, three and four bytes, the last one being a surrogate pair, at every offset in a chunk
+		for (String text : Arrays.asList("é", "送", "😀", "😀😀", "é送😀")) {
+			for (int offset = 0; offset < 40; offset++) {
+				testChunks(repeat('x', offset) + text + repeat('y', 40), new BufferPool(16, 4));
+			}
+			for (int offset = 8170; offset < 8200; offset++) {
+				testChunks(repeat('x', offset) + text + "y", new BufferPool(8192, 4));
+			}
+		}
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	private static void testChunks(String text, BufferPool pool) throws IOException {
+		for (Object document : Arrays.asList(text, new MixedList().$(text, text))) {
+			byte[] expected = JSONEncoder.toString(document).getBytes(StandardCharsets.UTF_8);
+			JSONChunkEncoder encoder = new JSONChunkEncoder(document, EnumSet.noneOf(Options.class), pool);
+			Assert.assertArrayEquals(expected, readAll(encoder));
+		}
+	}
+
+	@Test
+	public void testBinaryValue() throws IOException {
+		byte[] data = new byte[100000];
+		new Random(7).nextBytes(data);
+
+		MixedMap document = new MixedMap().$("data", new ByteArrayInputStream(data)).$("after", 1);
+		String expected = "{\"data\":\"" + Base64.getEncoder().encodeToString(data) + "\",\"after\":1}";
+
+		JSONChunkEncoder encoder = new JSONChunkEncoder(document,
+		                                                EnumSet.noneOf(Options.class),
+		                                                new BufferPool(256, 4));
+		Assert.assertEquals(expected, new String(readAll(encoder), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testLazyDocuments() throws IOException, ParseException {
+		int[] produced = new int[1];
+		Iterator<MixedMap> documents = new Iterator<MixedMap>() {
+			@Override
+			public boolean hasNext() {
+				return produced[0] < 1000;
+			}
+
+			@Override
+			public MixedMap next() {
+				return new MixedMap().$("id", produced[0]++);
+			}
+		};
+
+		JSONChunkEncoder encoder = new JSONChunkEncoder(documents,
+		                                                EnumSet.noneOf(Options.class),
+		                                                new BufferPool(64, 4));
+		ByteBuffer first = encoder.next();
+		Assert.assertEquals(64, first.remaining());
+		// Only the documents needed for the first chunk should have been produced
+		Assert.assertTrue(produced[0] < 10);
+
+		String json = new String(first.array(), 0, 64, StandardCharsets.UTF_8)
+		              + new String(readAll(encoder), StandardCharsets.UTF_8);
+		Assert.assertEquals(1000, MixedList.fromJSON(json).size());
+	}
+
+	private static byte[] readAll(JSONChunkEncoder encoder) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		while (encoder.hasNext()) {
+			ByteBuffer chunk = encoder.next();
+			Assert.assertTrue(chunk.hasRemaining());
+			out.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+			encoder.release(chunk);
+		}
+		return out.toByteArray();
+	}
+}
@@ -1,14 +1,28 @@
 package com.marcdejonge.test.codec.json;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
+import java.io.StringWriter;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
 
+import com.marcdejonge.codec.FrozenMap;
+import com.marcdejonge.codec.MixedArena;
 import com.marcdejonge.codec.ParseException;
+import com.marcdejonge.codec.UnexpectedTypeException;
 import com.marcdejonge.codec.MixedList;
 import com.marcdejonge.codec.MixedMap;
 import com.marcdejonge.codec.json.JSONDecoder;
+import com.marcdejonge.codec.json.JSONEncoder;
+import com.marcdejonge.codec.json.JSONStringSink;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -112,6 +126,7 @@ public class JSONDecoderTest {
 		testIncorrect("nul", "Premature end of file found @ line 1 character 4");
 		testIncorrect("\"\\u000z\"", "Invalid character for unicode character \'z\' @ line 1 character 7");
 		testIncorrect("{ \"dup\":1, \"dup\":2 }", "Duplicate key \"dup\" in object @ line 1 character 12");
+		testIncorrect("[-]", "Number started, but no digits found @ line 1 character 3");
 	}
 
 	private void testIncorrect(String json, String expectedMessage) throws IOException {
@@ -154,6 +169,215 @@ public class JSONDecoderTest {
 		}
 	}
 
+	@Test
+	public void testStreamedStrings() throws IOException, ParseException {
+		byte[] blob = new byte[100000];
+		new Random(3).nextBytes(blob);
+		StringBuilder text = new StringBuilder();
+		for (int ix = 0; ix < 2000; ix++) {
+			text.append("line ").append(ix).append(" 送 😀\n");
+		}
+
+		MixedMap document = new MixedMap().$("id", 1)
+		                                  .$("blob", blob)
+		                                  .$("parts", new MixedList().$("short", text.toString()))
+		                                  .$("small", "tiny");
+		String json = JSONEncoder.toString(document);
+
+		ByteArrayOutputStream blobOut = new ByteArrayOutputStream();
+		StringWriter textOut = new StringWriter();
+		List<Object> keys = new ArrayList<>();
+		Object decoded = JSONDecoder.parse(new StringReader(json), 100, (parent, key) -> {
+			keys.add(key);
+			if ("blob".equals(key)) {
+				Assert.assertEquals(1, ((MixedMap) parent).get("id"));
+				return JSONStringSink.base64(blobOut);
+			} else {
+				return JSONStringSink.of(textOut);
+			}
+		});
+
+		Assert.assertEquals(Arrays.asList("blob", 1), keys);
+		Assert.assertArrayEquals(blob, blobOut.toByteArray());
+		Assert.assertEquals(text.toString(), textOut.toString());
+		Assert.assertEquals(new MixedMap().$("id", 1)
+		                                  .$("blob", null)
+		                                  .$("parts", new MixedList().$("short", null))
+		                                  .$("small", "tiny"),
+		                    decoded);
+
+		// Strings are only streamed when the handler wants them
+		Assert.assertEquals(MixedMap.fromJSON(json), JSONDecoder.parse(new StringReader(json), 10, (p, k) -> null));
+	}
+
+	@Test
+	public void testDecimals() throws ParseException {
+		Random random = new Random(5);
+		for (int ix = 0; ix < 10000; ix++) {
+			String number = (random.nextBoolean() ? "-" : "")
+			                + random.nextInt(100000)
+			                + "."
+			                + String.format("%0" + (1 + random.nextInt(10)) + "d", random.nextInt(Integer.MAX_VALUE));
+			Assert.assertEquals(number, new BigDecimal(number).doubleValue(), JSONDecoder.parse(number));
+		}
+		Assert.assertEquals(0.0, JSONDecoder.parse("-0.0"));
+		String precise = "1234567890.1234567";
+		Assert.assertEquals(new BigDecimal(precise).doubleValue(), JSONDecoder.parse(precise));
+	}
+
+	@Test
+	public void testReset() throws ParseException {
+		JSONDecoder decoder = dec("{\"name\":\"first\",\"list\":[1,2]}");
+		MixedMap first = decoder.parseObject();
+
+		decoder.reset(new StringReader("{\"name\":\"second\",\n\"list\":[1.5]}"));
+		MixedMap second = decoder.parseObject();
+		Assert.assertEquals(new MixedMap().$("name", "first").$("list", new MixedList().$(1, 2)), first);
+		Assert.assertEquals(new MixedMap().$("name", "second").$("list", new MixedList().$(1.5)), second);
+		// The keys are only created once
+		Assert.assertSame(first.keySet().iterator().next(), second.keySet().iterator().next());
+
+		// The position starts again as well, also after an error
+		decoder.reset(new StringReader("{\n\"a\": tru"));
+		try {
+			Assert.fail("Expected to fail, but read " + decoder.parseValue());
+		} catch (ParseException ex) {
+			Assert.assertEquals("Premature end of file found @ line 2 character 9", ex.getMessage());
+		}
+		decoder.reset(new StringReader("[true, null]"));
+		Assert.assertEquals(new MixedList().$(true, null), decoder.parseValue());
+	}
+
+	@Test
+	public void testArena() throws ParseException, UnexpectedTypeException {
+		JSONDecoder decoder = dec("");
+		String json = "{\"id\":1,\"items\":[{\"a\":[1,2,3]},{\"a\":[\"x\",null]}],\"empty\":{}}";
+		Set<Object> containers = Collections.newSetFromMap(new IdentityHashMap<>());
+		FrozenMap kept;
+		try (MixedArena arena = MixedArena.open()) {
+			decoder.reset(new StringReader(json));
+			decoder.setArena(arena);
+			MixedMap document = decoder.parseObject();
+			Assert.assertEquals(MixedMap.fromJSON(json), document);
+			kept = document.freeze();
+			containers.add(document);
+			containers.add(document.get("items"));
+			containers.add(document.get("empty"));
+			for (Object item : document.getList("items")) {
+				containers.add(item);
+				containers.add(((MixedMap) item).get("a"));
+			}
+
+			try {
+				MixedArena.open();
+				Assert.fail("Expected the arena to be open already");
+			} catch (IllegalStateException ex) {
+				Assert.assertEquals("The arena of this thread is already open", ex.getMessage());
+			}
+		}
+		Assert.assertEquals(MixedMap.fromJSON(json), kept);
+
+		// The next request gets the same maps and lists, which are empty and can store any type
+		try (MixedArena arena = MixedArena.open()) {
+			String other = "{\"items\":[[1.5,2.5],[\"y\"],{\"b\":true},{}],\"id\":2}";
+			decoder.reset(new StringReader(other));
+			decoder.setArena(arena);
+			MixedMap document = decoder.parseObject();
+			Assert.assertEquals(MixedMap.fromJSON(other), document);
+			Assert.assertTrue(containers.contains(document));
+			Assert.assertTrue(containers.contains(document.get("items")));
+			Assert.assertEquals(2.5, document.getList("items").getList(0).getDouble(1), 0);
+		}
+
+		// A map and a list that outlive the arena no longer change the recycled maps and lists
+		MixedMap shared = new MixedMap().$("a", 1);
+		MixedList sharedList = new MixedList().$(1);
+		try (MixedArena arena = MixedArena.open()) {
+			arena.newMap().put("shared", shared);
+			arena.newList().add(sharedList);
+		}
+		try (MixedArena arena = MixedArena.open()) {
+			MixedMap map = arena.newMap();
+			MixedList list = arena.newList();
+			int mapVersion = map.version(), listVersion = list.version();
+			shared.put("a", 2);
+			sharedList.add(2);
+			Assert.assertEquals(mapVersion, map.version());
+			Assert.assertEquals(listVersion, list.version());
+		}
+
+		// A large request only leaves as many maps behind as fit in the limit of the arena, with a single value each
+		Set<Object> large = Collections.newSetFromMap(new IdentityHashMap<>());
+		try (MixedArena arena = MixedArena.open()) {
+			for (int ix = 0; ix < 20000; ix++) {
+				large.add(arena.newMap().$("id", ix));
+			}
+		}
+		try (MixedArena arena = MixedArena.open()) {
+			int reused = 0;
+			for (int ix = 0; ix < 20000; ix++) {
+				reused += large.contains(arena.newMap()) ? 1 : 0;
+			}
+			Assert.assertTrue(reused > 0 && reused <= 65536 / (8 + 1));
+		}
+
+		try {
+			MixedArena.open().close();
+			decoder.reset(new StringReader("{}"));
+			decoder.parseValue();
+			Assert.fail("Expected the arena to be closed");
+		} catch (IllegalStateException ex) {
+			Assert.assertEquals("The arena is not open", ex.getMessage());
+		}
+	}
+
+	@Test
+	public void testArenaDebug() throws ParseException, UnexpectedTypeException {
+		MixedArena.setDebug(true);
+		try {
+			JSONDecoder decoder = dec("{\"a\":{\"b\":[1,2]},\"c\":[]}");
+			MixedMap document;
+			try (MixedArena arena = MixedArena.open()) {
+				decoder.setArena(arena);
+				document = decoder.parseObject();
+			}
+
+			try {
+				document.get("a");
+				Assert.fail("Expected the map to be released");
+			} catch (IllegalStateException ex) {
+				Assert.assertEquals("The map has been released by its arena", ex.getMessage());
+			}
+			try {
+				document.toString();
+				Assert.fail("Expected the map to be released");
+			} catch (IllegalStateException ex) {
+				Assert.assertEquals("The map has been released by its arena", ex.getMessage());
+			}
+
+			// Poisoned maps and lists are never handed out again
+			MixedList list;
+			MixedArena arena = MixedArena.open();
+			try {
+				list = arena.newList();
+				list.add(1);
+				Assert.assertEquals(1, list.size());
+				MixedMap map = arena.newMap().$("key", list);
+				Assert.assertNotSame(document, map);
+			} finally {
+				arena.close();
+			}
+			try {
+				list.getInt(0);
+				Assert.fail("Expected the list to be released");
+			} catch (IllegalStateException ex) {
+				Assert.assertEquals("The list has been released by its arena", ex.getMessage());
+			}
+		} finally {
+			MixedArena.setDebug(false);
+		}
+	}
+
 	private JSONDecoder dec(String json) throws ParseException {
 		return new JSONDecoder(new StringReader(json));
 	}
@@ -0,0 +1,69 @@
+package com.marcdejonge.test.codec.json;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumSet;
+
+import com.marcdejonge.codec.ConcurrentMixedMap;
+import com.marcdejonge.codec.MixedList;
+import com.marcdejonge.codec.MixedMap;
+import com.marcdejonge.codec.ParseException;
+import com.marcdejonge.codec.json.JSONDigest;
+import com.marcdejonge.codec.json.JSONEncoder;
+import com.marcdejonge.codec.json.JSONEncoder.Options;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JSONDigestTest {
+	@Test
+	public void testDigest() throws IOException, NoSuchAlgorithmException {
+		String text = "送 醨 훖 😀 \ud800";
+		MixedMap document = new MixedMap().$("text", text).$("list", new MixedList().$(1, 2.0, true));
+
+		StringBuilder canonical = new StringBuilder();
+		new JSONEncoder(canonical, EnumSet.of(Options.CANONICAL)).write(document);
+		byte[] expected = MessageDigest.getInstance("SHA-256")
+		                               .digest(canonical.toString().getBytes(StandardCharsets.UTF_8));
+
+		Assert.assertArrayEquals(expected, JSONDigest.digest(document, MessageDigest.getInstance("SHA-256")));
+
+		MixedMap reordered = new MixedMap().$("list", new MixedList().$(1, 2, true)).$("text", text);
+		Assert.assertEquals(JSONDigest.etag(document), JSONDigest.etag(reordered));
+	}
+
+	@Test
+	public void testHash64() throws IOException, ParseException {
+		MixedList items = new MixedList();
+		for (int ix = 0; ix < 100; ix++) {
+			items.add(new MixedMap().$("id", ix).$("name", "item " + ix));
+		}
+		MixedMap document = new MixedMap().$("items", items);
+
+		JSONDigest digest = new JSONDigest();
+		long hash = digest.hash64(document);
+		Assert.assertEquals(hash, digest.hash64(document));
+		Assert.assertEquals(hash, new JSONDigest().hash64(MixedMap.fromJSON(JSONEncoder.toString(document))));
+
+		// Modifications of nested values should be seen, even though the hashes are remembered
+		((MixedMap) items.get(50)).put("name", "changed");
+		long changed = digest.hash64(document);
+		Assert.assertNotEquals(hash, changed);
+		Assert.assertEquals(changed, new JSONDigest().hash64(document));
+
+		((MixedMap) items.get(50)).put("name", "item 50");
+		Assert.assertEquals(hash, digest.hash64(document));
+
+		// A concurrent map does not change the version of a normal map, but should be seen just the same
+		ConcurrentMixedMap counters = new ConcurrentMixedMap();
+		counters.put("requests", 1);
+		document.put("stats", new ConcurrentMixedMap().$("counters", counters));
+		hash = digest.hash64(document);
+		counters.put("requests", 2);
+		changed = digest.hash64(document);
+		Assert.assertNotEquals(hash, changed);
+		Assert.assertEquals(changed, new JSONDigest().hash64(document));
+	}
+}
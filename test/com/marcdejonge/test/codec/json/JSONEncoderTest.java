@@ -1,12 +1,42 @@
 package com.marcdejonge.test.codec.json;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.StringWriter;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.EnumSet;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.OptionalInt;
+import java.util.Random;
+import java.util.UUID;
+import java.util.function.Supplier;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
 
 import com.marcdejonge.codec.MixedList;
 import com.marcdejonge.codec.MixedMap;
+import com.marcdejonge.codec.ParseException;
+import com.marcdejonge.codec.json.JSONCache;
 import com.marcdejonge.codec.json.JSONEncoder;
+import com.marcdejonge.codec.json.JSONEncoder.EncodedLength;
+import com.marcdejonge.codec.json.JSONEncoder.Options;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -56,6 +86,7 @@ public class JSONEncoderTest {
 
 		// Test escaping characters
 		testCorrect("{\"text\":\"\\t \\b \\n \\r \\\\ \\\"\"}", new MixedMap().$("text", "\t \b \n \r \\ \""));
+		testCorrect("\"a\\/b \\u0000\\u001f\\u007f\\f\"", "a/b \u0000\u001f\u007f\f");
 
 		// Test the extra random whitespace (which should be ignored)
 		testCorrect("{\"number\":49846546573379,\"text\":\" \\tbla\"}",
@@ -83,6 +114,269 @@ public class JSONEncoderTest {
 		testCorrect("{\"null\":null}", new MixedMap().$("null", null));
 	}
 
+	@Test
+	public void testLazyEncoding() throws IOException, ParseException {
+		testCorrect("[0,1,2]", IntStream.range(0, 3));
+		testCorrect("[-1,12345678901]", LongStream.of(-1, 12345678901L));
+		testCorrect("[0.5,-34.0]", DoubleStream.of(0.5, -34));
+		testCorrect("[\"a\",[1,2]]", Stream.of("a", Arrays.asList(1, 2)));
+		testCorrect("[\"a\",\"b\"]", Arrays.asList("a", "b").iterator());
+		Iterable<Integer> rows = () -> Arrays.asList(1, 2).iterator();
+		testCorrect("{\"rows\":[1,2]}", new MixedMap().$("rows", rows));
+		testCorrect("{\"lazy\":\"value\"}", new MixedMap().$("lazy", (Supplier<String>) () -> "value"));
+
+		// Lazy sequences should be flushed while they are written
+		int[] flushes = new int[1];
+		StringWriter writer = new StringWriter() {
+			@Override
+			public void flush() {
+				flushes[0]++;
+			}
+		};
+		JSONEncoder.encode(IntStream.range(0, 5000), writer);
+		Assert.assertEquals(4, flushes[0]);
+		Assert.assertEquals(5000, MixedList.fromJSON(writer.toString()).size());
+	}
+
+	@Test
+	public void testParallelEncoding() throws IOException {
+		MixedList records = new MixedList();
+		for (int ix = 0; ix < 10000; ix++) {
+			records.add(new MixedMap().$("id", ix).$("name", "record " + ix).$("tags", new MixedList().$("a", ix)));
+		}
+		MixedMap document = new MixedMap().$("records", records).$("small", new MixedList().$(1, 2, 3));
+
+		for (EnumSet<Options> options : Arrays.asList(EnumSet.noneOf(Options.class), EnumSet.of(Options.PRETTY))) {
+			StringBuilder sequential = new StringBuilder();
+			new JSONEncoder(sequential, options).write(document);
+
+			EnumSet<Options> parallelOptions = options.clone();
+			parallelOptions.add(Options.PARALLEL);
+			StringBuilder parallel = new StringBuilder();
+			new JSONEncoder(parallel, parallelOptions).write(document);
+
+			Assert.assertEquals(sequential.toString(), parallel.toString());
+		}
+	}
+
+	@Test
+	public void testCanonicalEncoding() throws IOException {
+		MixedMap first = new MixedMap().$("b", new MixedList().$(1.50, 1e30, 1e-7, 0.000001, -0.0, Double.NaN))
+		                               .$("a", new MixedMap().$("z", new BigDecimal("100.00")).$("y", 12.5f))
+		                               .$("c", "a/b\u007f\n");
+		MixedMap second = new MixedMap().$("c", "a/b\u007f\n")
+		                                .$("a", new MixedMap().$("y", 12.5).$("z", 100))
+		                                .$("b", new MixedList().$(1.5, 1e30, 1e-7, 0.000001, 0, null));
+
+		String expected = "{\"a\":{\"y\":12.5,\"z\":100},"
+		                  + "\"b\":[1.5,1e+30,1e-7,0.000001,0,null],"
+		                  + "\"c\":\"a/b\u007f\\n\"}";
+		Assert.assertEquals(expected, canonical(first));
+		Assert.assertEquals(expected, canonical(second));
+	}
+
+	@Test
+	public void testEncodedLength() throws IOException {
+		String text = "送 \"醨\" 훖\n😀 \ud800 / \u0001";
+		MixedList items = new MixedList();
+		for (int ix = 0; ix < 50; ix++) {
+			items.add(new MixedMap().$("id", ix).$("text", text).$("value", ix / 7.0));
+		}
+		MixedMap document = new MixedMap().$("items", items).$("empty", new MixedMap()).$("flag", false);
+
+		JSONCache cache = new JSONCache(1 << 20);
+		for (EnumSet<Options> options : Arrays.asList(EnumSet.noneOf(Options.class),
+		                                              EnumSet.of(Options.PRETTY),
+		                                              EnumSet.of(Options.CANONICAL))) {
+			for (int round = 0; round < 3; round++) {
+				if (round == 2) {
+					((MixedMap) items.get(10)).put("text", "changed ☃");
+				}
+
+				StringBuilder expected = new StringBuilder();
+				new JSONEncoder(expected, options).write(document);
+				byte[] expectedBytes = expected.toString().getBytes(StandardCharsets.UTF_8);
+
+				EncodedLength length = JSONEncoder.encodedLength(document, options, cache);
+				Assert.assertEquals(expected.length(), length.getChars());
+				Assert.assertEquals(expectedBytes.length, length.getBytes());
+				Assert.assertArrayEquals(expectedBytes, JSONEncoder.toUTF8(document, options, cache));
+			}
+		}
+		Assert.assertTrue(cache.getHits() > 0);
+	}
+
+	@Test
+	public void testEncodedLengthOfUnstableValues() throws IOException {
+		StringBuilder text = new StringBuilder("a text that can change without changing the version of its map");
+		MixedMap document = new MixedMap().$("items", new MixedList().$(new MixedMap().$("text", text)));
+		EnumSet<Options> options = EnumSet.noneOf(Options.class);
+
+		JSONCache cache = new JSONCache(1 << 20);
+		for (int round = 0; round < 3; round++) {
+			JSONEncoder.encodedLength(document, options, cache);
+		}
+		text.append(" ☃");
+
+		byte[] expected = JSONEncoder.toString(document).getBytes(StandardCharsets.UTF_8);
+		Assert.assertEquals(expected.length, JSONEncoder.encodedLength(document, options, cache).getBytes());
+		Assert.assertArrayEquals(expected, JSONEncoder.toUTF8(document, options, cache));
+	}
+
+	@Test
+	public void testBinaryValues() throws IOException {
+		Random random = new Random(42);
+		for (int size : new int[] { 0, 1, 2, 3, 4, 5, 3072, 3073, 1 << 20 }) {
+			byte[] data = new byte[size];
+			random.nextBytes(data);
+			String expected = "\"" + Base64.getEncoder().encodeToString(data) + "\"";
+
+			Assert.assertEquals(expected, JSONEncoder.toString(data));
+			Assert.assertEquals(expected, JSONEncoder.toString(Channels.newChannel(new ByteArrayInputStream(data))));
+
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			Assert.assertEquals(expected, JSONEncoder.toString(buffer));
+			Assert.assertEquals(0, buffer.position());
+
+			// A stream that returns less than requested should not make a difference
+			InputStream slow = new ByteArrayInputStream(data) {
+				@Override
+				public synchronized int read(byte[] b, int off, int len) {
+					return super.read(b, off, Math.min(len, 7));
+				}
+			};
+			Assert.assertEquals(expected, JSONEncoder.toString(slow));
+
+			// Nor should a non-blocking channel, which often has nothing available
+			Assert.assertEquals(expected, JSONEncoder.toString(sparseChannel(data)));
+		}
+
+		// Waiting for a channel that has nothing available stops when the thread is interrupted
+		Thread.currentThread().interrupt();
+		try {
+			JSONEncoder.encode(sparseChannel(new byte[3 * 1024]), new StringBuilder());
+			Assert.fail("Expected an InterruptedIOException");
+		} catch (InterruptedIOException e) {
+			// Expected
+		} finally {
+			Assert.assertTrue(Thread.interrupted());
+		}
+
+		testCorrect("{\"data\":\"AQID\"}", new MixedMap().$("data", new byte[] { 1, 2, 3 }));
+	}
+
+	/**
+	 * @return A channel that behaves like a non-blocking one, which has nothing available for two out of three reads.
+	 */
+	private static ReadableByteChannel sparseChannel(byte[] data) {
+		ByteBuffer source = ByteBuffer.wrap(data);
+		return new ReadableByteChannel() {
+			private int reads;
+
+			@Override
+			public int read(ByteBuffer dst) {
+				if (!source.hasRemaining()) {
+					return -1;
+				} else if (reads++ % 3 != 2) {
+					return 0;
+				}
+				int length = Math.min(5, Math.min(source.remaining(), dst.remaining()));
+				dst.put(data, source.position(), length);
+				source.position(source.position() + length);
+				return length;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return true;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	@Test
+	public void testDirectValues() throws IOException {
+		testCorrect("[1,-2,2147483647,-2147483648]", new int[] { 1, -2, Integer.MAX_VALUE, Integer.MIN_VALUE });
+		testCorrect("[0,9223372036854775807,-9223372036854775808]", new long[] { 0, Long.MAX_VALUE, Long.MIN_VALUE });
+		testCorrect("[3,-4]", new short[] { 3, -4 });
+		testCorrect("[true,false]", new boolean[] { true, false });
+		testCorrect("[1.5,-0.0,0.0," + Float.toString(3e10f) + "]", new float[] { 1.5f, -0f, 0f, 3e10f });
+		testCorrect("\"chars\"", "chars".toCharArray());
+		testCorrect("[]", new double[0]);
+
+		IntBuffer ints = IntBuffer.wrap(new int[] { 1, 2, 3, 4 });
+		ints.position(1);
+		testCorrect("[2,3,4]", ints);
+		Assert.assertEquals(1, ints.position());
+		testCorrect("[2.5]", DoubleBuffer.wrap(new double[] { 2.5 }));
+
+		// The doubles should be written exactly as by Double.toString
+		Random random = new Random(5);
+		double[] doubles = new double[1000];
+		for (int ix = 0; ix < doubles.length; ix++) {
+			doubles[ix] = ix % 2 == 0 ? random.nextInt(20000000) - 10000000 : random.nextGaussian() * 1e6;
+		}
+		doubles[0] = -0.0;
+		doubles[2] = 9999999.0;
+		doubles[4] = Double.MAX_VALUE;
+		testCorrect(Arrays.toString(doubles).replace(" ", ""), doubles);
+
+		UUID uuid = UUID.randomUUID();
+		testCorrect("\"" + uuid + "\"", uuid);
+		testCorrect("\"PRETTY\"", Options.PRETTY);
+		testCorrect("\"2020-02-29T12:30:00Z\"", Instant.parse("2020-02-29T12:30:00Z"));
+		testCorrect("\"2020-02-29\"", LocalDate.of(2020, 2, 29));
+		testCorrect("\"PT1H30M\"", Duration.ofMinutes(90));
+		testCorrect("{\"a\":1,\"b\":null,\"c\":2.5,\"d\":null}",
+		            new MixedMap().$("a", Optional.of(1))
+		                          .$("b", Optional.empty())
+		                          .$("c", OptionalDouble.of(2.5))
+		                          .$("d", OptionalInt.empty()));
+
+		// Pretty printing should be the same as for a list
+		EnumSet<Options> pretty = EnumSet.of(Options.PRETTY);
+		Assert.assertEquals(encode(new MixedMap().$("list", new MixedList().$(1, 2)), pretty),
+		                    encode(new MixedMap().$("list", new int[] { 1, 2 }), pretty));
+	}
+
+	@Test
+	public void testEscapeOptions() throws IOException {
+		String text = "a/b 送 😀 \u0001\"";
+		Assert.assertEquals("\"a/b 送 😀 \\u0001\\\"\"", encode(text, EnumSet.of(Options.UNESCAPED_SLASH)));
+		Assert.assertEquals("\"a\\/b \\u9001 \\ud83d\\ude00 \\u0001\\\"\"",
+		                    encode(text, EnumSet.of(Options.ASCII_ONLY)));
+
+		// Long strings are escaped in pieces, which should not make a difference
+		StringBuilder longText = new StringBuilder();
+		StringBuilder expected = new StringBuilder("\"");
+		for (int ix = 0; ix < 1000; ix++) {
+			longText.append(text);
+			expected.append("a\\/b 送 😀 \\u0001\\\"");
+		}
+		expected.append('"');
+		Assert.assertEquals(expected.toString(), encode(longText, EnumSet.noneOf(Options.class)));
+		Assert.assertEquals(expected.toString(), encode(longText.toString(), EnumSet.noneOf(Options.class)));
+
+		StringWriter writer = new StringWriter();
+		new JSONEncoder(writer).write(longText);
+		Assert.assertEquals(expected.toString(), writer.toString());
+	}
+
+	private static String encode(Object input, EnumSet<Options> options) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		new JSONEncoder(sb, options).write(input);
+		return sb.toString();
+	}
+
+	private static String canonical(Object input) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		new JSONEncoder(sb, EnumSet.of(Options.CANONICAL)).write(input);
+		return sb.toString();
+	}
+
 	private void testCorrect(String expectedJson, Object input) throws IOException {
 		Assert.assertEquals(expectedJson, JSONEncoder.toString(input));
 	}
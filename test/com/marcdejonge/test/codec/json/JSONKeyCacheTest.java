@@ -0,0 +1,61 @@
+package com.marcdejonge.test.codec.json;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import com.marcdejonge.codec.MixedList;
+import com.marcdejonge.codec.MixedMap;
+import com.marcdejonge.codec.json.JSONEncoder;
+import com.marcdejonge.codec.json.JSONEncoder.Options;
+import com.marcdejonge.codec.json.JSONKeyCache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JSONKeyCacheTest {
+	@Test
+	public void testSameOutput() throws IOException {
+		MixedList items = new MixedList();
+		for (int ix = 0; ix < 10; ix++) {
+			items.add(new MixedMap().$("id", ix)
+			                        .$("a/b", "slash")
+			                        .$("quote\"d", new MixedMap().$("x", 1).$("y", 2))
+			                        .$("送", true));
+		}
+
+		for (EnumSet<Options> options : Arrays.asList(EnumSet.noneOf(Options.class),
+		                                              EnumSet.of(Options.PRETTY),
+		                                              EnumSet.of(Options.UNESCAPED_SLASH),
+		                                              EnumSet.of(Options.ASCII_ONLY))) {
+			JSONKeyCache keyCache = new JSONKeyCache(16);
+			Assert.assertEquals(encode(items, options, null), encode(items, options, keyCache));
+
+			// Only the keys without escapes are cached
+			Assert.assertEquals(3, keyCache.getSize());
+			Assert.assertEquals(3, keyCache.getMisses());
+			Assert.assertEquals(27, keyCache.getHits());
+			Assert.assertEquals(30, keyCache.getBypassed());
+		}
+	}
+
+	@Test
+	public void testBounded() throws IOException {
+		JSONKeyCache keyCache = new JSONKeyCache(2);
+		keyCache.register("first", "second", "third");
+		Assert.assertEquals(2, keyCache.getSize());
+
+		MixedMap map = new MixedMap().$("third", 3).$("second", 2).$("first", 1);
+		Assert.assertEquals("{\"third\":3,\"second\":2,\"first\":1}",
+		                    encode(map, EnumSet.noneOf(Options.class), keyCache));
+		Assert.assertEquals(2, keyCache.getSize());
+		Assert.assertEquals(2, keyCache.getHits());
+		Assert.assertEquals(1, keyCache.getMisses());
+	}
+
+	private static String encode(Object input, EnumSet<Options> options, JSONKeyCache keyCache) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		new JSONEncoder(sb, options, null, keyCache).write(input);
+		return sb.toString();
+	}
+}
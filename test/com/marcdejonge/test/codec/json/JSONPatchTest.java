@@ -0,0 +1,262 @@
+package com.marcdejonge.test.codec.json;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.marcdejonge.codec.MixedList;
+import com.marcdejonge.codec.MixedMap;
+import com.marcdejonge.codec.ParseException;
+import com.marcdejonge.codec.UnexpectedTypeException;
+import com.marcdejonge.codec.json.JSONDecoder;
+import com.marcdejonge.codec.json.JSONDigest;
+import com.marcdejonge.codec.json.JSONEncoder;
+import com.marcdejonge.codec.json.JSONPatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JSONPatchTest {
+	@Test
+	public void testDiff() throws ParseException, UnexpectedTypeException {
+		Object source = JSONDecoder.parse("{\"a\":1,\"b\":{\"c\":[1,2,3,4,5],\"d\":\"x\"},\"e/f\":true,\"g~\":null}");
+		Object target = JSONDecoder.parse("{\"a\":2,\"b\":{\"c\":[1,3,4,6,5,7],\"d\":\"x\"},\"g~\":null,\"h\":[]}");
+		MixedList patch = new JSONPatch().diff(source, target);
+		Assert.assertEquals(JSONDecoder.parse("[{\"op\":\"remove\",\"path\":\"/e~1f\"},"
+		                                      + "{\"op\":\"replace\",\"path\":\"/a\",\"value\":2},"
+		                                      + "{\"op\":\"remove\",\"path\":\"/b/c/1\"},"
+		                                      + "{\"op\":\"add\",\"path\":\"/b/c/3\",\"value\":6},"
+		                                      + "{\"op\":\"add\",\"path\":\"/b/c/5\",\"value\":7},"
+		                                      + "{\"op\":\"add\",\"path\":\"/h\",\"value\":[]}]"),
+		                    patch);
+		Assert.assertEquals(target, JSONPatch.apply(source, patch));
+
+		// Changed elements of a list are patched in place
+		Object items = JSONDecoder.parse("[{\"id\":1,\"v\":1},{\"id\":2,\"v\":2},{\"id\":3,\"v\":3}]");
+		Object changed = JSONDecoder.parse("[{\"id\":1,\"v\":1},{\"id\":2,\"v\":5},{\"id\":3,\"v\":3}]");
+		Assert.assertEquals(JSONDecoder.parse("[{\"op\":\"replace\",\"path\":\"/1/v\",\"value\":5}]"),
+		                    new JSONPatch().diff(items, changed));
+		Object copy = JSONDecoder.parse(JSONEncoder.toString(items));
+		Assert.assertEquals(new MixedList(), new JSONPatch().diff(items, copy));
+		Assert.assertEquals(JSONDecoder.parse("[{\"op\":\"replace\",\"path\":\"\",\"value\":3}]"),
+		                    new JSONPatch().diff(items, 3));
+	}
+
+	@Test
+	public void testRandomDiffs() throws ParseException, UnexpectedTypeException, IOException {
+		Random random = new Random(42);
+		JSONDigest digest = new JSONDigest();
+		for (int round = 0; round < 500; round++) {
+			Object source = randomValue(random, 3), target = mutate(random, source, 3);
+			digest.hash64(source);
+			digest.hash64(target);
+			for (JSONPatch differ : Arrays.asList(new JSONPatch(), new JSONPatch(digest, 16), new JSONPatch(null, 0))) {
+				MixedList patch = differ.diff(source, target);
+				Object copy = JSONDecoder.parse(JSONEncoder.toString(source));
+				Assert.assertEquals(target, JSONPatch.apply(copy, patch));
+
+				Object merged = JSONPatch.merge(JSONDecoder.parse(JSONEncoder.toString(source)),
+				                                differ.mergeDiff(source, target));
+				Assert.assertEquals(withoutNulls(target), withoutNulls(merged));
+			}
+		}
+	}
+
+	@Test
+	public void testDigest() throws IOException {
+		MixedList items = new MixedList();
+		for (int ix = 0; ix < 1000; ix++) {
+			items.add(new MixedMap().$("id", ix).$("name", "item " + ix));
+		}
+		MixedMap source = new MixedMap().$("items", items);
+		MixedMap target = new MixedMap().$("items", new MixedList(items));
+		target.getList("items", null).remove(10);
+		target.getList("items", null).add(500, new MixedMap().$("id", -1));
+
+		// Without a digest the copied maps are matched by their hash code, with it by their remembered hash
+		JSONDigest digest = new JSONDigest();
+		digest.hash64(source);
+		digest.hash64(target);
+		for (JSONPatch differ : Arrays.asList(new JSONPatch(), new JSONPatch(digest, JSONPatch.DEFAULT_BUDGET))) {
+			Assert.assertEquals(new MixedList().$(new MixedMap().$("op", "remove").$("path", "/items/10"),
+			                                      new MixedMap().$("op", "add")
+			                                                    .$("path", "/items/500")
+			                                                    .$("value", new MixedMap().$("id", -1))),
+			                    differ.diff(source, target));
+		}
+	}
+
+	@Test
+	public void testApply() throws ParseException, UnexpectedTypeException {
+		// The examples of RFC 6902
+		Object document = JSONDecoder.parse("{\"foo\":{\"bar\":\"baz\",\"waldo\":\"fred\"},"
+		                                    + "\"qux\":{\"corge\":\"grault\"},\"list\":[\"a\",\"b\"]}");
+		MixedList patch = (MixedList) JSONDecoder.parse("[{\"op\":\"move\",\"from\":\"/foo/waldo\","
+		                                                + "\"path\":\"/qux/thud\"},"
+		                                                + "{\"op\":\"add\",\"path\":\"/list/1\",\"value\":\"c\"},"
+		                                                + "{\"op\":\"add\",\"path\":\"/list/-\",\"value\":\"d\"},"
+		                                                + "{\"op\":\"copy\",\"from\":\"/qux\",\"path\":\"/copy\"},"
+		                                                + "{\"op\":\"replace\",\"path\":\"/foo/bar\",\"value\":1},"
+		                                                + "{\"op\":\"test\",\"path\":\"/list/2\",\"value\":\"b\"}]");
+		Object result = JSONPatch.apply(document, patch);
+		Assert.assertSame(document, result);
+		Assert.assertEquals(JSONDecoder.parse("{\"foo\":{\"bar\":1},\"qux\":{\"corge\":\"grault\",\"thud\":\"fred\"},"
+		                                      + "\"list\":[\"a\",\"c\",\"b\",\"d\"],"
+		                                      + "\"copy\":{\"corge\":\"grault\",\"thud\":\"fred\"}}"),
+		                    result);
+		Assert.assertEquals("[\"foo\",\"qux\",\"list\",\"copy\"]",
+		                    JSONEncoder.toString(((MixedMap) result).keySet()));
+
+		// The copy is not shared
+		((MixedMap) result).getMap("copy", null).put("corge", 2);
+		Assert.assertEquals("grault", ((MixedMap) result).getMap("qux", null).getString("corge", null));
+
+		for (String invalid : Arrays.asList("[{\"op\":\"remove\",\"path\":\"/missing\"}]",
+		                                    "[{\"op\":\"add\",\"path\":\"/list/9\",\"value\":1}]",
+		                                    "[{\"op\":\"add\",\"path\":\"/list/01\",\"value\":1}]",
+		                                    "[{\"op\":\"replace\",\"path\":\"/foo/x\",\"value\":1}]",
+		                                    "[{\"op\":\"add\",\"path\":\"/foo/bar\"}]",
+		                                    "[{\"op\":\"test\",\"path\":\"/foo/bar\",\"value\":2}]",
+		                                    "[{\"op\":\"move\",\"from\":\"/foo\",\"path\":\"/foo/x\"}]",
+		                                    "[{\"op\":\"jump\",\"path\":\"/foo\"}]",
+		                                    "[{\"op\":\"add\",\"path\":\"foo\",\"value\":1}]")) {
+			List<?> operations = (List<?>) JSONDecoder.parse(invalid);
+			try {
+				JSONPatch.apply(result, operations);
+				Assert.fail("Expected an UnexpectedTypeException for " + invalid);
+			} catch (UnexpectedTypeException ex) {
+				// Expected
+			}
+		}
+	}
+
+	@Test
+	public void testNumbers() throws ParseException, UnexpectedTypeException {
+		Object document = JSONDecoder.parse("{\"int\":1,\"list\":[1,2.5],\"map\":{\"x\":3.00,\"y\":null}}");
+
+		// Numbers are compared by their value, also within maps and lists
+		for (Object[] test : new Object[][] { { "/int", 1.0 },
+		                                      { "/int", 1L },
+		                                      { "/int", new BigDecimal("1.00") },
+		                                      { "/int", BigInteger.ONE },
+		                                      { "/list", new MixedList().$(1.0f, new BigDecimal("2.50")) },
+		                                      { "/map", new MixedMap().$("y", null).$("x", 3) } }) {
+			JSONPatch.apply(document, new MixedList().$(new MixedMap().$("op", "test")
+			                                                          .$("path", test[0])
+			                                                          .$("value", test[1])));
+		}
+
+		for (Object[] test : new Object[][] { { "/int", 1.5 },
+		                                      { "/int", "1" },
+		                                      { "/list", new MixedList().$(1, 2.5, 3) },
+		                                      { "/map", new MixedMap().$("x", 3) },
+		                                      { "/map", new MixedMap().$("x", 3).$("z", null) } }) {
+			try {
+				JSONPatch.apply(document, new MixedList().$(new MixedMap().$("op", "test")
+				                                                          .$("path", test[0])
+				                                                          .$("value", test[1])));
+				Assert.fail("Expected an UnexpectedTypeException for " + test[1]);
+			} catch (UnexpectedTypeException ex) {
+				// Expected
+			}
+		}
+	}
+
+	@Test
+	public void testMerge() throws ParseException {
+		// The example of RFC 7386
+		Object document = JSONDecoder.parse("{\"title\":\"Goodbye!\",\"author\":{\"givenName\":\"John\","
+		                                    + "\"familyName\":\"Doe\"},\"tags\":[\"example\",\"sample\"],"
+		                                    + "\"content\":\"This will be unchanged\"}");
+		Object patch = JSONDecoder.parse("{\"title\":\"Hello!\",\"phoneNumber\":\"+01-123-456-7890\","
+		                                 + "\"author\":{\"familyName\":null},\"tags\":[\"example\"]}");
+		Object expected = JSONDecoder.parse("{\"title\":\"Hello!\",\"author\":{\"givenName\":\"John\"},"
+		                                    + "\"tags\":[\"example\"],\"content\":\"This will be unchanged\","
+		                                    + "\"phoneNumber\":\"+01-123-456-7890\"}");
+		Object source = JSONDecoder.parse(JSONEncoder.toString(document));
+		Assert.assertSame(document, JSONPatch.merge(document, patch));
+		Assert.assertEquals(expected, document);
+		Assert.assertEquals(patch, new JSONPatch().mergeDiff(source, expected));
+
+		Assert.assertEquals(new MixedMap().$("a", new MixedMap().$("b", 1)),
+		                    JSONPatch.merge("text", JSONDecoder.parse("{\"a\":{\"b\":1,\"c\":null}}")));
+		Assert.assertEquals(3, JSONPatch.merge(new MixedMap(), 3));
+		Assert.assertEquals(new MixedMap(), new JSONPatch().mergeDiff(source, source));
+	}
+
+	private static Object randomValue(Random random, int depth) {
+		switch (depth == 0 ? random.nextInt(4) : random.nextInt(6)) {
+		case 0:
+			return random.nextInt(5);
+		case 1:
+			return "s" + random.nextInt(5);
+		case 2:
+			return random.nextBoolean() ? null : true;
+		case 3:
+			return random.nextInt(3) * 0.5;
+		case 4: {
+			MixedMap map = new MixedMap();
+			for (int ix = random.nextInt(5); ix > 0; ix--) {
+				map.put("k" + random.nextInt(6), randomValue(random, depth - 1));
+			}
+			return map;
+		}
+		default: {
+			MixedList list = new MixedList();
+			for (int ix = random.nextInt(8); ix > 0; ix--) {
+				list.add(randomValue(random, depth - 1));
+			}
+			return list;
+		}
+		}
+	}
+
+	private static Object mutate(Random random, Object value, int depth) {
+		if (random.nextInt(4) == 0) {
+			return randomValue(random, depth);
+		} else if (value instanceof MixedMap) {
+			MixedMap map = new MixedMap();
+			for (Map.Entry<String, Object> entry : ((MixedMap) value).entrySet()) {
+				if (random.nextInt(5) != 0) {
+					Object element = entry.getValue();
+					map.put(entry.getKey(), random.nextBoolean() ? element : mutate(random, element, 2));
+				}
+			}
+			if (random.nextBoolean()) {
+				map.put("k" + random.nextInt(8), randomValue(random, 1));
+			}
+			return map;
+		} else if (value instanceof MixedList) {
+			MixedList list = new MixedList();
+			for (Object element : (MixedList) value) {
+				if (random.nextInt(4) == 0) {
+					list.add(randomValue(random, 1));
+				}
+				if (random.nextInt(5) != 0) {
+					list.add(random.nextBoolean() ? element : mutate(random, element, 2));
+				}
+			}
+			return list;
+		} else {
+			return value;
+		}
+	}
+
+	private static Object withoutNulls(Object value) {
+		if (value instanceof Map) {
+			Map<String, Object> map = new HashMap<>();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				if (entry.getValue() != null) {
+					map.put(String.valueOf(entry.getKey()), withoutNulls(entry.getValue()));
+				}
+			}
+			return map;
+		}
+		return value;
+	}
+}
@@ -0,0 +1,150 @@
+package com.marcdejonge.test.codec.json;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import com.marcdejonge.codec.MixedList;
+import com.marcdejonge.codec.MixedMap;
+import com.marcdejonge.codec.ParseException;
+import com.marcdejonge.codec.UnexpectedTypeException;
+import com.marcdejonge.codec.json.JSONDecoder;
+import com.marcdejonge.codec.json.JSONEncoder;
+import com.marcdejonge.codec.json.JSONEncoder.Options;
+import com.marcdejonge.codec.json.JSONTape;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JSONTapeTest {
+	private static final String DOCUMENT = "{\"id\":12,\"name\":\"tape\",\"big\":12345678901,"
+	                                       + "\"huge\":123456789012345678901,\"ratio\":-0.25,"
+	                                       + "\"exp\":1e5000,\"flags\":[true,false,null],"
+	                                       + "\"nested\":{\"a/b\":\"x\\\"y\",\"送\":\"\\u00e9\\n\",\"empty\":{},"
+	                                       + "\"list\":[]},\"items\":[{\"id\":1},{\"id\":2,\"tags\":[\"a\",\"b\"]}]}";
+
+	@Test
+	public void testViews() throws ParseException, UnexpectedTypeException {
+		JSONTape tape = JSONTape.parse(DOCUMENT);
+		Object expected = JSONDecoder.parse(DOCUMENT);
+		MixedMap root = (MixedMap) tape.root();
+		Assert.assertEquals(expected, root);
+		Assert.assertEquals(root, expected);
+		Assert.assertEquals(expected.hashCode(), root.hashCode());
+
+		Assert.assertEquals(9, root.size());
+		Assert.assertEquals(12, root.get("id"));
+		Assert.assertEquals(12345678901L, root.get("big"));
+		Assert.assertEquals(-0.25, root.getDouble("ratio"), 0);
+		Assert.assertEquals("x\"y", root.getMap("nested").getString("a/b"));
+		Assert.assertEquals("é\n", root.getMap("nested").getString("送"));
+		Assert.assertTrue(root.getMap("nested").getMap("empty").isEmpty());
+		Assert.assertNull(root.get("missing"));
+		Assert.assertFalse(root.containsKey(12));
+		Assert.assertEquals(Arrays.asList("id", "name", "big", "huge", "ratio", "exp", "flags", "nested", "items"),
+		                    new ArrayList<>(root.keySet()));
+
+		MixedList items = root.getList("items");
+		Assert.assertEquals(2, items.size());
+		Assert.assertEquals("b", items.getMap(1).getList("tags").getString(1));
+		Assert.assertEquals(Arrays.asList(true, false, null), root.getList("flags"));
+		Assert.assertEquals(1, root.getList("flags").indexOf(false));
+
+		try {
+			root.put("id", 13);
+			Assert.fail("Expected an UnsupportedOperationException");
+		} catch (UnsupportedOperationException ex) {
+			// Expected
+		}
+		try {
+			items.add(3);
+			Assert.fail("Expected an UnsupportedOperationException");
+		} catch (UnsupportedOperationException ex) {
+			// Expected
+		}
+
+		// Scalar documents
+		Assert.assertEquals("text", JSONTape.parse("\"text\"").root());
+		Assert.assertEquals(-7, JSONTape.parse(" -7 ").root());
+		Assert.assertNull(JSONTape.parse("null").root());
+	}
+
+	@Test
+	public void testEncoding() throws ParseException, IOException {
+		JSONTape tape = JSONTape.parse(DOCUMENT);
+		Object expected = JSONDecoder.parse(DOCUMENT);
+		for (EnumSet<Options> options : Arrays.asList(EnumSet.noneOf(Options.class),
+		                                              EnumSet.of(Options.PRETTY),
+		                                              EnumSet.of(Options.CANONICAL),
+		                                              EnumSet.of(Options.UNESCAPED_SLASH),
+		                                              EnumSet.of(Options.ASCII_ONLY))) {
+			Assert.assertEquals(encode(expected, options), encode(tape.root(), options));
+		}
+		Assert.assertEquals(JSONEncoder.toString(expected), tape.toJSON());
+		Assert.assertEquals(JSONEncoder.encodedLength(expected).getBytes(),
+		                    JSONEncoder.encodedLength(tape.root()).getBytes());
+
+		// Mixed into other documents
+		MixedMap wrapper = new MixedMap().$("tape", tape.root()).$("after", 1);
+		Assert.assertEquals("{\"tape\":" + JSONEncoder.toString(expected) + ",\"after\":1}",
+		                    JSONEncoder.toString(wrapper));
+	}
+
+	@Test
+	public void testLargeDocument() throws ParseException, IOException, ClassNotFoundException {
+		StringBuilder json = new StringBuilder("[");
+		for (int ix = 0; ix < 5000; ix++) {
+			json.append(ix == 0 ? "" : ",").append("{\"id\":").append(ix).append(",\"value\":\"v").append(ix);
+			json.append("\",\"list\":[").append(ix).append(",").append(ix * 0.5).append("]}");
+		}
+		json.append(']');
+
+		JSONTape tape = JSONTape.parse(json.toString());
+		MixedList list = (MixedList) tape.root();
+		Assert.assertEquals(5000, list.size());
+		Assert.assertEquals("v4321", list.getMap(4321, null).getString("value", null));
+		Assert.assertEquals(1000.5, list.getMap(2001, null).getList("list", null).getDouble(1, 0), 0);
+		Assert.assertEquals(JSONDecoder.parse(json.toString()), list);
+		Assert.assertEquals(JSONEncoder.toString(JSONDecoder.parse(json.toString())), tape.toJSON());
+
+		// Twelve words per record, the keys are only stored once
+		Assert.assertTrue(tape.byteSize() < 5000 * (12 * 8 + 16));
+
+		// Serialized as a normal list
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(list.getMap(7, null));
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			Assert.assertEquals(new MixedMap().$("id", 7).$("value", "v7").$("list", new MixedList().$(7, 3.5)),
+			                    in.readObject());
+		}
+	}
+
+	@Test
+	public void testErrors() {
+		for (String json : Arrays.asList("{\"a\":1,\"a\":2}",
+		                                 "[1,2",
+		                                 "{\"a\" 1}",
+		                                 "[tru]",
+		                                 "{\"a\":{\"b\":1,\"b\":1}}")) {
+			try {
+				JSONTape.parse(json);
+				Assert.fail("Expected a ParseException for " + json);
+			} catch (ParseException ex) {
+				// Expected
+			}
+		}
+	}
+
+	private static String encode(Object input, EnumSet<Options> options) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		new JSONEncoder(sb, options).write(input);
+		return sb.toString();
+	}
+}